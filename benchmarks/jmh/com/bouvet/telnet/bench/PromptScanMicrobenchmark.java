@@ -0,0 +1,47 @@
+package com.bouvet.telnet.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmark of finding the prompt at the end of a command output, for outputs of
+ * growing size. The time of both methods should grow linearly with the size, see
+ * PromptScanScalingBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PromptScanMicrobenchmark {
+	@Param({"65536","1048576","4194304"})
+	public int outputSize;
+	private byte[] output;
+
+	@Setup
+	public void setUp(){
+		output=PromptScanScalingBenchmark.createOutput(outputSize);
+	}
+
+	/**
+	 * Feed the output to the matcher watching the prompt, "Login failed" and "Password: "
+	 */
+	@Benchmark
+	public int matcher(){
+		return PromptScanScalingBenchmark.scanWithMatcher(output);
+	}
+
+	/**
+	 * Read the output with ReadInputObservableRunnable until the prompt
+	 */
+	@Benchmark
+	public Object reader(){
+		return PromptScanScalingBenchmark.scanWithReader(output);
+	}
+}
@@ -0,0 +1,50 @@
+package com.bouvet.telnet.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.bouvet.telnet.SAPTelnetClient;
+
+/**
+ * JMH benchmark of a command through a logged in SAPTelnetClient against the in-process
+ * loopback server: a short command, which measures the round trip, and a command with
+ * 1 MB of output. Run with -prof gc for the bytes allocated pr command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundTripMicrobenchmark {
+	private LoopbackTelnetServer server;
+	private SAPTelnetClient client;
+
+	@Setup
+	public void setUp() throws Exception{
+		server=new LoopbackTelnetServer();
+		client=new SAPTelnetClient("127.0.0.1",server.getPort());
+		client.login("benchmark","benchmark");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception{
+		client.logout();
+		server.close();
+	}
+
+	@Benchmark
+	public String shortCommand() throws Exception{
+		return client.sendCommand("ll");
+	}
+
+	@Benchmark
+	public String bigOutput() throws Exception{
+		return client.sendCommand("big 1048576");
+	}
+}
@@ -0,0 +1,59 @@
+package com.bouvet.telnet.bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated by all threads pr MB of command output, using the 
+ * allocation counters of the HotSpot ThreadMXBean. Reports -1 if the JVM does not
+ * support them.
+ *
+ * The loopback server allocates next to nothing pr command, so the count is 
+ * dominated by the client.
+ */
+@SuppressWarnings("restriction")
+public class AllocationBenchmark extends WaitForLatencyBenchmark {
+	private final static int OUTPUT_SIZE=4*1024*1024;
+	private com.sun.management.ThreadMXBean threadBean;
+
+	public String getName() {
+		return "allocationPrMB";
+	}
+
+	public String getUnit() {
+		return "bytes/MB";
+	}
+
+	public void setUp() throws Exception {
+		super.setUp();
+		if(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean){
+			threadBean=(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			if(!threadBean.isThreadAllocatedMemorySupported()){
+				threadBean=null;
+			}else {
+				threadBean.setThreadAllocatedMemoryEnabled(true);
+			}
+		}
+	}
+
+	public double measure() throws Exception {
+		if(threadBean==null){
+			return -1;
+		}
+		long before=allocatedBytes();
+		client.sendCommand("big "+OUTPUT_SIZE);
+		long after=allocatedBytes();
+		return (after-before)/(OUTPUT_SIZE/(1024.0*1024.0));
+	}
+
+	private long allocatedBytes(){
+		long[] ids=threadBean.getAllThreadIds();
+		long[] allocated=threadBean.getThreadAllocatedBytes(ids);
+		long total=0;
+		for (int i = 0; i < allocated.length; i++) {
+			if(allocated[i]>0){
+				total+=allocated[i];
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,48 @@
+package com.bouvet.telnet.bench;
+
+/**
+ * A benchmark of one of the hot paths of the client.
+ *
+ * The BenchmarkRunner calls setUp once, then measure a number of times for warm up
+ * and a number of times for the measurement, and finally tearDown.
+ */
+public abstract class Benchmark {
+
+	/**
+	 * Get the name of the benchmark, which is also its key in a baseline file
+	 *
+	 * @return
+	 */
+	public abstract String getName();
+
+	/**
+	 * Get the unit of the value returned by measure, e.g. us/command
+	 *
+	 * @return
+	 */
+	public abstract String getUnit();
+
+	/**
+	 * Prepare the benchmark, e.g. start a server and login
+	 *
+	 * @throws Exception
+	 */
+	public void setUp() throws Exception{
+	}
+
+	/**
+	 * Run one iteration of the benchmark
+	 *
+	 * @return The measured value, where lower is better
+	 * @throws Exception
+	 */
+	public abstract double measure() throws Exception;
+
+	/**
+	 * Release the resources of the benchmark
+	 *
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception{
+	}
+}
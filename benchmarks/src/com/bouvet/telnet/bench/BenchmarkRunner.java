@@ -0,0 +1,135 @@
+package com.bouvet.telnet.bench;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs the benchmarks of the client hot paths and prints a table of the results.
+ *
+ * If a baseline file is given, each result is compared with the maximum value given for
+ * the benchmark in the file (a properties file with the benchmark names as keys). The 
+ * program exits with error code 1 if any benchmark is above its maximum, so it can be 
+ * used to catch regressions.
+ *
+ * Usage: java com.bouvet.telnet.bench.BenchmarkRunner [baselineFile]
+ *
+ * The build runs it with baseline.properties as the benchmarkRegression task, which is part of check.
+ */
+public class BenchmarkRunner {
+	public final static int DEFAULT_WARMUP_ITERATIONS=5;
+	public final static int DEFAULT_MEASUREMENT_ITERATIONS=10;
+
+	private int warmupIterations=DEFAULT_WARMUP_ITERATIONS;
+	private int measurementIterations=DEFAULT_MEASUREMENT_ITERATIONS;
+	private Properties baseline=null;
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkRunner runner=new BenchmarkRunner();
+		if(args.length>0){
+			runner.loadBaseline(args[0]);
+		}
+		List<Benchmark> benchmarks=new ArrayList<Benchmark>();
+		benchmarks.add(new PromptScanBenchmark());
+		benchmarks.add(new WaitForLatencyBenchmark());
+		benchmarks.add(new ThreadsPerCommandBenchmark());
+		benchmarks.add(new AllocationBenchmark());
+		int regressions=runner.run(benchmarks);
+		if(regressions>0){
+			System.err.println(regressions+" benchmark(s) are above the baseline");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Load the maximum values of the benchmarks
+	 *
+	 * @param baselineFile A properties file with benchmark names as keys
+	 * @throws IOException
+	 */
+	public void loadBaseline(String baselineFile) throws IOException{
+		baseline=new Properties();
+		InputStream in=new FileInputStream(baselineFile);
+		try {
+			baseline.load(in);
+		}finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Run the benchmarks and print the results to System.out
+	 *
+	 * @param benchmarks The benchmarks to run
+	 * @return The number of benchmarks above the baseline
+	 * @throws Exception If a benchmark fails
+	 */
+	public int run(List<Benchmark> benchmarks) throws Exception{
+		int regressions=0;
+		System.out.println(pad("benchmark",28)+pad("mean",12)+pad("stddev",12)+pad("min",12)+pad("max",12)+pad("unit",16)+"baseline");
+		for (int b = 0; b < benchmarks.size(); b++) {
+			Benchmark benchmark=benchmarks.get(b);
+			benchmark.setUp();
+			double[] values=new double[measurementIterations];
+			try {
+				for (int i = 0; i < warmupIterations; i++) {
+					benchmark.measure();
+				}
+				for (int i = 0; i < measurementIterations; i++) {
+					values[i]=benchmark.measure();
+				}
+			}finally {
+				benchmark.tearDown();
+			}
+			double sum=0;
+			double min=Double.MAX_VALUE;
+			double max=-Double.MAX_VALUE;
+			for (int i = 0; i < values.length; i++) {
+				sum+=values[i];
+				min=Math.min(min,values[i]);
+				max=Math.max(max,values[i]);
+			}
+			double mean=sum/values.length;
+			double squares=0;
+			for (int i = 0; i < values.length; i++) {
+				squares+=(values[i]-mean)*(values[i]-mean);
+			}
+			double stddev=Math.sqrt(squares/values.length);
+			String verdict="";
+			if(baseline!=null && baseline.containsKey(benchmark.getName())){
+				double limit=Double.parseDouble(baseline.getProperty(benchmark.getName()).trim());
+				if(mean>limit){
+					regressions++;
+					verdict="REGRESSION (max "+limit+")";
+				}else {
+					verdict="OK (max "+limit+")";
+				}
+			}
+			System.out.println(pad(benchmark.getName(),28)+pad(format(mean),12)+pad(format(stddev),12)+pad(format(min),12)+pad(format(max),12)+pad(benchmark.getUnit(),16)+verdict);
+		}
+		return regressions;
+	}
+
+	public void setWarmupIterations(int warmupIterations){
+		this.warmupIterations=warmupIterations;
+	}
+
+	public void setMeasurementIterations(int measurementIterations){
+		this.measurementIterations=measurementIterations;
+	}
+
+	private static String format(double value){
+		return String.valueOf(Math.round(value*1000)/1000.0);
+	}
+
+	private static String pad(String value,int width){
+		StringBuffer sb=new StringBuffer(value);
+		while(sb.length()<width){
+			sb.append(' ');
+		}
+		return sb.append(' ').toString();
+	}
+}
@@ -0,0 +1,91 @@
+package com.bouvet.telnet.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Properties;
+
+import com.bouvet.telnet.SAPTelnetScript;
+import com.bouvet.telnet.TelnetException;
+import com.bouvet.telnet.standin.StandInTelnetServer;
+
+/**
+ * Runs a command file with two independent blocks against the stand-in with
+ * MaxSessionsPerHost=1. The session of each block must take the only slot once, so the
+ * blocks run one after the other instead of failing to be admitted.
+ *
+ * The program exits with error code 1 if the script fails or the blocks ran at the same time.
+ *
+ * Usage: java com.bouvet.telnet.bench.BlockAdmissionRegression
+ */
+public class BlockAdmissionRegression {
+	protected final static long INFO_LATENCY_MS=300;
+
+	public static void main(String[] args) throws Exception {
+		String failure=new BlockAdmissionRegression().run();
+		if(failure!=null){
+			System.err.println("BlockAdmissionRegression failed: "+failure);
+			System.exit(1);
+		}
+		System.out.println("BlockAdmissionRegression OK");
+	}
+
+	/**
+	 * Run the blocks and check them
+	 *
+	 * @return Why the check failed, or null if it passed
+	 * @throws Exception If the stand-in or the files cannot be set up
+	 */
+	public String run() throws Exception{
+		Properties serverProperties=new Properties();
+		serverProperties.setProperty("TelnetPort","0");
+		serverProperties.setProperty("LatencyMS.INFO",String.valueOf(INFO_LATENCY_MS));
+		StandInTelnetServer server=new StandInTelnetServer(serverProperties);
+		server.start();
+		File optionsFile=File.createTempFile("blockadmission",".properties");
+		File commandFile=File.createTempFile("blockadmission",".txt");
+		try {
+			write(optionsFile,"ServerHostName=127.0.0.1\n"
+					+"TelnetPort="+server.getPort()+"\n"
+					+"Username=regression\n"
+					+"Password=regression\n"
+					+"MaxSessionsPerHost=1\n"
+					+"AdmissionMaxWaitMS=10000\n");
+			write(commandFile,"[a]\nINFO\n[b]\nINFO\n");
+
+			ByteArrayOutputStream output=new ByteArrayOutputStream();
+			PrintStream out=new PrintStream(output);
+			SAPTelnetScript script=new SAPTelnetScript(optionsFile.getPath(),commandFile.getPath());
+			script.setOutput(out,out);
+			long start=System.currentTimeMillis();
+			try {
+				script.init();
+				script.run();
+			}catch (TelnetException e){
+				out.flush();
+				return "exit code "+e.getExitCode()+": "+e.getMessage()+"\n"+output;
+			}
+			long elapsed=System.currentTimeMillis()-start;
+			if(elapsed<2*INFO_LATENCY_MS){
+				return "the blocks ran at the same time with one session admitted ("+elapsed+" ms)";
+			}
+			return null;
+		}finally {
+			server.shutdown();
+			optionsFile.delete();
+			commandFile.delete();
+		}
+	}
+
+	private static void write(File file,String content) throws IOException{
+		Writer writer=new FileWriter(file);
+		try {
+			writer.write(content);
+		}finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.bouvet.telnet.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.bouvet.telnet.SAPTelnetClient;
+
+/**
+ * In-process server speaking the part of the SAP J2EE telnet dialogue the client needs,
+ * so the client can be benchmarked without a J2EE engine.
+ *
+ * Any username and password is accepted. The command "big n" returns n bytes of output,
+ * other commands return a single line. Each connection is served by its own thread.
+ */
+public class LoopbackTelnetServer implements Runnable {
+	private final static byte[] PROMPT=SAPTelnetClient.PROMPT.getBytes();
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+
+	/**
+	 * Start the server on a free port of the loopback interface
+	 *
+	 * @throws IOException
+	 */
+	public LoopbackTelnetServer() throws IOException{
+		serverSocket=new ServerSocket(0,50,InetAddress.getByName("127.0.0.1"));
+		acceptThread=new Thread(this,"LoopbackTelnetServer");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public int getPort(){
+		return serverSocket.getLocalPort();
+	}
+
+	public void close() throws IOException{
+		serverSocket.close();
+	}
+
+	public void run() {
+		while(!serverSocket.isClosed()){
+			try {
+				final Socket socket=serverSocket.accept();
+				Thread sessionThread=new Thread(new Runnable(){
+					public void run() {
+						try {
+							serve(socket);
+						}catch (IOException e){
+							//the client has disconnected
+						}finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+								//e.printStackTrace();
+							}
+						}
+					}
+				},"LoopbackTelnetSession");
+				sessionThread.setDaemon(true);
+				sessionThread.start();
+			}catch (IOException e){
+				//closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) throws IOException{
+		BufferedReader in=new BufferedReader(new InputStreamReader(socket.getInputStream(),"ISO-8859-1"));
+		OutputStream out=socket.getOutputStream();
+		out.write(SAPTelnetClient.LOGIN_PROMPT.getBytes());
+		in.readLine();
+		out.write(SAPTelnetClient.PASSWORD_PROMPT.getBytes());
+		in.readLine();
+		out.write(PROMPT);
+		String command;
+		byte[] line="x123456789 Session ID: 4F2A9C81E1D04B6F Application: irj User: telnetbatch 123456\r\n".getBytes();
+		while((command=in.readLine())!=null){
+			command=command.trim();
+			if(SAPTelnetClient.LOGOUT_COMMAND.equals(command)){
+				return;
+			}
+			if(command.startsWith("big ")){
+				int size=Integer.parseInt(command.substring(4).trim());
+				byte[] chunk=new byte[64*1024];
+				for (int i = 0; i < chunk.length; i++) {
+					chunk[i]=line[i%line.length];
+				}
+				while(size>0){
+					int length=Math.min(size,chunk.length);
+					out.write(chunk,0,length);
+					size-=length;
+				}
+				out.write(PROMPT);
+			}else {
+				//the output and the prompt in one write, as a short response is sent by the engine
+				out.write(("\r\n"+command+" done"+SAPTelnetClient.PROMPT).getBytes());
+			}
+			out.flush();
+		}
+	}
+}
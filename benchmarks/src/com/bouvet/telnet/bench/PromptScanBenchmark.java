@@ -0,0 +1,29 @@
+package com.bouvet.telnet.bench;
+
+/**
+ * Measures the time ReadInputObservableRunnable takes to read and scan a 4 MB command 
+ * output for the prompt, in nanoseconds pr byte. See PromptScanScalingBenchmark for 
+ * how this scales with the output size.
+ */
+public class PromptScanBenchmark extends Benchmark {
+	private final static int OUTPUT_SIZE=4*1024*1024;
+	private byte[] output;
+
+	public String getName() {
+		return "promptScan";
+	}
+
+	public String getUnit() {
+		return "ns/byte";
+	}
+
+	public void setUp() {
+		output=PromptScanScalingBenchmark.createOutput(OUTPUT_SIZE);
+	}
+
+	public double measure() {
+		long start=System.nanoTime();
+		PromptScanScalingBenchmark.scanWithReader(output);
+		return (System.nanoTime()-start)/(double)OUTPUT_SIZE;
+	}
+}
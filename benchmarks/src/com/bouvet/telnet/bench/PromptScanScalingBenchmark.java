@@ -0,0 +1,108 @@
+package com.bouvet.telnet.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+import com.bouvet.telnet.PromptMatcher;
+import com.bouvet.telnet.ReadInputObservableRunnable;
+import com.bouvet.telnet.SAPTelnetClient;
+import com.bouvet.thread.Completion;
+
+/**
+ * Shows how the cost of finding the prompt scales with the size of the command output.
+ *
+ * For each output size the benchmark measures
+ * <ul>
+ * <li>PromptMatcher: feeding the output to the matcher watching the prompt, "Login failed" and "Password: "
+ * <li>reader: ReadInputObservableRunnable reading the output until the prompt
+ * <li>indexOf: the previous approach of appending one char and searching the whole buffer,
+ * only run for the smaller sizes as it is quadratic
+ * </ul>
+ * The time pr byte should stay flat for the first two as the output grows.
+ *
+ * Usage: java com.bouvet.telnet.bench.PromptScanScalingBenchmark [maxSizeKB]
+ */
+public class PromptScanScalingBenchmark {
+	private final static int INDEX_OF_MAX_SIZE=64*1024;
+	private final static String[] DELIMITERS={SAPTelnetClient.PROMPT,SAPTelnetClient.LOGIN_FAILED_RESPONSE,SAPTelnetClient.PASSWORD_PROMPT};
+
+	public static void main(String[] args) throws Exception {
+		int maxSize=(args.length>0?Integer.parseInt(args[0]):16*1024)*1024;
+		System.out.println("size(KB)\tmatcher(ns/byte)\treader(ns/byte)\tindexOf(ns/byte)");
+		for (int size = 16*1024; size <= maxSize; size*=2) {
+			byte[] output=createOutput(size);
+			//warm up
+			for (int i = 0; i < 3; i++) {
+				scanWithMatcher(output);
+				scanWithReader(output);
+			}
+			double matcher=nsPrByte(output,0);
+			double reader=nsPrByte(output,1);
+			String indexOf=size<=INDEX_OF_MAX_SIZE?format(nsPrByte(output,2)):"-";
+			System.out.println(size/1024+"\t\t"+format(matcher)+"\t\t\t"+format(reader)+"\t\t\t"+indexOf);
+		}
+	}
+
+	/**
+	 * Create an output of the given size which looks like HTTP_SESSIONS output and ends with the prompt
+	 */
+	static byte[] createOutput(int size){
+		byte[] output=new byte[size];
+		String line="Session ID: 4F2A9C81E1D04B6F  Application: irj  User: telnetbatch  Last accessed: 12:00:00\r\n";
+		for (int i = 0; i < size; i++) {
+			output[i]=(byte)line.charAt(i%line.length());
+		}
+		String prompt=SAPTelnetClient.PROMPT;
+		for (int i = 0; i < prompt.length(); i++) {
+			output[size-prompt.length()+i]=(byte)prompt.charAt(i);
+		}
+		return output;
+	}
+
+	private static double nsPrByte(byte[] output,int method) throws Exception{
+		int iterations=Math.max(1,(8*1024*1024)/output.length);
+		if(method==2){
+			iterations=1;
+		}
+		long start=System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			switch (method){
+				case 0:
+					scanWithMatcher(output);
+					break;
+				case 1:
+					scanWithReader(output);
+					break;
+				default:
+					scanWithIndexOf(output);
+			}
+		}
+		return (System.nanoTime()-start)/(double)iterations/output.length;
+	}
+
+	static int scanWithMatcher(byte[] output){
+		PromptMatcher matcher=new PromptMatcher(DELIMITERS);
+		return matcher.feed(output,0,output.length);
+	}
+
+	static Object scanWithReader(byte[] output){
+		ReadInputObservableRunnable reader=new ReadInputObservableRunnable(new DataInputStream(new ByteArrayInputStream(output)));
+		Completion completion=new Completion();
+		reader.expect(DELIMITERS,completion);
+		reader.run();
+		return completion.getResult();
+	}
+
+	static int scanWithIndexOf(byte[] output){
+		StringBuffer sbServerResponse=new StringBuffer(100);
+		int i=0;
+		do {
+			sbServerResponse.append((char)output[i++]);
+		} while (sbServerResponse.indexOf(SAPTelnetClient.PROMPT)==-1);
+		return i;
+	}
+
+	private static String format(double value){
+		return String.valueOf(Math.round(value*100)/100.0);
+	}
+}
@@ -0,0 +1,29 @@
+package com.bouvet.telnet.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the number of threads started pr command on an already logged in session.
+ * The loopback server starts one thread pr connection and none pr command, so all 
+ * threads counted are started by the client.
+ */
+public class ThreadsPerCommandBenchmark extends WaitForLatencyBenchmark {
+	private ThreadMXBean threadBean=ManagementFactory.getThreadMXBean();
+
+	public String getName() {
+		return "threadsPerCommand";
+	}
+
+	public String getUnit() {
+		return "threads/command";
+	}
+
+	public double measure() throws Exception {
+		long started=threadBean.getTotalStartedThreadCount();
+		for (int i = 0; i < COMMANDS; i++) {
+			client.sendCommand("ll");
+		}
+		return (threadBean.getTotalStartedThreadCount()-started)/(double)COMMANDS;
+	}
+}
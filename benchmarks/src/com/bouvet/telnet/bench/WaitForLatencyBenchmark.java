@@ -0,0 +1,40 @@
+package com.bouvet.telnet.bench;
+
+import com.bouvet.telnet.SAPTelnetClient;
+
+/**
+ * Measures the round trip latency of a short command through TelnetClient.waitFor
+ * against the in-process loopback server, in microseconds pr command.
+ */
+public class WaitForLatencyBenchmark extends Benchmark {
+	protected final static int COMMANDS=200;
+	protected LoopbackTelnetServer server;
+	protected SAPTelnetClient client;
+
+	public String getName() {
+		return "waitForLatency";
+	}
+
+	public String getUnit() {
+		return "us/command";
+	}
+
+	public void setUp() throws Exception {
+		server=new LoopbackTelnetServer();
+		client=new SAPTelnetClient("127.0.0.1",server.getPort());
+		client.login("benchmark","benchmark");
+	}
+
+	public double measure() throws Exception {
+		long start=System.nanoTime();
+		for (int i = 0; i < COMMANDS; i++) {
+			client.sendCommand("ll");
+		}
+		return (System.nanoTime()-start)/1000.0/COMMANDS;
+	}
+
+	public void tearDown() throws Exception {
+		client.logout();
+		server.close();
+	}
+}
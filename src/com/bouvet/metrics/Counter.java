@@ -0,0 +1,35 @@
+package com.bouvet.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free counter which only goes up
+ */
+public class Counter {
+	private final AtomicLong value=new AtomicLong();
+
+	/**
+	 * Add one to the counter
+	 */
+	public void increment(){
+		value.incrementAndGet();
+	}
+
+	/**
+	 * Add to the counter
+	 *
+	 * @param delta The amount to add, must not be negative
+	 */
+	public void add(long delta){
+		value.addAndGet(delta);
+	}
+
+	/**
+	 * Get the value of the counter
+	 *
+	 * @return
+	 */
+	public long get(){
+		return value.get();
+	}
+}
@@ -0,0 +1,101 @@
+package com.bouvet.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Exports the metrics as a JSON summary.
+ *
+ * Each histogram is written with its count, sum, p50, p90, p99 and max in seconds,
+ * each counter with its value:
+ * <pre>
+ * {"histograms":[{"name":"sap_telnet_command_seconds","labels":{"host":"sap1:50008","verb":"JUMP"},
+ *   "count":10,"sum":0.12,"p50":0.011,"p90":0.013,"p99":0.02,"max":0.02}],
+ *  "counters":[{"name":"sap_telnet_read_bytes_total","labels":{"host":"sap1:50008"},"value":5120}]}
+ * </pre>
+ */
+public class JsonFormat implements MetricsFormat {
+
+	public void write(MetricsRegistry registry,Writer out) throws IOException {
+		out.write("{\"histograms\":[");
+		boolean first=true;
+		for (Iterator<Map.Entry<MetricKey,LatencyHistogram>> it = registry.getHistograms().entrySet().iterator(); it.hasNext();) {
+			Map.Entry<MetricKey,LatencyHistogram> entry = it.next();
+			LatencyHistogram histogram=entry.getValue();
+			out.write(first?"\n":",\n");
+			first=false;
+			out.write(" {"+nameAndLabels(entry.getKey())
+					+",\"count\":"+histogram.getCount()
+					+",\"sum\":"+seconds(histogram.getSum())
+					+",\"p50\":"+seconds(histogram.getPercentile(0.5))
+					+",\"p90\":"+seconds(histogram.getPercentile(0.9))
+					+",\"p99\":"+seconds(histogram.getPercentile(0.99))
+					+",\"max\":"+seconds(histogram.getMax())+"}");
+		}
+		out.write("],\n\"counters\":[");
+		first=true;
+		for (Iterator<Map.Entry<MetricKey,Counter>> it = registry.getCounters().entrySet().iterator(); it.hasNext();) {
+			Map.Entry<MetricKey,Counter> entry = it.next();
+			out.write(first?"\n":",\n");
+			first=false;
+			out.write(" {"+nameAndLabels(entry.getKey())+",\"value\":"+entry.getValue().get()+"}");
+		}
+		out.write("]}\n");
+		out.flush();
+	}
+
+	private String nameAndLabels(MetricKey key){
+		StringBuffer sb=new StringBuffer();
+		sb.append("\"name\":").append(quote(key.getName())).append(",\"labels\":{");
+		String[] names=key.getLabelNames();
+		String[] values=key.getLabelValues();
+		for (int i = 0; i < names.length; i++) {
+			sb.append(i>0?",":"").append(quote(names[i])).append(':').append(quote(values[i]));
+		}
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Quote a string as a JSON string
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static String quote(String value){
+		StringBuffer sb=new StringBuffer(value.length()+2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c=value.charAt(i);
+			switch (c){
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if(c<0x20){
+						String hex=Integer.toHexString(c);
+						sb.append("\\u").append("0000".substring(hex.length())).append(hex);
+					}else {
+						sb.append(c);
+					}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static String seconds(long ns){
+		return String.valueOf(ns/1e9);
+	}
+}
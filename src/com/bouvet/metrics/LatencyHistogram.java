@@ -0,0 +1,162 @@
+package com.bouvet.metrics;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies.
+ *
+ * The latencies are counted in log-linear buckets of microseconds: each power of two is
+ * split into four buckets, so a percentile is at most 25% above the true value. Recording
+ * is a few atomic increments, so the histogram can be shared by many threads without
+ * blocking them. The buckets cover latencies from one microsecond to several days.
+ *
+ * Percentiles read while values are recorded are approximate.
+ */
+public class LatencyHistogram {
+	/*buckets pr power of two, must be a power of two*/
+	private final static int SUB_BUCKETS=4;
+	private final static int SUB_BUCKET_BITS=2;
+	/*the largest power of two covered, 2^40 microseconds is about 12 days*/
+	private final static int MAX_POWER=40;
+	private final static int BUCKETS=SUB_BUCKETS+(MAX_POWER-SUB_BUCKET_BITS+1)*SUB_BUCKETS;
+
+	private final AtomicLongArray counts=new AtomicLongArray(BUCKETS);
+	private final AtomicLong count=new AtomicLong();
+	private final AtomicLong sum=new AtomicLong();
+	private final AtomicLong max=new AtomicLong();
+
+	/**
+	 * Record a latency
+	 *
+	 * @param ns The latency in nanoseconds
+	 */
+	public void record(long ns){
+		record(ns,1);
+	}
+
+	/**
+	 * Record the same latency several times, e.g. when loading a saved histogram
+	 *
+	 * @param ns The latency in nanoseconds
+	 * @param times The number of times to record it
+	 */
+	public void record(long ns,long times){
+		if(times<=0){
+			return;
+		}
+		if(ns<0){
+			ns=0;
+		}
+		counts.addAndGet(bucket(ns/1000),times);
+		count.addAndGet(times);
+		sum.addAndGet(ns*times);
+		long currentMax;
+		while(ns>(currentMax=max.get())){
+			if(max.compareAndSet(currentMax,ns)){
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of recorded latencies
+	 *
+	 * @return
+	 */
+	public long getCount(){
+		return count.get();
+	}
+
+	/**
+	 * Get the sum of the recorded latencies in nanoseconds
+	 *
+	 * @return
+	 */
+	public long getSum(){
+		return sum.get();
+	}
+
+	/**
+	 * Get the largest recorded latency in nanoseconds
+	 *
+	 * @return
+	 */
+	public long getMax(){
+		return max.get();
+	}
+
+	/**
+	 * Get the latency which the given fraction of the recorded latencies are at or below
+	 *
+	 * @param fraction The fraction, e.g. 0.99 for p99
+	 * @return The upper bound of the bucket of the percentile in nanoseconds, never above
+	 * the largest recorded latency. 0 if nothing has been recorded
+	 */
+	public long getPercentile(double fraction){
+		long total=0;
+		long[] snapshot=new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i]=counts.get(i);
+			total+=snapshot[i];
+		}
+		if(total==0){
+			return 0;
+		}
+		long rank=Math.max(1,(long)Math.ceil(fraction*total));
+		long seen=0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen+=snapshot[i];
+			if(seen>=rank){
+				return Math.min(upperBound(i)*1000,getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Get the counts of the non-empty buckets. The counts can be recorded in another
+	 * histogram with record(ns,times) to get the same percentiles.
+	 *
+	 * @return The count of each bucket by the largest latency of the bucket in nanoseconds
+	 */
+	public SortedMap<Long,Long> getBucketCounts(){
+		SortedMap<Long,Long> bucketCounts=new TreeMap<Long,Long>();
+		for (int i = 0; i < BUCKETS; i++) {
+			long bucketCount=counts.get(i);
+			if(bucketCount>0){
+				bucketCounts.put(Long.valueOf((upperBound(i)-1)*1000),Long.valueOf(bucketCount));
+			}
+		}
+		return bucketCounts;
+	}
+
+	/**
+	 * Get the bucket of a latency in microseconds
+	 */
+	static int bucket(long us){
+		if(us<SUB_BUCKETS){
+			return (int)us;
+		}
+		int power=63-Long.numberOfLeadingZeros(us);
+		if(power>MAX_POWER){
+			return BUCKETS-1;
+		}
+		int subBucket=(int)(us>>>(power-SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+		return SUB_BUCKETS+(power-SUB_BUCKET_BITS)*SUB_BUCKETS+subBucket;
+	}
+
+	/**
+	 * Get the smallest latency in microseconds which is above the bucket
+	 */
+	static long upperBound(int bucket){
+		if(bucket<SUB_BUCKETS){
+			return bucket+1;
+		}
+		int power=(bucket-SUB_BUCKETS)/SUB_BUCKETS+SUB_BUCKET_BITS;
+		int subBucket=(bucket-SUB_BUCKETS)%SUB_BUCKETS;
+		return (1L<<power)+((long)(subBucket+1)<<(power-SUB_BUCKET_BITS));
+	}
+}
@@ -0,0 +1,70 @@
+package com.bouvet.metrics;
+
+import java.util.Arrays;
+
+/**
+ * The name and labels of a metric, e.g. sap_telnet_command_seconds with host and verb.
+ *
+ * Keys are ordered by name and then by label values, so exported metrics are grouped by name.
+ */
+public class MetricKey implements Comparable<MetricKey> {
+	private final String name;
+	private final String[] labelNames;
+	private final String[] labelValues;
+
+	/**
+	 * Create a new key
+	 *
+	 * @param name The name of the metric
+	 * @param labelNames The names of the labels
+	 * @param labelValues The values of the labels, in the same order as the names
+	 */
+	public MetricKey(String name,String[] labelNames,String[] labelValues){
+		if(labelNames.length!=labelValues.length){
+			throw new IllegalArgumentException("The metric "+name+" has "+labelNames.length+" label names, but "+labelValues.length+" values");
+		}
+		this.name=name;
+		this.labelNames=labelNames;
+		this.labelValues=labelValues;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public String[] getLabelNames(){
+		return labelNames;
+	}
+
+	public String[] getLabelValues(){
+		return labelValues;
+	}
+
+	public boolean equals(Object o){
+		if(!(o instanceof MetricKey)){
+			return false;
+		}
+		MetricKey other=(MetricKey)o;
+		return name.equals(other.name) && Arrays.equals(labelNames,other.labelNames) && Arrays.equals(labelValues,other.labelValues);
+	}
+
+	public int hashCode(){
+		return (name.hashCode()*31+Arrays.hashCode(labelNames))*31+Arrays.hashCode(labelValues);
+	}
+
+	public int compareTo(MetricKey other){
+		int result=name.compareTo(other.name);
+		for (int i = 0; result==0 && i < labelValues.length && i < other.labelValues.length; i++) {
+			result=labelValues[i].compareTo(other.labelValues[i]);
+		}
+		return result!=0?result:labelValues.length-other.labelValues.length;
+	}
+
+	public String toString(){
+		StringBuffer sb=new StringBuffer(name).append('{');
+		for (int i = 0; i < labelNames.length; i++) {
+			sb.append(i>0?",":"").append(labelNames[i]).append('=').append(labelValues[i]);
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,19 @@
+package com.bouvet.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A text format the metrics of a registry can be exported in
+ */
+public interface MetricsFormat {
+
+	/**
+	 * Write all metrics of the registry
+	 *
+	 * @param registry The registry to export
+	 * @param out The writer to write to, which is not closed
+	 * @throws IOException
+	 */
+	public void write(MetricsRegistry registry,Writer out) throws IOException;
+}
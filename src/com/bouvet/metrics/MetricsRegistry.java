@@ -0,0 +1,134 @@
+package com.bouvet.metrics;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The histograms and counters of a process, by name and labels.
+ *
+ * Looking up an existing metric does not lock, so metrics can be looked up on
+ * each command. A shared instance is used by the telnet clients, so that all sessions
+ * of a run end up in one registry.
+ */
+public class MetricsRegistry {
+	private final static MetricsRegistry SHARED_INSTANCE=new MetricsRegistry();
+
+	private final ConcurrentMap<MetricKey,LatencyHistogram> histograms=new ConcurrentHashMap<MetricKey,LatencyHistogram>();
+	private final ConcurrentMap<MetricKey,Counter> counters=new ConcurrentHashMap<MetricKey,Counter>();
+	private final ConcurrentMap<String,String> descriptions=new ConcurrentHashMap<String,String>();
+
+	/**
+	 * Get the registry shared by the process
+	 *
+	 * @return
+	 */
+	public static MetricsRegistry getSharedInstance(){
+		return SHARED_INSTANCE;
+	}
+
+	/**
+	 * Get a histogram, creating it the first time it is used
+	 *
+	 * @param name The name of the metric
+	 * @param labelNames The names of the labels
+	 * @param labelValues The values of the labels
+	 * @return
+	 */
+	public LatencyHistogram getHistogram(String name,String[] labelNames,String[] labelValues){
+		MetricKey key=new MetricKey(name,labelNames,labelValues);
+		LatencyHistogram histogram=histograms.get(key);
+		if(histogram==null){
+			LatencyHistogram created=new LatencyHistogram();
+			histogram=histograms.putIfAbsent(key,created);
+			if(histogram==null){
+				histogram=created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Get a counter, creating it the first time it is used
+	 *
+	 * @param name The name of the metric
+	 * @param labelNames The names of the labels
+	 * @param labelValues The values of the labels
+	 * @return
+	 */
+	public Counter getCounter(String name,String[] labelNames,String[] labelValues){
+		MetricKey key=new MetricKey(name,labelNames,labelValues);
+		Counter counter=counters.get(key);
+		if(counter==null){
+			Counter created=new Counter();
+			counter=counters.putIfAbsent(key,created);
+			if(counter==null){
+				counter=created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Set the description of a metric, which is included in the export
+	 *
+	 * @param name The name of the metric
+	 * @param description
+	 */
+	public void describe(String name,String description){
+		descriptions.put(name,description);
+	}
+
+	/**
+	 * Get the description of a metric
+	 *
+	 * @param name The name of the metric
+	 * @return The description, or null if the metric has not been described
+	 */
+	public String getDescription(String name){
+		return descriptions.get(name);
+	}
+
+	/**
+	 * Get the histograms ordered by name and labels
+	 *
+	 * @return
+	 */
+	public SortedMap<MetricKey,LatencyHistogram> getHistograms(){
+		return new TreeMap<MetricKey,LatencyHistogram>(histograms);
+	}
+
+	/**
+	 * Get the counters ordered by name and labels
+	 *
+	 * @return
+	 */
+	public SortedMap<MetricKey,Counter> getCounters(){
+		return new TreeMap<MetricKey,Counter>(counters);
+	}
+
+	/**
+	 * Remove all metrics
+	 */
+	public void clear(){
+		histograms.clear();
+		counters.clear();
+	}
+
+	/**
+	 * Get the format with the given name
+	 *
+	 * @param format prometheus or json
+	 * @return The format
+	 * @throws IllegalArgumentException If the format is not known
+	 */
+	public static MetricsFormat getFormat(String format){
+		if("prometheus".equalsIgnoreCase(format.trim())){
+			return new PrometheusFormat();
+		}else if("json".equalsIgnoreCase(format.trim())){
+			return new JsonFormat();
+		}
+		throw new IllegalArgumentException("Unknown metrics format "+format+", use prometheus or json");
+	}
+}
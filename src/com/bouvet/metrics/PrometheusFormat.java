@@ -0,0 +1,81 @@
+package com.bouvet.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Exports the metrics in the Prometheus text format, e.g. for the textfile collector
+ * of the node exporter.
+ *
+ * Histograms are exported as summaries with the quantiles 0.5, 0.9 and 0.99 in seconds,
+ * counters as counters.
+ */
+public class PrometheusFormat implements MetricsFormat {
+	protected final static double[] QUANTILES={0.5,0.9,0.99};
+
+	public void write(MetricsRegistry registry,Writer out) throws IOException {
+		String currentName=null;
+		for (Iterator<Map.Entry<MetricKey,LatencyHistogram>> it = registry.getHistograms().entrySet().iterator(); it.hasNext();) {
+			Map.Entry<MetricKey,LatencyHistogram> entry = it.next();
+			MetricKey key=entry.getKey();
+			LatencyHistogram histogram=entry.getValue();
+			if(!key.getName().equals(currentName)){
+				currentName=key.getName();
+				writeHeader(registry,out,currentName,"summary");
+			}
+			for (int i = 0; i < QUANTILES.length; i++) {
+				out.write(key.getName()+labels(key,"quantile",String.valueOf(QUANTILES[i]))+" "+seconds(histogram.getPercentile(QUANTILES[i]))+"\n");
+			}
+			out.write(key.getName()+"_sum"+labels(key,null,null)+" "+seconds(histogram.getSum())+"\n");
+			out.write(key.getName()+"_count"+labels(key,null,null)+" "+histogram.getCount()+"\n");
+		}
+		currentName=null;
+		for (Iterator<Map.Entry<MetricKey,Counter>> it = registry.getCounters().entrySet().iterator(); it.hasNext();) {
+			Map.Entry<MetricKey,Counter> entry = it.next();
+			MetricKey key=entry.getKey();
+			if(!key.getName().equals(currentName)){
+				currentName=key.getName();
+				writeHeader(registry,out,currentName,"counter");
+			}
+			out.write(key.getName()+labels(key,null,null)+" "+entry.getValue().get()+"\n");
+		}
+		out.flush();
+	}
+
+	private void writeHeader(MetricsRegistry registry,Writer out,String name,String type) throws IOException{
+		String description=registry.getDescription(name);
+		if(description!=null){
+			out.write("# HELP "+name+" "+description.replace("\\","\\\\").replace("\n","\\n")+"\n");
+		}
+		out.write("# TYPE "+name+" "+type+"\n");
+	}
+
+	/**
+	 * Format the labels of the key, with an extra label if the name is not null
+	 */
+	private String labels(MetricKey key,String extraName,String extraValue){
+		String[] names=key.getLabelNames();
+		String[] values=key.getLabelValues();
+		if(names.length==0 && extraName==null){
+			return "";
+		}
+		StringBuffer sb=new StringBuffer("{");
+		for (int i = 0; i < names.length; i++) {
+			sb.append(i>0?",":"").append(names[i]).append("=\"").append(escape(values[i])).append('"');
+		}
+		if(extraName!=null){
+			sb.append(names.length>0?",":"").append(extraName).append("=\"").append(extraValue).append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	private static String escape(String value){
+		return value.replace("\\","\\\\").replace("\"","\\\"").replace("\n","\\n");
+	}
+
+	private static String seconds(long ns){
+		return String.valueOf(ns/1e9);
+	}
+}
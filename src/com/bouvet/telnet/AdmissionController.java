@@ -0,0 +1,287 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.bouvet.thread.TimeoutException;
+import com.bouvet.thread.TokenBucket;
+
+/**
+ * Limits the load the scripts put on the SAP J2EE instances: the number of open sessions
+ * in total and pr host, and the rate of classes of commands pr host.
+ *
+ * A session takes a slot from connect() until it is closed. When no slot is free, the
+ * sessions wait in one queue pr host, and a freed slot goes to the hosts in turn, so a host
+ * with many waiting sessions does not hold back the others.
+ *
+ * A rate limit applies to a class of commands on each host, e.g. at most 2 STOP_APP or
+ * START_APP pr minute. The host is the dispatcher the sessions connect to, so the limit
+ * covers the cluster behind it. LOGIN limits the logins. A command waits for its turn
+ * before it is sent, at most the max wait.
+ *
+ * <p>The controller is thread safe, and is shared by the sessions it limits.
+ */
+public class AdmissionController {
+	public final static long DEFAULT_MAX_WAIT_MS=5*60*1000;
+
+	private int maxSessions=Integer.MAX_VALUE;
+	private int maxSessionsPerHost=Integer.MAX_VALUE;
+	private long maxWait=DEFAULT_MAX_WAIT_MS;
+	/*the class of each rate limited verb, and the rate limit of each class*/
+	private Map<String,String> verbClasses=new HashMap<String,String>();
+	private Map<String,RateLimit> rateLimits=new HashMap<String,RateLimit>();
+	/*the token bucket of each class and host*/
+	private Map<String,TokenBucket> buckets=new HashMap<String,TokenBucket>();
+
+	private int openSessions=0;
+	private Map<TelnetHost,HostSlots> hosts=new HashMap<TelnetHost,HostSlots>();
+	/*the hosts with waiting sessions, in the order they get the next free slot*/
+	private LinkedList<HostSlots> waitingHosts=new LinkedList<HostSlots>();
+
+	/**
+	 * Set the maximum number of open sessions in total
+	 *
+	 * @param maxSessions
+	 */
+	public synchronized void setMaxSessions(int maxSessions){
+		this.maxSessions=maxSessions;
+	}
+
+	/**
+	 * Set the maximum number of open sessions to each host
+	 *
+	 * @param maxSessionsPerHost
+	 */
+	public synchronized void setMaxSessionsPerHost(int maxSessionsPerHost){
+		this.maxSessionsPerHost=maxSessionsPerHost;
+	}
+
+	/**
+	 * Set how long a session or command waits for admission before it times out
+	 *
+	 * @param maxWait The time in milliseconds
+	 */
+	public synchronized void setMaxWait(long maxWait){
+		this.maxWait=maxWait;
+	}
+
+	public synchronized long getMaxWait(){
+		return maxWait;
+	}
+
+	/**
+	 * Limit the rate of a class of commands on each host
+	 *
+	 * @param name The name of the class, e.g. apps
+	 * @param verbs The verbs of the class, e.g. STOP_APP and START_APP. LOGIN is the login
+	 * @param permits The number of commands of the class pr period on a host
+	 * @param msPeriod The period in milliseconds
+	 */
+	public synchronized void setRateLimit(String name,String[] verbs,int permits,long msPeriod){
+		if(permits<=0 || msPeriod<=0){
+			throw new IllegalArgumentException("The rate limit of "+name+" must be positive, but is "+permits+" pr "+msPeriod+" ms");
+		}
+		for (int i = 0; i < verbs.length; i++) {
+			verbClasses.put(verbs[i].trim().toUpperCase(),name);
+		}
+		rateLimits.put(name,new RateLimit(permits,msPeriod));
+	}
+
+	/**
+	 * Connect a new session when there is a free slot for it. The slot is freed when
+	 * the session is closed.
+	 *
+	 * @param host The host to connect to
+	 * @param port The port to connect to
+	 * @param msTimeout The maximum processing time for each command
+	 * @return The connected session, which is rate limited by this controller
+	 * @throws IOException If the session cannot connect
+	 * @throws TimeoutException If no slot is freed within the max wait
+	 */
+	public SAPTelnetClient connect(String host,int port,long msTimeout) throws IOException,TimeoutException{
+		TelnetHost telnetHost=new TelnetHost(host,port);
+		acquireSession(telnetHost);
+		boolean connected=false;
+		try {
+			SAPTelnetClient client=new SAPTelnetClient(host,port,msTimeout);
+			client.setAdmissionController(this,true);
+			connected=true;
+			return client;
+		}finally {
+			if(!connected){
+				releaseSession(telnetHost);
+			}
+		}
+	}
+
+	/**
+	 * Take a session slot for a host, waiting for a free slot. The slot must be freed
+	 * with releaseSession().
+	 *
+	 * @param host The host
+	 * @throws TimeoutException If no slot is freed within the max wait
+	 */
+	public synchronized void acquireSession(TelnetHost host) throws TimeoutException{
+		HostSlots slots=hosts.get(host);
+		if(slots==null){
+			slots=new HostSlots(host);
+			hosts.put(host,slots);
+		}
+		Waiter waiter=new Waiter();
+		slots.waiters.addLast(waiter);
+		if(slots.waiters.size()==1){
+			waitingHosts.addLast(slots);
+		}
+		grantSlots();
+		long end=System.currentTimeMillis()+maxWait;
+		while(!waiter.granted){
+			long remaining=end-System.currentTimeMillis();
+			if(remaining<=0){
+				removeWaiter(slots,waiter);
+				throw new TimeoutException("No session to "+host+" was admitted within "+maxWait+" ms");
+			}
+			try {
+				wait(remaining);
+			}catch (InterruptedException e){
+				if(!waiter.granted){
+					removeWaiter(slots,waiter);
+					throw new TimeoutException("Interrupted while waiting for a session to "+host);
+				}
+			}
+		}
+	}
+
+	private void removeWaiter(HostSlots slots,Waiter waiter){
+		slots.waiters.remove(waiter);
+		if(slots.waiters.isEmpty()){
+			waitingHosts.remove(slots);
+		}
+	}
+
+	/**
+	 * Free a session slot taken with acquireSession()
+	 *
+	 * @param host The host
+	 */
+	public synchronized void releaseSession(TelnetHost host){
+		HostSlots slots=hosts.get(host);
+		if(slots==null || slots.open==0){
+			return;
+		}
+		slots.open--;
+		openSessions--;
+		grantSlots();
+	}
+
+	/**
+	 * Give the free slots to the waiting sessions, one host at a time.
+	 * Must be called while holding the lock of the controller.
+	 */
+	private void grantSlots(){
+		boolean granted=false;
+		int skipped=0;
+		//a full round without a grant means the remaining hosts are at their limit
+		while(openSessions<maxSessions && skipped<waitingHosts.size()){
+			HostSlots slots=waitingHosts.removeFirst();
+			if(slots.open<maxSessionsPerHost){
+				slots.waiters.removeFirst().granted=true;
+				slots.open++;
+				openSessions++;
+				granted=true;
+				skipped=0;
+			}else {
+				skipped++;
+			}
+			if(!slots.waiters.isEmpty()){
+				waitingHosts.addLast(slots);
+			}
+		}
+		if(granted){
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Get the number of open sessions in total
+	 *
+	 * @return
+	 */
+	public synchronized int getOpenSessions(){
+		return openSessions;
+	}
+
+	/**
+	 * Wait until a command may be sent to a host
+	 *
+	 * @param host The host
+	 * @param command The command, or TelnetMetrics.LOGIN_OPERATION
+	 * @throws TimeoutException If the command is not admitted within the max wait
+	 */
+	public void acquireCommand(TelnetHost host,String command) throws TimeoutException{
+		TokenBucket bucket=getBucket(host,command);
+		if(bucket!=null){
+			bucket.acquire(getMaxWait());
+		}
+	}
+
+	/**
+	 * Reserve the turn of a command to a host, without waiting for it
+	 *
+	 * @param host The host
+	 * @param command The command, or TelnetMetrics.LOGIN_OPERATION
+	 * @return How long to wait before sending the command in milliseconds, or -1 if
+	 * the command is not admitted within the max wait
+	 */
+	public long reserveCommand(TelnetHost host,String command){
+		TokenBucket bucket=getBucket(host,command);
+		return bucket==null?0:bucket.reserve(getMaxWait());
+	}
+
+	private synchronized TokenBucket getBucket(TelnetHost host,String command){
+		String name=verbClasses.get(TelnetMetrics.getVerb(command));
+		if(name==null){
+			return null;
+		}
+		String key=name+"@"+host;
+		TokenBucket bucket=buckets.get(key);
+		if(bucket==null){
+			RateLimit rateLimit=rateLimits.get(name);
+			bucket=new TokenBucket(rateLimit.permits,rateLimit.msPeriod);
+			buckets.put(key,bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * The slots and waiting sessions of a host
+	 */
+	private static class HostSlots {
+		final TelnetHost host;
+		int open=0;
+		LinkedList<Waiter> waiters=new LinkedList<Waiter>();
+
+		HostSlots(TelnetHost host){
+			this.host=host;
+		}
+
+		public String toString(){
+			return host.toString();
+		}
+	}
+
+	private static class RateLimit {
+		final int permits;
+		final long msPeriod;
+
+		RateLimit(int permits,long msPeriod){
+			this.permits=permits;
+			this.msPeriod=msPeriod;
+		}
+	}
+
+	private static class Waiter {
+		boolean granted=false;
+	}
+}
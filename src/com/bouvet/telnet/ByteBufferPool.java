@@ -0,0 +1,123 @@
+package com.bouvet.telnet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of ByteBuffers in size classes, so that the buffers of a TelnetClient
+ * can be reused across commands instead of being allocated for each response.
+ *
+ * The size classes are powers of two times the base size. A few buffers are kept
+ * for each size class, buffers released when a size class is full are left for the
+ * garbage collector.
+ *
+ * The pool is thread safe.
+ */
+public class ByteBufferPool {
+	public final static int DEFAULT_BASE_SIZE=16*1024;
+	public final static int DEFAULT_MAX_RETAINED=2;
+	/*32 size classes covers all buffer sizes up to Integer.MAX_VALUE*/
+	private final static int SIZE_CLASSES=32;
+
+	private final int baseSize;
+	private final boolean direct;
+	private final int maxRetained;
+	private final List<Queue<ByteBuffer>> freeBuffers;
+	private final AtomicInteger[] retained;
+
+	/**
+	 * Create a new pool
+	 *
+	 * @param baseSize The size of the smallest buffers
+	 * @param direct If the buffers should be allocated outside the heap
+	 * @param maxRetained The maximum number of free buffers kept pr size class
+	 */
+	public ByteBufferPool(int baseSize,boolean direct,int maxRetained){
+		this.baseSize=baseSize;
+		this.direct=direct;
+		this.maxRetained=maxRetained;
+		freeBuffers=new ArrayList<Queue<ByteBuffer>>(SIZE_CLASSES);
+		retained=new AtomicInteger[SIZE_CLASSES];
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			freeBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			retained[i]=new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Create a new pool of heap buffers with the default sizes
+	 */
+	public ByteBufferPool(){
+		this(DEFAULT_BASE_SIZE,false,DEFAULT_MAX_RETAINED);
+	}
+
+	/**
+	 * Get a cleared buffer with at least the given capacity
+	 *
+	 * @param minCapacity The minimum capacity
+	 * @return A buffer from the pool, or a new buffer if the pool has none of that size
+	 */
+	public ByteBuffer acquire(int minCapacity){
+		int sizeClass=sizeClass(minCapacity);
+		ByteBuffer buffer=freeBuffers.get(sizeClass).poll();
+		if(buffer==null){
+			int capacity=capacity(sizeClass);
+			return direct?ByteBuffer.allocateDirect(capacity):ByteBuffer.allocate(capacity);
+		}
+		retained[sizeClass].decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool. The buffer must not be used after it is released.
+	 *
+	 * @param buffer A buffer acquired from this pool
+	 */
+	public void release(ByteBuffer buffer){
+		int sizeClass=sizeClass(buffer.capacity());
+		if(capacity(sizeClass)!=buffer.capacity() || buffer.isDirect()!=direct){
+			//not from this pool
+			return;
+		}
+		if(retained[sizeClass].incrementAndGet()>maxRetained){
+			retained[sizeClass].decrementAndGet();
+			return;
+		}
+		freeBuffers.get(sizeClass).add(buffer);
+	}
+
+	/**
+	 * Get the size of the smallest buffers
+	 *
+	 * @return
+	 */
+	public int getBaseSize(){
+		return baseSize;
+	}
+
+	/**
+	 * Return if the pool allocates direct buffers
+	 *
+	 * @return
+	 */
+	public boolean isDirect(){
+		return direct;
+	}
+
+	private int capacity(int sizeClass){
+		return (int)Math.min(Integer.MAX_VALUE,(long)baseSize<<sizeClass);
+	}
+
+	private int sizeClass(int capacity){
+		int sizeClass=0;
+		while(sizeClass<SIZE_CLASSES-1 && ((long)baseSize<<sizeClass)<capacity){
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+}
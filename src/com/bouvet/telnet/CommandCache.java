@@ -0,0 +1,232 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.bouvet.thread.Completion;
+import com.bouvet.thread.TimeoutException;
+
+/**
+ * Cache of the output of read-only commands, shared by the sessions of a JVM, so tools
+ * asking the same instance for INFO or ll within seconds of each other get one round trip.
+ *
+ * Only the verbs given a time to live are cached. The output is cached pr host, server
+ * node (after a JUMP) and command, and the least recently used entries are dropped when
+ * the cache is full. When several sessions send the same command at the same time, only
+ * the first is sent and the others wait for its output.
+ *
+ * Any other command, except the verbs which only change the state of the session (by
+ * default JUMP and ADD), may change the instance, so when it completes or times out the
+ * entries of its host and node are dropped. The output of a command which was sent before
+ * the change, but completes after it, is not cached.
+ *
+ * <p>The cache is thread safe.
+ */
+public class CommandCache {
+	public final static int DEFAULT_MAX_ENTRIES=1000;
+	public final static String[] DEFAULT_SESSION_VERBS={"JUMP","ADD"};
+	/*results of the cache in the metrics*/
+	protected final static String HIT="hit";
+	protected final static String MISS="miss";
+	protected final static String COALESCED="coalesced";
+
+	/*time to live by verb*/
+	private Map<String,Long> ttls=new HashMap<String,Long>();
+	private Set<String> sessionVerbs=new HashSet<String>();
+	private LinkedHashMap<String,CachedOutput> entries;
+	/*commands being sent, by key*/
+	private Map<String,Completion> inFlight=new HashMap<String,Completion>();
+	/*the number of invalidations of each host and node, to detect output from before a change*/
+	private Map<String,Long> generations=new HashMap<String,Long>();
+
+	/**
+	 * Create a cache with the default size
+	 */
+	public CommandCache(){
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Create a cache
+	 *
+	 * @param maxEntries The maximum number of cached outputs
+	 */
+	public CommandCache(final int maxEntries){
+		entries=new LinkedHashMap<String,CachedOutput>(16,0.75f,true){
+			protected boolean removeEldestEntry(Map.Entry<String,CachedOutput> eldest) {
+				return size()>maxEntries;
+			}
+		};
+		for (int i = 0; i < DEFAULT_SESSION_VERBS.length; i++) {
+			sessionVerbs.add(DEFAULT_SESSION_VERBS[i]);
+		}
+	}
+
+	/**
+	 * Cache the output of a verb
+	 *
+	 * @param verb The verb, e.g. INFO
+	 * @param msTtl How long the output is cached in milliseconds
+	 */
+	public synchronized void setTtl(String verb,long msTtl){
+		ttls.put(verb.trim().toUpperCase(),Long.valueOf(msTtl));
+	}
+
+	/**
+	 * Set the verbs which only change the state of the session, and therefore do not
+	 * drop cached output
+	 *
+	 * @param verbs The verbs, e.g. JUMP
+	 */
+	public synchronized void setSessionVerbs(String[] verbs){
+		sessionVerbs=new HashSet<String>();
+		for (int i = 0; i < verbs.length; i++) {
+			sessionVerbs.add(verbs[i].trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Get the output of a command from the cache, or send it on the session
+	 *
+	 * @param client The session
+	 * @param command The command
+	 * @return The output of the command
+	 * @throws IOException
+	 * @throws TimeoutException If the command doesn't complete within its timeout
+	 */
+	String sendCommand(SAPTelnetClient client,String command) throws IOException,TimeoutException{
+		String verb=TelnetMetrics.getVerb(command);
+		String scope=getScope(client);
+		String key=scope+" "+command.trim().replaceAll("\\s+"," ");
+		Completion flight;
+		long generation;
+		synchronized (this) {
+			Long ttl=ttls.get(verb);
+			if(ttl==null){
+				return client.sendUncached(command);
+			}
+			CachedOutput entry=entries.get(key);
+			if(entry!=null && entry.expires>System.currentTimeMillis()){
+				client.metrics.cacheRequest(command,HIT);
+				return entry.output;
+			}
+			flight=inFlight.get(key);
+			if(flight==null){
+				inFlight.put(key,new Completion());
+				generation=getGeneration(scope);
+			}else {
+				generation=-1;
+			}
+		}
+		if(flight!=null){
+			//another session is sending the command
+			client.metrics.cacheRequest(command,COALESCED);
+			try {
+				if(flight.await(client.getCommandTimeout(command),TimeUnit.MILLISECONDS) && flight.getResult() instanceof String){
+					return (String)flight.getResult();
+				}
+			}catch (InterruptedException e){
+				throw new TimeoutException("Interrupted while waiting for the output of "+command);
+			}
+			//the other session failed, which does not mean this one will
+			return client.sendUncached(command);
+		}
+		client.metrics.cacheRequest(command,MISS);
+		Object result=null;
+		try {
+			String output=client.sendUncached(command);
+			result=output;
+			return output;
+		}finally {
+			synchronized (this) {
+				flight=inFlight.remove(key);
+				if(result!=null && generation==getGeneration(scope)){
+					entries.put(key,new CachedOutput((String)result,System.currentTimeMillis()+ttls.get(verb).longValue()));
+				}
+			}
+			flight.complete(result!=null?result:new IOException("The command failed on the session sending it"));
+		}
+	}
+
+	/**
+	 * Called when a command has completed or timed out on a session, to drop the outputs
+	 * it may have changed
+	 *
+	 * @param client The session
+	 * @param command The command
+	 */
+	void commandExecuted(SAPTelnetClient client,String command){
+		String verb=TelnetMetrics.getVerb(command);
+		synchronized (this) {
+			if(ttls.containsKey(verb) || sessionVerbs.contains(verb)){
+				return;
+			}
+			invalidate(getScope(client));
+		}
+	}
+
+	/**
+	 * Drop the cached outputs of a host and node
+	 *
+	 * @param scope The host and node
+	 */
+	private void invalidate(String scope){
+		generations.put(scope,Long.valueOf(getGeneration(scope)+1));
+		String prefix=scope+" ";
+		for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+			if(it.next().startsWith(prefix)){
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop all cached outputs
+	 */
+	public synchronized void clear(){
+		for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+			String key=it.next();
+			String scope=key.substring(0,key.indexOf(' '));
+			generations.put(scope,Long.valueOf(getGeneration(scope)+1));
+		}
+		entries.clear();
+	}
+
+	/**
+	 * Get the number of cached outputs, including expired ones not yet dropped
+	 *
+	 * @return
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	private long getGeneration(String scope){
+		Long generation=generations.get(scope);
+		return generation==null?0:generation.longValue();
+	}
+
+	/**
+	 * Get the host and node of a session, e.g. sap1:50008/9999350
+	 */
+	private static String getScope(SAPTelnetClient client){
+		String node=client.getCurrentNode();
+		return client.telnetHost+"/"+(node==null?"":node);
+	}
+
+	private static class CachedOutput {
+		final String output;
+		final long expires;
+
+		CachedOutput(String output,long expires){
+			this.output=output;
+			this.expires=expires;
+		}
+	}
+}
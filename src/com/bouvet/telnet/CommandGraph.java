@@ -0,0 +1,300 @@
+package com.bouvet.telnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A command file made of named blocks, where a block may run after other blocks, e.g.
+ * <pre>
+ * [restart_jms]
+ * JUMP 0
+ * STOP_APP jms_provider
+ * START_APP jms_provider
+ * [clear_cache]
+ * JUMP 1
+ * ADD SERVLET_JSP
+ * CLEAR_HTTP_CACHE
+ * [check] after: restart_jms, clear_cache
+ * JUMP 0
+ * INFO
+ * </pre>
+ * A block starts with its name in brackets, optionally followed by after: and the comma or
+ * space separated names of the blocks it waits for. Its commands are the lines up to the next
+ * block. The blocks form a directed acyclic graph, which is checked when it is parsed.
+ *
+ * <p>run() runs each block as soon as the blocks it waits for have completed, so independent
+ * blocks run at the same time on the threads of the executor, while the commands of a block run
+ * in order. If a block fails, the blocks waiting for it are skipped, and the other blocks run on.
+ */
+public class CommandGraph {
+	public final static int DEFAULT_PARALLELISM=4;
+	public final static int PENDING=0;
+	public final static int RUNNING=1;
+	public final static int OK=2;
+	public final static int FAILED=3;
+	public final static int SKIPPED=4;
+	private final static Pattern BLOCK_HEADER=Pattern.compile("\\[([^\\[\\]\\s]+)\\]\\s*(?:(?i:after)\\s*:\\s*(.*))?");
+
+	/*the blocks in the order of the file*/
+	private final Map<String,Block> blocks;
+	private int finished;
+
+	private CommandGraph(Map<String,Block> blocks){
+		this.blocks=blocks;
+	}
+
+	/**
+	 * Return if the lines of a command file has blocks
+	 *
+	 * @param lines The lines, without blank and commented lines
+	 * @return
+	 */
+	public static boolean hasBlocks(List<String> lines){
+		for (Iterator<String> it = lines.iterator(); it.hasNext();) {
+			if(BLOCK_HEADER.matcher(it.next()).matches()){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parse the blocks of a command file
+	 *
+	 * @param lines The lines, without blank and commented lines
+	 * @return The graph
+	 * @throws InitFailedException If a command is outside a block, a block is given twice,
+	 * waits for an unknown block or the blocks wait for each other
+	 */
+	public static CommandGraph parse(List<String> lines) throws InitFailedException{
+		Map<String,Block> blocks=new LinkedHashMap<String,Block>();
+		Block block=null;
+		for (Iterator<String> it = lines.iterator(); it.hasNext();) {
+			String line = it.next();
+			Matcher header=BLOCK_HEADER.matcher(line);
+			if(header.matches()){
+				block=new Block(header.group(1));
+				if(blocks.put(block.name,block)!=null){
+					throw new InitFailedException("The block "+block.name+" is given twice in the command file");
+				}
+				if(header.group(2)!=null && header.group(2).trim().length()>0){
+					block.after.addAll(Arrays.asList(header.group(2).trim().split("[\\s,]+")));
+				}
+			}else if(block==null){
+				throw new InitFailedException("The command "+line+" is not in a block. Therefore the command file cannot be run");
+			}else {
+				block.commands.add(line);
+			}
+		}
+		for (Iterator<Block> it = blocks.values().iterator(); it.hasNext();) {
+			Block dependent = it.next();
+			for (Iterator<String> names = dependent.after.iterator(); names.hasNext();) {
+				String name = names.next();
+				Block dependency=blocks.get(name);
+				if(dependency==null){
+					throw new InitFailedException("The block "+dependent.name+" is after "+name+", which is not a block in the command file");
+				}
+				dependency.dependents.add(dependent);
+			}
+		}
+		CommandGraph graph=new CommandGraph(blocks);
+		graph.checkAcyclic();
+		return graph;
+	}
+
+	/**
+	 * Check that the blocks can be ordered, by removing the blocks without dependencies until none are left
+	 */
+	private void checkAcyclic() throws InitFailedException{
+		Map<Block,Integer> remaining=new LinkedHashMap<Block,Integer>();
+		List<Block> ready=new ArrayList<Block>();
+		for (Iterator<Block> it = blocks.values().iterator(); it.hasNext();) {
+			Block block = it.next();
+			remaining.put(block,Integer.valueOf(block.after.size()));
+			if(block.after.isEmpty()){
+				ready.add(block);
+			}
+		}
+		while(!ready.isEmpty()){
+			Block block=ready.remove(ready.size()-1);
+			remaining.remove(block);
+			for (Iterator<Block> it = block.dependents.iterator(); it.hasNext();) {
+				Block dependent = it.next();
+				int left=remaining.get(dependent).intValue()-1;
+				remaining.put(dependent,Integer.valueOf(left));
+				if(left==0){
+					ready.add(dependent);
+				}
+			}
+		}
+		if(!remaining.isEmpty()){
+			StringBuilder names=new StringBuilder();
+			for (Iterator<Block> it = remaining.keySet().iterator(); it.hasNext();) {
+				names.append(names.length()>0?", ":"").append(it.next().name);
+			}
+			throw new InitFailedException("The blocks "+names+" wait for each other. Therefore the command file cannot be run");
+		}
+	}
+
+	/**
+	 * Get the blocks
+	 *
+	 * @return The blocks in the order of the command file
+	 */
+	public List<Block> getBlocks(){
+		return Collections.unmodifiableList(new ArrayList<Block>(blocks.values()));
+	}
+
+	/**
+	 * Run the blocks, each as soon as the blocks it waits for have completed, and wait
+	 * until all blocks have completed or been skipped
+	 *
+	 * @param executor The executor running the blocks, whose threads limit how many blocks run at the same time
+	 * @param runner Runs the commands of a block
+	 * @throws InterruptedException If interrupted while waiting. The running blocks run on
+	 */
+	public synchronized void run(Executor executor,BlockRunner runner) throws InterruptedException{
+		finished=0;
+		for (Iterator<Block> it = blocks.values().iterator(); it.hasNext();) {
+			Block block = it.next();
+			block.status=PENDING;
+			block.failure=null;
+			block.waitingFor=block.after.size();
+		}
+		for (Iterator<Block> it = blocks.values().iterator(); it.hasNext();) {
+			Block block = it.next();
+			if(block.waitingFor==0){
+				start(block,executor,runner);
+			}
+		}
+		while(finished<blocks.size()){
+			wait();
+		}
+	}
+
+	private void start(final Block block,final Executor executor,final BlockRunner runner){
+		block.status=RUNNING;
+		executor.execute(new Runnable(){
+			public void run() {
+				TelnetException failure=null;
+				try {
+					runner.runBlock(block);
+				}catch (TelnetException e){
+					failure=e;
+				}catch (RuntimeException e){
+					failure=new TelnetException("The block failed: "+e,-9);
+				}
+				completed(block,failure,executor,runner);
+			}
+		});
+	}
+
+	private synchronized void completed(Block block,TelnetException failure,Executor executor,BlockRunner runner){
+		block.failure=failure;
+		block.status=failure==null?OK:FAILED;
+		finished++;
+		for (Iterator<Block> it = block.dependents.iterator(); it.hasNext();) {
+			Block dependent = it.next();
+			if(failure!=null){
+				skip(dependent);
+			}else if(--dependent.waitingFor==0 && dependent.status==PENDING){
+				start(dependent,executor,runner);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Skip a block and the blocks waiting for it
+	 */
+	private void skip(Block block){
+		if(block.status!=PENDING){
+			return;
+		}
+		block.status=SKIPPED;
+		finished++;
+		for (Iterator<Block> it = block.dependents.iterator(); it.hasNext();) {
+			skip(it.next());
+		}
+	}
+
+	/**
+	 * Runs the commands of a block. Called from the threads of the executor.
+	 */
+	public static interface BlockRunner {
+
+		/**
+		 * Run the commands of a block
+		 *
+		 * @param block The block
+		 * @throws TelnetException If the block fails, which skips the blocks waiting for it
+		 */
+		public void runBlock(Block block) throws TelnetException;
+	}
+
+	/**
+	 * A named block of commands which run in order on one session
+	 */
+	public static class Block {
+		private final String name;
+		private final List<String> after=new ArrayList<String>();
+		private final List<String> commands=new ArrayList<String>();
+		/*the blocks waiting for this block*/
+		private final List<Block> dependents=new ArrayList<Block>();
+		/*guarded by the graph*/
+		private int status=PENDING;
+		private int waitingFor;
+		private TelnetException failure=null;
+
+		Block(String name){
+			this.name=name;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		/**
+		 * Get the names of the blocks this block runs after
+		 *
+		 * @return
+		 */
+		public List<String> getAfter(){
+			return Collections.unmodifiableList(after);
+		}
+
+		public List<String> getCommands(){
+			return Collections.unmodifiableList(commands);
+		}
+
+		/**
+		 * Get the status of the block after run()
+		 *
+		 * @return PENDING, RUNNING, OK, FAILED or SKIPPED
+		 */
+		public int getStatus(){
+			return status;
+		}
+
+		/**
+		 * Get why the block failed
+		 *
+		 * @return The failure, or null if the block did not fail
+		 */
+		public TelnetException getFailure(){
+			return failure;
+		}
+
+		public String toString(){
+			return name;
+		}
+	}
+}
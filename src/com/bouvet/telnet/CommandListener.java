@@ -0,0 +1,16 @@
+package com.bouvet.telnet;
+
+/**
+ * Listener receiving the output of each command when several commands are
+ * issued in one call, e.g. when pipelining.
+ */
+public interface CommandListener {
+
+	/**
+	 * Called when a command has completed. Commands complete in the order they were given.
+	 *
+	 * @param command The command issued
+	 * @param output The output from the telnet session
+	 */
+	public void commandCompleted(String command,String output);
+}
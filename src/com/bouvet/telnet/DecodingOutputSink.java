@@ -0,0 +1,41 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * OutputSink which decodes the output with an OutputDecoder and writes the chars to a
+ * Writer, e.g. System.out wrapped in an OutputStreamWriter.
+ *
+ * A multi-byte sequence split across chunks is decoded when the rest of it arrives.
+ * Call flush() when the output of a command is complete.
+ */
+public class DecodingOutputSink implements OutputSink {
+	private OutputDecoder decoder;
+	private Writer out;
+
+	/**
+	 * Create a new DecodingOutputSink
+	 *
+	 * @param decoder The decoder, which is used by this sink only
+	 * @param out The writer to write to. It is not closed by the sink
+	 */
+	public DecodingOutputSink(OutputDecoder decoder,Writer out){
+		this.decoder=decoder;
+		this.out=out;
+	}
+
+	public void output(byte[] buffer, int offset, int length) throws IOException {
+		decoder.decode(buffer,offset,length,out);
+	}
+
+	/**
+	 * End the output of a command and flush the writer
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException{
+		decoder.finish(out);
+		out.flush();
+	}
+}
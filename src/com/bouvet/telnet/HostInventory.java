@@ -0,0 +1,50 @@
+package com.bouvet.telnet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a host inventory file.
+ *
+ * The file contains one host pr line on the form host[:port]. Blank lines and lines
+ * starting with # or // are skipped, in the same way as for command files.
+ * If no port is given the default port is used.
+ */
+public class HostInventory {
+
+	/**
+	 * Load the hosts of the given inventory file
+	 *
+	 * @param inventoryFile The inventory file
+	 * @param defaultPort The port to use for hosts without an explicit port
+	 * @return The hosts in the order they appear in the file
+	 * @throws IOException If the file cannot be read or contains an invalid port
+	 */
+	public static List<TelnetHost> load(File inventoryFile,int defaultPort) throws IOException{
+		List<TelnetHost> hosts=new ArrayList<TelnetHost>();
+		BufferedReader reader=new BufferedReader(new FileReader(inventoryFile));
+		try {
+			String line=null;
+			int lineNumber=0;
+			while((line=reader.readLine())!=null){
+				lineNumber++;
+				line=line.trim();
+				if("".equals(line) || line.startsWith("#") ||line.startsWith("//")){
+					continue;
+				}
+				try {
+					hosts.add(TelnetHost.parse(line,defaultPort));
+				}catch(NumberFormatException e){
+					throw new IOException("Invalid port on line "+lineNumber+" of "+inventoryFile+": "+line);
+				}
+			}
+		}finally {
+			reader.close();
+		}
+		return hosts;
+	}
+}
@@ -0,0 +1,546 @@
+package com.bouvet.telnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import com.bouvet.thread.Completion;
+import com.bouvet.thread.CompletionListener;
+
+/**
+ * A non-blocking SAP J2EE telnet session which is driven by a SelectorEngine.
+ *
+ * The session runs the same dialogue as SAPTelnetClient and SAPTelnetScript:
+ * wait for the login prompt, send username and password, issue each command and wait
+ * for the prompt, and finally send the quit command. It never blocks a thread, instead
+ * the event loop calls the handle methods when the channel is ready.
+ *
+ * <p>The output of each command is collected in a SpillableOutputBuffer, which is reused
+ * for the next command. A large output therefore spills to a temporary file instead of 
+ * being held on the heap.
+ *
+ * <p>The host is resolved and the socket is configured by the shared TelnetConnector. The
+ * host is resolved on the resolver threads of the connector, so a slow lookup does not block
+ * the event loop, and the event loop picks up the addresses when it checks the timeouts.
+ * The lookup and then the connect to the first address of the host must each complete
+ * within the connect timeout of the connector.
+ *
+ * <p>Apart from the constructor and the getters, all methods are called from the
+ * event loop thread owning the session.
+ *
+ * <p>The exit code of a finished session uses the same codes as SAPTelnetScript
+ */
+public class NioTelnetSession {
+	private enum State {CREATED,WAIT_ADMISSION,RESOLVING,CONNECTING,WAIT_LOGIN,WAIT_PASSWORD,WAIT_LOGGED_IN,WAIT_COMMAND,WAIT_QUIT,FINISHED}
+
+	protected final static String LINE_SEPARATOR=System.getProperty("line.separator");
+	/*The delimiters of each step. The failure message is watched during login*/
+	private final static String[] LOGIN_DELIMITERS={SAPTelnetClient.LOGIN_PROMPT};
+	private final static String[] PASSWORD_DELIMITERS={SAPTelnetClient.PASSWORD_PROMPT,SAPTelnetClient.LOGIN_FAILED_RESPONSE};
+	private final static String[] LOGGED_IN_DELIMITERS={SAPTelnetClient.PROMPT,SAPTelnetClient.LOGIN_FAILED_RESPONSE};
+	private final static String[] PROMPT_DELIMITERS={SAPTelnetClient.PROMPT};
+	/*size of the bytes staged before they are added to the response*/
+	private final static int PENDING_SIZE=512;
+
+	private TelnetHost host;
+	private String username;
+	private String password;
+	private List<String> commands;
+	private long msTimeout;
+	private SessionListener listener;
+
+	private State state=State.CREATED;
+	private SocketChannel channel;
+	private SelectionKey key;
+
+	/*Response received since the last command, or the whole login dialogue*/
+	private SpillableOutputBuffer response=new SpillableOutputBuffer(SpillableOutputBuffer.DEFAULT_SPILL_THRESHOLD);
+	/*Bytes of the current read which are not yet added to the response*/
+	private byte[] pending=new byte[PENDING_SIZE];
+	private int pendingLength=0;
+	private PromptMatcher matcher;
+	private ByteBuffer pendingWrite;
+	private int commandIndex=0;
+	private String currentCommand;
+	private long deadline;
+	/*the timeout of the current operation in milliseconds*/
+	private long currentTimeout;
+	private TimeoutPolicy timeoutPolicy=null;
+	/*the charset the commands are encoded with*/
+	private Charset charset=OutputDecoder.ISO_8859_1;
+	/*when the current operation started, in nanoseconds*/
+	private long operationStart;
+	/*the time of the last completed operation, in nanoseconds*/
+	private long operationTime;
+	/*limits the rate of the login and the commands, or null*/
+	private AdmissionController admission=null;
+	/*when the login or command waiting for admission may be sent, in milliseconds*/
+	private long admittedAt;
+	private Selector selector;
+	private TelnetMetrics metrics;
+	/*the lookup of the host while RESOLVING*/
+	private Completion resolution;
+	/*when the lookup started and completed, in nanoseconds*/
+	private long resolveStart;
+	private volatile long resolvedAt;
+
+	private int exitCode=0;
+	private String errorMessage;
+
+	/**
+	 * Create a new session
+	 *
+	 * @param host The host to connect to
+	 * @param username The username to login with
+	 * @param password The password of the user
+	 * @param commands The commands to issue after login
+	 * @param msTimeout The maximum processing time for connect, login and each command
+	 * @param listener Listener receiving the output of the session
+	 */
+	public NioTelnetSession(TelnetHost host,String username,String password,List<String> commands,long msTimeout,SessionListener listener){
+		this.host=host;
+		this.username=username;
+		this.password=password;
+		this.commands=commands;
+		this.msTimeout=msTimeout;
+		this.listener=listener;
+		metrics=new TelnetMetrics(host.toString());
+	}
+
+	/**
+	 * Open the channel and start connecting
+	 *
+	 * @param selector The selector of the event loop
+	 */
+	void register(Selector selector){
+		this.selector=selector;
+		if(admission!=null){
+			long wait=admission.reserveCommand(host,TelnetMetrics.LOGIN_OPERATION);
+			if(wait!=0){
+				waitForAdmission(wait,TelnetMetrics.LOGIN_OPERATION);
+				return;
+			}
+		}
+		connect();
+	}
+
+	/**
+	 * Start resolving the host, and connect at once if its addresses are cached
+	 */
+	private void connect(){
+		state=State.RESOLVING;
+		currentTimeout=TelnetConnector.getSharedInstance().getConnectTimeout(msTimeout);
+		deadline=System.currentTimeMillis()+currentTimeout;
+		resolveStart=System.nanoTime();
+		resolvedAt=0;
+		resolution=TelnetConnector.getSharedInstance().resolveAsync(host.getHost());
+		resolution.addListener(new CompletionListener(){
+			public void completed(Completion completion) {
+				resolvedAt=System.nanoTime();
+			}
+		});
+		if(resolution.isDone()){
+			resolved();
+		}
+	}
+
+	/**
+	 * Connect to the first address of the host when the lookup has completed
+	 */
+	private void resolved(){
+		Object result=resolution.getResult();
+		resolution=null;
+		if(!(result instanceof InetAddress[])){
+			fail("Could not resolve host "+host.getHost(),-4);
+			return;
+		}
+		//the listener may not have run yet when the result is seen
+		long end=resolvedAt!=0?resolvedAt:System.nanoTime();
+		metrics.resolved(end-resolveStart);
+		try {
+			TelnetConnector connector=TelnetConnector.getSharedInstance();
+			InetSocketAddress address=new InetSocketAddress(((InetAddress[])result)[0],host.getPort());
+			channel=SocketChannel.open();
+			channel.configureBlocking(false);
+			connector.configure(channel.socket());
+			state=State.CONNECTING;
+			currentTimeout=connector.getConnectTimeout(msTimeout);
+			deadline=System.currentTimeMillis()+currentTimeout;
+			operationStart=System.nanoTime();
+			if(channel.connect(address)){
+				key=channel.register(selector,0,this);
+				connected();
+			}else {
+				key=channel.register(selector,SelectionKey.OP_CONNECT,this);
+			}
+		}catch (IOException e){
+			failed(e);
+		}
+	}
+
+	/**
+	 * Called by the event loop when the channel is connectable
+	 */
+	void handleConnect() throws IOException{
+		if(channel.finishConnect()){
+			connected();
+		}
+	}
+
+	/**
+	 * Called by the event loop when the channel is readable
+	 *
+	 * @param readBuffer Buffer of the event loop which can be used for the read
+	 */
+	void handleRead(ByteBuffer readBuffer) throws IOException{
+		readBuffer.clear();
+		int read=channel.read(readBuffer);
+		if(read==-1){
+			if(state==State.WAIT_QUIT){
+				//the server closes the connection on quit
+				finish();
+			}else {
+				failed(new IOException("Connection closed by "+host));
+			}
+			return;
+		}
+		readBuffer.flip();
+		metrics.getReadBytes().add(read);
+		//feed each byte once to the matcher, the read may contain more than one delimiter
+		while(readBuffer.hasRemaining() && state!=State.FINISHED){
+			int b=readBuffer.get() & 0xff;
+			pending[pendingLength++]=(byte)b;
+			if(matcher.feed(b)!=-1){
+				addPending();
+				matched(matcher.getMatchedDelimiter());
+			}else if(pendingLength==pending.length){
+				addPending();
+			}
+		}
+		if(state!=State.FINISHED){
+			addPending();
+		}
+	}
+
+	private void addPending() throws IOException{
+		response.output(pending,0,pendingLength);
+		pendingLength=0;
+	}
+
+	/**
+	 * Called by the event loop when the channel is writable
+	 */
+	void handleWrite() throws IOException{
+		channel.write(pendingWrite);
+		if(!pendingWrite.hasRemaining()){
+			pendingWrite=null;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Fail the session if the current operation has exceeded its timeout
+	 *
+	 * @param now The current time in milliseconds
+	 */
+	void checkTimeout(long now){
+		if(state==State.WAIT_ADMISSION){
+			if(now>=admittedAt){
+				if(currentCommand==null){
+					connect();
+				}else {
+					operationStart=System.nanoTime();
+					sendAndExpect(currentCommand,State.WAIT_COMMAND,PROMPT_DELIMITERS);
+				}
+			}
+			return;
+		}
+		if(state==State.RESOLVING){
+			if(resolution.isDone()){
+				resolved();
+			}else if(now>deadline){
+				metrics.timedOut(TelnetMetrics.CONNECT_OPERATION);
+				fail("Could not resolve host "+host.getHost()+" within "+currentTimeout+" ms",-4);
+			}
+			return;
+		}
+		if(state!=State.FINISHED && state!=State.CREATED && now>deadline){
+			if(state==State.CONNECTING){
+				metrics.timedOut(TelnetMetrics.CONNECT_OPERATION);
+			}else if(state==State.WAIT_COMMAND || state==State.WAIT_QUIT){
+				metrics.timedOut(currentCommand);
+				if(timeoutPolicy!=null){
+					timeoutPolicy.timedOut(currentCommand,currentTimeout);
+				}
+			}else {
+				metrics.timedOut(TelnetMetrics.LOGIN_OPERATION);
+				if(timeoutPolicy!=null){
+					timeoutPolicy.timedOut(TelnetMetrics.LOGIN_OPERATION,currentTimeout);
+				}
+			}
+			//the same exit codes as SAPTelnetScript, where a connect timeout is a failed connect
+			fail("Timeout occured after "+currentTimeout+" while in state "+state+" on "+host,state==State.CONNECTING?-4:-54);
+		}
+	}
+
+	/**
+	 * Fail the session because of an IOException
+	 *
+	 * @param e The exception
+	 */
+	void failed(IOException e){
+		if(e instanceof ConnectException || state==State.CONNECTING){
+			fail("Could not connect to "+host+". Message:"+e.getMessage(),-4);
+		}else if(state==State.WAIT_LOGIN || state==State.WAIT_PASSWORD || state==State.WAIT_LOGGED_IN){
+			fail("Login failed on "+host+". "+response,-3);
+		}else {
+			fail("An general IOException occured on "+host+":"+e.getMessage(),-9);
+		}
+	}
+
+	/**
+	 * Fail the session because of a RuntimeException, e.g. thrown by the listener
+	 *
+	 * @param e The exception
+	 */
+	void failed(RuntimeException e){
+		fail("An unexpected error occured on "+host+": "+e,-9);
+	}
+
+	/**
+	 * Close the session because the engine is shut down
+	 */
+	void shutdown(){
+		fail("The session to "+host+" was closed as the engine was shut down",-9);
+	}
+
+	private void connected(){
+		long now=System.nanoTime();
+		metrics.connected(now-operationStart);
+		operationStart=now;
+		key.interestOps(SelectionKey.OP_READ);
+		expect(State.WAIT_LOGIN,LOGIN_DELIMITERS);
+	}
+
+	private void matched(String delimiter){
+		if(SAPTelnetClient.LOGIN_FAILED_RESPONSE.equals(delimiter)){
+			fail("Login failed on "+host+". "+response,-3);
+			return;
+		}
+		switch (state){
+			case WAIT_LOGIN:
+				//the output of the login dialogue is kept until logged in
+				sendAndExpect(username,State.WAIT_PASSWORD,PASSWORD_DELIMITERS);
+				break;
+			case WAIT_PASSWORD:
+				sendAndExpect(password,State.WAIT_LOGGED_IN,LOGGED_IN_DELIMITERS);
+				break;
+			case WAIT_LOGGED_IN:
+				long loginTime=System.nanoTime()-operationStart;
+				operationTime=loginTime;
+				metrics.loggedIn(loginTime);
+				if(timeoutPolicy!=null){
+					timeoutPolicy.record(TelnetMetrics.LOGIN_OPERATION,loginTime);
+				}
+				listener.commandCompleted(this,"login",response);
+				response.clear();
+				nextCommand();
+				break;
+			case WAIT_COMMAND:
+				long commandTime=System.nanoTime()-operationStart;
+				operationTime=commandTime;
+				metrics.commandCompleted(currentCommand,commandTime);
+				if(timeoutPolicy!=null){
+					timeoutPolicy.record(currentCommand,commandTime);
+				}
+				listener.commandCompleted(this,currentCommand,response);
+				response.clear();
+				nextCommand();
+				break;
+			case WAIT_QUIT:
+				finish();
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void nextCommand(){
+		if(commandIndex<commands.size()){
+			currentCommand=commands.get(commandIndex++);
+			if(admission!=null){
+				long wait=admission.reserveCommand(host,currentCommand);
+				if(wait!=0){
+					waitForAdmission(wait,currentCommand);
+					return;
+				}
+			}
+			operationStart=System.nanoTime();
+			sendAndExpect(currentCommand,State.WAIT_COMMAND,PROMPT_DELIMITERS);
+		}else {
+			currentCommand=SAPTelnetClient.LOGOUT_COMMAND;
+			sendAndExpect(currentCommand,State.WAIT_QUIT,PROMPT_DELIMITERS);
+		}
+	}
+
+	/**
+	 * Hold back the login or a command until the rate limit allows it. The event loop 
+	 * sends it when it checks the timeouts after the wait.
+	 */
+	private void waitForAdmission(long wait,String command){
+		if(wait<0){
+			fail("The rate limit did not admit "+command+" on "+host+" within "+admission.getMaxWait()+" ms",-5);
+			return;
+		}
+		state=State.WAIT_ADMISSION;
+		admittedAt=System.currentTimeMillis()+wait;
+	}
+
+	private void sendAndExpect(String line,State newState,String[] delimiters){
+		pendingWrite=ByteBuffer.wrap((line+LINE_SEPARATOR).getBytes(charset));
+		key.interestOps(SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+		expect(newState,delimiters);
+	}
+
+	private void expect(State newState,String[] delimiters){
+		state=newState;
+		if(matcher==null || matcher.getDelimiters()!=delimiters){
+			matcher=new PromptMatcher(delimiters);
+		}
+		matcher.reset();
+		currentTimeout=msTimeout;
+		if(timeoutPolicy!=null){
+			currentTimeout=timeoutPolicy.getTimeout(newState==State.WAIT_COMMAND || newState==State.WAIT_QUIT?currentCommand:TelnetMetrics.LOGIN_OPERATION,msTimeout);
+		}
+		deadline=System.currentTimeMillis()+currentTimeout;
+	}
+
+	private void fail(String msg,int code){
+		errorMessage=msg;
+		exitCode=code;
+		finish();
+	}
+
+	private void finish(){
+		if(state==State.FINISHED){
+			return;
+		}
+		state=State.FINISHED;
+		if(channel!=null){
+			try {
+				channel.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+		}
+		response.release();
+		listener.sessionFinished(this);
+	}
+
+	/**
+	 * Limit the rate of the login and the commands of the session. Must be set before the 
+	 * session is submitted. The session slots of the controller are taken by the caller.
+	 *
+	 * @param admission The controller, or null to send at once
+	 */
+	public void setAdmissionController(AdmissionController admission){
+		this.admission=admission;
+	}
+
+	/**
+	 * Set the policy deciding the timeout of each command. Must be set before the 
+	 * session is submitted.
+	 *
+	 * @param timeoutPolicy The policy, or null to use the timeout of the session for all commands
+	 */
+	public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy){
+		this.timeoutPolicy=timeoutPolicy;
+	}
+
+	/**
+	 * Set the size of output which is kept on the heap. Larger output spills to a 
+	 * temporary file. Must be set before the session is submitted.
+	 *
+	 * @param spillThreshold The maximum number of bytes of output kept on the heap
+	 * @param spillDirectory The directory of the temporary files, or null for the default
+	 */
+	public void setSpillThreshold(int spillThreshold,File spillDirectory){
+		response=new SpillableOutputBuffer(spillThreshold,spillDirectory);
+	}
+
+	/**
+	 * Set the charset the commands are encoded with. The output is collected as bytes, 
+	 * use SpillableOutputBuffer.toString(Charset) to decode it. Must be set before the 
+	 * session is submitted.
+	 *
+	 * @param charset The charset, the default is ISO-8859-1
+	 */
+	public void setCharset(Charset charset){
+		this.charset=charset;
+	}
+
+	/**
+	 * Return if the session has finished, either successfully or not
+	 *
+	 * @return
+	 */
+	public boolean isFinished(){
+		return state==State.FINISHED;
+	}
+
+	/**
+	 * Get the host of the session
+	 *
+	 * @return
+	 */
+	public TelnetHost getHost(){
+		return host;
+	}
+
+	/**
+	 * Get the exit code of the session. 0 means success, the other codes
+	 * are the same as for SAPTelnetScript.
+	 *
+	 * @return
+	 */
+	public int getExitCode(){
+		return exitCode;
+	}
+
+	/**
+	 * Get the command the session is running, or null while logging in. When the session 
+	 * has failed, this is the command it failed on.
+	 *
+	 * @return
+	 */
+	public String getCurrentCommand(){
+		return currentCommand;
+	}
+
+	/**
+	 * Get the time of the last completed command or login. Called from 
+	 * SessionListener.commandCompleted, this is the time of the completed command.
+	 *
+	 * @return The time in nanoseconds
+	 */
+	public long getCommandTime(){
+		return operationTime;
+	}
+
+	/**
+	 * Get the error message of a failed session or null if it did not fail
+	 *
+	 * @return
+	 */
+	public String getErrorMessage(){
+		return errorMessage;
+	}
+}
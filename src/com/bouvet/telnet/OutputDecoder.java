@@ -0,0 +1,153 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the output of a telnet session from bytes to chars with a CharsetDecoder,
+ * reusing its buffers across calls.
+ *
+ * A whole response is decoded in bulk with decode(buffer,offset,length). Streamed output
+ * is decoded chunk by chunk with decode(buffer,offset,length,out), which keeps the bytes of
+ * a multi-byte sequence split across chunks until the rest of it arrives, and finish() at
+ * the end of the output. Malformed input is replaced, so decoding never fails.
+ *
+ * The prompt is matched on the raw bytes before decoding, which is safe for charsets like
+ * ISO-8859-1 and UTF-8 where the ASCII bytes of the prompt cannot be part of another char.
+ *
+ * A decoder is not thread safe, and is used either for whole responses or for one stream at a time.
+ */
+public class OutputDecoder {
+	public final static Charset ISO_8859_1=Charset.forName("ISO-8859-1");
+	/*size of the reused char buffer, larger buffers for bulk decoding are not kept*/
+	private final static int CHAR_BUFFER_SIZE=8*1024;
+
+	private final Charset charset;
+	private final CharsetDecoder decoder;
+	/*the output of the decoder, reused*/
+	private CharBuffer chars=CharBuffer.allocate(CHAR_BUFFER_SIZE);
+	/*bytes of a split sequence followed by the next chunk, reused*/
+	private ByteBuffer staged=ByteBuffer.allocate(0);
+	/*the bytes of a split sequence waiting for the next chunk, in read mode*/
+	private ByteBuffer carry=ByteBuffer.allocate(0);
+
+	/**
+	 * Create a new decoder
+	 *
+	 * @param charset The charset of the output
+	 */
+	public OutputDecoder(Charset charset){
+		this.charset=charset;
+		decoder=charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Get the charset of the decoder
+	 *
+	 * @return
+	 */
+	public Charset getCharset(){
+		return charset;
+	}
+
+	/**
+	 * Decode a whole response at once
+	 *
+	 * @param buffer The buffer containing the response
+	 * @param offset The offset of the response in the buffer
+	 * @param length The length of the response
+	 * @return The decoded response
+	 */
+	public String decode(byte[] buffer,int offset,int length){
+		if(charset.equals(ISO_8859_1)){
+			//one char pr byte, which String does faster than the decoder
+			return new String(buffer,offset,length,ISO_8859_1);
+		}
+		decoder.reset();
+		int capacity=(int)(length*(double)decoder.maxCharsPerByte())+1;
+		CharBuffer out=capacity<=chars.capacity()?chars:CharBuffer.allocate(capacity);
+		out.clear();
+		decoder.decode(ByteBuffer.wrap(buffer,offset,length),out,true);
+		decoder.flush(out);
+		decoder.reset();
+		return new String(out.array(),0,out.position());
+	}
+
+	/**
+	 * Decode a chunk of streamed output, writing the decoded chars to the writer. The
+	 * bytes at the end of the chunk which are the start of a multi-byte sequence are kept
+	 * and decoded with the next chunk.
+	 *
+	 * @param buffer The buffer containing the chunk
+	 * @param offset The offset of the chunk in the buffer
+	 * @param length The length of the chunk
+	 * @param out The writer receiving the chars
+	 * @throws IOException If the writer fails
+	 */
+	public void decode(byte[] buffer,int offset,int length,Writer out) throws IOException{
+		ByteBuffer in;
+		if(carry.hasRemaining()){
+			//the split sequence continues in this chunk
+			if(staged.capacity()<carry.remaining()+length){
+				staged=ByteBuffer.allocate(carry.remaining()+length);
+			}
+			staged.clear();
+			staged.put(carry);
+			staged.put(buffer,offset,length);
+			staged.flip();
+			in=staged;
+		}else {
+			in=ByteBuffer.wrap(buffer,offset,length);
+		}
+		decode(in,out,false);
+		//keep the start of a split sequence
+		if(carry.capacity()<in.remaining()){
+			carry=ByteBuffer.allocate(in.remaining());
+		}
+		carry.clear();
+		carry.put(in);
+		carry.flip();
+	}
+
+	/**
+	 * End the streamed output, writing the remaining chars to the writer. Bytes of an
+	 * incomplete sequence are replaced. The decoder can then be used for the next output.
+	 *
+	 * @param out The writer receiving the chars
+	 * @throws IOException If the writer fails
+	 */
+	public void finish(Writer out) throws IOException{
+		decode(carry,out,true);
+		carry.clear();
+		carry.flip();
+		chars.clear();
+		while(decoder.flush(chars).isOverflow()){
+			drain(out);
+		}
+		drain(out);
+		decoder.reset();
+	}
+
+	private void decode(ByteBuffer in,Writer out,boolean endOfInput) throws IOException{
+		chars.clear();
+		while(decoder.decode(in,chars,endOfInput).isOverflow()){
+			drain(out);
+		}
+		drain(out);
+	}
+
+	/**
+	 * Write the decoded chars to the writer and empty the char buffer
+	 */
+	private void drain(Writer out) throws IOException{
+		if(chars.position()>0){
+			out.write(chars.array(),0,chars.position());
+		}
+		chars.clear();
+	}
+}
@@ -0,0 +1,24 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+
+/**
+ * Receives the output of a command in chunks as it arrives from the telnet session,
+ * instead of as one String when the command has completed.
+ *
+ * The chunks are passed in the order they are received. The buffer is reused by the
+ * caller, so the sink must copy or write out the bytes before returning. The sink is
+ * called from the reader thread of the session, so it should not block for long.
+ */
+public interface OutputSink {
+
+	/**
+	 * Receive a chunk of output
+	 *
+	 * @param buffer The buffer containing the chunk
+	 * @param offset The offset of the chunk in the buffer
+	 * @param length The length of the chunk
+	 * @throws IOException If the output cannot be processed
+	 */
+	public void output(byte[] buffer,int offset,int length) throws IOException;
+}
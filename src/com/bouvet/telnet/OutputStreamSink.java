@@ -0,0 +1,33 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutputSink which writes the output to an OutputStream, e.g. a file or System.out
+ */
+public class OutputStreamSink implements OutputSink {
+	private OutputStream out;
+
+	/**
+	 * Create a new OutputStreamSink
+	 *
+	 * @param out The stream to write to. It is not closed by the sink
+	 */
+	public OutputStreamSink(OutputStream out){
+		this.out=out;
+	}
+
+	public void output(byte[] buffer, int offset, int length) throws IOException {
+		out.write(buffer,offset,length);
+	}
+
+	/**
+	 * Flush the underlying stream
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException{
+		out.flush();
+	}
+}
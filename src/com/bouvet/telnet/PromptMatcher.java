@@ -0,0 +1,201 @@
+package com.bouvet.telnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming matcher which watches a byte stream for one or more delimiters at once,
+ * e.g. the prompt, "Login failed" and "Password: ".
+ *
+ * The delimiters are compiled into an Aho-Corasick automaton with a full transition
+ * table, so each byte costs one table lookup no matter how much output has been
+ * received or how many delimiters are watched. The matcher keeps its state between
+ * calls, so a delimiter may be split across several reads.
+ *
+ * Delimiters are matched byte by byte, so they must only contain chars below 256.
+ * A matcher is not thread safe.
+ */
+public class PromptMatcher {
+	private final static int ALPHABET_SIZE=256;
+
+	private final String[] delimiters;
+	/*transitions[state*256+byte] is the next state*/
+	private final int[] transitions;
+	/*the delimiter which ends in a state or -1*/
+	private final int[] matches;
+	/*the length of the longest partial match of a state*/
+	private final int[] depths;
+	private int state=0;
+	private int matched=-1;
+
+	/**
+	 * Create a new matcher
+	 *
+	 * @param delimiters The delimiters to watch for. None of them may be empty
+	 */
+	public PromptMatcher(String[] delimiters){
+		this.delimiters=delimiters;
+		//build the trie
+		List<int[]> trie=new ArrayList<int[]>();
+		List<Integer> trieMatches=new ArrayList<Integer>();
+		List<Integer> trieDepths=new ArrayList<Integer>();
+		trie.add(newNode());
+		trieMatches.add(Integer.valueOf(-1));
+		trieDepths.add(Integer.valueOf(0));
+		for (int i = 0; i < delimiters.length; i++) {
+			String delimiter=delimiters[i];
+			if(delimiter==null || delimiter.length()==0){
+				throw new IllegalArgumentException("Delimiter "+i+" is empty");
+			}
+			int node=0;
+			for (int j = 0; j < delimiter.length(); j++) {
+				int c=delimiter.charAt(j);
+				if(c>=ALPHABET_SIZE){
+					throw new IllegalArgumentException("Delimiter "+i+" contains a char which is not a single byte: "+delimiter);
+				}
+				if(trie.get(node)[c]==-1){
+					trie.get(node)[c]=trie.size();
+					trie.add(newNode());
+					trieMatches.add(Integer.valueOf(-1));
+					trieDepths.add(Integer.valueOf(j+1));
+				}
+				node=trie.get(node)[c];
+			}
+			if(trieMatches.get(node).intValue()==-1){
+				trieMatches.set(node,Integer.valueOf(i));
+			}
+		}
+
+		//turn the trie into a transition table using the failure links, breadth first
+		int states=trie.size();
+		transitions=new int[states*ALPHABET_SIZE];
+		matches=new int[states];
+		depths=new int[states];
+		int[] failure=new int[states];
+		int[] queue=new int[states];
+		int head=0;
+		int tail=0;
+		for (int s = 0; s < states; s++) {
+			matches[s]=trieMatches.get(s).intValue();
+			depths[s]=trieDepths.get(s).intValue();
+		}
+		for (int c = 0; c < ALPHABET_SIZE; c++) {
+			int next=trie.get(0)[c];
+			if(next==-1){
+				transitions[c]=0;
+			}else {
+				transitions[c]=next;
+				failure[next]=0;
+				queue[tail++]=next;
+			}
+		}
+		while(head<tail){
+			int s=queue[head++];
+			//a delimiter which is a suffix of this state also matches here
+			if(matches[s]==-1){
+				matches[s]=matches[failure[s]];
+			}
+			int[] children=trie.get(s);
+			for (int c = 0; c < ALPHABET_SIZE; c++) {
+				int next=children[c];
+				if(next==-1){
+					transitions[s*ALPHABET_SIZE+c]=transitions[failure[s]*ALPHABET_SIZE+c];
+				}else {
+					transitions[s*ALPHABET_SIZE+c]=next;
+					failure[next]=transitions[failure[s]*ALPHABET_SIZE+c];
+					queue[tail++]=next;
+				}
+			}
+		}
+	}
+
+	private static int[] newNode(){
+		int[] node=new int[ALPHABET_SIZE];
+		for (int i = 0; i < node.length; i++) {
+			node[i]=-1;
+		}
+		return node;
+	}
+
+	/**
+	 * Feed a single byte to the matcher
+	 *
+	 * @param b The byte, only the lowest 8 bits are used
+	 * @return The index of the delimiter which ends with this byte, or -1
+	 */
+	public int feed(int b){
+		state=transitions[state*ALPHABET_SIZE+(b & 0xff)];
+		matched=matches[state];
+		return matched;
+	}
+
+	/**
+	 * Feed bytes to the matcher until a delimiter is found
+	 *
+	 * @param buffer The bytes
+	 * @param offset The offset of the first byte
+	 * @param length The number of bytes
+	 * @return The offset after the last byte of the delimiter, or -1 if all bytes were
+	 * consumed without a match
+	 */
+	public int feed(byte[] buffer,int offset,int length){
+		int s=state;
+		int end=offset+length;
+		for (int i = offset; i < end; i++) {
+			s=transitions[s*ALPHABET_SIZE+(buffer[i] & 0xff)];
+			if(matches[s]!=-1){
+				state=s;
+				matched=matches[s];
+				return i+1;
+			}
+		}
+		state=s;
+		matched=-1;
+		return -1;
+	}
+
+	/**
+	 * Reset the matcher to its initial state
+	 */
+	public void reset(){
+		state=0;
+		matched=-1;
+	}
+
+	/**
+	 * Get the index of the delimiter found by the last feed, or -1
+	 *
+	 * @return
+	 */
+	public int getMatchedIndex(){
+		return matched;
+	}
+
+	/**
+	 * Get the delimiter found by the last feed, or null
+	 *
+	 * @return
+	 */
+	public String getMatchedDelimiter(){
+		return matched==-1?null:delimiters[matched];
+	}
+
+	/**
+	 * Get the number of bytes at the end of the input fed so far which may be
+	 * the start of a delimiter.
+	 *
+	 * @return
+	 */
+	public int getPartialMatchLength(){
+		return depths[state];
+	}
+
+	/**
+	 * Get the delimiters of the matcher
+	 *
+	 * @return
+	 */
+	public String[] getDelimiters(){
+		return delimiters;
+	}
+}
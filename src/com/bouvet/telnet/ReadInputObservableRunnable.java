@@ -1,74 +1,394 @@
 package com.bouvet.telnet;
 
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
 
-import com.bouvet.thread.ObservableRunnable;
+import com.bouvet.metrics.Counter;
+import com.bouvet.telnet.record.SessionRecorder;
+import com.bouvet.thread.Completion;
 import com.bouvet.thread.ThreadIOException;
 
 
 /**
- * Runnable which reads from the given DataInputStream untill the given 
- * delimiter occurs. 
+ * Runnable which reads from the given channel for the lifetime of a 
+ * telnet session. There is one such reader pr session. 
  * 
- * Note that this runnable is also Observable. This means that the result of this 
- * runnable is sent throw the registered Observers. This response can be either a
- * String or an IOException from this class, but a TimeoutThread may also add a 
- * TimeoutException.
+ * The reader reads in large chunks into a reusable read buffer and appends them to the
+ * buffer of received bytes. When one or more delimiters are expected through expect(), 
+ * the response up to and including the first delimiter found is removed from the buffer 
+ * and set as the result of the given Completion. Bytes received after the delimiter 
+ * are kept for the next expectation.
+ * 
+ * The delimiters are found with a PromptMatcher which scans each chunk in place, so each
+ * byte is only looked at once. The response is decoded to a String once, when the 
+ * delimiter is found, with the OutputDecoder of the charset of the session (ISO-8859-1 
+ * unless set). The delimiters are encoded with the same charset. All buffers are taken 
+ * from a ByteBufferPool and returned to it, so they are reused across commands.
+ * 
+ * If an OutputSink is given with the expectation, the response is streamed to the sink 
+ * as it arrives instead. Only the bytes which may be the start of a delimiter are kept 
+ * back, so the memory used is bounded by the buffer size and not the size of the output.
+ * The delimiter itself is not passed to the sink.
+ * 
+ * Expectations are queued, so several commands may be sent before their responses 
+ * arrive. Each response completes the oldest expectation.
+ * 
+ * The result of the Completion is either a String or a ThreadIOException from this class, 
+ * which includes at most the last MAX_FAILURE_BUFFER bytes received, 
+ * but a timeout or a cancel may also complete it first. The response of such an expectation 
+ * is discarded when it arrives, as the engine answers the commands of a session in order.
  * 
  * @author Dagfinn Parnas,bouvet
  */
-public class ReadInputObservableRunnable extends  ObservableRunnable {
-	private DataInputStream in;
-	private String endDelim;
+public class ReadInputObservableRunnable implements Runnable {
+	protected final static Charset ISO_8859_1=OutputDecoder.ISO_8859_1;
+	/*the most of the received bytes included in a ThreadIOException*/
+	public final static int MAX_FAILURE_BUFFER=8*1024;
+	
+	private ReadableByteChannel channel;
+	private ByteBufferPool pool;
+	/*buffer the channel is read into, only used by the reader thread*/
+	private ByteBuffer readBuffer;
+	/*the received bytes which are not yet part of a response, in write mode*/
+	private ByteBuffer received;
+	/*the number of bytes of received which have been fed to the current matcher*/
+	private int scanned=0;
+	/*The expectation the received bytes are matched against, or null*/
+	private Expectation current;
+	/*The expectations waiting for the current one, oldest first*/
+	private LinkedList<Expectation> queued=new LinkedList<Expectation>();
+	/*Matchers are reused, as sessions usually wait for the same delimiters*/
+	private Map<String,PromptMatcher> matchers=new HashMap<String,PromptMatcher>();
+	/*The exception which terminated the reader, or null if still reading*/
+	private IOException failure;
+	/*Counts the bytes read, or null*/
+	private Counter readCounter;
+	/*Records the chunks read, or null*/
+	private SessionRecorder recorder;
+	/*Decodes the responses, only used while holding the lock of the reader*/
+	private OutputDecoder decoder=new OutputDecoder(ISO_8859_1);
 	
 	/**
 	 * Create a new  ReadInputObservableRunnable which reads from 
-	 * the given DataInputStream untill the given delimiter occurs. 
+	 * the given channel.
+	 * 
+	 * @param channel The channel to read from
+	 * @param pool The pool to take buffers from. Must be a pool of heap buffers
+	 * @param directReadBuffer If the channel should be read into a direct buffer
+	 */
+	public ReadInputObservableRunnable(ReadableByteChannel channel,ByteBufferPool pool,boolean directReadBuffer){
+		if(pool.isDirect()){
+			throw new IllegalArgumentException("The received bytes are converted from the backing array, so the pool must not be direct");
+		}
+		this.channel=channel;
+		this.pool=pool;
+		readBuffer=directReadBuffer?ByteBuffer.allocateDirect(pool.getBaseSize()):pool.acquire(pool.getBaseSize());
+		received=pool.acquire(pool.getBaseSize());
+	}
+	
+	/**
+	 * Create a new  ReadInputObservableRunnable which reads from 
+	 * the given InputStream using buffers from a new pool.
 	 * 
 	 * @param in
-	 * @param endDelim
 	 */
-	public ReadInputObservableRunnable(DataInputStream in, String endDelim){
-		this.in=in;
-		this.endDelim=endDelim;
+	public ReadInputObservableRunnable(InputStream in){
+		this(Channels.newChannel(in),new ByteBufferPool(),false);
+	}
+
+	/**
+	 * Set a counter which the number of bytes read is added to. Must be set before
+	 * the reader is started.
+	 * 
+	 * @param readCounter The counter, or null
+	 */
+	public void setReadCounter(Counter readCounter){
+		this.readCounter=readCounter;
+	}
+
+	/**
+	 * Set a recorder which each chunk read is recorded to. Must be set before the 
+	 * reader is started.
+	 * 
+	 * @param recorder The recorder, or null
+	 */
+	public void setRecorder(SessionRecorder recorder){
+		this.recorder=recorder;
+	}
+
+	/**
+	 * Set the charset of the session, which the responses are decoded with and the 
+	 * delimiters are encoded with
+	 * 
+	 * @param charset The charset
+	 */
+	public synchronized void setCharset(Charset charset){
+		decoder=new OutputDecoder(charset);
+		matchers.clear();
 	}
 
 	/**
-	 * Reads from the inputstream until the delimiter has been found or an 
-	 * IOException thrown
+	 * Reads from the channel until it is closed or an IOException is thrown, normally 
+	 * because the session is closed.
 	 * 
-	 * Notifies any observers when finished
+	 * Completes the current expectation whenever its delimiter is found
 	 * 
 	 */
 	public void run() {
-		StringBuffer sbServerResponse=new StringBuffer(100);
 		try {
-			
-			do {
-				char c = (char)in.readByte(); 
-				sbServerResponse.append(c);
-			} while (sbServerResponse.indexOf(endDelim)==-1);
-			
-			
-			
-			this.setChanged();
-			this.notifyObservers(sbServerResponse.toString());	
+			while(true){
+				readBuffer.clear();
+				if(channel.read(readBuffer)==-1){
+					throw new IOException("Connection closed");
+				}
+				readBuffer.flip();
+				if(readCounter!=null){
+					readCounter.add(readBuffer.remaining());
+				}
+				if(recorder!=null){
+					recorder.received(readBuffer);
+				}
+				synchronized (this) {
+					append(readBuffer);
+					scan();
+					activateNext();
+				}
+			}
 		}catch (IOException e){
-			this.setChanged();
-			//we need to include the current buffer in the exception
-			String currentBuffer =null;
-			if(sbServerResponse!=null){
-				currentBuffer=sbServerResponse.toString();
-				if(currentBuffer!=null){
-					currentBuffer= currentBuffer.trim();
+			//has no effect if the recording was closed with the session
+			if(recorder!=null){
+				recorder.closed();
+			}
+			synchronized (this) {
+				failure=e;
+				completeWithFailure();
+			}
+		}
+	}
+	
+	/**
+	 * Expect the given delimiter. The completion is completed with the response when 
+	 * the delimiter occurs, or with a ThreadIOException if the stream fails.
+	 * 
+	 * The expectation is queued behind the expectations not yet completed.
+	 * 
+	 * @param endDelim The delimiter to wait for
+	 * @param completion The completion to complete
+	 */
+	public void expect(String endDelim,Completion completion){
+		expect(new String[]{endDelim},completion);
+	}
+	
+	/**
+	 * Expect any of the given delimiters. The completion is completed with the response 
+	 * when the first of the delimiters occurs, or with a ThreadIOException if the stream fails.
+	 * 
+	 * The expectation is queued behind the expectations not yet completed.
+	 * 
+	 * @param endDelims The delimiters to wait for
+	 * @param completion The completion to complete
+	 */
+	public void expect(String[] endDelims,Completion completion){
+		expect(endDelims,null,completion);
+	}
+	
+	/**
+	 * Expect any of the given delimiters, streaming the response to the sink as it arrives. 
+	 * The completion is completed with the delimiter which occured, or with a 
+	 * ThreadIOException if the stream or the sink fails. If the sink fails, the rest of 
+	 * the response is discarded so the session stays usable.
+	 * 
+	 * The expectation is queued behind the expectations not yet completed.
+	 * 
+	 * @param endDelims The delimiters to wait for
+	 * @param sink The sink receiving the response, or null to complete with the response
+	 * @param completion The completion to complete
+	 */
+	public synchronized void expect(String[] endDelims,OutputSink sink,Completion completion){
+		queued.add(new Expectation(endDelims,getMatcher(endDelims),sink,completion));
+		if(failure!=null){
+			completeWithFailure();
+			return;
+		}
+		activateNext();
+	}
+	
+	/**
+	 * Start matching the oldest queued expectation if there is no current one. The
+	 * buffer may already contain its delimiter, so this is repeated until an expectation 
+	 * is left waiting or the queue is empty.
+	 */
+	private void activateNext(){
+		while(current==null && !queued.isEmpty()){
+			current=queued.removeFirst();
+			current.matcher.reset();
+			scanned=0;
+			scan();
+		}
+	}
+	
+	private PromptMatcher getMatcher(String[] endDelims){
+		StringBuffer sbKey=new StringBuffer();
+		for (int i = 0; i < endDelims.length; i++) {
+			sbKey.append(endDelims[i]).append((char)0);
+		}
+		String key=sbKey.toString();
+		PromptMatcher promptMatcher=matchers.get(key);
+		if(promptMatcher==null){
+			//the matcher works on bytes, one char pr byte
+			String[] encoded=new String[endDelims.length];
+			for (int i = 0; i < endDelims.length; i++) {
+				encoded[i]=new String(endDelims[i].getBytes(decoder.getCharset()),ISO_8859_1);
+			}
+			promptMatcher=new PromptMatcher(encoded);
+			matchers.put(key,promptMatcher);
+		}
+		return promptMatcher;
+	}
+	
+	/**
+	 * Append the chunk to the received bytes, growing the buffer with a larger
+	 * one from the pool when needed
+	 */
+	private void append(ByteBuffer chunk){
+		if(received.remaining()<chunk.remaining()){
+			ByteBuffer larger=pool.acquire(received.position()+chunk.remaining());
+			received.flip();
+			larger.put(received);
+			pool.release(received);
+			received=larger;
+		}
+		received.put(chunk);
+	}
+	
+	/**
+	 * Feed the bytes not yet seen by the matcher to it
+	 */
+	private void scan(){
+		if(current==null){
+			return;
+		}
+		PromptMatcher matcher=current.matcher;
+		int end=matcher.feed(received.array(),received.arrayOffset()+scanned,received.position()-scanned);
+		if(end!=-1){
+			delimiterFound(end-received.arrayOffset());
+			return;
+		}
+		scanned=received.position();
+		boolean discard=current.completion.isDone();
+		if(current.sink!=null || discard){
+			//everything but a possible start of the delimiter can be passed on
+			int complete=scanned-matcher.getPartialMatchLength();
+			if(complete>0){
+				if(!discard){
+					stream(complete);
 				}
+				consume(complete);
+				scanned-=complete;
 			}
-			ThreadIOException extendedException = new ThreadIOException(e.getMessage(),currentBuffer);
-			this.notifyObservers(extendedException);	
 		}
 	}
 	
-
+	private void delimiterFound(int end){
+		Completion completion=current.completion;
+		if(completion.isDone()){
+			//timed out or cancelled, so the response is discarded
+			consume(end);
+		}else if(current.sink==null){
+			String response=decoder.decode(received.array(),received.arrayOffset(),end);
+			consume(end);
+			completion.complete(response);
+		}else {
+			PromptMatcher matcher=current.matcher;
+			String delimiter=current.delimiters[matcher.getMatchedIndex()];
+			stream(end-matcher.getMatchedDelimiter().length());
+			consume(end);
+			if(current.sinkFailure!=null){
+				completion.complete(new ThreadIOException("Output sink failed:"+current.sinkFailure.getMessage(),null));
+			}else {
+				completion.complete(delimiter);
+			}
+		}
+		current=null;
+		scanned=0;
+	}
+	
+	/**
+	 * Pass the given number of bytes from the start of the received bytes to the sink 
+	 * of the current expectation, unless it has already failed
+	 */
+	private void stream(int length){
+		if(current.sinkFailure!=null || length<=0){
+			return;
+		}
+		try {
+			current.sink.output(received.array(),received.arrayOffset(),length);
+		}catch (IOException e){
+			current.sinkFailure=e;
+		}
+	}
+	
+	/**
+	 * Remove the given number of bytes from the start of the received bytes. Moves 
+	 * back to a buffer of the base size if the remaining bytes fit in one.
+	 */
+	private void consume(int length){
+		received.flip();
+		received.position(length);
+		if(received.capacity()>pool.getBaseSize() && received.remaining()<=pool.getBaseSize()){
+			ByteBuffer smaller=pool.acquire(pool.getBaseSize());
+			smaller.put(received);
+			pool.release(received);
+			received=smaller;
+		}else {
+			received.compact();
+		}
+	}
+	
+	/**
+	 * Complete the current and all queued expectations with the failure of the reader
+	 */
+	private void completeWithFailure(){
+		if(current!=null){
+			queued.addFirst(current);
+			current=null;
+		}
+		if(queued.isEmpty()){
+			return;
+		}
+		//we need to include the current buffer in the exception, but only its end as it may be large
+		int length=Math.min(received.position(),MAX_FAILURE_BUFFER);
+		String currentBuffer=decoder.decode(received.array(),received.arrayOffset()+received.position()-length,length).trim();
+		while(!queued.isEmpty()){
+			queued.removeFirst().completion.complete(new ThreadIOException(failure.getMessage(),currentBuffer));
+		}
+		scanned=0;
+	}
+	
+	/**
+	 * A response which is expected
+	 */
+	private static class Expectation {
+		final String[] delimiters;
+		final PromptMatcher matcher;
+		final OutputSink sink;
+		final Completion completion;
+		/*the exception thrown by the sink, the rest of the response is then discarded*/
+		IOException sinkFailure;
+		
+		Expectation(String[] delimiters,PromptMatcher matcher,OutputSink sink,Completion completion){
+			this.delimiters=delimiters;
+			this.matcher=matcher;
+			this.sink=sink;
+			this.completion=completion;
+		}
+	}
 
 }
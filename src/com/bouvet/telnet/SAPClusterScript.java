@@ -0,0 +1,369 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bouvet.telnet.output.CommandResult;
+import com.bouvet.thread.TimeoutException;
+
+/**
+ * Runs one command file on every server node of a SAP J2EE cluster at the same time.
+ *
+ * The server nodes are found by logging in to the dispatcher and listing the cluster
+ * with the lsc command. Then one session pr server node is opened, and each session runs
+ * the command file with its JUMP commands replaced by a JUMP to its own node. If the
+ * command file has no JUMP command, the JUMP is issued before the first command.
+ * All sessions are driven by a SelectorEngine.
+ *
+ * <p>The options file is the same as for SAPTelnetScript, with the following additional properties:
+ * <ul>
+ * <li>ClusterListCommand(optional): The command listing the cluster elements (default lsc)
+ * <li>ClusterNodes(optional): Comma separated cluster ids of the server nodes. If given, the
+ * cluster is not listed
+ * <li>EventLoopThreads(optional): The number of event loop threads (default 2)
+ * </ul>
+ *
+ * <p>The output of each node is collected in a SpillableOutputBuffer, see SpillThresholdBytes,
+ * and written to System.out with a header containing the node when all nodes have finished, followed by a summary line pr node. 
+ * If OutputDirectory is given, the output of each node is written to its own output file instead. If one or more
+ * nodes fail, the exit code of the first failed node is used as the exit code of the program.
+ * With Aggregate, the output of INFO and HTTP_SESSIONS is parsed on the event loop threads as each
+ * command completes, and the report of all nodes is written after the summary lines.
+ */
+public class SAPClusterScript extends SAPTelnetScript implements SessionListener {
+	public final static String DEFAULT_CLUSTER_LIST_COMMAND="lsc";
+	protected final static String JUMP_COMMAND="JUMP";
+
+	protected final String CLUSTER_LIST_COMMAND_PROPERTY="ClusterListCommand";
+	protected final String CLUSTER_NODES_PROPERTY="ClusterNodes";
+	protected final String EVENT_LOOP_THREADS_PROPERTY="EventLoopThreads";
+
+	protected String clusterListCommand=DEFAULT_CLUSTER_LIST_COMMAND;
+	protected List<String> serverNodes=null;
+	protected List<String> commands;
+	protected int eventLoopThreads=SelectorEngine.DEFAULT_EVENT_LOOP_THREADS;
+
+	/*the node of each session, written before the sessions are submitted*/
+	private Map<NioTelnetSession,String> sessionNodes=new HashMap<NioTelnetSession,String>();
+	/*the output of each node, in the order of the nodes. Spills to disk when large*/
+	private Map<String,SpillableOutputBuffer> nodeOutputs=new LinkedHashMap<String,SpillableOutputBuffer>();
+
+	/**
+	 * Main method which starts the SAPClusterScript program
+	 *
+	 * @param args The command line arguments to this programs, should be two strings
+	 */
+	public static void main(String[] args) {
+		//please do not remove the following line
+		System.out.println("SAPClusterScript Version " +VERSION+" Perform batch jobs against all server nodes of a SAP J2EE\nAuthor: Dagfinn Parnas, Bouvet");
+		if(args.length!=2){
+			System.err.println("Usage: java SAPClusterScript optionsFile commandFile");
+			System.exit(-1);
+		}else {
+			System.out.println("Running with options file "+args[0] + " and command file "+args[1]);
+		}
+		try {
+			SAPClusterScript clusterScript = new SAPClusterScript(args[0],args[1]);
+			clusterScript.init();
+			clusterScript.run();
+		}catch (TelnetException e){
+			System.err.println(e.getMessage());
+			System.err.println("Exiting application with error code:"+e.getExitCode());
+			System.exit(e.getExitCode());
+		}
+	}
+
+	/**
+	 * Create an object for batch telnet operations against all server nodes of a SAP J2EE
+	 *
+	 * @param optionsFile The file containing the options of the batch script
+	 * @param commandFile The file containing the actual commands to run
+	 */
+	public SAPClusterScript(String optionsFile, String commandFile) {
+		super(optionsFile,commandFile);
+	}
+
+	/**
+	 * Initialize the cluster script
+	 *
+	 * In addition to the checks of SAPTelnetScript, all commands are read up front as
+	 * they are shared by all sessions.
+	 *
+	 * @throws InitFailedException if the initialization fails
+	 */
+	public void init() throws InitFailedException {
+		super.init();
+		isInitialized=false;
+		try {
+			commands=new ArrayList<String>();
+			String command;
+			while((command=nextCommand())!=null){
+				commands.add(command);
+			}
+		}catch (IOException e){
+			initFailed=true;
+			throw new InitFailedException("Problems command file from "+strCommandFile);
+		}
+		//optional properties
+		clusterListCommand=optionsProperties.getProperty(CLUSTER_LIST_COMMAND_PROPERTY,DEFAULT_CLUSTER_LIST_COMMAND).trim();
+		if(optionsProperties.containsKey(CLUSTER_NODES_PROPERTY)){
+			serverNodes=new ArrayList<String>();
+			String[] nodes=optionsProperties.getProperty(CLUSTER_NODES_PROPERTY).split(",");
+			for (int i = 0; i < nodes.length; i++) {
+				if(nodes[i].trim().length()>0){
+					serverNodes.add(nodes[i].trim());
+				}
+			}
+		}
+		if(optionsProperties.containsKey(EVENT_LOOP_THREADS_PROPERTY)){
+			String strThreads = optionsProperties.getProperty(EVENT_LOOP_THREADS_PROPERTY);
+			try {
+				eventLoopThreads = Integer.parseInt(strThreads);
+			}catch(NumberFormatException e){
+				System.err.println(EVENT_LOOP_THREADS_PROPERTY + " is not a valid integer. Therefore using default value which is "+eventLoopThreads);
+			}
+		}
+		isInitialized=true;
+	}
+
+	/**
+	 * Find the server nodes and run the command file on each of them.
+	 * Returns when all sessions have finished.
+	 *
+	 * @throws NotInitializedException If init() has not been called successfully first
+	 * @throws TelnetException If the server nodes cannot be found, or one or more nodes failed
+	 */
+	public void run()throws TelnetException{
+		if(!isInitialized){
+			throw new NotInitializedException("Cannot call run before init() is called on object");
+		}
+		List<String> nodes=serverNodes!=null?serverNodes:discoverServerNodes();
+		if(nodes.isEmpty()){
+			throw new TelnetException("No server nodes found in the output of "+clusterListCommand,-9);
+		}
+		TelnetHost host=new TelnetHost(serverHostName,telnetPort);
+		List<NioTelnetSession> sessions=new ArrayList<NioTelnetSession>(nodes.size());
+		for (Iterator<String> it = nodes.iterator(); it.hasNext();) {
+			String node = it.next();
+			NioTelnetSession session=new NioTelnetSession(host,username,password,getNodeCommands(node),operationTimeout,this);
+			session.setTimeoutPolicy(timeoutPolicy);
+			session.setAdmissionController(admission);
+			session.setSpillThreshold(getSpillThreshold(),spillDirectory);
+			if(charset!=null){
+				session.setCharset(charset);
+			}
+			sessions.add(session);
+			sessionNodes.put(session,node);
+			nodeOutputs.put(node,new SpillableOutputBuffer(getSpillThreshold(),spillDirectory));
+		}
+
+		SelectorEngine engine=null;
+		try {
+			engine=new SelectorEngine(eventLoopThreads);
+			engine.start();
+			System.out.println("Running on "+nodes.size()+" server nodes of "+host+" with user "+username);
+			for (Iterator<NioTelnetSession> it = sessions.iterator(); it.hasNext();) {
+				if(admission!=null){
+					//freed when the session has finished
+					admission.acquireSession(host);
+				}
+				engine.submit(it.next());
+			}
+			while(!engine.awaitCompletion(operationTimeout)){
+				//each session enforces its own timeouts, so just keep waiting
+			}
+		}catch (IOException e){
+			throw new TelnetException("An general IOException occured:"+e.getMessage(),-9);
+		}catch (InterruptedException e){
+			throw new TelnetException("Interrupted while waiting for the sessions to finish",-9);
+		}catch (TimeoutException e){
+			throw new TelnetException("A timeout occured while waiting for a session to be admitted. Message:"+e.getMessage(),-5);
+		}finally {
+			if(engine!=null){
+				engine.shutdown();
+			}
+			writeMetrics();
+			writeTimeoutHistory();
+			closeResultWriter();
+		}
+
+		//write the output and the result of each node
+		for (Iterator<Map.Entry<String,SpillableOutputBuffer>> it = nodeOutputs.entrySet().iterator(); it.hasNext();) {
+			SpillableOutputBuffer nodeOutput = it.next().getValue();
+			try {
+				writeOutput(nodeOutput);
+			}catch (IOException e){
+				System.err.println("Could not read the output of the nodes: "+e.getMessage());
+			}finally {
+				nodeOutput.release();
+			}
+		}
+		int failed=0;
+		int exitCode=0;
+		System.out.print("\n");
+		for (Iterator<NioTelnetSession> it = sessions.iterator(); it.hasNext();) {
+			NioTelnetSession session = it.next();
+			String node=sessionNodes.get(session);
+			if(session.getExitCode()!=0){
+				failed++;
+				if(exitCode==0){
+					exitCode=session.getExitCode();
+				}
+				System.out.println("=== node "+node+" failed with error code "+session.getExitCode());
+				System.err.println("Node "+node+" failed with error code "+session.getExitCode()+": "+session.getErrorMessage());
+			}else {
+				System.out.println("=== node "+node+" OK");
+			}
+		}
+		writeAggregate();
+		if(failed>0){
+			throw new TelnetException(failed+" of "+sessions.size()+" server nodes failed",exitCode);
+		}
+	}
+
+	/**
+	 * Login to the dispatcher and list the server nodes of the cluster
+	 *
+	 * @return The cluster ids of the server nodes
+	 * @throws TelnetException If the cluster cannot be listed
+	 */
+	protected List<String> discoverServerNodes() throws TelnetException{
+		SAPTelnetClient client=null;
+		try {
+			System.out.println("Listing the cluster of "+serverHostName+":"+telnetPort + " with user "+username);
+			client=connect();
+			client.login(username,password);
+			return parseServerNodes(client.sendCommand(clusterListCommand));
+		}catch (TimeoutException e){
+			throw new TelnetException("A timeout occured while listing the cluster. Message:"+e.getMessage(),-54);
+		}catch (ConnectException e){
+			throw new TelnetException("Could not connect to "+serverHostName + ":"+telnetPort + ". Either your server and port settings are wrong, the J2EE engine is down or a firewall is blocking your connection attempt",-4);
+		}catch (IOException e){
+			throw new TelnetException("An general IOException occured while listing the cluster:"+e.getMessage(),-9);
+		}finally {
+			if(client!=null){
+				try {
+					client.logout();
+				} catch (IOException e) {
+					//e.printStackTrace();
+				} catch (TimeoutException e) {
+					//e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the server nodes in the output of the cluster list command. A server node is
+	 * a line starting with a numeric cluster id and with server as one of the other columns,
+	 * normally the type.
+	 *
+	 * @param output The output of the cluster list command
+	 * @return The cluster ids of the server nodes, in the order listed
+	 */
+	protected static List<String> parseServerNodes(String output){
+		List<String> nodes=new ArrayList<String>();
+		String[] lines=output.split("\r?\n");
+		for (int i = 0; i < lines.length; i++) {
+			String[] tokens=lines[i].trim().split("\\s+");
+			if(tokens.length<2 || !tokens[0].matches("\\d+")){
+				continue;
+			}
+			for (int j = 1; j < tokens.length; j++) {
+				if("server".equalsIgnoreCase(tokens[j])){
+					nodes.add(tokens[0]);
+					break;
+				}
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Get the commands of the session of a node. JUMP commands are replaced by a JUMP
+	 * to the node, and if there is none a JUMP is added first.
+	 *
+	 * @param node The cluster id of the node
+	 * @return The commands
+	 */
+	protected List<String> getNodeCommands(String node){
+		List<String> nodeCommands=new ArrayList<String>(commands.size()+1);
+		boolean jumped=false;
+		for (Iterator<String> it = commands.iterator(); it.hasNext();) {
+			String command = it.next();
+			if(JUMP_COMMAND.equals(TelnetMetrics.getVerb(command))){
+				nodeCommands.add(JUMP_COMMAND+" "+node);
+				jumped=true;
+			}else {
+				nodeCommands.add(command);
+			}
+		}
+		if(!jumped){
+			nodeCommands.add(0,JUMP_COMMAND+" "+node);
+		}
+		return nodeCommands;
+	}
+
+	/**
+	 * Method which will be called for post processing of the output from
+	 * each node.
+	 *
+	 * Default behaviour is to collect the output with a header containing the node,
+	 * it is written to System.out when all nodes have finished. The method is called
+	 * from the event loop threads, but not if OutputDirectory is given.
+	 *
+	 * @param node The cluster id of the node the command was issued on
+	 * @param command The last command issued
+	 * @param output The output from the telnet session, which is reused when the method returns
+	 * @throws IOException If the output cannot be collected
+	 */
+	protected void postProcessResult(String node,String command,SpillableOutputBuffer output) throws IOException{
+		SpillableOutputBuffer nodeOutput=nodeOutputs.get(node);
+		nodeOutput.append("\n=== node "+node+" ("+command+")\n");
+		output.writeTo(nodeOutput);
+	}
+
+	public void commandCompleted(NioTelnetSession session, String command, SpillableOutputBuffer output) {
+		String node=sessionNodes.get(session);
+		aggregate(getNodeHost(session),command,output);
+		if(resultWriter!=null){
+			//the output is reused when the method returns, so it is copied
+			long commandTime=session.getCommandTime();
+			submitResult(getNodeHost(session),command,output.toByteArray(),System.currentTimeMillis()-commandTime/1000000,commandTime,CommandResult.STATUS_OK);
+			return;
+		}
+		try {
+			postProcessResult(node,command,output);
+		}catch (IOException e){
+			System.err.println("Could not collect the output of "+command+" on node "+node+": "+e.getMessage());
+		}
+	}
+
+	public void sessionFinished(NioTelnetSession session) {
+		if(admission!=null){
+			admission.releaseSession(session.getHost());
+		}
+		//the result of each node is written when all nodes have finished
+		if(session.getExitCode()!=0 && resultWriter!=null){
+			String command=session.getCurrentCommand()!=null?session.getCurrentCommand():"login";
+			byte[] output=(session.getErrorMessage()+"\n").getBytes(getOutputCharset());
+			submitResult(getNodeHost(session),command,output,System.currentTimeMillis(),0,session.getExitCode());
+		}
+	}
+
+	/**
+	 * Get the host of the output file of a node, which is the host and the node
+	 * 
+	 * @param session The session of the node
+	 * @return E.g. sap1:50008/3
+	 */
+	protected String getNodeHost(NioTelnetSession session){
+		return session.getHost()+"/"+sessionNodes.get(session);
+	}
+}
@@ -0,0 +1,245 @@
+package com.bouvet.telnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.bouvet.telnet.output.CommandResult;
+import com.bouvet.thread.TimeoutException;
+
+/**
+ * Runs one command file against many SAP J2EE instances at the same time.
+ *
+ * Instead of the ServerHostName property, the hosts are read from an inventory file
+ * (see HostInventory). All sessions are driven by a SelectorEngine, so the number of
+ * threads is independent of the number of hosts.
+ *
+ * <p>The options file is the same as for SAPTelnetScript, with the following changes:
+ * <ul>
+ * <li>ServerHostName: Not used
+ * <li>TelnetPort: The default port for hosts in the inventory without an explicit port
+ * <li>EventLoopThreads(optional): The number of event loop threads (default 2)
+ * </ul>
+ *
+ * <p>The output of each command is written to System.out with a header containing the host,
+ * or to the output file of the host if OutputDirectory is given.
+ * If one or more hosts fail, a summary is written to System.err and the exit code
+ * of the first failed host is used as the exit code of the program.
+ * With Aggregate, the output of INFO and HTTP_SESSIONS is parsed on the event loop threads as each
+ * command completes, and a report of all hosts is written when the hosts have finished.
+ */
+public class SAPFleetScript extends SAPTelnetScript implements SessionListener {
+	protected final String EVENT_LOOP_THREADS_PROPERTY="EventLoopThreads";
+
+	protected String strInventoryFile;
+	protected List<TelnetHost> hosts;
+	protected List<String> commands;
+	protected int eventLoopThreads=SelectorEngine.DEFAULT_EVENT_LOOP_THREADS;
+
+	/**
+	 * Main method which starts the SAPFleetScript program
+	 *
+	 * @param args The command line arguments to this programs, should be three strings
+	 */
+	public static void main(String[] args) {
+		//please do not remove the following line
+		System.out.println("SAPFleetScript Version " +VERSION+" Perform batch jobs against the telnet interface of many SAP J2EE\nAuthor: Dagfinn Parnas, Bouvet");
+		if(args.length!=3){
+			System.err.println("Usage: java SAPFleetScript optionsFile inventoryFile commandFile");
+			System.exit(-1);
+		}else {
+			System.out.println("Running with options file "+args[0] + ", inventory file "+args[1]+" and command file "+args[2]);
+		}
+		try {
+			SAPFleetScript fleetScript = new SAPFleetScript(args[0],args[1],args[2]);
+			fleetScript.init();
+			fleetScript.run();
+		}catch (TelnetException e){
+			System.err.println(e.getMessage());
+			System.err.println("Exiting application with error code:"+e.getExitCode());
+			System.exit(e.getExitCode());
+		}
+	}
+
+	/**
+	 * Create an object for batch telnet operations against many SAP J2EE instances
+	 *
+	 * @param optionsFile The file containing the options of the batch script
+	 * @param inventoryFile The file containing the hosts to run against
+	 * @param commandFile The file containing the actual commands to run
+	 */
+	public SAPFleetScript(String optionsFile, String inventoryFile, String commandFile) {
+		super(optionsFile,commandFile);
+		this.strInventoryFile=inventoryFile;
+	}
+
+	/**
+	 * Initialize the fleet script
+	 *
+	 * In addition to the checks of SAPTelnetScript, the inventory file is read and
+	 * all commands are read up front as they are shared by all sessions.
+	 *
+	 * @throws InitFailedException if the initialization fails
+	 */
+	public void init() throws InitFailedException {
+		super.init();
+		isInitialized=false;
+		try {
+			File inventoryFile = new File (strInventoryFile);
+			if (!inventoryFile.exists() || !inventoryFile.canRead()){
+				throw new IOException ("Inventory file doesn't exist or cannot be read");
+			}
+			hosts=HostInventory.load(inventoryFile,telnetPort);
+		}catch (IOException e){
+			initFailed=true;
+			throw new InitFailedException("Problems reading inventory from "+strInventoryFile+". Message:"+e.getMessage());
+		}
+		if(hosts.isEmpty()){
+			initFailed=true;
+			throw new InitFailedException("No hosts found in inventory "+strInventoryFile);
+		}
+		try {
+			commands=new ArrayList<String>();
+			String command;
+			while((command=nextCommand())!=null){
+				commands.add(command);
+			}
+		}catch (IOException e){
+			initFailed=true;
+			throw new InitFailedException("Problems command file from "+strCommandFile);
+		}
+		//optional property
+		if(optionsProperties.containsKey(EVENT_LOOP_THREADS_PROPERTY)){
+			String strThreads = optionsProperties.getProperty(EVENT_LOOP_THREADS_PROPERTY);
+			try {
+				eventLoopThreads = Integer.parseInt(strThreads);
+			}catch(NumberFormatException e){
+				System.err.println(EVENT_LOOP_THREADS_PROPERTY + " is not a valid integer. Therefore using default value which is "+eventLoopThreads);
+			}
+		}
+		isInitialized=true;
+	}
+
+	protected String[] getMandatoryProperties(){
+		return new String[]{USERNAME_PORT_NAME_PROPERTY,PASSWORD_PORT_NAME_PROPERTY,TELNET_PORT_NAME_PROPERTY};
+	}
+
+	/**
+	 * Run the command file against all hosts in the inventory.
+	 * Returns when all sessions have finished.
+	 *
+	 * @throws NotInitializedException If init() has not been called successfully first
+	 * @throws TelnetException If one or more hosts failed
+	 */
+	public void run()throws TelnetException{
+		if(!isInitialized){
+			throw new NotInitializedException("Cannot call run before init() is called on object");
+		}
+		List<NioTelnetSession> sessions=new ArrayList<NioTelnetSession>(hosts.size());
+		SelectorEngine engine=null;
+		try {
+			engine=new SelectorEngine(eventLoopThreads);
+			engine.start();
+			System.out.println("Connecting to "+hosts.size()+" hosts with user "+username);
+			for (Iterator<TelnetHost> it = hosts.iterator(); it.hasNext();) {
+				TelnetHost host=it.next();
+				NioTelnetSession session=new NioTelnetSession(host,username,password,commands,operationTimeout,this);
+				session.setTimeoutPolicy(timeoutPolicy);
+				session.setAdmissionController(admission);
+				session.setSpillThreshold(getSpillThreshold(),spillDirectory);
+				if(charset!=null){
+					session.setCharset(charset);
+				}
+				if(admission!=null){
+					//freed when the session has finished
+					admission.acquireSession(host);
+				}
+				sessions.add(session);
+				engine.submit(session);
+			}
+			while(!engine.awaitCompletion(operationTimeout)){
+				//each session enforces its own timeouts, so just keep waiting
+			}
+		}catch (IOException e){
+			throw new TelnetException("An general IOException occured:"+e.getMessage(),-9);
+		}catch (InterruptedException e){
+			throw new TelnetException("Interrupted while waiting for the sessions to finish",-9);
+		}catch (TimeoutException e){
+			throw new TelnetException("A timeout occured while waiting for a session to be admitted. Message:"+e.getMessage(),-5);
+		}finally {
+			if(engine!=null){
+				engine.shutdown();
+			}
+			writeMetrics();
+			writeTimeoutHistory();
+			closeResultWriter();
+			writeAggregate();
+		}
+
+		//report the failed hosts
+		int failed=0;
+		int exitCode=0;
+		for (Iterator<NioTelnetSession> it = sessions.iterator(); it.hasNext();) {
+			NioTelnetSession session = it.next();
+			if(session.getExitCode()!=0){
+				failed++;
+				if(exitCode==0){
+					exitCode=session.getExitCode();
+				}
+				System.err.println(session.getHost()+" failed with error code "+session.getExitCode()+": "+session.getErrorMessage());
+			}
+		}
+		if(failed>0){
+			throw new TelnetException(failed+" of "+sessions.size()+" hosts failed",exitCode);
+		}
+	}
+
+	/**
+	 * Method which will be called for post processing of the output from
+	 * each host.
+	 *
+	 * Default behaviour is to print out the output to System.out with a header
+	 * containing the host. The method is called from the event loop threads, but not
+	 * if OutputDirectory is given.
+	 *
+	 * @param host The host the command was issued on
+	 * @param command The last command issued
+	 * @param output The output from the telnet session, which is reused when the method returns
+	 */
+	protected void postProcessResult(TelnetHost host,String command,SpillableOutputBuffer output){
+		synchronized (System.out) {
+			System.out.print("\n=== "+host+" ("+command+")\n");
+			try {
+				writeOutput(output);
+			}catch (IOException e){
+				System.err.println("Could not read the output of "+command+" on "+host+": "+e.getMessage());
+			}
+		}
+	}
+
+	public void commandCompleted(NioTelnetSession session, String command, SpillableOutputBuffer output) {
+		aggregate(session.getHost().toString(),command,output);
+		if(resultWriter!=null){
+			//the output is reused when the method returns, so it is copied
+			long commandTime=session.getCommandTime();
+			submitResult(session.getHost().toString(),command,output.toByteArray(),System.currentTimeMillis()-commandTime/1000000,commandTime,CommandResult.STATUS_OK);
+			return;
+		}
+		postProcessResult(session.getHost(),command,output);
+	}
+
+	public void sessionFinished(NioTelnetSession session) {
+		if(admission!=null){
+			admission.releaseSession(session.getHost());
+		}
+		if(session.getExitCode()==0){
+			System.out.print("\n=== "+session.getHost()+" finished\n");
+		}else if(resultWriter!=null){
+			String command=session.getCurrentCommand()!=null?session.getCurrentCommand():"login";
+			byte[] output=(session.getErrorMessage()+"\n").getBytes(getOutputCharset());
+			submitResult(session.getHost().toString(),command,output,System.currentTimeMillis(),0,session.getExitCode());
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bouvet.thread.HashedTimerWheel;
+import com.bouvet.thread.TimeoutTask;
+import com.bouvet.thread.WheelTimeout;
+
+/**
+ * Long-running daemon which runs command files against groups of hosts at intervals,
+ * instead of starting SAPTelnetScript from cron for each run.
+ *
+ * The jobs are read from a schedule file with one job pr line, see ScheduledJob. Each host
+ * of a job is scheduled on its own. The first run of a host is at a random time within the
+ * interval, and each later run is moved randomly by up to SchedulerJitter of the interval,
+ * so the hosts of a landscape are not all hit in the same second. A run of a job on a host
+ * which is still running when the next run is due is skipped, so slow runs do not stack up.
+ *
+ * <p>The sessions are leased from a SAPTelnetClientPool, and kept logged in between the runs.
+ * The timeout policy, the admission limits, the command cache, the metrics and the output files 
+ * (see OutputDirectory) are shared by all runs, and the metrics file and latency history are 
+ * written after each run.
+ *
+ * <p>The options file is the same as for SAPTelnetScript, with the following changes:
+ * <ul>
+ * <li>ServerHostName: Not used
+ * <li>TelnetPort: The default port for hosts of the jobs without an explicit port
+ * <li>SchedulerThreads(optional): The number of runs which may be running at the same time (default 8)
+ * <li>SchedulerJitter(optional): The fraction of the interval a run is moved by at most (default 0.1)
+ * <li>PoolResetCommand(optional): The command resetting a session which has jumped to a server node,
+ * e.g. jump 0. Without it such sessions are closed after the run instead of being kept
+ * </ul>
+ *
+ * <p>The daemon runs until the JVM is stopped. OutputDirectory should be given, as the output
+ * of concurrent runs is mixed on System.out.
+ *
+ * Usage: java com.bouvet.telnet.SAPSchedulerDaemon optionsFile scheduleFile
+ */
+public class SAPSchedulerDaemon extends SAPTelnetScript {
+	public final static int DEFAULT_SCHEDULER_THREADS=8;
+	public final static double DEFAULT_JITTER=0.1;
+
+	protected final String SCHEDULER_THREADS_PROPERTY="SchedulerThreads";
+	protected final String SCHEDULER_JITTER_PROPERTY="SchedulerJitter";
+
+	protected List<ScheduledJob> jobs;
+	protected int schedulerThreads=DEFAULT_SCHEDULER_THREADS;
+	protected double jitter=DEFAULT_JITTER;
+	protected String poolResetCommand=null;
+
+	private final Random random=new Random();
+	private final HashedTimerWheel timerWheel=HashedTimerWheel.getSharedInstance();
+	private ExecutorService executor;
+	/*The state the runs share with the daemon*/
+	private ScriptContext jobContext;
+	private List<HostSchedule> schedules=new ArrayList<HostSchedule>();
+	private boolean stopped=false;
+	private boolean finished=false;
+	private AtomicInteger completedRuns=new AtomicInteger();
+	private AtomicInteger failedRuns=new AtomicInteger();
+	private AtomicInteger skippedRuns=new AtomicInteger();
+
+	/**
+	 * Main method which starts the SAPSchedulerDaemon program
+	 *
+	 * @param args The command line arguments to this programs, should be two strings
+	 */
+	public static void main(String[] args) {
+		//please do not remove the following line
+		System.out.println("SAPSchedulerDaemon Version " +VERSION+" Perform recurring jobs against the telnet interface of SAP J2EE\nAuthor: Dagfinn Parnas, Bouvet");
+		if(args.length!=2){
+			System.err.println("Usage: java SAPSchedulerDaemon optionsFile scheduleFile");
+			System.exit(-1);
+		}else {
+			System.out.println("Running with options file "+args[0] + " and schedule file "+args[1]);
+		}
+		try {
+			final SAPSchedulerDaemon daemon = new SAPSchedulerDaemon(args[0],args[1]);
+			daemon.init();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+				public void run() {
+					daemon.shutdown();
+				}
+			},"SAPSchedulerDaemon:shutdown"));
+			daemon.run();
+		}catch (TelnetException e){
+			System.err.println(e.getMessage());
+			System.err.println("Exiting application with error code:"+e.getExitCode());
+			System.exit(e.getExitCode());
+		}
+	}
+
+	/**
+	 * Create a scheduler daemon
+	 *
+	 * @param optionsFile The file containing the options of the daemon and its runs
+	 * @param scheduleFile The file containing the jobs
+	 */
+	public SAPSchedulerDaemon(String optionsFile, String scheduleFile) {
+		super(optionsFile,scheduleFile);
+	}
+
+	/**
+	 * Initialize the daemon
+	 *
+	 * In addition to the checks of SAPTelnetScript, the jobs are read from the schedule file.
+	 *
+	 * @throws InitFailedException if the initialization fails
+	 */
+	public void init() throws InitFailedException {
+		super.init();
+		isInitialized=false;
+		jobs=new ArrayList<ScheduledJob>();
+		try {
+			String line;
+			while((line=nextCommand())!=null){
+				jobs.add(ScheduledJob.parse(line,telnetPort));
+			}
+		}catch (IOException e){
+			initFailed=true;
+			throw new InitFailedException("Problems reading schedule from "+strCommandFile+". Message:"+e.getMessage());
+		}
+		if(jobs.isEmpty()){
+			initFailed=true;
+			throw new InitFailedException("No jobs found in schedule "+strCommandFile);
+		}
+		//optional properties
+		if(optionsProperties.containsKey(SCHEDULER_THREADS_PROPERTY)){
+			String strThreads = optionsProperties.getProperty(SCHEDULER_THREADS_PROPERTY);
+			try {
+				schedulerThreads = Math.max(1,Integer.parseInt(strThreads.trim()));
+			}catch(NumberFormatException e){
+				System.err.println(SCHEDULER_THREADS_PROPERTY + " is not a valid integer. Therefore using default value which is "+schedulerThreads);
+			}
+		}
+		if(optionsProperties.containsKey(SCHEDULER_JITTER_PROPERTY)){
+			String strJitter = optionsProperties.getProperty(SCHEDULER_JITTER_PROPERTY);
+			try {
+				jitter = Math.min(1,Math.max(0,Double.parseDouble(strJitter.trim())));
+			}catch(NumberFormatException e){
+				System.err.println(SCHEDULER_JITTER_PROPERTY + " is not a valid number. Therefore using default value which is "+jitter);
+			}
+		}
+		poolResetCommand=optionsProperties.getProperty(POOL_RESET_COMMAND_PROPERTY);
+		isInitialized=true;
+	}
+
+	protected String[] getMandatoryProperties(){
+		return new String[]{USERNAME_PORT_NAME_PROPERTY,PASSWORD_PORT_NAME_PROPERTY,TELNET_PORT_NAME_PROPERTY};
+	}
+
+	/**
+	 * Schedule the jobs and run them until shutdown() is called
+	 *
+	 * @throws NotInitializedException If init() has not been called successfully first
+	 */
+	public void run()throws TelnetException{
+		if(!isInitialized){
+			throw new NotInitializedException("Cannot call run before init() is called on object");
+		}
+		clientPool=createClientPool();
+		jobContext=createContext();
+		//each run reports its own aggregate
+		jobContext.setAggregator(null);
+		executor=Executors.newFixedThreadPool(schedulerThreads,new ThreadFactory(){
+			private int id=0;
+			public synchronized Thread newThread(Runnable r) {
+				return new Thread(r,"SAPSchedulerDaemon:"+(id++));
+			}
+		});
+		try {
+			synchronized (this) {
+				for (Iterator<ScheduledJob> it = jobs.iterator(); it.hasNext();) {
+					ScheduledJob job = it.next();
+					for (Iterator<TelnetHost> hostIt = job.getHosts().iterator(); hostIt.hasNext();) {
+						HostSchedule schedule=new HostSchedule(job,hostIt.next());
+						schedules.add(schedule);
+						//spread the first runs over the interval
+						schedule.start((long)(random.nextDouble()*job.getInterval()));
+					}
+				}
+				System.out.println("Scheduled "+jobs.size()+" jobs on "+schedules.size()+" hosts with user "+username);
+				while(!stopped){
+					try {
+						wait();
+					}catch (InterruptedException e){
+						stopped=true;
+					}
+				}
+			}
+		}finally {
+			stop();
+		}
+	}
+
+	/**
+	 * Stop scheduling runs, wait for the running runs to complete and close the sessions.
+	 * Returns when the daemon has stopped.
+	 */
+	public void shutdown(){
+		synchronized (this) {
+			stopped=true;
+			notifyAll();
+			while(!finished && executor!=null){
+				try {
+					wait();
+				}catch (InterruptedException e){
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create the pool of the sessions of the runs. The sessions are kept for at least two
+	 * intervals, and each host gets a session for each of its jobs.
+	 *
+	 * @return
+	 */
+	protected SAPTelnetClientPool createClientPool(){
+		long maxInterval=0;
+		int maxJobsPrHost=0;
+		Map<TelnetHost,Integer> jobsPrHost=new HashMap<TelnetHost,Integer>();
+		for (Iterator<ScheduledJob> it = jobs.iterator(); it.hasNext();) {
+			ScheduledJob job = it.next();
+			maxInterval=Math.max(maxInterval,job.getInterval());
+			for (Iterator<TelnetHost> hostIt = job.getHosts().iterator(); hostIt.hasNext();) {
+				TelnetHost host = hostIt.next();
+				Integer count=jobsPrHost.get(host);
+				count=Integer.valueOf(count==null?1:count.intValue()+1);
+				jobsPrHost.put(host,count);
+				maxJobsPrHost=Math.max(maxJobsPrHost,count.intValue());
+			}
+		}
+		SAPTelnetClientPool pool=new SAPTelnetClientPool();
+		pool.setIdleTimeout(Math.max(SAPTelnetClientPool.DEFAULT_IDLE_TIMEOUT_MS,2*maxInterval));
+		pool.setMaxPerHost(Math.max(1,maxJobsPrHost));
+		pool.setResetCommand(poolResetCommand);
+		pool.setAdmissionController(admission);
+		return pool;
+	}
+
+	private void stop(){
+		synchronized (this) {
+			stopped=true;
+			for (Iterator<HostSchedule> it = schedules.iterator(); it.hasNext();) {
+				it.next().cancel();
+			}
+		}
+		executor.shutdown();
+		try {
+			if(!executor.awaitTermination(operationTimeout,TimeUnit.MILLISECONDS)){
+				executor.shutdownNow();
+			}
+		}catch (InterruptedException e){
+			executor.shutdownNow();
+		}
+		clientPool.close();
+		writeMetrics();
+		writeTimeoutHistory();
+		closeResultWriter();
+		System.out.println("Stopped after "+completedRuns.get()+" runs, "+failedRuns.get()+" failed and "+skippedRuns.get()+" skipped as still running");
+		synchronized (this) {
+			finished=true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Run the command file of a job against a host
+	 *
+	 * @param job The job
+	 * @param host The host
+	 */
+	protected void runJob(ScheduledJob job,TelnetHost host){
+		JobScript script=new JobScript(job.getCommandFile(),host);
+		script.setContext(jobContext);
+		try {
+			script.init();
+			script.run();
+		}catch (TelnetException e){
+			failedRuns.incrementAndGet();
+			System.err.println("Job "+job+" failed on "+host+" with error code "+e.getExitCode()+": "+e.getMessage());
+		}finally {
+			completedRuns.incrementAndGet();
+			runCompleted();
+		}
+	}
+
+	/**
+	 * Write the metrics and the latency history, one run at a time
+	 */
+	private synchronized void runCompleted(){
+		writeMetrics();
+		writeTimeoutHistory();
+	}
+
+	/**
+	 * The runs of a job on one host
+	 */
+	private class HostSchedule implements TimeoutTask, Runnable {
+		private final ScheduledJob job;
+		private final TelnetHost host;
+		private final AtomicBoolean running=new AtomicBoolean(false);
+		/*when the current run is due without jitter, in milliseconds*/
+		private long due;
+		private WheelTimeout timeout;
+
+		HostSchedule(ScheduledJob job,TelnetHost host){
+			this.job=job;
+			this.host=host;
+		}
+
+		void start(long delay){
+			due=System.currentTimeMillis()+delay;
+			timeout=timerWheel.schedule(this,delay);
+		}
+
+		synchronized void cancel(){
+			if(timeout!=null){
+				timeout.cancel();
+			}
+		}
+
+		public void timeoutExpired(WheelTimeout expired) {
+			synchronized (SAPSchedulerDaemon.this) {
+				if(stopped){
+					return;
+				}
+			}
+			if(running.compareAndSet(false,true)){
+				try {
+					executor.execute(this);
+				}catch(RejectedExecutionException e){
+					running.set(false);
+					return;
+				}
+			}else {
+				skippedRuns.incrementAndGet();
+				System.err.println("Job "+job+" is still running on "+host+". Therefore skipping this run");
+			}
+			scheduleNext();
+		}
+
+		private synchronized void scheduleNext(){
+			long now=System.currentTimeMillis();
+			do {
+				//runs missed while e.g. the machine was suspended are not made up
+				due+=job.getInterval();
+			}while(due<now);
+			long shift=(long)((random.nextDouble()*2-1)*jitter*job.getInterval());
+			timeout=timerWheel.schedule(this,Math.max(0,due+shift-now));
+		}
+
+		public void run() {
+			try {
+				runJob(job,host);
+			}finally {
+				running.set(false);
+			}
+		}
+	}
+
+	/**
+	 * A run of a job on a host, sharing the options, the session pool, the timeout policy
+	 * and the output files of the daemon through its context
+	 */
+	private class JobScript extends SAPTelnetScript {
+		private final TelnetHost host;
+
+		JobScript(String commandFile,TelnetHost host){
+			super(SAPSchedulerDaemon.this.strOptionsFile,commandFile);
+			this.host=host;
+		}
+
+		public void init() throws InitFailedException {
+			super.init();
+			serverHostName=host.getHost();
+			telnetPort=host.getPort();
+		}
+	}
+}
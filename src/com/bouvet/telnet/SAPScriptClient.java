@@ -0,0 +1,202 @@
+package com.bouvet.telnet;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Properties;
+
+/**
+ * Thin client submitting a script to a running SAPScriptServer, with the same arguments,
+ * output and exit codes as SAPTelnetScript.
+ *
+ * The server is found on the loopback port given by ScriptServerPort in the options file
+ * of the script (default 50180), and authenticated with the secret it writes to the file given
+ * by ScriptServerSecretFile (see SAPScriptServer). If no server is running, the script is run
+ * by this JVM instead, so the client can replace SAPTelnetScript in the scripts of the monitoring.
+ *
+ * Usage: java com.bouvet.telnet.SAPScriptClient optionsFile commandFile
+ */
+public class SAPScriptClient {
+	public final static int DEFAULT_CONNECT_TIMEOUT_MS=5000;
+
+	private final String optionsFile;
+	private final String commandFile;
+
+	/**
+	 * Main method which starts the SAPScriptClient program
+	 *
+	 * @param args The command line arguments to this programs, should be two strings
+	 */
+	public static void main(String[] args) {
+		//please do not remove the following line
+		System.out.println("SAPTelnetScript Version " +SAPTelnetScript.VERSION+" Perform batch jobs against the telnet interface of SAP J2EE\nAuthor: Dagfinn Parnas, Bouvet");
+		if(args.length!=2){
+			System.err.println("Usage: java SAPScriptClient optionsFile commandFile");
+			System.exit(-1);
+		}else {
+			System.out.println("Running with options file "+args[0] + " and command file "+args[1]);
+		}
+		int exitCode;
+		try {
+			exitCode=new SAPScriptClient(args[0],args[1]).submit(System.out,System.err);
+		}catch (ConnectException e){
+			//no server is running
+			exitCode=runLocally(args[0],args[1]);
+		}catch (IOException e){
+			System.err.println("The script could not be run by the script server: "+e.getMessage());
+			exitCode=-9;
+			System.err.println("Exiting application with error code:"+exitCode);
+		}
+		if(exitCode!=0){
+			System.exit(exitCode);
+		}
+	}
+
+	/**
+	 * Run the script in this JVM, as SAPTelnetScript does
+	 *
+	 * @return The exit code of the script, 0 if it completed
+	 */
+	private static int runLocally(String optionsFile,String commandFile){
+		try {
+			SAPTelnetScript batchScript = new SAPTelnetScript(optionsFile,commandFile);
+			batchScript.init();
+			batchScript.run();
+			return 0;
+		}catch (TelnetException e){
+			System.err.println(e.getMessage());
+			System.err.println("Exiting application with error code:"+e.getExitCode());
+			return e.getExitCode();
+		}
+	}
+
+	/**
+	 * Create a client for a script
+	 *
+	 * @param optionsFile The file containing the options of the batch script
+	 * @param commandFile The file containing the actual commands to run
+	 */
+	public SAPScriptClient(String optionsFile,String commandFile){
+		this.optionsFile=optionsFile;
+		this.commandFile=commandFile;
+	}
+
+	/**
+	 * Run the script on the server, writing its output and error messages as they arrive
+	 *
+	 * @param out Where the output is written
+	 * @param err Where the error messages are written
+	 * @return The exit code of the script, 0 if it completed
+	 * @throws ConnectException If no server is running, or its secret file cannot be read
+	 * @throws IOException If the server fails or closes the connection before the script has completed
+	 */
+	public int submit(PrintStream out,PrintStream err) throws IOException{
+		Properties options=readOptions();
+		byte[] secret;
+		try {
+			secret=SAPScriptServer.readSecret(SAPScriptServer.getSecretFile(options));
+		}catch (IOException e){
+			//the server writes the secret when it starts
+			throw new ConnectException("Could not read the secret of the script server: "+e.getMessage());
+		}
+		URL url=new URL("http","127.0.0.1",getServerPort(options),SAPScriptServer.RUN_PATH);
+		HttpURLConnection connection=(HttpURLConnection)url.openConnection();
+		try {
+			connection.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MS);
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type","application/x-www-form-urlencoded");
+			connection.setRequestProperty(SAPScriptServer.SECRET_HEADER,new String(secret,"US-ASCII"));
+			//the server may run in another directory
+			String form="options="+URLEncoder.encode(new File(optionsFile).getAbsolutePath(),"UTF-8")
+				+"&commands="+URLEncoder.encode(new File(commandFile).getAbsolutePath(),"UTF-8");
+			OutputStream request=connection.getOutputStream();
+			request.write(form.getBytes("UTF-8"));
+			request.close();
+			if(connection.getResponseCode()!=HttpURLConnection.HTTP_OK){
+				throw new IOException("The script server answered "+connection.getResponseCode()+" "+connection.getResponseMessage());
+			}
+			DataInputStream response=new DataInputStream(connection.getInputStream());
+			try {
+				return readFrames(response,out,err);
+			}finally {
+				response.close();
+			}
+		}finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Copy the output frames of the response until the exit code
+	 */
+	private int readFrames(DataInputStream response,PrintStream out,PrintStream err) throws IOException{
+		byte[] buffer=new byte[8192];
+		try {
+			while(true){
+				int type=response.readUnsignedByte();
+				if(type==SAPScriptServer.FRAME_EXIT){
+					return response.readInt();
+				}
+				PrintStream target=type==SAPScriptServer.FRAME_ERR?err:out;
+				int remaining=response.readInt();
+				while(remaining>0){
+					int read=Math.min(remaining,buffer.length);
+					response.readFully(buffer,0,read);
+					target.write(buffer,0,read);
+					remaining-=read;
+				}
+				target.flush();
+			}
+		}catch (EOFException e){
+			throw new IOException("The script server closed the connection before the script completed");
+		}
+	}
+
+	/**
+	 * Read the options file of the script
+	 *
+	 * @return The options, which are empty if the file cannot be read
+	 */
+	private Properties readOptions(){
+		Properties options=new Properties();
+		try {
+			InputStream in=new FileInputStream(optionsFile);
+			try {
+				options.load(in);
+			}finally {
+				in.close();
+			}
+		}catch (IOException e){
+			//the server reports the options file as missing
+		}
+		return options;
+	}
+
+	/**
+	 * Get the port of the server from the options of the script
+	 *
+	 * @return ScriptServerPort, or the default port if not given
+	 */
+	private int getServerPort(Properties options){
+		String strPort=options.getProperty(SAPScriptServer.SERVER_PORT_PROPERTY);
+		if(strPort==null){
+			return SAPScriptServer.DEFAULT_SERVER_PORT;
+		}
+		try {
+			return Integer.parseInt(strPort.trim());
+		}catch(NumberFormatException e){
+			System.err.println(SAPScriptServer.SERVER_PORT_PROPERTY + " is not a valid integer. Therefore using default value which is "+SAPScriptServer.DEFAULT_SERVER_PORT);
+			return SAPScriptServer.DEFAULT_SERVER_PORT;
+		}
+	}
+}
@@ -0,0 +1,495 @@
+package com.bouvet.telnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.Principal;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Resident server which runs the command files submitted by SAPScriptClient, so the many
+ * small scripts of the monitoring do not each pay for starting a JVM and logging in.
+ *
+ * The server listens for HTTP on the loopback interface only. A script is submitted with
+ * POST /run and the form parameters options and commands, which are the paths of its options
+ * file and command file. The script runs as a SAPTelnetScript on a session leased from a pool
+ * which is kept logged in between the scripts. Its output and error messages are streamed back
+ * as they are written, followed by its exit code, as frames of a type byte (FRAME_OUT, FRAME_ERR
+ * or FRAME_EXIT) followed by an int length and the bytes, or by the int exit code.
+ *
+ * <p>As any local user can connect to the port, the server writes a random secret to the
+ * file given by ScriptServerSecretFile, readable by its user only, and rejects requests
+ * without the secret in the SECRET_HEADER header. It also rejects options and command files
+ * which are not owned by its user, so a script cannot run with the credentials of another user.
+ * The files are read by the server, so it should run as the same user as the scripts.
+ *
+ * <p>The options, the timeout policy, the admission limits and the command cache of the server
+ * are shared by all scripts through a ScriptContext, and the metrics file and latency history of
+ * the server are written after each script. The connect options and RecordDirectory of the server
+ * apply to all scripts. The other options, e.g. the host, the user and OutputDirectory, are read
+ * from the options file of each script.
+ *
+ * <p>The options file of the server is the same as for SAPTelnetScript, with the following changes:
+ * <ul>
+ * <li>ServerHostName, TelnetPort, Username, Password and OutputDirectory: Not used
+ * <li>ScriptServerPort(optional): The loopback port the server listens on (default 50180)
+ * <li>ScriptServerSecretFile(optional): The file the secret of the server is written to
+ * (default .saptelnet-server-secret in the home directory). The scripts must give the same file
+ * <li>ScriptServerThreads(optional): The number of scripts which may be running at the same time.
+ * Further scripts wait for their turn (default 8)
+ * <li>PoolResetCommand(optional): The command resetting a session which has jumped to a server node,
+ * e.g. jump 0. Without it such sessions are closed after the script instead of being kept
+ * </ul>
+ *
+ * Usage: java com.bouvet.telnet.SAPScriptServer optionsFile
+ */
+public class SAPScriptServer extends SAPTelnetScript {
+	public final static int DEFAULT_SERVER_PORT=50180;
+	public final static int DEFAULT_SERVER_THREADS=8;
+	/*read from the options files of both the server and the scripts*/
+	public final static String SERVER_PORT_PROPERTY="ScriptServerPort";
+	public final static String SERVER_SECRET_FILE_PROPERTY="ScriptServerSecretFile";
+	public final static String DEFAULT_SECRET_FILE=".saptelnet-server-secret";
+	public final static String SECRET_HEADER="X-Script-Server-Secret";
+	public final static String RUN_PATH="/run";
+	public final static int FRAME_OUT=1;
+	public final static int FRAME_ERR=2;
+	public final static int FRAME_EXIT=3;
+
+	protected final String SERVER_THREADS_PROPERTY="ScriptServerThreads";
+
+	protected int serverPort=DEFAULT_SERVER_PORT;
+	protected int serverThreads=DEFAULT_SERVER_THREADS;
+	protected String poolResetCommand=null;
+	protected File secretFile;
+
+	private byte[] secret;
+	private ScriptContext scriptContext;
+	private HttpServer httpServer;
+	private ExecutorService executor;
+	private boolean stopped=false;
+	private boolean finished=false;
+	private AtomicInteger completedScripts=new AtomicInteger();
+	private AtomicInteger failedScripts=new AtomicInteger();
+
+	/**
+	 * Main method which starts the SAPScriptServer program
+	 *
+	 * @param args The command line arguments to this programs, should be one string
+	 */
+	public static void main(String[] args) {
+		//please do not remove the following line
+		System.out.println("SAPScriptServer Version " +VERSION+" Run batch jobs against the telnet interface of SAP J2EE on warm sessions\nAuthor: Dagfinn Parnas, Bouvet");
+		if(args.length!=1){
+			System.err.println("Usage: java SAPScriptServer optionsFile");
+			System.exit(-1);
+		}else {
+			System.out.println("Running with options file "+args[0]);
+		}
+		try {
+			final SAPScriptServer server = new SAPScriptServer(args[0]);
+			server.init();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+				public void run() {
+					server.shutdown();
+				}
+			},"SAPScriptServer:shutdown"));
+			server.run();
+		}catch (TelnetException e){
+			System.err.println(e.getMessage());
+			System.err.println("Exiting application with error code:"+e.getExitCode());
+			System.exit(e.getExitCode());
+		}
+	}
+
+	/**
+	 * Create a script server
+	 *
+	 * @param optionsFile The file containing the options of the server
+	 */
+	public SAPScriptServer(String optionsFile) {
+		super(optionsFile,null);
+	}
+
+	/**
+	 * Initialize the server
+	 *
+	 * @throws InitFailedException if the initialization fails
+	 */
+	public void init() throws InitFailedException {
+		super.init();
+		isInitialized=false;
+		if(optionsProperties.containsKey(SERVER_PORT_PROPERTY)){
+			String strPort = optionsProperties.getProperty(SERVER_PORT_PROPERTY);
+			try {
+				serverPort = Integer.parseInt(strPort.trim());
+			}catch(NumberFormatException e){
+				initFailed=true;
+				throw new InitFailedException(SERVER_PORT_PROPERTY+" is not an integer, but "+strPort);
+			}
+		}
+		if(optionsProperties.containsKey(SERVER_THREADS_PROPERTY)){
+			String strThreads = optionsProperties.getProperty(SERVER_THREADS_PROPERTY);
+			try {
+				serverThreads = Math.max(1,Integer.parseInt(strThreads.trim()));
+			}catch(NumberFormatException e){
+				err.println(SERVER_THREADS_PROPERTY + " is not a valid integer. Therefore using default value which is "+serverThreads);
+			}
+		}
+		poolResetCommand=optionsProperties.getProperty(POOL_RESET_COMMAND_PROPERTY);
+		secretFile=getSecretFile(optionsProperties);
+		isInitialized=true;
+	}
+
+	/**
+	 * Get the file with the secret of the server
+	 *
+	 * @param options The options of the server or of a script
+	 * @return ScriptServerSecretFile, or the default file in the home directory if not given
+	 */
+	public static File getSecretFile(Properties options){
+		String strSecretFile=options.getProperty(SERVER_SECRET_FILE_PROPERTY);
+		if(strSecretFile==null){
+			return new File(System.getProperty("user.home"),DEFAULT_SECRET_FILE);
+		}
+		return new File(strSecretFile.trim());
+	}
+
+	/**
+	 * Read the secret of the server
+	 *
+	 * @param secretFile The file with the secret
+	 * @return The secret
+	 * @throws IOException If the file cannot be read
+	 */
+	public static byte[] readSecret(File secretFile) throws IOException{
+		InputStream in=new FileInputStream(secretFile);
+		try {
+			ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+			byte[] buffer=new byte[256];
+			int read;
+			while((read=in.read(buffer))!=-1){
+				bytes.write(buffer,0,read);
+			}
+			return new String(bytes.toByteArray(),"US-ASCII").trim().getBytes("US-ASCII");
+		}finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Create a random secret and write it to the secret file, which is made readable and
+	 * writable by the user of the server only before the secret is written
+	 *
+	 * @throws InitFailedException If the secret file cannot be written
+	 */
+	private void writeSecret() throws InitFailedException{
+		byte[] random=new byte[32];
+		new SecureRandom().nextBytes(random);
+		StringBuilder hex=new StringBuilder();
+		for (int i = 0; i < random.length; i++) {
+			hex.append(Character.forDigit((random[i]>>4)&0xf,16)).append(Character.forDigit(random[i]&0xf,16));
+		}
+		try {
+			secret=hex.toString().getBytes("US-ASCII");
+			secretFile.delete();
+			if(!secretFile.createNewFile()
+					|| !secretFile.setReadable(false,false) || !secretFile.setWritable(false,false) || !secretFile.setExecutable(false,false)
+					|| !secretFile.setReadable(true,true) || !secretFile.setWritable(true,true)){
+				throw new IOException("Could not create it readable by the user only");
+			}
+			OutputStream fileOut=new FileOutputStream(secretFile);
+			try {
+				fileOut.write(secret);
+			}finally {
+				fileOut.close();
+			}
+		}catch (IOException e){
+			throw new InitFailedException("Could not write the secret to "+secretFile+". Message:"+e.getMessage());
+		}
+	}
+
+	/**
+	 * Check that a submitted file is owned by the user of the server. Files which do not exist
+	 * are reported by the script instead. The owner is read with java.nio.file.Files, which is
+	 * looked up at runtime as the tool is built for Java 6. Without it all files are rejected.
+	 *
+	 * @param path The path of the file
+	 * @return False if the file is owned by another user, or the owner cannot be read
+	 */
+	private static boolean isOwnedByServerUser(String path){
+		File file=new File(path);
+		if(!file.exists()){
+			return true;
+		}
+		try {
+			Class<?> pathClass=Class.forName("java.nio.file.Path");
+			Object linkOptions=Array.newInstance(Class.forName("java.nio.file.LinkOption"),0);
+			Object filePath=File.class.getMethod("toPath").invoke(file);
+			Principal owner=(Principal)Class.forName("java.nio.file.Files").getMethod("getOwner",pathClass,linkOptions.getClass()).invoke(null,filePath,linkOptions);
+			return owner.getName().equals(System.getProperty("user.name"));
+		}catch (InvocationTargetException e){
+			//the file system has no owners
+			return e.getCause() instanceof UnsupportedOperationException;
+		}catch (Exception e){
+			return false;
+		}
+	}
+
+	protected String[] getMandatoryProperties(){
+		return new String[0];
+	}
+
+	protected void initResultWriter(){
+		//the output files are given by each script
+	}
+
+	/**
+	 * Accept scripts until shutdown() is called
+	 *
+	 * @throws NotInitializedException If init() has not been called successfully first
+	 * @throws InitFailedException If the server cannot listen on its port
+	 */
+	public void run()throws TelnetException{
+		if(!isInitialized){
+			throw new NotInitializedException("Cannot call run before init() is called on object");
+		}
+		clientPool=new SAPTelnetClientPool();
+		clientPool.setMaxPerHost(serverThreads);
+		clientPool.setResetCommand(poolResetCommand);
+		clientPool.setAdmissionController(admission);
+		scriptContext=createContext();
+		//each script reads its own options, and writes its own output and aggregate
+		scriptContext.setOptions(null);
+		scriptContext.setResultWriter(null);
+		scriptContext.setAggregator(null);
+		executor=Executors.newFixedThreadPool(serverThreads,new ThreadFactory(){
+			private int id=0;
+			public synchronized Thread newThread(Runnable r) {
+				return new Thread(r,"SAPScriptServer:"+(id++));
+			}
+		});
+		try {
+			try {
+				httpServer=HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),serverPort),0);
+			}catch (IOException e){
+				throw new InitFailedException("Could not listen on port "+serverPort+". Message:"+e.getMessage());
+			}
+			writeSecret();
+			httpServer.createContext(RUN_PATH,new RunHandler());
+			httpServer.setExecutor(executor);
+			httpServer.start();
+			synchronized (this) {
+				out.println("Listening on 127.0.0.1:"+serverPort);
+				while(!stopped){
+					try {
+						wait();
+					}catch (InterruptedException e){
+						stopped=true;
+					}
+				}
+			}
+		}finally {
+			stop();
+		}
+	}
+
+	/**
+	 * Stop accepting scripts, wait for the running scripts to complete and close the sessions.
+	 * Returns when the server has stopped.
+	 */
+	public void shutdown(){
+		synchronized (this) {
+			stopped=true;
+			notifyAll();
+			while(!finished && executor!=null){
+				try {
+					wait();
+				}catch (InterruptedException e){
+					return;
+				}
+			}
+		}
+	}
+
+	private void stop(){
+		if(httpServer!=null){
+			httpServer.stop(0);
+		}
+		if(secret!=null){
+			secretFile.delete();
+		}
+		executor.shutdown();
+		try {
+			if(!executor.awaitTermination(operationTimeout,TimeUnit.MILLISECONDS)){
+				executor.shutdownNow();
+			}
+		}catch (InterruptedException e){
+			executor.shutdownNow();
+		}
+		clientPool.close();
+		writeMetrics();
+		writeTimeoutHistory();
+		out.println("Stopped after "+completedScripts.get()+" scripts, "+failedScripts.get()+" failed");
+		synchronized (this) {
+			finished=true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Run a submitted script, writing its output and error messages to the response
+	 *
+	 * @param optionsFile The options file of the script
+	 * @param commandFile The command file of the script
+	 * @param response The response
+	 * @return The exit code of the script, 0 if it completed
+	 */
+	protected int runScript(String optionsFile,String commandFile,DataOutputStream response){
+		PrintStream scriptOut=new PrintStream(new FrameOutputStream(response,FRAME_OUT));
+		PrintStream scriptErr=new PrintStream(new FrameOutputStream(response,FRAME_ERR));
+		SAPTelnetScript script=new SAPTelnetScript(optionsFile,commandFile);
+		script.setContext(scriptContext);
+		script.setOutput(scriptOut,scriptErr);
+		try {
+			script.init();
+			script.run();
+			return 0;
+		}catch (TelnetException e){
+			failedScripts.incrementAndGet();
+			scriptErr.println(e.getMessage());
+			scriptErr.println("Exiting application with error code:"+e.getExitCode());
+			return e.getExitCode();
+		}finally {
+			scriptOut.flush();
+			scriptErr.flush();
+			completedScripts.incrementAndGet();
+			scriptCompleted();
+		}
+	}
+
+	/**
+	 * Write the metrics and the latency history, one script at a time
+	 */
+	private synchronized void scriptCompleted(){
+		writeMetrics();
+		writeTimeoutHistory();
+	}
+
+	/**
+	 * Parse the form parameters of a request
+	 */
+	private static Map<String,String> parseForm(InputStream body) throws IOException{
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		byte[] buffer=new byte[4096];
+		int read;
+		while((read=body.read(buffer))!=-1){
+			bytes.write(buffer,0,read);
+		}
+		Map<String,String> params=new HashMap<String,String>();
+		String[] pairs=new String(bytes.toByteArray(),"UTF-8").split("&");
+		for (int i = 0; i < pairs.length; i++) {
+			int equals=pairs[i].indexOf('=');
+			if(equals>0){
+				params.put(URLDecoder.decode(pairs[i].substring(0,equals),"UTF-8"),URLDecoder.decode(pairs[i].substring(equals+1),"UTF-8"));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Runs the scripts posted to RUN_PATH
+	 */
+	private class RunHandler implements HttpHandler {
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if(!"POST".equals(exchange.getRequestMethod())){
+					exchange.sendResponseHeaders(405,-1);
+					return;
+				}
+				String requestSecret=exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+				if(requestSecret==null || !MessageDigest.isEqual(secret,requestSecret.getBytes("US-ASCII"))){
+					exchange.sendResponseHeaders(403,-1);
+					return;
+				}
+				Map<String,String> params=parseForm(exchange.getRequestBody());
+				String optionsFile=params.get("options");
+				String commandFile=params.get("commands");
+				if(optionsFile==null || commandFile==null){
+					exchange.sendResponseHeaders(400,-1);
+					return;
+				}
+				if(!isOwnedByServerUser(optionsFile) || !isOwnedByServerUser(commandFile)){
+					exchange.sendResponseHeaders(403,-1);
+					return;
+				}
+				exchange.getResponseHeaders().set("Content-Type","application/octet-stream");
+				//the length is unknown, so the output is sent in chunks as it is written
+				exchange.sendResponseHeaders(200,0);
+				DataOutputStream response=new DataOutputStream(exchange.getResponseBody());
+				int exitCode=runScript(optionsFile,commandFile,response);
+				synchronized (response) {
+					response.writeByte(FRAME_EXIT);
+					response.writeInt(exitCode);
+					response.flush();
+				}
+			}finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes each write to the response as a frame and sends it at once
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private final DataOutputStream response;
+		private final int type;
+
+		FrameOutputStream(DataOutputStream response,int type){
+			this.response=response;
+			this.type=type;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte)b},0,1);
+		}
+
+		public void write(byte[] b,int off,int len) throws IOException {
+			if(len==0){
+				return;
+			}
+			//the output and the error messages share the response
+			synchronized (response) {
+				response.writeByte(type);
+				response.writeInt(len);
+				response.write(b,off,len);
+				response.flush();
+			}
+		}
+	}
+}
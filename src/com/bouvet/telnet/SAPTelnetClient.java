@@ -1,7 +1,17 @@
 package com.bouvet.telnet;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
 
+import com.bouvet.thread.Completion;
+import com.bouvet.thread.CompletionFuture;
+import com.bouvet.thread.CompletionListener;
 import com.bouvet.thread.ThreadIOException;
 import com.bouvet.thread.TimeoutException;
 
@@ -11,13 +21,42 @@ import com.bouvet.thread.TimeoutException;
  * 
  * Prompt is defined as the char sequence 13,10,62
  * 
+ * Commands can be sent asynchronously with sendCommandAsync, which returns at once. 
+ * The engine answers the commands of a session in order, so several commands may be 
+ * outstanding and their futures complete in the order the commands were sent.
+ * 
+ * If the session has an AdmissionController, each command waits for its rate limit 
+ * before it is sent.
+ * 
  * 
  * @author Dagfinn Parnas,bouvet
  */
 public class SAPTelnetClient extends TelnetClient{
-	protected String prompt=new String (new char[]{13,10,62});
-	protected String logoutCommand="quit";
-	protected final String LOGIN_FAILED_RESPONSE="Login failed";
+	public final static String PROMPT=new String (new char[]{13,10,62});
+	public final static String LOGIN_PROMPT="Login: ";
+	public final static String PASSWORD_PROMPT="Password: ";
+	public final static String LOGOUT_COMMAND="quit";
+	/*Commands which change the state of the session, and therefore drain a pipeline*/
+	public final static String[] DEFAULT_BARRIER_COMMANDS={"JUMP","ADD"};
+	
+	protected String prompt=PROMPT;
+	protected String logoutCommand=LOGOUT_COMMAND;
+	/*The server node jumped to with the JUMP command, or null if still on the node logged in to*/
+	protected String currentNode=null;
+	protected Set<String> barrierCommands=new HashSet<String>(Arrays.asList(DEFAULT_BARRIER_COMMANDS));
+	/*The policy deciding the timeout of each command, or null to use the timeout of the client*/
+	protected TimeoutPolicy timeoutPolicy=null;
+	public final static String LOGIN_FAILED_RESPONSE="Login failed";
+	/*The host and port of the session*/
+	protected TelnetHost telnetHost;
+	/*Limits the rate of the commands, or null*/
+	protected AdmissionController admission=null;
+	/*If the session holds a session slot of the admission controller until it is closed*/
+	private boolean holdsSessionSlot=false;
+	/*Caches the output of read-only commands, or null*/
+	protected CommandCache commandCache=null;
+	/*If pipelined commands were left without a reader by a timeout, so the outputs no longer match the commands*/
+	private volatile boolean outOfSync=false;
 
 	/**
 	 * Create a new SAPTelnetClient
@@ -29,6 +68,7 @@ public class SAPTelnetClient extends TelnetClient{
 	 */
 	public SAPTelnetClient(String host, int port,long msTimeout)throws IOException {
 		super(host,port,msTimeout);	
+		telnetHost=new TelnetHost(host,port);
 	}
 	
 	/**
@@ -40,6 +80,7 @@ public class SAPTelnetClient extends TelnetClient{
 	 */	
 	public SAPTelnetClient(String host, int port)throws IOException {
 		super(host,port);	
+		telnetHost=new TelnetHost(host,port);
 	}
 	
 	/**
@@ -52,18 +93,65 @@ public class SAPTelnetClient extends TelnetClient{
 	 * @throws TimeoutException If the login doesn't complete within the given timeout
 	 */
 	public String login(String userName,String password) throws InvalidLoginException,TimeoutException{
+		return login(userName,password,false);
+	}
+	
+	/**
+	 * Login the given user to the telnet session.
+	 * 
+	 * If pipelined, the username and password are sent at once instead of after 
+	 * their prompts, saving two round trips. 
+	 * 
+	 * @param userName Username of the user
+	 * @param password Password of the user
+	 * @param pipelined If the username and password should be sent without waiting for the prompts
+	 * @return The output of the telnet session
+	 * @throws InvalidLoginException If the login details are not accepted by the SAP J2EE
+	 * @throws TimeoutException If the login doesn't complete within the given timeout
+	 */
+	public String login(String userName,String password,boolean pipelined) throws InvalidLoginException,TimeoutException{
 		StringBuffer sbOutput=new StringBuffer(500);
+		long start=System.nanoTime();
+		//each step of the dialogue has the timeout of the login
+		long msLoginTimeout=getCommandTimeout(TelnetMetrics.LOGIN_OPERATION);
+		admit(TelnetMetrics.LOGIN_OPERATION);
+		hideInRecording(password);
 		try {
-			sbOutput.append(waitFor("Login: "));
-			sbOutput.append(sendAndWait(userName,"Password: "));
-			sbOutput.append(sendAndWait(password,prompt));
+			if(pipelined){
+				send(new String[]{userName,password});
+				sbOutput.append(waitForAny(new String[]{LOGIN_PROMPT},null,msLoginTimeout));
+				sbOutput.append(waitForAny(new String[]{PASSWORD_PROMPT,LOGIN_FAILED_RESPONSE},null,msLoginTimeout));
+				checkLoginFailed(sbOutput);
+				sbOutput.append(waitForAny(new String[]{prompt,LOGIN_FAILED_RESPONSE},null,msLoginTimeout));
+				checkLoginFailed(sbOutput);
+				loggedIn(System.nanoTime()-start);
+				return sbOutput.toString();
+			}
+			sbOutput.append(waitForAny(new String[]{LOGIN_PROMPT},null,msLoginTimeout));
+			//watch for the failure message as well, so a failed login is not reported as a timeout
+			send(userName);
+			sbOutput.append(waitForAny(new String[]{PASSWORD_PROMPT,LOGIN_FAILED_RESPONSE},null,msLoginTimeout));
+			checkLoginFailed(sbOutput);
+			send(password);
+			sbOutput.append(waitForAny(new String[]{prompt,LOGIN_FAILED_RESPONSE},null,msLoginTimeout));
+			checkLoginFailed(sbOutput);
+			loggedIn(System.nanoTime()-start);
 			return sbOutput.toString();
+		} catch(TimeoutException e){
+			commandTimedOut(TelnetMetrics.LOGIN_OPERATION,msLoginTimeout);
+			throw e;
 		} catch(ThreadIOException e){
 			//rethrow the exception and include the current response of the telnet session
 			throw new InvalidLoginException(e.getCurrentBuffer());
 		}
 	}
 
+	private void checkLoginFailed(StringBuffer sbOutput) throws InvalidLoginException{
+		if(sbOutput.toString().endsWith(LOGIN_FAILED_RESPONSE)){
+			throw new InvalidLoginException(sbOutput.toString().trim());
+		}
+	}
+
 	/**
 	 * Send a command to the telnet session
 	 * 
@@ -75,7 +163,490 @@ public class SAPTelnetClient extends TelnetClient{
 	public String sendCommand(String command)
 		throws IOException, TimeoutException {
 		
-		return sendAndWait(command,prompt);
+		if(commandCache!=null){
+			return commandCache.sendCommand(this,command);
+		}
+		return sendUncached(command);
+	}
+
+	/**
+	 * Send a command to the telnet session, bypassing the command cache
+	 * 
+	 * @param command 
+	 * @return The output of the telnet session
+	 * @throws IOException
+	 * @throws TimeoutException If the command doesn't complete within the given timeout
+	 */
+	String sendUncached(String command)
+		throws IOException, TimeoutException {
+		
+		checkInSync();
+		long msCommandTimeout=getCommandTimeout(command);
+		admit(command);
+		long start=System.nanoTime();
+		String output;
+		try {
+			send(command);
+			output=waitForAny(new String[]{prompt},null,msCommandTimeout);
+		}catch (TimeoutException e){
+			commandTimedOut(command,msCommandTimeout);
+			throw e;
+		}
+		commandLatency(command,System.nanoTime()-start);
+		commandCompleted(command);
+		return output;
+	}
+
+	/**
+	 * Send a command to the telnet session and stream the output to the sink 
+	 * as it arrives. Only the end of the output which may be part of the prompt 
+	 * is buffered, so the output is never held in memory as a whole.
+	 * The prompt itself is not passed to the sink.
+	 * 
+	 * @param command 
+	 * @param sink The sink receiving the output
+	 * @throws IOException If the session or the sink fails
+	 * @throws TimeoutException If the command doesn't complete within the given timeout
+	 */
+	public void sendCommand(String command,OutputSink sink)
+		throws IOException, TimeoutException {
+		
+		checkInSync();
+		long msCommandTimeout=getCommandTimeout(command);
+		admit(command);
+		long start=System.nanoTime();
+		try {
+			send(command);
+			waitForAny(new String[]{prompt},sink,msCommandTimeout);
+		}catch (TimeoutException e){
+			commandTimedOut(command,msCommandTimeout);
+			throw e;
+		}
+		commandLatency(command,System.nanoTime()-start);
+		commandCompleted(command);
+	}
+
+	/**
+	 * Send a command to the telnet session without waiting for its output
+	 * 
+	 * The future completes with the output of the command, or fails with a 
+	 * TimeoutException if the command doesn't complete within the timeout of the 
+	 * client, or a ThreadIOException if the session fails. Barrier commands are not 
+	 * held back, the caller must wait for a JUMP before sending commands for the new node.
+	 * 
+	 * @param command 
+	 * @return The future of the output of the telnet session
+	 */
+	public CompletionFuture<String> sendCommandAsync(String command){
+		long msCommandTimeout=getCommandTimeout(command);
+		try {
+			checkInSync();
+			admit(command);
+		}catch (TimeoutException e){
+			return failed(e);
+		}catch (IOException e){
+			return failed(e);
+		}
+		return sendAsync(command,new String[]{prompt},null,msCommandTimeout,new CommandCompletion(command,msCommandTimeout));
+	}
+
+	/**
+	 * Send a command to the telnet session without waiting for its output, and 
+	 * stream the output to the sink as it arrives. The sink is called by the reader 
+	 * thread of the session, so it must not block. The prompt is not passed to the sink.
+	 * 
+	 * @param command 
+	 * @param sink The sink receiving the output
+	 * @return The future of the prompt, which completes when all output has been passed 
+	 * to the sink
+	 */
+	public CompletionFuture<String> sendCommandAsync(String command,OutputSink sink){
+		long msCommandTimeout=getCommandTimeout(command);
+		try {
+			checkInSync();
+			admit(command);
+		}catch (TimeoutException e){
+			return failed(e);
+		}catch (IOException e){
+			return failed(e);
+		}
+		return sendAsync(command,new String[]{prompt},sink,msCommandTimeout,new CommandCompletion(command,msCommandTimeout));
+	}
+
+	/**
+	 * Login the given user to the telnet session without waiting for it to complete.
+	 * 
+	 * The login is a dialogue of several prompts, so it runs as login() on the executor 
+	 * of the client. The future fails with an InvalidLoginException or a TimeoutException.
+	 * 
+	 * @param userName Username of the user
+	 * @param password Password of the user
+	 * @param pipelined If the username and password should be sent without waiting for the prompts
+	 * @return The future of the output of the telnet session
+	 */
+	public CompletionFuture<String> loginAsync(final String userName,final String password,final boolean pipelined){
+		return runAsync(new Callable<String>(){
+			public String call() throws Exception {
+				return login(userName,password,pipelined);
+			}
+		});
+	}
+
+	/**
+	 * Logout the user from the telnet session without waiting for it to complete. 
+	 * Logout runs on the executor of the client, after the outstanding commands.
+	 * 
+	 * @return The future of the output of the telnet session
+	 */
+	public CompletionFuture<String> logoutAsync(){
+		return runAsync(new Callable<String>(){
+			public String call() throws Exception {
+				return logout();
+			}
+		});
+	}
+
+	/**
+	 * Run a blocking operation of the session on the executor, completing the 
+	 * returned future with its result or exception
+	 */
+	private CompletionFuture<String> runAsync(final Callable<String> operation){
+		final Completion completion=new Completion();
+		executor.execute(new FutureTask<String>(operation){
+			protected void done() {
+				try {
+					completion.complete(get());
+				}catch (java.util.concurrent.ExecutionException e){
+					completion.complete(e.getCause());
+				}catch (Exception e){
+					completion.complete(e);
+				}
+			}
+		});
+		return new CompletionFuture<String>(completion,executor);
+	}
+
+	/**
+	 * Get a future which has failed with the given exception
+	 */
+	private CompletionFuture<String> failed(Exception e){
+		Completion completion=new Completion();
+		completion.complete(e);
+		return new CompletionFuture<String>(completion,executor);
+	}
+
+	/**
+	 * Records the latency of an asynchronous command and keeps track of the server 
+	 * node when it completes
+	 */
+	private class CommandCompletion implements CompletionListener {
+		private final String command;
+		private final long msTimeout;
+		private final long start=System.nanoTime();
+
+		CommandCompletion(String command,long msTimeout){
+			this.command=command;
+			this.msTimeout=msTimeout;
+		}
+
+		public void completed(Completion completion) {
+			Object result=completion.getResult();
+			if(result instanceof TimeoutException){
+				commandTimedOut(command,msTimeout);
+			}else if(!(result instanceof Throwable)){
+				commandLatency(command,System.nanoTime()-start);
+				commandCompleted(command);
+			}
+		}
+	}
+
+	/**
+	 * Send several commands to the telnet session, pipelining them. 
+	 * 
+	 * Up to window commands are written before the output of the first is read, and the 
+	 * returned output is split into the output of each command at the prompts. This saves 
+	 * a round trip pr command on slow links. Barrier commands (by default JUMP and ADD) 
+	 * change the state of the session, so the pipeline is drained before a barrier is sent 
+	 * and nothing is sent after it until it has completed.
+	 * 
+	 * A window of 1 is the same as calling sendCommand for each command.
+	 * 
+	 * If a command times out, or a command is not admitted in time, while earlier commands 
+	 * are still waiting for their output, nothing waits for that output, so the outputs read by 
+	 * the session would no longer match the commands. The session is then out of sync: later commands fail at once with an IOException, 
+	 * probe() returns false, and the session should be closed.
+	 * 
+	 * The latency of a command is measured from when it was sent, or from when the output of 
+	 * the command before it was read if that is later, so the commands queued ahead of it 
+	 * are not counted.
+	 * 
+	 * @param commands The commands to issue
+	 * @param window The maximum number of commands waiting for output
+	 * @param listener Listener receiving the output of each command in order, may be null
+	 * @return The output of each command
+	 * @throws IOException If the session fails or is out of sync
+	 * @throws TimeoutException If a command doesn't complete within the given timeout
+	 */
+	public List<String> sendCommands(List<String> commands,int window,CommandListener listener)
+		throws IOException, TimeoutException {
+		
+		checkInSync();
+		List<String> outputs=new ArrayList<String>(commands.size());
+		//when each command was sent, for its latency
+		long[] sentAt=new long[commands.size()];
+		//when the output of the previous command was read
+		long previousRead=0;
+		int sent=0;
+		int received=0;
+		while(received<commands.size()){
+			//fill the window
+			List<String> batch=new ArrayList<String>();
+			while(sent<commands.size() && sent-received<Math.max(1,window)){
+				boolean pending=sent>received;
+				if(pending && (isBarrier(commands.get(sent)) || isBarrier(commands.get(sent-1)))){
+					break;
+				}
+				try {
+					admit(commands.get(sent));
+				}catch (TimeoutException e){
+					//the commands of the batch are not sent
+					if(sent-batch.size()>received){
+						outOfSync=true;
+					}
+					throw e;
+				}
+				batch.add(commands.get(sent++));
+			}
+			if(!batch.isEmpty()){
+				send(batch.toArray(new String[batch.size()]));
+				long now=System.nanoTime();
+				for (int i = sent-batch.size(); i < sent; i++) {
+					sentAt[i]=now;
+				}
+			}
+			String command=commands.get(received);
+			long msCommandTimeout=getCommandTimeout(command);
+			String output;
+			try {
+				output=waitForAny(new String[]{prompt},null,msCommandTimeout);
+			}catch (TimeoutException e){
+				commandTimedOut(command,msCommandTimeout);
+				if(sent>received+1){
+					outOfSync=true;
+				}
+				throw e;
+			}
+			long read=System.nanoTime();
+			commandLatency(command,read-Math.max(sentAt[received++],previousRead));
+			previousRead=read;
+			commandCompleted(command);
+			outputs.add(output);
+			if(listener!=null){
+				listener.commandCompleted(command,output);
+			}
+		}
+		return outputs;
+	}
+
+	/**
+	 * Return if the session is out of sync because pipelined commands timed out, 
+	 * see sendCommands
+	 * 
+	 * @return true if the outputs read by the session no longer match the commands
+	 */
+	public boolean isOutOfSync(){
+		return outOfSync;
+	}
+
+	/**
+	 * Fail at once if the session is out of sync
+	 * 
+	 * @throws IOException If the session is out of sync
+	 */
+	protected void checkInSync() throws IOException{
+		if(outOfSync){
+			throw new IOException("The session to "+telnetHost+" is out of sync after pipelined commands timed out. Therefore it must be closed");
+		}
+	}
+
+	/**
+	 * Get the timeout of a command from the timeout policy
+	 * 
+	 * @param command The command, or TelnetMetrics.LOGIN_OPERATION
+	 * @return The timeout in milliseconds
+	 */
+	protected long getCommandTimeout(String command){
+		return timeoutPolicy==null?getTimeout():timeoutPolicy.getTimeout(command,getTimeout());
+	}
+
+	/**
+	 * Set the policy deciding the timeout of each command. The latencies of the 
+	 * session are recorded in the policy.
+	 * 
+	 * @param timeoutPolicy The policy, or null to use the timeout of the client for all commands
+	 */
+	public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy){
+		this.timeoutPolicy=timeoutPolicy;
+	}
+
+	/**
+	 * Cache the output of read-only commands. Other commands drop the cached output of 
+	 * the node of the session when they complete.
+	 * 
+	 * @param commandCache The cache, which may be shared by many sessions, or null to send all commands
+	 */
+	public void setCommandCache(CommandCache commandCache){
+		this.commandCache=commandCache;
+	}
+
+	/**
+	 * Limit the rate of the commands of the session
+	 * 
+	 * @param admission The controller, or null to send the commands at once
+	 */
+	public void setAdmissionController(AdmissionController admission){
+		setAdmissionController(admission,false);
+	}
+
+	/**
+	 * Limit the rate of the commands of the session, which holds a session slot of the 
+	 * controller if it was connected by it
+	 */
+	void setAdmissionController(AdmissionController admission,boolean holdsSessionSlot){
+		this.admission=admission;
+		this.holdsSessionSlot=holdsSessionSlot;
+	}
+
+	/**
+	 * Wait until the rate limit of the command allows it to be sent
+	 * 
+	 * @param command The command, or TelnetMetrics.LOGIN_OPERATION
+	 * @throws TimeoutException If the command is not admitted within the max wait of the controller
+	 */
+	protected void admit(String command) throws TimeoutException{
+		if(admission!=null){
+			admission.acquireCommand(telnetHost,command);
+		}
+	}
+
+	/**
+	 * Close the connection, and free the session slot of the admission controller
+	 */
+	public void close(){
+		super.close();
+		AdmissionController slotOwner=null;
+		synchronized (this) {
+			if(holdsSessionSlot){
+				holdsSessionSlot=false;
+				slotOwner=admission;
+			}
+		}
+		if(slotOwner!=null){
+			slotOwner.releaseSession(telnetHost);
+		}
+	}
+
+	private void loggedIn(long ns){
+		metrics.loggedIn(ns);
+		if(timeoutPolicy!=null){
+			timeoutPolicy.record(TelnetMetrics.LOGIN_OPERATION,ns);
+		}
+	}
+
+	private void commandLatency(String command,long ns){
+		metrics.commandCompleted(command,ns);
+		if(timeoutPolicy!=null){
+			timeoutPolicy.record(command,ns);
+		}
+	}
+
+	private void commandTimedOut(String command,long msTimeout){
+		metrics.timedOut(command);
+		if(timeoutPolicy!=null){
+			timeoutPolicy.timedOut(command,msTimeout);
+		}
+		//the command may still have been executed
+		if(commandCache!=null){
+			commandCache.commandExecuted(this,command);
+		}
+	}
+
+	/**
+	 * Return if the command is a barrier, which must not be pipelined with other commands
+	 * 
+	 * @param command 
+	 * @return
+	 */
+	protected boolean isBarrier(String command){
+		String[] tokens=command.trim().split("\\s+");
+		return barrierCommands.contains(tokens[0].toUpperCase());
+	}
+
+	/**
+	 * Set the commands which drain the pipeline when pipelining
+	 * 
+	 * @param commands The command names, e.g. JUMP
+	 */
+	public void setBarrierCommands(String[] commands){
+		barrierCommands=new HashSet<String>();
+		for (int i = 0; i < commands.length; i++) {
+			barrierCommands.add(commands[i].trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Keep track of the server node after a command has completed, and drop the cached 
+	 * output the command may have changed
+	 * 
+	 * @param command The completed command
+	 */
+	protected void commandCompleted(String command){
+		String[] tokens=command.trim().split("\\s+");
+		if(tokens.length==2 && "JUMP".equalsIgnoreCase(tokens[0])){
+			currentNode=tokens[1];
+		}
+		if(commandCache!=null){
+			commandCache.commandExecuted(this,command);
+		}
+	}
+
+	/**
+	 * Get the server node jumped to with the JUMP command
+	 * 
+	 * @return The node, or null if the session is still on the node it logged in to
+	 */
+	public String getCurrentNode(){
+		return currentNode;
+	}
+
+	/**
+	 * Mark the session as being back on the node it logged in to, e.g. after 
+	 * jumping back to the dispatcher
+	 */
+	public void resetCurrentNode(){
+		currentNode=null;
+	}
+
+	/**
+	 * Check that the session is alive by sending an empty line and waiting for 
+	 * the prompt
+	 * 
+	 * @param msTimeout How long to wait for the prompt
+	 * @return true if the prompt was received within the timeout
+	 */
+	public boolean probe(long msTimeout){
+		if(isClosed() || outOfSync){
+			return false;
+		}
+		try {
+			send("");
+			waitForAny(new String[]{prompt},null,msTimeout);
+			return !outStream.checkError();
+		}catch (TimeoutException e){
+			return false;
+		}catch (ThreadIOException e){
+			return false;
+		}
 	}
 
 	/**
@@ -0,0 +1,442 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.bouvet.thread.CompletionFuture;
+import com.bouvet.thread.HashedTimerWheel;
+import com.bouvet.thread.TimeoutException;
+import com.bouvet.thread.TimeoutTask;
+import com.bouvet.thread.WheelTimeout;
+
+/**
+ * A pool of logged in SAPTelnetClient sessions, keyed by host, port, user and password.
+ *
+ * Leasing a session from the pool reuses an idle session if there is one, so repeated
+ * scripts against the same instance skip connect and login. Before an idle session is
+ * leased it is probed by sending an empty line and waiting for the prompt. Sessions which
+ * fail the probe are closed and replaced.
+ *
+ * <p>When a session is returned, its state is reset. If the session has jumped to a server
+ * node, the reset command is issued (e.g. a JUMP back to the dispatcher). If no reset command
+ * is configured, such sessions are closed instead of being reused, as the next user would
+ * otherwise end up on the wrong node.
+ *
+ * <p>Idle sessions are closed when they have been idle longer than the idle timeout, and
+ * at most maxPerHost sessions are open to each host, user combination. Lease waits for a
+ * session to be returned when the limit is reached.
+ *
+ * <p>The pool is thread safe. Sessions are closed outside the lock of the pool, as sending
+ * the quit command may block, and the idle sessions evicted by the timer wheel are closed
+ * on the shared executor of CompletionFuture instead of the thread of the wheel.
+ */
+public class SAPTelnetClientPool {
+	public final static int DEFAULT_MAX_PER_HOST=4;
+	public final static long DEFAULT_IDLE_TIMEOUT_MS=5*60*1000;
+	public final static long DEFAULT_PROBE_TIMEOUT_MS=5000;
+	public final static long DEFAULT_LEASE_WAIT_MS=60*1000;
+
+	private int maxPerHost=DEFAULT_MAX_PER_HOST;
+	private long idleTimeout=DEFAULT_IDLE_TIMEOUT_MS;
+	private long probeTimeout=DEFAULT_PROBE_TIMEOUT_MS;
+	private long leaseWait=DEFAULT_LEASE_WAIT_MS;
+	private String resetCommand=null;
+	private AdmissionController admission=null;
+
+	private Map<PoolKey,HostPool> hostPools=new HashMap<PoolKey,HostPool>();
+	private Map<SAPTelnetClient,HostPool> leased=new IdentityHashMap<SAPTelnetClient,HostPool>();
+	private HashedTimerWheel timerWheel=HashedTimerWheel.getSharedInstance();
+	private WheelTimeout evictionTimeout=null;
+	private boolean closed=false;
+
+	/**
+	 * Lease a logged in session. The session must be given back with release(),
+	 * or invalidate() if it is no longer usable.
+	 *
+	 * @param host The host to connect to
+	 * @param port The port to connect to
+	 * @param userName Username of the user
+	 * @param password Password of the user
+	 * @param msTimeout The maximum processing time for each command of the leased session
+	 * @return A logged in session
+	 * @throws IOException If a new session cannot connect
+	 * @throws InvalidLoginException If the login of a new session is not accepted
+	 * @throws TimeoutException If the login doesn't complete within the given timeout, or
+	 * no session becomes available within the lease wait
+	 */
+	public SAPTelnetClient lease(String host,int port,String userName,String password,long msTimeout)
+		throws IOException,InvalidLoginException,TimeoutException{
+
+		PoolKey key=new PoolKey(host,port,userName,password);
+		long end=System.currentTimeMillis()+leaseWait;
+		while(true){
+			HostPool hostPool;
+			IdleSession idleSession=null;
+			List<SAPTelnetClient> evicted=new ArrayList<SAPTelnetClient>();
+			try {
+				synchronized (this) {
+					if(closed){
+						throw new IOException("The pool is closed");
+					}
+					hostPool=hostPools.get(key);
+					if(hostPool==null){
+						hostPool=new HostPool();
+						hostPools.put(key,hostPool);
+					}
+					evictIdleSessions(hostPool,System.currentTimeMillis(),evicted);
+					if(!hostPool.idle.isEmpty()){
+						idleSession=hostPool.idle.removeFirst();
+					}else if(hostPool.open<maxPerHost){
+						//reserve the slot before connecting outside the lock
+						hostPool.open++;
+					}else {
+						long remaining=end-System.currentTimeMillis();
+						if(remaining<=0){
+							throw new TimeoutException("No session to "+key+" became available within "+leaseWait);
+						}
+						try {
+							wait(remaining);
+						} catch (InterruptedException e) {
+							throw new TimeoutException("Interrupted while waiting for a session to "+key);
+						}
+						continue;
+					}
+				}
+			}finally {
+				quietlyClose(evicted);
+			}
+
+			if(idleSession!=null){
+				SAPTelnetClient client=idleSession.client;
+				if(probeTimeout<=0 || client.probe(probeTimeout)){
+					return leased(client,hostPool,msTimeout);
+				}
+				discard(client,hostPool);
+				continue;
+			}
+
+			SAPTelnetClient client=null;
+			boolean loggedIn=false;
+			try {
+				client=admission!=null?admission.connect(host,port,msTimeout):new SAPTelnetClient(host,port,msTimeout);
+				client.login(userName,password);
+				loggedIn=true;
+				return leased(client,hostPool,msTimeout);
+			}finally {
+				if(!loggedIn){
+					if(client!=null){
+						client.close();
+					}
+					synchronized (this) {
+						hostPool.open--;
+						notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Give a leased session back to the pool. The state of the session is reset, and
+	 * if this fails the session is closed.
+	 *
+	 * @param client A session leased from this pool
+	 */
+	public void release(SAPTelnetClient client){
+		HostPool hostPool;
+		synchronized (this) {
+			hostPool=leased.remove(client);
+		}
+		if(hostPool==null){
+			//not leased from this pool
+			return;
+		}
+		if(!reset(client)){
+			discard(client,hostPool);
+			return;
+		}
+		synchronized (this) {
+			if(!closed){
+				hostPool.idle.addFirst(new IdleSession(client,System.currentTimeMillis()));
+				scheduleEviction();
+				notifyAll();
+				return;
+			}
+			hostPool.open--;
+		}
+		quietlyClose(client);
+	}
+
+	/**
+	 * Give back a leased session which is no longer usable, e.g. after a timeout.
+	 * The session is closed.
+	 *
+	 * @param client A session leased from this pool
+	 */
+	public void invalidate(SAPTelnetClient client){
+		HostPool hostPool;
+		synchronized (this) {
+			hostPool=leased.remove(client);
+		}
+		if(hostPool!=null){
+			discard(client,hostPool);
+		}else {
+			quietlyClose(client);
+		}
+	}
+
+	/**
+	 * Close all idle sessions and the leased sessions as they are released.
+	 */
+	public void close(){
+		List<SAPTelnetClient> idleClients=new ArrayList<SAPTelnetClient>();
+		synchronized (this) {
+			closed=true;
+			for (Iterator<HostPool> it = hostPools.values().iterator(); it.hasNext();) {
+				HostPool hostPool = it.next();
+				while(!hostPool.idle.isEmpty()){
+					idleClients.add(hostPool.idle.removeFirst().client);
+					hostPool.open--;
+				}
+			}
+			if(evictionTimeout!=null){
+				evictionTimeout.cancel();
+			}
+			notifyAll();
+		}
+		quietlyClose(idleClients);
+	}
+
+	/**
+	 * Get the number of idle sessions in the pool
+	 *
+	 * @return
+	 */
+	public synchronized int getIdleCount(){
+		int count=0;
+		for (Iterator<HostPool> it = hostPools.values().iterator(); it.hasNext();) {
+			count+=it.next().idle.size();
+		}
+		return count;
+	}
+
+	private synchronized SAPTelnetClient leased(SAPTelnetClient client,HostPool hostPool,long msTimeout){
+		client.setTimeout(msTimeout);
+		leased.put(client,hostPool);
+		return client;
+	}
+
+	private boolean reset(SAPTelnetClient client){
+		if(client.isClosed()){
+			return false;
+		}
+		if(client.getCurrentNode()!=null){
+			if(resetCommand==null){
+				return false;
+			}
+			try {
+				client.sendCommand(resetCommand);
+				client.resetCurrentNode();
+			}catch (IOException e){
+				return false;
+			}catch (TimeoutException e){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void discard(SAPTelnetClient client,HostPool hostPool){
+		quietlyClose(client);
+		synchronized (this) {
+			hostPool.open--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Send the quit command without waiting for the response and close the session
+	 */
+	private void quietlyClose(SAPTelnetClient client){
+		if(!client.isClosed()){
+			client.send(client.logoutCommand);
+		}
+		client.close();
+	}
+
+	private void quietlyClose(List<SAPTelnetClient> clients){
+		for (Iterator<SAPTelnetClient> it = clients.iterator(); it.hasNext();) {
+			quietlyClose(it.next());
+		}
+	}
+
+	/**
+	 * Remove the sessions of the host pool which have been idle longer than the idle timeout.
+	 * Must be called while holding the lock of the pool. The caller must close the sessions
+	 * after releasing the lock.
+	 * 
+	 * @param evicted Receives the removed sessions
+	 */
+	private void evictIdleSessions(HostPool hostPool,long now,List<SAPTelnetClient> evicted){
+		//the most recently used sessions are first, so evict from the end
+		while(!hostPool.idle.isEmpty() && now-hostPool.idle.getLast().idleSince>idleTimeout){
+			evicted.add(hostPool.idle.removeLast().client);
+			hostPool.open--;
+		}
+	}
+
+	/**
+	 * Schedule a sweep of the idle sessions on the timer wheel, unless one is already scheduled.
+	 * Must be called while holding the lock of the pool.
+	 */
+	private void scheduleEviction(){
+		if(evictionTimeout!=null && !evictionTimeout.isExpired()){
+			return;
+		}
+		evictionTimeout=timerWheel.schedule(new TimeoutTask(){
+			public void timeoutExpired(WheelTimeout timeout) {
+				final List<SAPTelnetClient> evicted=new ArrayList<SAPTelnetClient>();
+				synchronized (SAPTelnetClientPool.this) {
+					if(closed){
+						return;
+					}
+					long now=System.currentTimeMillis();
+					boolean idleLeft=false;
+					for (Iterator<HostPool> it = hostPools.values().iterator(); it.hasNext();) {
+						HostPool hostPool = it.next();
+						evictIdleSessions(hostPool,now,evicted);
+						idleLeft|=!hostPool.idle.isEmpty();
+					}
+					evictionTimeout=null;
+					if(idleLeft){
+						scheduleEviction();
+					}
+					SAPTelnetClientPool.this.notifyAll();
+				}
+				if(!evicted.isEmpty()){
+					//the other timeouts of the wheel are not held up by the quit commands
+					CompletionFuture.getSharedExecutor().execute(new Runnable(){
+						public void run() {
+							quietlyClose(evicted);
+						}
+					});
+				}
+			}
+		},idleTimeout);
+	}
+
+	/**
+	 * Set the maximum number of open sessions pr host, port and user
+	 *
+	 * @param maxPerHost
+	 */
+	public void setMaxPerHost(int maxPerHost){
+		this.maxPerHost=maxPerHost;
+	}
+
+	/**
+	 * Set how long a session may be idle before it is closed
+	 *
+	 * @param idleTimeout Timeout in milliseconds
+	 */
+	public void setIdleTimeout(long idleTimeout){
+		this.idleTimeout=idleTimeout;
+	}
+
+	/**
+	 * Set how long to wait for the prompt when probing an idle session before it
+	 * is leased. 0 disables the probe.
+	 *
+	 * @param probeTimeout Timeout in milliseconds
+	 */
+	public void setProbeTimeout(long probeTimeout){
+		this.probeTimeout=probeTimeout;
+	}
+
+	/**
+	 * Set how long lease waits for a session when the maximum number of sessions are open
+	 *
+	 * @param leaseWait Time in milliseconds
+	 */
+	public void setLeaseWait(long leaseWait){
+		this.leaseWait=leaseWait;
+	}
+
+	/**
+	 * Set the command which brings a session back to the node it logged in to after
+	 * it has jumped to a server node, e.g. JUMP with the id of the dispatcher.
+	 *
+	 * @param resetCommand The command, or null to close such sessions instead
+	 */
+	public void setResetCommand(String resetCommand){
+		this.resetCommand=resetCommand;
+	}
+
+	/**
+	 * Connect the new sessions through an admission controller, which limits the open 
+	 * sessions and the rate of their commands. Idle sessions keep their slots until closed.
+	 *
+	 * @param admission The controller, or null to connect at once
+	 */
+	public void setAdmissionController(AdmissionController admission){
+		this.admission=admission;
+	}
+
+	/**
+	 * The key of the sessions of a host pool
+	 */
+	private static class PoolKey {
+		private final TelnetHost host;
+		private final String userName;
+		/*a session is only leased to those knowing the password it logged in with*/
+		private final String password;
+
+		PoolKey(String host,int port,String userName,String password){
+			this.host=new TelnetHost(host,port);
+			this.userName=userName;
+			this.password=password;
+		}
+
+		public boolean equals(Object o){
+			if(!(o instanceof PoolKey)){
+				return false;
+			}
+			PoolKey other=(PoolKey)o;
+			return host.equals(other.host) && userName.equals(other.userName) && password.equals(other.password);
+		}
+
+		public int hashCode(){
+			return host.hashCode()*31+userName.hashCode();
+		}
+
+		public String toString(){
+			return userName+"@"+host;
+		}
+	}
+
+	/**
+	 * The sessions of one host, port, user and password
+	 */
+	private static class HostPool {
+		/*idle sessions, most recently used first*/
+		private LinkedList<IdleSession> idle=new LinkedList<IdleSession>();
+		/*the number of idle, leased and connecting sessions*/
+		private int open=0;
+	}
+
+	private static class IdleSession {
+		private final SAPTelnetClient client;
+		private final long idleSince;
+
+		IdleSession(SAPTelnetClient client,long idleSince){
+			this.client=client;
+			this.idleSince=idleSince;
+		}
+	}
+}
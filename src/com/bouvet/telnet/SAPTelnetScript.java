@@ -1,14 +1,36 @@
 package com.bouvet.telnet;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.File;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.net.ConnectException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import com.bouvet.metrics.MetricsFormat;
+import com.bouvet.metrics.MetricsRegistry;
+import com.bouvet.metrics.PrometheusFormat;
+import com.bouvet.telnet.output.AsyncResultWriter;
+import com.bouvet.telnet.output.CommandResult;
+import com.bouvet.telnet.output.ResultFormat;
+import com.bouvet.telnet.parse.FleetAggregator;
+import com.bouvet.telnet.parse.LineParser;
+import com.bouvet.telnet.parse.OutputParsers;
 import com.bouvet.thread.TimeoutException;
 
 
@@ -23,6 +45,74 @@ import com.bouvet.thread.TimeoutException;
  * <li>Username: The username to connect with (usually administrator)
  * <li>Password: The password of the username
  * <li>OperationTimeoutMS(optional): How long each telnet command is allowed to execute for
+ * <li>ConnectTimeoutMS(optional): How long connecting to the telnet port may take (default OperationTimeoutMS)
+ * <li>ConnectAttemptDelayMS(optional): If the host has several addresses, how long to wait for 
+ * the connect to one address before also trying the next (default 250)
+ * <li>DnsCacheTTLMS(optional): How long the addresses of a host are cached, 0 to resolve on each 
+ * connect (default 30000)
+ * <li>TcpNoDelay(optional): If false, Nagle's algorithm may delay the commands sent (default true)
+ * <li>SocketReceiveBufferBytes(optional): The receive buffer of the sockets (default from the OS)
+ * <li>SocketSendBufferBytes(optional): The send buffer of the sockets (default from the OS)
+ * <li>OperationTimeoutMS.&lt;VERB&gt;(optional): How long commands with the given verb are allowed 
+ * to execute for, e.g. OperationTimeoutMS.DEPLOY. OperationTimeoutMS.LOGIN applies to each step of the login
+ * <li>AdaptiveTimeouts(optional): If true, the timeout of a verb without its own timeout is its p99 
+ * latency times AdaptiveTimeoutFactor, once the verb has enough latency history. It is never above 
+ * OperationTimeoutMS (default false)
+ * <li>AdaptiveTimeoutFactor(optional): The factor of the adaptive timeouts (default 3)
+ * <li>AdaptiveTimeoutMinMS(optional): The minimum adaptive timeout (default 1000)
+ * <li>TimeoutHistoryFile(optional): File the latency history is loaded from and saved to, so the 
+ * adaptive timeouts are learned across runs
+ * <li>SpillThresholdBytes(optional): If given, the output of each command is collected in a buffer 
+ * which is kept on the heap up to this size, and then spills to a memory-mapped temporary file. 
+ * Ignored when streaming or pipelining. The fleet and cluster scripts always use such buffers 
+ * (default 1048576 for them)
+ * <li>SpillDirectory(optional): The directory of the temporary files (default the java.io.tmpdir). 
+ * Temporary files older than a day, left by scripts which were killed, are deleted when the script starts
+ * <li>Charset(optional): The charset of the telnet sessions, e.g. UTF-8. Commands are encoded and 
+ * the output is decoded with it before it is written to System.out. If not given, the output is 
+ * read as ISO-8859-1 and streamed output is written unchanged
+ * <li>OutputDirectory(optional): If given, the output of each command is written to a file pr host 
+ * in this directory by a writer thread instead of to System.out, so a slow disk does not slow down 
+ * the sessions. StreamOutput is ignored
+ * <li>OutputFormat(optional): The format of the output files, raw for the output as it would be 
+ * printed or jsonl for one JSON object pr command with the command, its timing and status (default raw)
+ * <li>OutputCompress(optional): If true, the output files are compressed with gzip (default false)
+ * <li>OutputQueueBytes(optional): The maximum size of the output waiting to be written. The sessions 
+ * wait when it is reached (default 67108864)
+ * <li>MaxSessions(optional): The maximum number of open sessions of the fleet, cluster and scheduler 
+ * scripts, and of the blocks of a command file. Further sessions wait for a session to close, 
+ * taking turns between the hosts
+ * <li>MaxSessionsPerHost(optional): The maximum number of open sessions to each host
+ * <li>RateLimit.&lt;CLASS&gt;(optional): Limits the rate of a class of commands on each host, on the 
+ * form permits/seconds followed by the comma separated verbs of the class, e.g. 
+ * RateLimit.apps=2/60 STOP_APP,START_APP. LOGIN is the verb of the login
+ * <li>AdmissionMaxWaitMS(optional): How long a session or command waits for MaxSessions, 
+ * MaxSessionsPerHost or its rate limit before it times out (default 300000)
+ * <li>CacheTTLMS.&lt;VERB&gt;(optional): Caches the output of a read-only verb for this many 
+ * milliseconds pr host, server node and command, e.g. CacheTTLMS.INFO=30000. Concurrent identical 
+ * commands are sent once. Only used when the output is neither streamed, spilled nor pipelined
+ * <li>CacheMaxEntries(optional): The maximum number of cached outputs (default 1000)
+ * <li>CacheSessionVerbs(optional): Comma separated verbs which only change the state of the session. 
+ * Any other verb which is not cached drops the cached output of its node (default JUMP,ADD)
+ * <li>StreamOutput(optional): If true, the output of each command is streamed as it arrives 
+ * instead of being collected into one String first (default false)
+ * <li>PipelineWindow(optional): The number of commands to send before waiting for the output 
+ * of the first (default 1, no pipelining). StreamOutput is ignored when pipelining
+ * <li>PipelineBarriers(optional): Comma separated commands which drain the pipeline (default JUMP,ADD)
+ * <li>PipelineLogin(optional): If true, username and password are sent without waiting for 
+ * their prompts (default false)
+ * <li>BlockParallelism(optional): The maximum number of blocks of the command file running at 
+ * the same time, each on its own session (default 4)
+ * <li>RecordDirectory(optional): If given, each session is recorded to a file in this directory with 
+ * the time of each chunk sent and received, which ReplayTelnetServer can replay. The password is 
+ * hidden. The sessions of the fleet and cluster scripts are not recorded
+ * <li>Aggregate(optional): If true, the output of INFO and HTTP_SESSIONS is parsed as it is processed, 
+ * and a report of the threads and memory of the nodes and the HTTP sessions pr application and pr node 
+ * is written to System.out when the script has completed. Streamed output is parsed as it arrives (default false)
+ * <li>AggregateTop(optional): The number of nodes in the top lists of the report (default 10)
+ * <li>MetricsFile(optional): File the metrics of the run are written to when the script has 
+ * completed: connect and login time, latency pr command verb, bytes read and timeouts pr host
+ * <li>MetricsFormat(optional): The format of the metrics file, prometheus or json (default prometheus)
  * </ul>
  * 
  * <p>The command file contains one command pr line which is to be executed. Note that 
@@ -30,6 +120,13 @@ import com.bouvet.thread.TimeoutException;
  * the command jump 0 on the first line. After the command file has been completed, or if an exception 
  * occurs the quit command is sent in order to terminate the telnet session.
  * 
+ * <p>The command file may instead consist of named blocks of commands, where a block may run 
+ * after other blocks, see CommandGraph. Each block runs on its own session as soon as the blocks 
+ * it runs after have completed, so independent blocks run at the same time. The output of each 
+ * block is written when the block has completed, with a header containing the block, followed by 
+ * a summary line pr block. If a block fails, the blocks after it are skipped, and the exit code of 
+ * the first failed block is used as the exit code of the program.
+ * 
  * <p>The output of the telnet session will be written to System.out, whilst error messages
  * will be redirected to System.err
  * 
@@ -39,7 +136,8 @@ import com.bouvet.thread.TimeoutException;
  * <li>-2: Not initialized (when calling run before init)
  * <li>-3: Invalid login to SAP J2EE
  * <li>-4: Connection failed to SAP J2EE. J2EE down, wrong connection properties or firewall blocking access
- * <li>-5: A timeout of one of the commands
+ * <li>-5: A session or command was not admitted within AdmissionMaxWaitMS
+ * <li>-54: A timeout of one of the commands
  * <li>-9: A general telnet exception(possibly called if the J2EE closes the connection)
  * <ul>
  * 
@@ -64,12 +162,85 @@ public class SAPTelnetScript {
 	protected final String USERNAME_PORT_NAME_PROPERTY="Username";
 	protected final String PASSWORD_PORT_NAME_PROPERTY="Password";
 	protected final String OPERATION_TIMEOUT_PORT_NAME_PROPERTY="OperationTimeoutMS";
+	protected final String CONNECT_TIMEOUT_PROPERTY="ConnectTimeoutMS";
+	protected final String CONNECT_ATTEMPT_DELAY_PROPERTY="ConnectAttemptDelayMS";
+	protected final String DNS_CACHE_TTL_PROPERTY="DnsCacheTTLMS";
+	protected final String TCP_NO_DELAY_PROPERTY="TcpNoDelay";
+	protected final String SOCKET_RECEIVE_BUFFER_PROPERTY="SocketReceiveBufferBytes";
+	protected final String SOCKET_SEND_BUFFER_PROPERTY="SocketSendBufferBytes";
+	protected final String STREAM_OUTPUT_PROPERTY="StreamOutput";
+	protected final String PIPELINE_WINDOW_PROPERTY="PipelineWindow";
+	protected final String PIPELINE_BARRIERS_PROPERTY="PipelineBarriers";
+	protected final String PIPELINE_LOGIN_PROPERTY="PipelineLogin";
+	protected final String BLOCK_PARALLELISM_PROPERTY="BlockParallelism";
+	protected final String METRICS_FILE_PROPERTY="MetricsFile";
+	protected final String METRICS_FORMAT_PROPERTY="MetricsFormat";
+	protected final String ADAPTIVE_TIMEOUTS_PROPERTY="AdaptiveTimeouts";
+	protected final String ADAPTIVE_TIMEOUT_FACTOR_PROPERTY="AdaptiveTimeoutFactor";
+	protected final String ADAPTIVE_TIMEOUT_MIN_PROPERTY="AdaptiveTimeoutMinMS";
+	protected final String TIMEOUT_HISTORY_FILE_PROPERTY="TimeoutHistoryFile";
+	protected final String SPILL_THRESHOLD_PROPERTY="SpillThresholdBytes";
+	protected final String SPILL_DIRECTORY_PROPERTY="SpillDirectory";
+	protected final String CHARSET_PROPERTY="Charset";
+	protected final String OUTPUT_DIRECTORY_PROPERTY="OutputDirectory";
+	protected final String OUTPUT_FORMAT_PROPERTY="OutputFormat";
+	protected final String OUTPUT_COMPRESS_PROPERTY="OutputCompress";
+	protected final String OUTPUT_QUEUE_BYTES_PROPERTY="OutputQueueBytes";
+	protected final String MAX_SESSIONS_PROPERTY="MaxSessions";
+	protected final String MAX_SESSIONS_PER_HOST_PROPERTY="MaxSessionsPerHost";
+	protected final String RATE_LIMIT_PROPERTY="RateLimit";
+	protected final String ADMISSION_MAX_WAIT_PROPERTY="AdmissionMaxWaitMS";
+	protected final String CACHE_TTL_PROPERTY="CacheTTLMS";
+	protected final String CACHE_MAX_ENTRIES_PROPERTY="CacheMaxEntries";
+	protected final String CACHE_SESSION_VERBS_PROPERTY="CacheSessionVerbs";
+	protected final String RECORD_DIRECTORY_PROPERTY="RecordDirectory";
+	protected final String AGGREGATE_PROPERTY="Aggregate";
+	protected final String AGGREGATE_TOP_PROPERTY="AggregateTop";
+	/*used by the scripts leasing their sessions from a pool*/
+	protected final String POOL_RESET_COMMAND_PROPERTY="PoolResetCommand";
 	
 	protected String serverHostName=null;
 	protected int telnetPort;
 	protected String username = null;
 	protected String password= null;
 	protected long operationTimeout= TelnetClient.DEFAULT_TIMEOUT_MS;
+	protected boolean streamOutput=false;
+	protected int pipelineWindow=1;
+	protected String[] pipelineBarriers=SAPTelnetClient.DEFAULT_BARRIER_COMMANDS;
+	protected boolean pipelineLogin=false;
+	protected int blockParallelism=CommandGraph.DEFAULT_PARALLELISM;
+	protected String metricsFile=null;
+	protected MetricsFormat metricsFormat=new PrometheusFormat();
+	/*The timeouts pr verb, or null if all commands use the operation timeout*/
+	protected TimeoutPolicy timeoutPolicy=null;
+	protected String timeoutHistoryFile=null;
+	/*The heap size of an output buffer, or -1 to collect the output into a String*/
+	protected int spillThreshold=-1;
+	protected File spillDirectory=null;
+	/*The charset of the sessions, or null if not configured*/
+	protected Charset charset=null;
+	/*The writer of the output files, or null if the output is written to System.out*/
+	protected AsyncResultWriter resultWriter=null;
+	/*The command being run, when it was started in milliseconds since the epoch and the 
+	time of the last completed command in nanoseconds. When pipelining, the time of a command 
+	is measured from the completion of the command before it*/
+	protected String currentCommand=null;
+	protected long commandStartTime;
+	protected long commandTime;
+	private long commandStartNs;
+	/*Limits the sessions and the rate of the commands, or null*/
+	protected AdmissionController admission=null;
+	/*Caches the output of read-only commands, or null*/
+	protected CommandCache commandCache=null;
+	/*Aggregates the records parsed from the output, or null*/
+	protected FleetAggregator aggregator=null;
+	/*Pool to lease sessions from, or null*/
+	protected SAPTelnetClientPool clientPool=null;
+	/*The state shared with the script running this one, or null*/
+	protected ScriptContext context=null;
+	/*Where the output and the error messages of the script are written*/
+	protected PrintStream out=System.out;
+	protected PrintStream err=System.err;
 	
 	/**
 	 * Main method which starts the SAPTelnetScript program
@@ -116,47 +287,53 @@ public class SAPTelnetScript {
 	 * @throws InitFailedException if the initialization fails
 	 */
 	public void init() throws InitFailedException {
-		//open command reader
+		//open command reader, unless the script has no command file
 		try {
-			File commandFile = new File (strCommandFile);
-			if (commandFile == null || !commandFile.exists() || !commandFile.canRead()){
-				throw new IOException ("Command file is null or doesn't exist or cannot be read");
+			if(strCommandFile==null){
+				commandReader=null;
+			}else {
+				File commandFile = new File (strCommandFile);
+				if (commandFile == null || !commandFile.exists() || !commandFile.canRead()){
+					throw new IOException ("Command file is null or doesn't exist or cannot be read");
+				}
+				commandReader=new BufferedReader(new FileReader(commandFile));
 			}
-			commandReader=new BufferedReader(new FileReader(commandFile));
 		}catch (IOException e){
 			initFailed=true;
 			throw new InitFailedException("Problems command file from "+strCommandFile);
 		}
-		//open options properties file
-		try {
-			File optionsFile = new File (strOptionsFile);
-			if (optionsFile == null || !optionsFile.exists() || !optionsFile.canRead()){
-				throw new IOException ("Options file is null or doesn't exist or cannot be read");
+		//use the options of the context, which are already checked, or open options properties file
+		if(context!=null && context.getOptions()!=null){
+			optionsProperties=context.getOptions();
+		}else {
+			try {
+				File optionsFile = new File (strOptionsFile);
+				if (optionsFile == null || !optionsFile.exists() || !optionsFile.canRead()){
+					throw new IOException ("Options file is null or doesn't exist or cannot be read");
+				}
+				InputStream propertiesInputStream=new FileInputStream(optionsFile);
+				optionsProperties=new Properties();
+				optionsProperties.load(propertiesInputStream);
+			}catch (IOException e){
+				initFailed=true;
+				throw new InitFailedException("Problems reading options from "+strOptionsFile);
 			}
-			InputStream propertiesInputStream=new FileInputStream(optionsFile);
-			optionsProperties=new Properties();
-			optionsProperties.load(propertiesInputStream);
-		}catch (IOException e){
-			initFailed=true;
-			throw new InitFailedException("Problems reading options from "+strOptionsFile);
-		}
 
-		//can assume both command file and properties are loaded at this moment
-		
-		if(!optionsProperties.containsKey(SERVER_HOST_NAME_PROPERTY) || 
-			!optionsProperties.containsKey(USERNAME_PORT_NAME_PROPERTY) ||
-			!optionsProperties.containsKey(PASSWORD_PORT_NAME_PROPERTY) ||
-			!optionsProperties.containsKey(TELNET_PORT_NAME_PROPERTY)) {
-			
-			String msg = "One or more mandatory properties are missing in the options file."+
-				"\n"+SERVER_HOST_NAME_PROPERTY+": "   + (optionsProperties.containsKey(SERVER_HOST_NAME_PROPERTY)?"OK":"MISSING")+
-				"\n"+USERNAME_PORT_NAME_PROPERTY+": " + (optionsProperties.containsKey(USERNAME_PORT_NAME_PROPERTY)?"OK":"MISSING")+
-				"\n"+PASSWORD_PORT_NAME_PROPERTY+": " + (optionsProperties.containsKey(PASSWORD_PORT_NAME_PROPERTY)?"OK":"MISSING")+
-				"\n"+TELNET_PORT_NAME_PROPERTY+ ": "  + (optionsProperties.containsKey(TELNET_PORT_NAME_PROPERTY)?"OK":"MISSING");
+			//can assume both command file and properties are loaded at this moment
 			
-			initFailed=true;
-			throw new InitFailedException(msg);	
-		}  
+			String[] mandatoryProperties=getMandatoryProperties();
+			boolean missingProperty=false;
+			String msg = "One or more mandatory properties are missing in the options file.";
+			for (int i = 0; i < mandatoryProperties.length; i++) {
+				boolean exists=optionsProperties.containsKey(mandatoryProperties[i]);
+				missingProperty|=!exists;
+				msg+="\n"+mandatoryProperties[i]+": "+(exists?"OK":"MISSING");
+			}
+			if(missingProperty) {
+				initFailed=true;
+				throw new InitFailedException(msg);	
+			}  
+		}
 		
 		//get properties
 		serverHostName=optionsProperties.getProperty(SERVER_HOST_NAME_PROPERTY);
@@ -164,12 +341,15 @@ public class SAPTelnetScript {
 		password=optionsProperties.getProperty(PASSWORD_PORT_NAME_PROPERTY);
 		String strTelnetPort = optionsProperties.getProperty(TELNET_PORT_NAME_PROPERTY);
 		
-		try {
-			telnetPort = Integer.parseInt(strTelnetPort);
-		}catch(NumberFormatException e){
-			initFailed=true;
-			throw new InitFailedException("Telnet port is not an integer, but "+strTelnetPort);
-		} 
+		//only missing if not mandatory, e.g. for the script server
+		if(strTelnetPort!=null){
+			try {
+				telnetPort = Integer.parseInt(strTelnetPort);
+			}catch(NumberFormatException e){
+				initFailed=true;
+				throw new InitFailedException("Telnet port is not an integer, but "+strTelnetPort);
+			}
+		}
 		
 		//optional property
 		if(optionsProperties.containsKey(OPERATION_TIMEOUT_PORT_NAME_PROPERTY)){
@@ -178,24 +358,613 @@ public class SAPTelnetScript {
 				operationTimeout = Long.parseLong(strOperationTimeout);
 			}catch(NumberFormatException e){
 				operationTimeout=TelnetClient.DEFAULT_TIMEOUT_MS;
-				System.err.println(OPERATION_TIMEOUT_PORT_NAME_PROPERTY + " is not a valid long value. Therefore using default value which is"+operationTimeout+ " milliseconds");
+				err.println(OPERATION_TIMEOUT_PORT_NAME_PROPERTY + " is not a valid long value. Therefore using default value which is"+operationTimeout+ " milliseconds");
 			} 
 			
 		}
+		streamOutput=Boolean.valueOf(optionsProperties.getProperty(STREAM_OUTPUT_PROPERTY,"false").trim()).booleanValue();
+		pipelineLogin=Boolean.valueOf(optionsProperties.getProperty(PIPELINE_LOGIN_PROPERTY,"false").trim()).booleanValue();
+		if(optionsProperties.containsKey(PIPELINE_WINDOW_PROPERTY)){
+			String strPipelineWindow = optionsProperties.getProperty(PIPELINE_WINDOW_PROPERTY);
+			try {
+				pipelineWindow = Math.max(1,Integer.parseInt(strPipelineWindow.trim()));
+			}catch(NumberFormatException e){
+				err.println(PIPELINE_WINDOW_PROPERTY + " is not a valid integer. Therefore pipelining is not used");
+			} 
+		}
+		if(optionsProperties.containsKey(PIPELINE_BARRIERS_PROPERTY)){
+			pipelineBarriers=optionsProperties.getProperty(PIPELINE_BARRIERS_PROPERTY).split(",");
+		}
+		if(optionsProperties.containsKey(BLOCK_PARALLELISM_PROPERTY)){
+			String strParallelism = optionsProperties.getProperty(BLOCK_PARALLELISM_PROPERTY);
+			try {
+				blockParallelism = Math.max(1,Integer.parseInt(strParallelism.trim()));
+			}catch(NumberFormatException e){
+				err.println(BLOCK_PARALLELISM_PROPERTY + " is not a valid integer. Therefore using default value which is "+blockParallelism);
+			} 
+		}
+		metricsFile=optionsProperties.getProperty(METRICS_FILE_PROPERTY);
+		if(optionsProperties.containsKey(METRICS_FORMAT_PROPERTY)){
+			try {
+				metricsFormat=MetricsRegistry.getFormat(optionsProperties.getProperty(METRICS_FORMAT_PROPERTY));
+			}catch (IllegalArgumentException e){
+				err.println(e.getMessage()+". Therefore using the prometheus format");
+			}
+		}
+		if(optionsProperties.containsKey(SPILL_THRESHOLD_PROPERTY)){
+			String strSpillThreshold = optionsProperties.getProperty(SPILL_THRESHOLD_PROPERTY);
+			try {
+				spillThreshold = Math.max(0,Integer.parseInt(strSpillThreshold.trim()));
+			}catch(NumberFormatException e){
+				err.println(SPILL_THRESHOLD_PROPERTY + " is not a valid integer. Therefore the output is not spilled");
+			} 
+		}
+		if(optionsProperties.containsKey(SPILL_DIRECTORY_PROPERTY)){
+			spillDirectory=new File(optionsProperties.getProperty(SPILL_DIRECTORY_PROPERTY).trim());
+		}
+		if(context==null || context.getOptions()==null){
+			//the scripts sharing the options spill to the directory the owner has swept already
+			SpillableOutputBuffer.sweepStaleFiles(spillDirectory);
+		}
+		if(optionsProperties.containsKey(CHARSET_PROPERTY)){
+			String strCharset = optionsProperties.getProperty(CHARSET_PROPERTY).trim();
+			try {
+				charset=Charset.forName(strCharset);
+			}catch(IllegalArgumentException e){
+				err.println(CHARSET_PROPERTY + " "+strCharset+" is not a supported charset. Therefore using ISO-8859-1");
+			}
+		}
+		if(context==null){
+			initTimeoutPolicy();
+			if(optionsProperties.containsKey(RECORD_DIRECTORY_PROPERTY)){
+				TelnetClient.setRecordDirectory(new File(optionsProperties.getProperty(RECORD_DIRECTORY_PROPERTY).trim()));
+			}
+			initConnector();
+			initAdmissionController();
+			initCommandCache();
+		}else {
+			//the settings of the JVM are left to the script owning the context
+			timeoutPolicy=context.getTimeoutPolicy();
+			admission=context.getAdmissionController();
+			commandCache=context.getCommandCache();
+			setClientPool(context.getClientPool());
+		}
+		if(context!=null && context.getResultWriter()!=null){
+			resultWriter=context.getResultWriter();
+		}else if(optionsProperties.containsKey(OUTPUT_DIRECTORY_PROPERTY)){
+			initResultWriter();
+		}
+		if(context!=null && context.getAggregator()!=null){
+			aggregator=context.getAggregator();
+		}else {
+			initAggregator();
+		}
 		isInitialized=true;
 	}
 
+	/**
+	 * Configure the shared connector of the sessions with the connect options which are given
+	 */
+	protected void initConnector(){
+		TelnetConnector connector=TelnetConnector.getSharedInstance();
+		long connectTimeout=getLongProperty(CONNECT_TIMEOUT_PROPERTY);
+		if(connectTimeout>=0){
+			connector.setConnectTimeout(connectTimeout);
+		}
+		long attemptDelay=getLongProperty(CONNECT_ATTEMPT_DELAY_PROPERTY);
+		if(attemptDelay>=0){
+			connector.setAttemptDelay(attemptDelay);
+		}
+		long dnsCacheTtl=getLongProperty(DNS_CACHE_TTL_PROPERTY);
+		if(dnsCacheTtl>=0){
+			connector.setDnsCacheTtl(dnsCacheTtl);
+		}
+		if(optionsProperties.containsKey(TCP_NO_DELAY_PROPERTY)){
+			connector.setTcpNoDelay(Boolean.valueOf(optionsProperties.getProperty(TCP_NO_DELAY_PROPERTY).trim()).booleanValue());
+		}
+		long receiveBuffer=getLongProperty(SOCKET_RECEIVE_BUFFER_PROPERTY);
+		if(receiveBuffer>=0){
+			connector.setReceiveBufferSize((int)Math.min(Integer.MAX_VALUE,receiveBuffer));
+		}
+		long sendBuffer=getLongProperty(SOCKET_SEND_BUFFER_PROPERTY);
+		if(sendBuffer>=0){
+			connector.setSendBufferSize((int)Math.min(Integer.MAX_VALUE,sendBuffer));
+		}
+	}
+
+	/**
+	 * Get an optional non-negative long property
+	 * 
+	 * @param property The name of the property
+	 * @return The value, or -1 if not given or invalid
+	 */
+	private long getLongProperty(String property){
+		if(!optionsProperties.containsKey(property)){
+			return -1;
+		}
+		try {
+			long value=Long.parseLong(optionsProperties.getProperty(property).trim());
+			if(value>=0){
+				return value;
+			}
+		}catch(NumberFormatException e){
+			//reported below
+		}
+		err.println(property + " is not a valid long value. Therefore using the default value");
+		return -1;
+	}
+
+	/**
+	 * Create the command cache if the options file gives a time to live for any verb
+	 */
+	protected void initCommandCache(){
+		int maxEntries=CommandCache.DEFAULT_MAX_ENTRIES;
+		if(optionsProperties.containsKey(CACHE_MAX_ENTRIES_PROPERTY)){
+			String strMaxEntries = optionsProperties.getProperty(CACHE_MAX_ENTRIES_PROPERTY);
+			try {
+				maxEntries=Math.max(1,Integer.parseInt(strMaxEntries.trim()));
+			}catch(NumberFormatException e){
+				err.println(CACHE_MAX_ENTRIES_PROPERTY + " is not a valid integer. Therefore using default value which is "+maxEntries);
+			}
+		}
+		CommandCache cache=new CommandCache(maxEntries);
+		boolean used=false;
+		String verbPrefix=CACHE_TTL_PROPERTY+".";
+		for (Iterator<String> it = optionsProperties.stringPropertyNames().iterator(); it.hasNext();) {
+			String property = it.next();
+			if(!property.startsWith(verbPrefix)){
+				continue;
+			}
+			String strTtl = optionsProperties.getProperty(property);
+			try {
+				long ttl=Long.parseLong(strTtl.trim());
+				if(ttl>0){
+					cache.setTtl(property.substring(verbPrefix.length()),ttl);
+					used=true;
+				}
+			}catch(NumberFormatException e){
+				err.println(property + " is not a valid long value. Therefore the output is not cached");
+			}
+		}
+		if(optionsProperties.containsKey(CACHE_SESSION_VERBS_PROPERTY)){
+			cache.setSessionVerbs(optionsProperties.getProperty(CACHE_SESSION_VERBS_PROPERTY).split(","));
+		}
+		commandCache=used?cache:null;
+	}
+
+	/**
+	 * Create the aggregator if Aggregate is true
+	 */
+	protected void initAggregator(){
+		if(!Boolean.valueOf(optionsProperties.getProperty(AGGREGATE_PROPERTY,"false").trim()).booleanValue()){
+			return;
+		}
+		int top=FleetAggregator.DEFAULT_TOP;
+		if(optionsProperties.containsKey(AGGREGATE_TOP_PROPERTY)){
+			String strTop = optionsProperties.getProperty(AGGREGATE_TOP_PROPERTY);
+			try {
+				top=Math.max(0,Integer.parseInt(strTop.trim()));
+			}catch(NumberFormatException e){
+				err.println(AGGREGATE_TOP_PROPERTY + " is not a valid integer. Therefore using default value which is "+top);
+			}
+		}
+		aggregator=new FleetAggregator(top);
+	}
+
+	/**
+	 * Create the admission controller if the options file has session or rate limits
+	 */
+	protected void initAdmissionController(){
+		AdmissionController controller=new AdmissionController();
+		boolean used=false;
+		if(optionsProperties.containsKey(MAX_SESSIONS_PROPERTY)){
+			String strMaxSessions = optionsProperties.getProperty(MAX_SESSIONS_PROPERTY);
+			try {
+				controller.setMaxSessions(Math.max(1,Integer.parseInt(strMaxSessions.trim())));
+				used=true;
+			}catch(NumberFormatException e){
+				err.println(MAX_SESSIONS_PROPERTY + " is not a valid integer. Therefore the sessions are not limited");
+			}
+		}
+		if(optionsProperties.containsKey(MAX_SESSIONS_PER_HOST_PROPERTY)){
+			String strMaxSessions = optionsProperties.getProperty(MAX_SESSIONS_PER_HOST_PROPERTY);
+			try {
+				controller.setMaxSessionsPerHost(Math.max(1,Integer.parseInt(strMaxSessions.trim())));
+				used=true;
+			}catch(NumberFormatException e){
+				err.println(MAX_SESSIONS_PER_HOST_PROPERTY + " is not a valid integer. Therefore the sessions pr host are not limited");
+			}
+		}
+		String classPrefix=RATE_LIMIT_PROPERTY+".";
+		for (Iterator<String> it = optionsProperties.stringPropertyNames().iterator(); it.hasNext();) {
+			String property = it.next();
+			if(!property.startsWith(classPrefix)){
+				continue;
+			}
+			//permits/seconds VERB,VERB
+			String[] tokens=optionsProperties.getProperty(property).trim().split("\\s+",2);
+			String[] rate=tokens[0].split("/");
+			try {
+				if(tokens.length!=2 || rate.length!=2){
+					throw new NumberFormatException();
+				}
+				controller.setRateLimit(property.substring(classPrefix.length()),tokens[1].split(","),Integer.parseInt(rate[0]),Long.parseLong(rate[1])*1000);
+				used=true;
+			}catch(NumberFormatException e){
+				err.println(property + " is not on the form permits/seconds VERB,VERB. Therefore the rate is not limited");
+			}catch(IllegalArgumentException e){
+				err.println(e.getMessage()+". Therefore the rate is not limited");
+			}
+		}
+		if(optionsProperties.containsKey(ADMISSION_MAX_WAIT_PROPERTY)){
+			String strMaxWait = optionsProperties.getProperty(ADMISSION_MAX_WAIT_PROPERTY);
+			try {
+				controller.setMaxWait(Long.parseLong(strMaxWait.trim()));
+			}catch(NumberFormatException e){
+				err.println(ADMISSION_MAX_WAIT_PROPERTY + " is not a valid long value. Therefore using default value which is "+controller.getMaxWait()+" milliseconds");
+			}
+		}
+		admission=used?controller:null;
+	}
+
+	/**
+	 * Connect a new session to the server, through the admission controller if the options
+	 * file has limits. The session gets the timeout policy and charset of the script.
+	 * 
+	 * @return The session, which is not logged in
+	 * @throws IOException If the session cannot connect
+	 * @throws TimeoutException If the admission controller does not admit the session in time
+	 */
+	protected SAPTelnetClient connect() throws IOException,TimeoutException{
+		SAPTelnetClient client;
+		if(admission!=null){
+			client=admission.connect(serverHostName,telnetPort,operationTimeout);
+		}else {
+			client=new SAPTelnetClient(serverHostName,telnetPort,operationTimeout);
+		}
+		client.setTimeoutPolicy(timeoutPolicy);
+		client.setCommandCache(commandCache);
+		if(charset!=null){
+			client.setCharset(charset);
+		}
+		return client;
+	}
+
+	/**
+	 * Create the writer of the output files and start its thread
+	 * 
+	 * @throws InitFailedException If the output directory cannot be created
+	 */
+	protected void initResultWriter() throws InitFailedException{
+		String strOutputDirectory=optionsProperties.getProperty(OUTPUT_DIRECTORY_PROPERTY).trim();
+		String strFormat=optionsProperties.getProperty(OUTPUT_FORMAT_PROPERTY,"raw");
+		ResultFormat format;
+		try {
+			format=AsyncResultWriter.getFormat(strFormat);
+		}catch(IllegalArgumentException e){
+			err.println(e.getMessage()+". Therefore using raw");
+			format=AsyncResultWriter.getFormat("raw");
+		}
+		boolean compress=Boolean.valueOf(optionsProperties.getProperty(OUTPUT_COMPRESS_PROPERTY,"false").trim()).booleanValue();
+		int queueBytes=AsyncResultWriter.DEFAULT_QUEUE_BYTES;
+		if(optionsProperties.containsKey(OUTPUT_QUEUE_BYTES_PROPERTY)){
+			String strQueueBytes = optionsProperties.getProperty(OUTPUT_QUEUE_BYTES_PROPERTY);
+			try {
+				queueBytes = Integer.parseInt(strQueueBytes.trim());
+			}catch(NumberFormatException e){
+				err.println(OUTPUT_QUEUE_BYTES_PROPERTY + " is not a valid integer. Therefore using default value which is "+queueBytes);
+			}
+		}
+		try {
+			resultWriter=new AsyncResultWriter(new File(strOutputDirectory),format,compress,queueBytes);
+		}catch (IOException e){
+			initFailed=true;
+			throw new InitFailedException("Problems creating the output directory "+strOutputDirectory);
+		}
+	}
+
+	/**
+	 * Create the timeout policy if the options file has timeouts pr verb or adaptive timeouts
+	 */
+	protected void initTimeoutPolicy(){
+		TimeoutPolicy policy=new TimeoutPolicy();
+		boolean used=false;
+		String verbPrefix=OPERATION_TIMEOUT_PORT_NAME_PROPERTY+".";
+		for (Iterator<String> it = optionsProperties.stringPropertyNames().iterator(); it.hasNext();) {
+			String property = it.next();
+			if(!property.startsWith(verbPrefix)){
+				continue;
+			}
+			String strVerbTimeout=optionsProperties.getProperty(property);
+			try {
+				policy.setTimeout(property.substring(verbPrefix.length()),Long.parseLong(strVerbTimeout.trim()));
+				used=true;
+			}catch(NumberFormatException e){
+				err.println(property + " is not a valid long value. Therefore using "+OPERATION_TIMEOUT_PORT_NAME_PROPERTY);
+			}
+		}
+		if(Boolean.valueOf(optionsProperties.getProperty(ADAPTIVE_TIMEOUTS_PROPERTY,"false").trim()).booleanValue()){
+			double factor=TimeoutPolicy.DEFAULT_FACTOR;
+			long minTimeout=TimeoutPolicy.DEFAULT_MIN_TIMEOUT_MS;
+			if(optionsProperties.containsKey(ADAPTIVE_TIMEOUT_FACTOR_PROPERTY)){
+				try {
+					factor=Double.parseDouble(optionsProperties.getProperty(ADAPTIVE_TIMEOUT_FACTOR_PROPERTY).trim());
+				}catch(NumberFormatException e){
+					err.println(ADAPTIVE_TIMEOUT_FACTOR_PROPERTY + " is not a valid number. Therefore using default value which is "+factor);
+				}
+			}
+			if(optionsProperties.containsKey(ADAPTIVE_TIMEOUT_MIN_PROPERTY)){
+				try {
+					minTimeout=Long.parseLong(optionsProperties.getProperty(ADAPTIVE_TIMEOUT_MIN_PROPERTY).trim());
+				}catch(NumberFormatException e){
+					err.println(ADAPTIVE_TIMEOUT_MIN_PROPERTY + " is not a valid long value. Therefore using default value which is "+minTimeout+" milliseconds");
+				}
+			}
+			policy.setAdaptive(factor,minTimeout);
+			used=true;
+		}
+		timeoutHistoryFile=optionsProperties.getProperty(TIMEOUT_HISTORY_FILE_PROPERTY);
+		if(timeoutHistoryFile!=null){
+			try {
+				policy.load(new File(timeoutHistoryFile));
+			}catch (IOException e){
+				err.println("Could not load the latency history: "+e.getMessage()+". Therefore starting without history");
+			}
+		}
+		timeoutPolicy=used?policy:null;
+	}
+
+	/**
+	 * Get the names of the properties which must exist in the options file
+	 * 
+	 * @return The mandatory property names
+	 */
+	protected String[] getMandatoryProperties(){
+		return new String[]{SERVER_HOST_NAME_PROPERTY,USERNAME_PORT_NAME_PROPERTY,PASSWORD_PORT_NAME_PROPERTY,TELNET_PORT_NAME_PROPERTY};
+	}
+
 	/**
 	 * Method which will be called for post processing of the output from
 	 * the telnet script.
 	 * 
-	 * Default behaviour is to print out the output to System.out
+	 * Default behaviour is to print out the output to System.out, or to write it to the
+	 * output file of the host if OutputDirectory is given
 	 * 
 	 * @param command The last command issued
 	 * @param output The output from the telnet session
 	 */
 	protected void postProcessResult(String command,String output){
-		System.out.print(output);
+		aggregate(getResultHost(),command,output);
+		if(resultWriter!=null){
+			submitResult(getResultHost(),command,output.getBytes(getOutputCharset()),commandStartTime,commandTime,CommandResult.STATUS_OK);
+			return;
+		}
+		out.print(output);
+	}
+	
+	/**
+	 * Method which will be called for post processing of the output from
+	 * the telnet script when the output is collected in spillable buffers.
+	 * 
+	 * Default behaviour is to write the output and the prompt to System.out, or to the 
+	 * output file of the host if OutputDirectory is given
+	 * 
+	 * @param command The last command issued
+	 * @param output The output from the telnet session, without the prompt. The 
+	 * buffer is released when the method returns
+	 * @throws IOException If the output cannot be read
+	 */
+	protected void postProcessResult(String command,SpillableOutputBuffer output) throws IOException{
+		aggregate(getResultHost(),command,output);
+		if(resultWriter!=null){
+			//the buffer is released when the method returns, so the output is copied
+			byte[] prompt=SAPTelnetClient.PROMPT.getBytes(getOutputCharset());
+			byte[] bytes=Arrays.copyOf(output.toByteArray(),output.length()+prompt.length);
+			System.arraycopy(prompt,0,bytes,output.length(),prompt.length);
+			submitResult(getResultHost(),command,bytes,commandStartTime,commandTime,CommandResult.STATUS_OK);
+			return;
+		}
+		writeOutput(output);
+		out.print(SAPTelnetClient.PROMPT);
+	}
+
+	/**
+	 * Parse the output of a command for the aggregator, if Aggregate is true and the
+	 * output of the command is parsed. A failure to parse is reported to System.err.
+	 * 
+	 * @param source Where the output comes from, e.g. sap1:50008 or sap1:50008/3
+	 * @param command The command
+	 * @param output The output, which is not changed
+	 */
+	protected void aggregate(String source,String command,SpillableOutputBuffer output){
+		LineParser parser=createParser(source,command);
+		if(parser==null){
+			return;
+		}
+		try {
+			output.writeTo(parser);
+			parser.finish();
+		}catch (IOException e){
+			err.println("Could not parse the output of "+command+" on "+source+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Parse the decoded output of a command for the aggregator, if Aggregate is true and 
+	 * the output of the command is parsed
+	 * 
+	 * @param source Where the output comes from
+	 * @param command The command
+	 * @param output The output
+	 */
+	protected void aggregate(String source,String command,String output){
+		LineParser parser=createParser(source,command);
+		if(parser==null){
+			return;
+		}
+		parser.parse(output);
+		try {
+			parser.finish();
+		}catch (IOException e){
+			err.println("Could not parse the output of "+command+" on "+source+": "+e.getMessage());
+		}
+	}
+
+	private LineParser createParser(String source,String command){
+		if(aggregator==null){
+			return null;
+		}
+		return OutputParsers.create(command,source,getOutputCharset(),aggregator);
+	}
+
+	/**
+	 * Write the report of the aggregator to System.out, if Aggregate is true and the aggregator
+	 * is not shared through the context
+	 */
+	protected void writeAggregate(){
+		if(aggregator!=null && (context==null || aggregator!=context.getAggregator())){
+			aggregator.write(out);
+		}
+	}
+
+	/**
+	 * Queue the result of a command to be written to the output file of its host
+	 * 
+	 * @param host The host, which names the file
+	 * @param command The command
+	 * @param output The output, which must not be changed afterwards
+	 * @param startTime When the command was sent, in milliseconds since the epoch
+	 * @param durationNs The time of the command
+	 * @param status CommandResult.STATUS_OK, or the exit code of a failed command
+	 */
+	protected void submitResult(String host,String command,byte[] output,long startTime,long durationNs,int status){
+		resultWriter.submit(new CommandResult(host,command,output,getOutputCharset(),startTime,durationNs,status));
+	}
+
+	/**
+	 * Queue a failed command to be written to the output file of the host, if OutputDirectory
+	 * is given. The output is the error message.
+	 * 
+	 * @param host The host, which names the file
+	 * @param command The command which failed
+	 * @param e The failure
+	 * @return The failure, to be thrown
+	 */
+	protected TelnetException submitFailure(String host,String command,TelnetException e){
+		if(resultWriter!=null){
+			long durationNs=System.nanoTime()-commandStartNs;
+			submitResult(host,command,(e.getMessage()+"\n").getBytes(getOutputCharset()),commandStartTime,durationNs,e.getExitCode());
+		}
+		return e;
+	}
+
+	/**
+	 * Get the host of the output file of run()
+	 * 
+	 * @return
+	 */
+	protected String getResultHost(){
+		return serverHostName+":"+telnetPort;
+	}
+
+	/**
+	 * Get the charset the output is decoded with
+	 * 
+	 * @return Charset, or ISO-8859-1 if not given
+	 */
+	protected Charset getOutputCharset(){
+		return charset!=null?charset:OutputDecoder.ISO_8859_1;
+	}
+
+	/**
+	 * Record that a command is sent
+	 */
+	private void startCommand(String command){
+		currentCommand=command;
+		commandStartTime=System.currentTimeMillis();
+		commandStartNs=System.nanoTime();
+	}
+
+	/**
+	 * Record that the output of the current command is complete
+	 */
+	private void completeCommand(){
+		commandTime=System.nanoTime()-commandStartNs;
+	}
+	
+	/**
+	 * Write the output in a buffer to System.out, decoded with the charset if one is configured
+	 * 
+	 * @param output The output
+	 * @throws IOException If the output cannot be read
+	 */
+	protected void writeOutput(SpillableOutputBuffer output) throws IOException{
+		OutputSink sink=createSystemOutSink();
+		output.writeTo(sink);
+		if(sink instanceof DecodingOutputSink){
+			((DecodingOutputSink)sink).flush();
+		}
+	}
+	
+	/**
+	 * Create a sink writing to System.out, which decodes the output if a charset is configured
+	 * 
+	 * @return
+	 */
+	protected OutputSink createSystemOutSink(){
+		if(charset==null){
+			return new OutputStreamSink(out);
+		}
+		return new DecodingOutputSink(new OutputDecoder(charset),new OutputStreamWriter(out,Charset.defaultCharset()));
+	}
+	
+	/**
+	 * Create the sink which receives the output of a command when the output
+	 * is streamed.
+	 * 
+	 * Default behaviour is to write the output to System.out, and to parse it for the 
+	 * aggregator as it arrives if Aggregate is true and the output of the command is parsed
+	 * 
+	 * @param command The command which is about to be issued
+	 * @return The sink for the output of the command
+	 */
+	protected OutputSink createOutputSink(String command){
+		OutputSink sink=createSystemOutSink();
+		LineParser parser=createParser(getResultHost(),command);
+		if(parser==null){
+			return sink;
+		}
+		return new ParsingOutputSink(sink,parser);
+	}
+	
+	/**
+	 * Method which will be called when the output of a command has been streamed
+	 * to its sink.
+	 * 
+	 * Default behaviour is to finish the parsing of the output, and to print out the prompt 
+	 * to System.out, so that the output is the same as when it is not streamed
+	 * 
+	 * @param command The last command issued
+	 * @param sink The sink which received the output
+	 */
+	protected void postProcessStreamedResult(String command,OutputSink sink){
+		if(sink instanceof ParsingOutputSink){
+			ParsingOutputSink parsingSink=(ParsingOutputSink)sink;
+			try {
+				parsingSink.finish();
+			}catch (IOException e){
+				err.println("Could not parse the output of "+command+" on "+getResultHost()+": "+e.getMessage());
+			}
+			sink=parsingSink.sink;
+		}
+		if(sink instanceof DecodingOutputSink){
+			try {
+				((DecodingOutputSink)sink).flush();
+			}catch (IOException e){
+				err.println("Could not write the output of "+command+": "+e.getMessage());
+			}
+		}
+		out.print(SAPTelnetClient.PROMPT);
 	}
 	/**
 	 * Retrieve the next telnet command to be executed
@@ -219,6 +988,28 @@ public class SAPTelnetScript {
 		return null;
 	}
 
+	/**
+	 * Read all commands of the command file
+	 * 
+	 * @return The commands, without blank and commented lines
+	 * @throws TelnetException If the command file cannot be read
+	 */
+	protected List<String> readCommands() throws TelnetException{
+		List<String> commands=new ArrayList<String>();
+		if(commandReader==null){
+			return commands;
+		}
+		try {
+			String command;
+			while((command=nextCommand())!=null){
+				commands.add(command);
+			}
+		}catch (IOException e){
+			throw new TelnetException("Could not read the command file "+strCommandFile+": "+e.getMessage(),-9);
+		}
+		return commands;
+	}
+
 	
 
 	/**
@@ -233,44 +1024,382 @@ public class SAPTelnetScript {
 		if(!isInitialized){
 			throw new NotInitializedException("Cannot call run before init() is called on object");
 		}
+		final List<String> commands=readCommands();
+		if(CommandGraph.hasBlocks(commands)){
+			runGraph(CommandGraph.parse(commands));
+			return;
+		}
 		//Do the actual work
 		SAPTelnetClient client=null;
+		boolean completed=false;
+		startCommand("login");
 		try {	
-			System.out.println("Connecting to "+serverHostName+":"+telnetPort + " with user "+username);
-			client= new SAPTelnetClient(serverHostName,telnetPort,operationTimeout);
-			//login
-			String loginOutput=client.login(username,password);
-			postProcessResult("login",loginOutput);	
+			if(clientPool!=null){
+				out.println("Leasing session to "+serverHostName+":"+telnetPort + " with user "+username);
+				client=clientPool.lease(serverHostName,telnetPort,username,password,operationTimeout);
+				client.setTimeoutPolicy(timeoutPolicy);
+				client.setCommandCache(commandCache);
+				if(charset!=null){
+					client.setCharset(charset);
+				}
+			}else {
+				out.println("Connecting to "+serverHostName+":"+telnetPort + " with user "+username);
+				client=connect();
+				//login
+				String loginOutput=client.login(username,password,pipelineLogin);
+				completeCommand();
+				postProcessResult("login",loginOutput);	
+			}
 			
-			//get command and issue to telnet client
-			String command=null;
-			while((command=nextCommand())!=null){
-				String output=client.sendCommand(command);
-				postProcessResult(command,output);	
+			//issue the commands to telnet client
+			if(pipelineWindow>1){
+				client.setBarrierCommands(pipelineBarriers);
+				if(!commands.isEmpty()){
+					startCommand(commands.get(0));
+				}
+				client.sendCommands(commands,pipelineWindow,new CommandListener(){
+					private int done=0;
+					public void commandCompleted(String command, String output) {
+						completeCommand();
+						postProcessResult(command,output);
+						if(++done<commands.size()){
+							startCommand(commands.get(done));
+						}
+					}
+				});
+			}else {
+				for (Iterator<String> it = commands.iterator(); it.hasNext();) {
+					String command=it.next();
+					startCommand(command);
+					if(streamOutput && resultWriter==null){
+						OutputSink sink=createOutputSink(command);
+						client.sendCommand(command,sink);
+						postProcessStreamedResult(command,sink);
+					}else if(spillThreshold>=0){
+						SpillableOutputBuffer output=new SpillableOutputBuffer(spillThreshold,spillDirectory);
+						try {
+							client.sendCommand(command,output);
+							completeCommand();
+							postProcessResult(command,output);
+						}finally {
+							output.release();
+						}
+					}else {
+						String output=client.sendCommand(command);
+						completeCommand();
+						postProcessResult(command,output);	
+					}
+				}
 			}
+			completed=true;
 		} catch (TimeoutException t){
-			throw new TelnetException("A timeout occured during the running of the script. Message:"+t.getMessage(),-54);
+			throw submitFailure(getResultHost(),currentCommand,new TelnetException("A timeout occured during the running of the script. Message:"+t.getMessage(),-54));
 		}catch (ConnectException e){
-			throw new TelnetException("Could not connect to "+serverHostName + ":"+telnetPort + ". Either your server and port settings are wrong, the J2EE engine is down or a firewall is blocking your connection attempt",-4);
+			throw submitFailure(getResultHost(),currentCommand,new TelnetException("Could not connect to "+serverHostName + ":"+telnetPort + ". Either your server and port settings are wrong, the J2EE engine is down or a firewall is blocking your connection attempt",-4));
 		}catch (IOException e){
 			e.printStackTrace();
-			throw new TelnetException("An general IOException occured:"+e.getMessage(),-9);
+			throw submitFailure(getResultHost(),currentCommand,new TelnetException("An general IOException occured:"+e.getMessage(),-9));
 		}finally{
-			//logout client
-			String output;
-			try {
-				output = client.logout();
-				System.out.print("quit\n"+output);
-			//not handling exceptions while attempting to close telnet session
-			} catch (IOException e1) {
-				//e1.printStackTrace();
-			} catch (TimeoutException e1) {
-				//e1.printStackTrace();
+			if(client!=null && clientPool!=null){
+				//give the session back to the pool instead of logging out
+				if(completed){
+					clientPool.release(client);
+				}else {
+					clientPool.invalidate(client);
+				}
+			}else if(client!=null){
+				//logout client
+				String output;
+				try {
+					startCommand(SAPTelnetClient.LOGOUT_COMMAND);
+					output = client.logout();
+					completeCommand();
+					if(resultWriter!=null){
+						postProcessResult(SAPTelnetClient.LOGOUT_COMMAND,output);
+					}else {
+						out.print("quit\n"+output);
+					}
+				//not handling exceptions while attempting to close telnet session
+				} catch (IOException e1) {
+					//e1.printStackTrace();
+				} catch (TimeoutException e1) {
+					//e1.printStackTrace();
+				}
 			}
+			writeMetrics();
+			writeTimeoutHistory();
+			closeResultWriter();
+			writeAggregate();
 		}
 
 		
 	}
-		
 	
-}
\ No newline at end of file
+	/**
+	 * Run the blocks of the command file, each on its own session as soon as the blocks it
+	 * runs after have completed, with at most BlockParallelism blocks at the same time
+	 * 
+	 * @param graph The blocks
+	 * @throws TelnetException If one or more blocks failed
+	 */
+	protected void runGraph(CommandGraph graph) throws TelnetException{
+		List<CommandGraph.Block> blocks=graph.getBlocks();
+		out.println("Running "+blocks.size()+" blocks on "+serverHostName+":"+telnetPort+" with user "+username);
+		ExecutorService executor=Executors.newFixedThreadPool(Math.max(1,Math.min(blockParallelism,blocks.size())),new ThreadFactory(){
+			private int id=0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread=new Thread(r,"SAPTelnetScript:block"+(id++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			graph.run(executor,new CommandGraph.BlockRunner(){
+				public void runBlock(CommandGraph.Block block) throws TelnetException {
+					runGraphBlock(block);
+				}
+			});
+		}catch (InterruptedException e){
+			throw new TelnetException("Interrupted while waiting for the blocks to finish",-9);
+		}finally {
+			executor.shutdown();
+			writeMetrics();
+			writeTimeoutHistory();
+			closeResultWriter();
+		}
+
+		//write the result of each block
+		int failed=0;
+		int skipped=0;
+		int exitCode=0;
+		out.print("\n");
+		for (Iterator<CommandGraph.Block> it = blocks.iterator(); it.hasNext();) {
+			CommandGraph.Block block = it.next();
+			if(block.getStatus()==CommandGraph.FAILED){
+				failed++;
+				if(exitCode==0){
+					exitCode=block.getFailure().getExitCode();
+				}
+				out.println("=== block "+block.getName()+" failed with error code "+block.getFailure().getExitCode());
+				err.println("Block "+block.getName()+" failed with error code "+block.getFailure().getExitCode()+": "+block.getFailure().getMessage());
+			}else if(block.getStatus()==CommandGraph.SKIPPED){
+				skipped++;
+				out.println("=== block "+block.getName()+" skipped");
+			}else {
+				out.println("=== block "+block.getName()+" OK");
+			}
+		}
+		writeAggregate();
+		if(failed>0){
+			throw new TelnetException(failed+" of "+blocks.size()+" blocks failed and "+skipped+" were skipped",exitCode);
+		}
+	}
+
+	/**
+	 * Run the commands of a block on its own session, and write its output with a header 
+	 * containing the block when it has completed. Called from the threads of runGraph.
+	 * 
+	 * @param block The block
+	 * @throws TelnetException If the block fails
+	 */
+	protected void runGraphBlock(CommandGraph.Block block) throws TelnetException{
+		ByteArrayOutputStream blockOutput=new ByteArrayOutputStream();
+		BlockScript script=new BlockScript(block);
+		script.setContext(createContext());
+		script.setOutput(new PrintStream(blockOutput),err);
+		try {
+			//the session of the block takes its slot from the admission controller when it connects
+			script.init();
+			script.run();
+		}finally {
+			script.out.flush();
+			//the output of the blocks running at the same time is not mixed
+			synchronized (out) {
+				out.print("\n=== block "+block.getName()+"\n");
+				byte[] bytes=blockOutput.toByteArray();
+				out.write(bytes,0,bytes.length);
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Write the metrics recorded so far to the metrics file, if one is configured.
+	 * Failing to write the metrics is reported to System.err, but does not fail the script.
+	 */
+	protected void writeMetrics(){
+		if(metricsFile==null || context!=null){
+			return;
+		}
+		try {
+			Writer writer=new OutputStreamWriter(new FileOutputStream(metricsFile),"UTF-8");
+			try {
+				metricsFormat.write(MetricsRegistry.getSharedInstance(),writer);
+			}finally {
+				writer.close();
+			}
+		}catch (IOException e){
+			err.println("Could not write metrics to "+metricsFile+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Write the queued output to the output files and close them, if OutputDirectory is given
+	 * and the writer is not shared through the context.
+	 * Failing to write the output is reported to System.err, but does not fail the script.
+	 */
+	protected void closeResultWriter(){
+		if(resultWriter==null || (context!=null && resultWriter==context.getResultWriter())){
+			return;
+		}
+		try {
+			resultWriter.close();
+		}catch (IOException e){
+			err.println("Could not write the output files: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Get the heap size of the output buffers of the fleet and cluster scripts
+	 * 
+	 * @return SpillThresholdBytes, or the default threshold if not given
+	 */
+	protected int getSpillThreshold(){
+		return spillThreshold>=0?spillThreshold:SpillableOutputBuffer.DEFAULT_SPILL_THRESHOLD;
+	}
+	
+	/**
+	 * Save the latency history of the timeout policy, if a history file is configured.
+	 * Failing to save it is reported to System.err, but does not fail the script.
+	 */
+	protected void writeTimeoutHistory(){
+		if(timeoutPolicy==null || timeoutHistoryFile==null || context!=null){
+			return;
+		}
+		try {
+			timeoutPolicy.save(new File(timeoutHistoryFile));
+		}catch (IOException e){
+			err.println("Could not save the latency history to "+timeoutHistoryFile+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Set a pool to lease logged in sessions from. Instead of connecting and logging in, 
+	 * run() leases a session from the pool and gives it back when the script has completed.
+	 * 
+	 * @param clientPool The pool, or null to connect a new session for each run
+	 */
+	public void setClientPool(SAPTelnetClientPool clientPool){
+		this.clientPool=clientPool;
+	}
+	
+	/**
+	 * Set the state to share with the script running this one. Must be called before init().
+	 * 
+	 * @param context The context, or null to create all the state from the options file
+	 * @see ScriptContext
+	 */
+	public void setContext(ScriptContext context){
+		this.context=context;
+	}
+	
+	/**
+	 * Create a context sharing the options, the timeout policy, the admission controller, the
+	 * command cache, the session pool, the output files and the aggregator of this script. 
+	 * The script must be initialized.
+	 * 
+	 * @return The context
+	 */
+	protected ScriptContext createContext(){
+		ScriptContext shared=new ScriptContext();
+		shared.setOptions(optionsProperties);
+		shared.setTimeoutPolicy(timeoutPolicy);
+		shared.setAdmissionController(admission);
+		shared.setCommandCache(commandCache);
+		shared.setClientPool(clientPool);
+		shared.setResultWriter(resultWriter);
+		shared.setAggregator(aggregator);
+		return shared;
+	}
+	
+	/**
+	 * Set where the output and the error messages of the script are written, instead of
+	 * System.out and System.err
+	 * 
+	 * @param out The output
+	 * @param err The error messages
+	 */
+	public void setOutput(PrintStream out,PrintStream err){
+		this.out=out;
+		this.err=err;
+	}
+
+	/**
+	 * Writes the streamed output of a command to its sink and passes it to a parser. A failure 
+	 * to parse is reported by finish(), and does not fail the command.
+	 */
+	private static class ParsingOutputSink implements OutputSink {
+		private final OutputSink sink;
+		private final LineParser parser;
+		private IOException failure=null;
+
+		ParsingOutputSink(OutputSink sink,LineParser parser){
+			this.sink=sink;
+			this.parser=parser;
+		}
+
+		public void output(byte[] buffer, int offset, int length) throws IOException {
+			sink.output(buffer,offset,length);
+			if(failure!=null){
+				return;
+			}
+			try {
+				parser.output(buffer,offset,length);
+			}catch (IOException e){
+				failure=e;
+			}
+		}
+
+		/**
+		 * End the output of the command, parsing the last line
+		 * 
+		 * @throws IOException If the output could not be parsed
+		 */
+		void finish() throws IOException{
+			if(failure!=null){
+				throw failure;
+			}
+			parser.finish();
+		}
+	}
+
+	/**
+	 * A block of the command file, running on its own session and sharing the options, the
+	 * timeout policy, the admission limits, the command cache, the aggregator and the output
+	 * files of the script through its context
+	 */
+	private class BlockScript extends SAPTelnetScript {
+		private final CommandGraph.Block block;
+
+		BlockScript(CommandGraph.Block block){
+			super(SAPTelnetScript.this.strOptionsFile,null);
+			this.block=block;
+		}
+
+		public void init() throws InitFailedException {
+			super.init();
+			serverHostName=SAPTelnetScript.this.serverHostName;
+			telnetPort=SAPTelnetScript.this.telnetPort;
+			username=SAPTelnetScript.this.username;
+			password=SAPTelnetScript.this.password;
+		}
+
+		protected List<String> readCommands(){
+			return new ArrayList<String>(block.getCommands());
+		}
+
+		protected String getResultHost(){
+			return SAPTelnetScript.this.getResultHost()+"/"+block.getName();
+		}
+	}
+}
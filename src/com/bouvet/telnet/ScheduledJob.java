@@ -0,0 +1,115 @@
+package com.bouvet.telnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recurring job of the SAPSchedulerDaemon: a command file which is run against a group
+ * of hosts at an interval.
+ *
+ * A job is one line of the schedule file on the form
+ * <pre>
+ * name intervalSeconds hosts commandFile
+ * </pre>
+ * where hosts is either an inventory file (see HostInventory) or comma separated hosts
+ * on the form host[:port]. E.g.
+ * <pre>
+ * info 60 landscape.txt info.txt
+ * gc 300 sap1:50008,sap2:50008 gc.txt
+ * </pre>
+ */
+public class ScheduledJob {
+	private final String name;
+	private final long interval;
+	private final List<TelnetHost> hosts;
+	private final String commandFile;
+
+	/**
+	 * Create a new job
+	 *
+	 * @param name The name of the job
+	 * @param interval The interval in milliseconds
+	 * @param hosts The hosts to run the command file against
+	 * @param commandFile The command file
+	 */
+	public ScheduledJob(String name,long interval,List<TelnetHost> hosts,String commandFile){
+		this.name=name;
+		this.interval=interval;
+		this.hosts=Collections.unmodifiableList(new ArrayList<TelnetHost>(hosts));
+		this.commandFile=commandFile;
+	}
+
+	/**
+	 * Parse a line of the schedule file
+	 *
+	 * @param line The line
+	 * @param defaultPort The port to use for hosts without an explicit port
+	 * @return The job
+	 * @throws IOException If the line is invalid or the inventory file cannot be read
+	 */
+	public static ScheduledJob parse(String line,int defaultPort) throws IOException{
+		String[] tokens=line.trim().split("\\s+");
+		if(tokens.length!=4){
+			throw new IOException("Invalid job, expected name intervalSeconds hosts commandFile: "+line);
+		}
+		long interval;
+		try {
+			interval=Long.parseLong(tokens[1])*1000;
+		}catch(NumberFormatException e){
+			throw new IOException("Invalid interval of job "+tokens[0]+": "+tokens[1]);
+		}
+		if(interval<=0){
+			throw new IOException("The interval of job "+tokens[0]+" must be positive: "+tokens[1]);
+		}
+		List<TelnetHost> hosts;
+		File inventoryFile=new File(tokens[2]);
+		if(inventoryFile.isFile()){
+			hosts=HostInventory.load(inventoryFile,defaultPort);
+		}else {
+			hosts=new ArrayList<TelnetHost>();
+			String[] values=tokens[2].split(",");
+			for (int i = 0; i < values.length; i++) {
+				if(values[i].trim().length()==0){
+					continue;
+				}
+				try {
+					hosts.add(TelnetHost.parse(values[i],defaultPort));
+				}catch(NumberFormatException e){
+					throw new IOException("Invalid port of job "+tokens[0]+": "+values[i]);
+				}
+			}
+		}
+		if(hosts.isEmpty()){
+			throw new IOException("No hosts found for job "+tokens[0]+": "+tokens[2]);
+		}
+		return new ScheduledJob(tokens[0],interval,hosts,tokens[3]);
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * Get the interval of the job
+	 *
+	 * @return The interval in milliseconds
+	 */
+	public long getInterval(){
+		return interval;
+	}
+
+	public List<TelnetHost> getHosts(){
+		return hosts;
+	}
+
+	public String getCommandFile(){
+		return commandFile;
+	}
+
+	public String toString(){
+		return name;
+	}
+}
@@ -0,0 +1,122 @@
+package com.bouvet.telnet;
+
+import java.util.Properties;
+
+import com.bouvet.telnet.output.AsyncResultWriter;
+import com.bouvet.telnet.parse.FleetAggregator;
+
+/**
+ * The state a script shares with the scripts it runs, e.g. the runs of the scheduler daemon,
+ * the scripts submitted to the script server and the blocks of a command file.
+ *
+ * A script given a context with setContext() takes the timeout policy, the admission
+ * controller, the command cache and the session pool of the context instead of creating its
+ * own. It leaves the settings of the JVM (the shared connector and the record directory), the
+ * metrics file and the latency history to the script owning the context.
+ *
+ * <p>If the context has options, the script uses them instead of reading its options file.
+ * If the context has a result writer or an aggregator, the script writes to them, and they
+ * are closed and written by the owner. Otherwise the script creates its own from its options.
+ *
+ * <p>See SAPTelnetScript.createContext() for a context sharing all of a script.
+ */
+public class ScriptContext {
+	private Properties options=null;
+	private TimeoutPolicy timeoutPolicy=null;
+	private AdmissionController admission=null;
+	private CommandCache commandCache=null;
+	private SAPTelnetClientPool clientPool=null;
+	private AsyncResultWriter resultWriter=null;
+	private FleetAggregator aggregator=null;
+
+	/**
+	 * Get the options of the scripts
+	 *
+	 * @return The parsed options, or null if each script reads its own options file
+	 */
+	public Properties getOptions(){
+		return options;
+	}
+
+	public void setOptions(Properties options){
+		this.options=options;
+	}
+
+	/**
+	 * Get the timeout policy of the scripts
+	 *
+	 * @return The policy, or null to use the timeout of the sessions for all commands
+	 */
+	public TimeoutPolicy getTimeoutPolicy(){
+		return timeoutPolicy;
+	}
+
+	public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy){
+		this.timeoutPolicy=timeoutPolicy;
+	}
+
+	/**
+	 * Get the admission controller of the scripts
+	 *
+	 * @return The controller, or null if the sessions are not limited
+	 */
+	public AdmissionController getAdmissionController(){
+		return admission;
+	}
+
+	public void setAdmissionController(AdmissionController admission){
+		this.admission=admission;
+	}
+
+	/**
+	 * Get the command cache of the scripts
+	 *
+	 * @return The cache, or null if the output is not cached
+	 */
+	public CommandCache getCommandCache(){
+		return commandCache;
+	}
+
+	public void setCommandCache(CommandCache commandCache){
+		this.commandCache=commandCache;
+	}
+
+	/**
+	 * Get the pool the scripts lease their sessions from
+	 *
+	 * @return The pool, or null if each script connects its own session
+	 */
+	public SAPTelnetClientPool getClientPool(){
+		return clientPool;
+	}
+
+	public void setClientPool(SAPTelnetClientPool clientPool){
+		this.clientPool=clientPool;
+	}
+
+	/**
+	 * Get the writer of the output files of the scripts
+	 *
+	 * @return The writer, or null if each script writes its output as given by its options
+	 */
+	public AsyncResultWriter getResultWriter(){
+		return resultWriter;
+	}
+
+	public void setResultWriter(AsyncResultWriter resultWriter){
+		this.resultWriter=resultWriter;
+	}
+
+	/**
+	 * Get the aggregator of the records parsed from the output of the scripts
+	 *
+	 * @return The aggregator, or null if each script aggregates as given by its options
+	 */
+	public FleetAggregator getAggregator(){
+		return aggregator;
+	}
+
+	public void setAggregator(FleetAggregator aggregator){
+		this.aggregator=aggregator;
+	}
+}
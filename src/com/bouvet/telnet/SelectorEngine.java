@@ -0,0 +1,238 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Engine which drives many NioTelnetSessions from a small, fixed number of
+ * event loop threads.
+ *
+ * Each event loop owns a Selector and the sessions assigned to it. Sessions are
+ * assigned to the event loops round robin when submitted. The number of threads
+ * is therefore independent of the number of hosts.
+ *
+ * All event loop threads are daemon threads. A RuntimeException from a session, or from
+ * the listener it calls, fails that session and the event loop goes on with the others.
+ */
+public class SelectorEngine {
+	public final static int DEFAULT_EVENT_LOOP_THREADS=2;
+	/*How often timeouts are checked when there is no activity*/
+	protected final static long SELECT_TIMEOUT_MS=100;
+	protected final static int READ_BUFFER_SIZE=16*1024;
+
+	private EventLoop[] eventLoops;
+	private int nextEventLoop=0;
+	private int activeSessions=0;
+	private volatile boolean running=false;
+
+	/**
+	 * Create a new SelectorEngine
+	 *
+	 * @param eventLoopThreads The number of event loop threads
+	 * @throws IOException If a Selector cannot be opened
+	 */
+	public SelectorEngine(int eventLoopThreads) throws IOException{
+		eventLoops=new EventLoop[Math.max(1,eventLoopThreads)];
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i]=new EventLoop(i);
+		}
+	}
+
+	/**
+	 * Create a new SelectorEngine with the default number of event loop threads
+	 *
+	 * @throws IOException If a Selector cannot be opened
+	 */
+	public SelectorEngine() throws IOException{
+		this(DEFAULT_EVENT_LOOP_THREADS);
+	}
+
+	/**
+	 * Start the event loop threads
+	 */
+	public synchronized void start(){
+		if(running){
+			return;
+		}
+		running=true;
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i].thread.start();
+		}
+	}
+
+	/**
+	 * Submit a session to the engine. The session starts connecting on
+	 * the next iteration of its event loop.
+	 *
+	 * @param session The session to run
+	 */
+	public void submit(NioTelnetSession session){
+		EventLoop eventLoop;
+		synchronized (this) {
+			activeSessions++;
+			eventLoop=eventLoops[nextEventLoop];
+			nextEventLoop=(nextEventLoop+1)%eventLoops.length;
+		}
+		eventLoop.newSessions.add(session);
+		eventLoop.selector.wakeup();
+	}
+
+	/**
+	 * Wait until all submitted sessions have finished
+	 *
+	 * @param msTimeout Maximum time to wait in milliseconds
+	 * @return true if all sessions have finished, false if the timeout occured first
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitCompletion(long msTimeout) throws InterruptedException{
+		long end=System.currentTimeMillis()+msTimeout;
+		while(activeSessions>0){
+			long remaining=end-System.currentTimeMillis();
+			if(remaining<=0){
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Stop the event loop threads. Sessions still running are closed and fail with 
+	 * exit code -9, as do sessions submitted but not yet started.
+	 */
+	public void shutdown(){
+		running=false;
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i].selector.wakeup();
+		}
+	}
+
+	private synchronized void sessionFinished(){
+		activeSessions--;
+		notifyAll();
+	}
+
+	/**
+	 * A single event loop with its own selector and thread
+	 */
+	private class EventLoop implements Runnable {
+		private Selector selector;
+		private Thread thread;
+		private Queue<NioTelnetSession> newSessions=new ConcurrentLinkedQueue<NioTelnetSession>();
+		private List<NioTelnetSession> sessions=new ArrayList<NioTelnetSession>();
+		/*one read buffer for all sessions of the loop, as reads are never concurrent*/
+		private ByteBuffer readBuffer=ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+		EventLoop(int id) throws IOException{
+			selector=Selector.open();
+			thread=new Thread(this,"SelectorEngine:"+id);
+			thread.setDaemon(true);
+		}
+
+		public void run() {
+			long lastTimeoutCheck=System.currentTimeMillis();
+			while(running){
+				try {
+					selector.select(SELECT_TIMEOUT_MS);
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+				NioTelnetSession session;
+				while((session=newSessions.poll())!=null){
+					sessions.add(session);
+					try {
+						session.register(selector);
+					}catch (RuntimeException e){
+						failed(session,e);
+					}
+				}
+				Iterator<SelectionKey> keys=selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key=keys.next();
+					keys.remove();
+					session=(NioTelnetSession)key.attachment();
+					try {
+						if(key.isValid() && key.isConnectable()){
+							session.handleConnect();
+						}
+						if(key.isValid() && key.isWritable()){
+							session.handleWrite();
+						}
+						if(key.isValid() && key.isReadable()){
+							session.handleRead(readBuffer);
+						}
+					}catch (IOException e){
+						session.failed(e);
+					}catch (RuntimeException e){
+						failed(session,e);
+					}
+				}
+				long now=System.currentTimeMillis();
+				boolean checkTimeouts=now-lastTimeoutCheck>=SELECT_TIMEOUT_MS;
+				if(checkTimeouts){
+					lastTimeoutCheck=now;
+				}
+				for (Iterator<NioTelnetSession> it = sessions.iterator(); it.hasNext();) {
+					session = it.next();
+					if(checkTimeouts){
+						try {
+							session.checkTimeout(now);
+						}catch (RuntimeException e){
+							failed(session,e);
+						}
+					}
+					if(session.isFinished()){
+						it.remove();
+						sessionFinished();
+					}
+				}
+			}
+			closeSessions();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Fail a session because of a RuntimeException. The listener of the session may 
+		 * throw again, but the session is finished in any case.
+		 */
+		private void failed(NioTelnetSession session,RuntimeException e){
+			try {
+				session.failed(e);
+			}catch (RuntimeException listenerFailure){
+				listenerFailure.printStackTrace();
+			}
+		}
+
+		/**
+		 * Close the sessions still running when the engine is shut down
+		 */
+		private void closeSessions(){
+			NioTelnetSession session;
+			while((session=newSessions.poll())!=null){
+				sessions.add(session);
+			}
+			for (Iterator<NioTelnetSession> it = sessions.iterator(); it.hasNext();) {
+				session = it.next();
+				try {
+					session.shutdown();
+				}catch (RuntimeException e){
+					e.printStackTrace();
+				}
+				it.remove();
+				sessionFinished();
+			}
+		}
+	}
+}
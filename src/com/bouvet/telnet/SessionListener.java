@@ -0,0 +1,27 @@
+package com.bouvet.telnet;
+
+/**
+ * Listener for the progress of a NioTelnetSession.
+ *
+ * The methods are called from the event loop thread of the session, so implementations
+ * should return quickly and must be thread safe if shared between sessions.
+ */
+public interface SessionListener {
+
+	/**
+	 * Called when a command has completed
+	 *
+	 * @param session The session the command was issued on
+	 * @param command The command issued, or login for the login dialogue
+	 * @param output The output from the telnet session. The buffer is reused for the next
+	 * command, so the output must be copied or written out before returning
+	 */
+	public void commandCompleted(NioTelnetSession session,String command,SpillableOutputBuffer output);
+
+	/**
+	 * Called once when the session has finished, either successfully or not.
+	 *
+	 * @param session The finished session. Use getExitCode() to check the result
+	 */
+	public void sessionFinished(NioTelnetSession session);
+}
@@ -0,0 +1,389 @@
+package com.bouvet.telnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Buffer for the output of commands which stays on the heap up to a threshold, and then
+ * spills to a memory-mapped temporary file. The heap used by a buffer is therefore bounded
+ * by the threshold however large the output gets.
+ *
+ * The buffer is an OutputSink, so it can be given to SAPTelnetClient.sendCommand(command,sink)
+ * to collect the output of a command. The output can be read through the CharSequence view,
+ * with one char pr byte as ISO-8859-1, or through getInputStream() and
+ * writeTo(). toString() copies the whole output to the heap, toString(charset) also decodes it
+ * with the charset of the session.
+ *
+ * The temporary file is deleted by release(). The mapped regions of the file are freed by
+ * the garbage collector, as they cannot be unmapped explicitly. Files left behind, e.g. by 
+ * a JVM which was killed, are deleted by sweepStaleFiles() when the next script starts.
+ *
+ * The buffer is not thread safe. It may be read by another thread after it has been written,
+ * if the threads synchronize, e.g. through the Completion of the command.
+ */
+public class SpillableOutputBuffer implements OutputSink, CharSequence {
+	public final static int DEFAULT_SPILL_THRESHOLD=1024*1024;
+	/*temporary files older than this are not used by any running script*/
+	public final static long STALE_FILE_AGE_MS=24*60*60*1000L;
+	protected final static String FILE_PREFIX="saptelnet";
+	protected final static String FILE_SUFFIX=".out";
+	protected final static Charset ISO_8859_1=OutputDecoder.ISO_8859_1;
+	/*size of each mapped region of the temporary file*/
+	private final static int SEGMENT_SIZE=8*1024*1024;
+	private final static int INITIAL_HEAP_SIZE=1024;
+	/*size of the chunks copied from the file by writeTo*/
+	private final static int COPY_SIZE=64*1024;
+
+	private final int spillThreshold;
+	private final File spillDirectory;
+	private byte[] heap;
+	private long size=0;
+	/*the temporary file and its mapped regions, or null if not spilled*/
+	private File spillFile;
+	private RandomAccessFile spillAccess;
+	private List<MappedByteBuffer> segments;
+
+	/**
+	 * Create a new buffer which spills to the default temporary directory
+	 *
+	 * @param spillThreshold The maximum number of bytes kept on the heap
+	 */
+	public SpillableOutputBuffer(int spillThreshold){
+		this(spillThreshold,null);
+	}
+
+	/**
+	 * Create a new buffer
+	 *
+	 * @param spillThreshold The maximum number of bytes kept on the heap
+	 * @param spillDirectory The directory of the temporary file, or null for the default
+	 * temporary directory
+	 */
+	public SpillableOutputBuffer(int spillThreshold,File spillDirectory){
+		this.spillThreshold=spillThreshold;
+		this.spillDirectory=spillDirectory;
+		heap=new byte[Math.max(0,Math.min(INITIAL_HEAP_SIZE,spillThreshold))];
+	}
+
+	public void output(byte[] buffer, int offset, int length) throws IOException {
+		if(segments==null && size+length<=spillThreshold){
+			if(size+length>heap.length){
+				heap=Arrays.copyOf(heap,(int)Math.min(spillThreshold,Math.max(size+length,heap.length*2L)));
+			}
+			System.arraycopy(buffer,offset,heap,(int)size,length);
+			size+=length;
+			return;
+		}
+		if(segments==null){
+			spill();
+		}
+		while(length>0){
+			int segmentOffset=(int)(size%SEGMENT_SIZE);
+			int chunk=Math.min(length,SEGMENT_SIZE-segmentOffset);
+			MappedByteBuffer segment=getSegment((int)(size/SEGMENT_SIZE));
+			segment.position(segmentOffset);
+			segment.put(buffer,offset,chunk);
+			offset+=chunk;
+			length-=chunk;
+			size+=chunk;
+		}
+	}
+
+	/**
+	 * Append text to the buffer, e.g. a header
+	 *
+	 * @param text The text, which is written as ISO-8859-1
+	 * @throws IOException If the text cannot be written to the temporary file
+	 */
+	public void append(String text) throws IOException{
+		byte[] bytes=text.getBytes(ISO_8859_1);
+		output(bytes,0,bytes.length);
+	}
+
+	/**
+	 * Move the output on the heap to a new temporary file
+	 */
+	private void spill() throws IOException{
+		spillFile=File.createTempFile(FILE_PREFIX,FILE_SUFFIX,spillDirectory);
+		spillAccess=new RandomAccessFile(spillFile,"rw");
+		segments=new ArrayList<MappedByteBuffer>();
+		byte[] onHeap=heap;
+		int heapSize=(int)size;
+		heap=null;
+		size=0;
+		output(onHeap,0,heapSize);
+	}
+
+	private MappedByteBuffer getSegment(int index) throws IOException{
+		if(index==segments.size()){
+			//mapping beyond the end of the file extends it
+			segments.add(spillAccess.getChannel().map(FileChannel.MapMode.READ_WRITE,(long)index*SEGMENT_SIZE,SEGMENT_SIZE));
+		}
+		return segments.get(index);
+	}
+
+	/**
+	 * Delete the temporary files which were left in a directory, e.g. by a JVM which was killed 
+	 * or a file which was still mapped when it was released. Only files older than 
+	 * STALE_FILE_AGE_MS are deleted, as other scripts may use the same directory.
+	 *
+	 * @param spillDirectory The directory of the temporary files, or null for the default 
+	 * temporary directory
+	 * @return The number of files deleted
+	 */
+	public static int sweepStaleFiles(File spillDirectory){
+		File directory=spillDirectory!=null?spillDirectory:new File(System.getProperty("java.io.tmpdir"));
+		File[] files=directory.listFiles();
+		if(files==null){
+			return 0;
+		}
+		long staleBefore=System.currentTimeMillis()-STALE_FILE_AGE_MS;
+		int deleted=0;
+		for (int i = 0; i < files.length; i++) {
+			String name=files[i].getName();
+			if(name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX) && files[i].isFile()
+					&& files[i].lastModified()<staleBefore && files[i].delete()){
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Get the number of bytes in the buffer
+	 *
+	 * @return
+	 */
+	public long getSize(){
+		return size;
+	}
+
+	/**
+	 * Return if the buffer has spilled to a temporary file
+	 *
+	 * @return
+	 */
+	public boolean isSpilled(){
+		return segments!=null;
+	}
+
+	/**
+	 * Get the byte at the given position
+	 *
+	 * @param position The position, less than getSize()
+	 * @return The byte as an unsigned value
+	 */
+	public int byteAt(long position){
+		if(position<0 || position>=size){
+			throw new IndexOutOfBoundsException("Position "+position+" is outside the buffer of size "+size);
+		}
+		if(segments==null){
+			return heap[(int)position] & 0xff;
+		}
+		return segments.get((int)(position/SEGMENT_SIZE)).get((int)(position%SEGMENT_SIZE)) & 0xff;
+	}
+
+	/**
+	 * Get the length of the CharSequence view, which is the size of the buffer
+	 * up to Integer.MAX_VALUE
+	 */
+	public int length() {
+		return (int)Math.min(size,Integer.MAX_VALUE);
+	}
+
+	public char charAt(int index) {
+		return (char)byteAt(index);
+	}
+
+	/**
+	 * Get a view of a part of the buffer, which is not copied
+	 */
+	public CharSequence subSequence(int start, int end) {
+		if(start<0 || end>length() || start>end){
+			throw new IndexOutOfBoundsException("Invalid range "+start+"-"+end+" of buffer of length "+length());
+		}
+		return new Slice(start,end);
+	}
+
+	/**
+	 * Get a stream reading the buffer from the start. The stream reads the bytes in the
+	 * buffer when it is read, so the buffer must not be changed while it is read.
+	 *
+	 * @return
+	 */
+	public InputStream getInputStream(){
+		return new InputStream(){
+			private long position=0;
+
+			public int read() throws IOException {
+				return position<size?byteAt(position++):-1;
+			}
+
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				if(length==0){
+					return 0;
+				}
+				if(position>=size){
+					return -1;
+				}
+				int read=copy(position,buffer,offset,(int)Math.min(length,size-position));
+				position+=read;
+				return read;
+			}
+
+			public int available() {
+				return (int)Math.min(size-position,Integer.MAX_VALUE);
+			}
+		};
+	}
+
+	/**
+	 * Copy bytes from the buffer, at most to the end of the segment of the position
+	 *
+	 * @return The number of bytes copied
+	 */
+	private int copy(long position,byte[] buffer,int offset,int length){
+		if(segments==null){
+			System.arraycopy(heap,(int)position,buffer,offset,length);
+			return length;
+		}
+		int segmentOffset=(int)(position%SEGMENT_SIZE);
+		int chunk=Math.min(length,SEGMENT_SIZE-segmentOffset);
+		ByteBuffer segment=segments.get((int)(position/SEGMENT_SIZE)).duplicate();
+		segment.position(segmentOffset);
+		segment.get(buffer,offset,chunk);
+		return chunk;
+	}
+
+	/**
+	 * Write the whole buffer to a sink, in chunks if the buffer has spilled
+	 *
+	 * @param sink The sink, e.g. an OutputStreamSink
+	 * @throws IOException If the sink fails
+	 */
+	public void writeTo(OutputSink sink) throws IOException{
+		if(segments==null){
+			sink.output(heap,0,(int)size);
+			return;
+		}
+		byte[] chunk=new byte[COPY_SIZE];
+		for (long position = 0; position < size;) {
+			int copied=copy(position,chunk,0,(int)Math.min(chunk.length,size-position));
+			sink.output(chunk,0,copied);
+			position+=copied;
+		}
+	}
+
+	/**
+	 * Empty the buffer so it can be reused. A temporary file is released.
+	 */
+	public void clear(){
+		if(segments!=null){
+			release();
+			heap=new byte[Math.max(0,Math.min(INITIAL_HEAP_SIZE,spillThreshold))];
+		}
+		size=0;
+	}
+
+	/**
+	 * Release the buffer and delete its temporary file, if any. The buffer is empty
+	 * afterwards.
+	 */
+	public void release(){
+		if(spillAccess!=null){
+			try {
+				spillAccess.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+			spillAccess=null;
+		}
+		if(spillFile!=null){
+			//fails on some platforms while the file is still mapped, it is then swept at the next start
+			spillFile.delete();
+			spillFile=null;
+		}
+		segments=null;
+		heap=new byte[0];
+		size=0;
+	}
+
+	/**
+	 * Get the whole buffer as a String. This copies the buffer to the heap.
+	 */
+	public String toString(){
+		return toString(ISO_8859_1);
+	}
+
+	/**
+	 * Get the whole buffer as a String decoded with the given charset. This copies the 
+	 * buffer to the heap.
+	 * 
+	 * @param charset The charset of the output
+	 * @return
+	 */
+	public String toString(Charset charset){
+		if(segments==null){
+			return new OutputDecoder(charset).decode(heap,0,(int)size);
+		}
+		byte[] bytes=toByteArray();
+		return new OutputDecoder(charset).decode(bytes,0,bytes.length);
+	}
+
+	/**
+	 * Copy the whole buffer to a new array on the heap
+	 * 
+	 * @return
+	 */
+	public byte[] toByteArray(){
+		byte[] bytes=new byte[length()];
+		for (int offset = 0; offset < bytes.length;) {
+			offset+=copy(offset,bytes,offset,bytes.length-offset);
+		}
+		return bytes;
+	}
+
+	/**
+	 * A part of the buffer, read through the buffer
+	 */
+	private class Slice implements CharSequence {
+		private final int start;
+		private final int end;
+
+		Slice(int start,int end){
+			this.start=start;
+			this.end=end;
+		}
+
+		public int length() {
+			return end-start;
+		}
+
+		public char charAt(int index) {
+			if(index<0 || index>=length()){
+				throw new IndexOutOfBoundsException("Index "+index+" is outside the sequence of length "+length());
+			}
+			return SpillableOutputBuffer.this.charAt(start+index);
+		}
+
+		public CharSequence subSequence(int subStart, int subEnd) {
+			if(subStart<0 || subEnd>length() || subStart>subEnd){
+				throw new IndexOutOfBoundsException("Invalid range "+subStart+"-"+subEnd+" of sequence of length "+length());
+			}
+			return new Slice(start+subStart,start+subEnd);
+		}
+
+		public String toString() {
+			return new StringBuilder(length()).append(this).toString();
+		}
+	}
+}
@@ -1,27 +1,64 @@
 package com.bouvet.telnet;
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
 
-import com.bouvet.thread.BasicObserver;
+import com.bouvet.telnet.record.SessionRecorder;
+import com.bouvet.thread.Completion;
+import com.bouvet.thread.CompletionFuture;
+import com.bouvet.thread.CompletionListener;
+import com.bouvet.thread.HashedTimerWheel;
 import com.bouvet.thread.ThreadIOException;
 import com.bouvet.thread.TimeoutException;
-import com.bouvet.thread.TimeoutThread;
+import com.bouvet.thread.TimeoutTask;
+import com.bouvet.thread.WheelTimeout;
 
 /**
  * TelnetClient providing some simple function for establishing a telnet session
  * Each command to the telnet session has a particular timeout, and if this is exeeded
  * an exception is thrown
  * 
+ * Each session has a single reader thread which lives as long as the session. Timeouts
+ * are scheduled on a shared HashedTimerWheel and cancelled as soon as the response arrives.
+ * 
+ * Commands may also be sent asynchronously, in which case the response is returned as a 
+ * CompletionFuture and several commands may be outstanding at once.
+ * 
+ * The socket is connected by the shared TelnetConnector, with a connect timeout and 
+ * TCP_NODELAY.
+ * 
+ * The sessions may be recorded to files with timestamps of each chunk sent and received, 
+ * see setRecordDirectory.
+ * 
  * @author Dagfinn Parnas,bouvet
  */
 public class TelnetClient{
 	public final static long DEFAULT_TIMEOUT_MS=10000;
-	protected final static long DEFAULT_POLL_TIME_MS=20;
+	protected final static String LINE_SEPARATOR=System.getProperty("line.separator");
 	
 	protected DataInputStream inStream;
 	protected PrintStream outStream;
 	protected Socket telnetSocket;
 	protected long msTimeout=DEFAULT_TIMEOUT_MS;
+	/*The reader of the session and its thread*/
+	protected ReadInputObservableRunnable reader;
+	protected Thread readerThread;
+	protected HashedTimerWheel timerWheel=HashedTimerWheel.getSharedInstance();
+	/*The buffers of the session, reused across commands*/
+	protected ByteBufferPool bufferPool=new ByteBufferPool();
+	protected boolean directReadBuffer=false;
+	/*Connect time, command latencies, bytes read and timeouts of the session*/
+	protected TelnetMetrics metrics;
+	/*The charset commands are encoded with and responses decoded with*/
+	protected Charset charset=OutputDecoder.ISO_8859_1;
+	/*The executor the listeners of asynchronous commands are called on*/
+	protected Executor executor=CompletionFuture.getSharedExecutor();
+	/*Records the session, or null*/
+	protected SessionRecorder recorder=null;
+	/*The directory the sessions connected from now on are recorded to, or null*/
+	private static volatile File recordDirectory=null;
 	
 	/**
 	 * Create a new TelnetClient
@@ -33,13 +70,28 @@ public class TelnetClient{
 	 */
 	public TelnetClient(String host, int port,long msTimeout)throws IOException {
 		this.msTimeout=msTimeout;
-		telnetSocket = new Socket(host, port);
+		metrics=new TelnetMetrics(host+":"+port);
+		telnetSocket = TelnetConnector.getSharedInstance().connect(host,port,msTimeout,metrics);
 		outStream = new PrintStream(telnetSocket.getOutputStream());
 		inStream = new DataInputStream(telnetSocket.getInputStream());
 		//System.out.println("socket:"+telnetSocket);
 		if(!telnetSocket.isConnected()){
 			throw new IOException("Could not connect to telnet on host "+host + " and port "+port);
 		}
+		if(recordDirectory!=null){
+			try {
+				recorder=SessionRecorder.create(recordDirectory,host+":"+port);
+			}catch (IOException e){
+				System.err.println("Could not record the session to "+host+":"+port+": "+e.getMessage());
+			}
+		}
+		//start the reader of the session
+		reader=new ReadInputObservableRunnable(Channels.newChannel(inStream),bufferPool,directReadBuffer);
+		reader.setReadCounter(metrics.getReadBytes());
+		reader.setRecorder(recorder);
+		readerThread=new Thread(reader,"TelnetReader:"+host+":"+port);
+		readerThread.setDaemon(true);
+		readerThread.start();
 	}
 	/**
 	 * Create a new TelnetClient
@@ -53,12 +105,40 @@ public class TelnetClient{
 	}
 	
 	/**
-	 * Send a command to the server
+	 * Send a command to the server. The command and the line separator are sent
+	 * in one write, as a separate write of the line separator is held back by
+	 * the TCP stack until the first one is acknowledged.
 	 * 
 	 * @param command
 	 */
 	public void send(String command) {
-		outStream.println(command);
+		write(command+LINE_SEPARATOR);
+	}
+	
+	/**
+	 * Send several lines to the server in one write, without waiting for any response
+	 * 
+	 * @param lines The lines to send
+	 */
+	public void send(String[] lines) {
+		StringBuffer sbLines=new StringBuffer();
+		for (int i = 0; i < lines.length; i++) {
+			sbLines.append(lines[i]).append(LINE_SEPARATOR);
+		}
+		write(sbLines.toString());
+	}
+	
+	/**
+	 * Write the text encoded with the charset of the session and flush it
+	 */
+	private void write(String text){
+		byte[] bytes=text.getBytes(charset);
+		//recorded first, so the response is recorded after it
+		if(recorder!=null){
+			recorder.sent(bytes,0,bytes.length);
+		}
+		outStream.write(bytes,0,bytes.length);
+		outStream.flush();
 	}
 	
 	/**
@@ -69,10 +149,37 @@ public class TelnetClient{
 	 * @param command
 	 */
 	public String sendAndWait(String command,String strWaitFor)throws TimeoutException,ThreadIOException  {
-		outStream.println(command);
+		send(command);
 		return waitFor(strWaitFor);
 	}
 	
+	/**
+	 * Send a command to the server and wait for 
+	 * any of the given responses. 
+	 * All server response from send to wait is returned
+	 * 
+	 * @param command
+	 * @param strWaitFor The responses to wait for
+	 */
+	public String sendAndWaitForAny(String command,String[] strWaitFor)throws TimeoutException,ThreadIOException  {
+		send(command);
+		return waitForAny(strWaitFor);
+	}
+	
+	
+	/**
+	 * Send a command to the server and stream the response to the sink
+	 * until any of the given responses occur.
+	 * 
+	 * @param command
+	 * @param strWaitFor The responses to wait for
+	 * @param sink The sink receiving the response
+	 * @return The response waited for which occured
+	 */
+	public String sendAndStream(String command,String[] strWaitFor,OutputSink sink)throws TimeoutException,ThreadIOException  {
+		send(command);
+		return waitForAny(strWaitFor,sink);
+	}
 	
 	/**
 	 * Wait for a specific response from the server. 
@@ -85,25 +192,65 @@ public class TelnetClient{
 	 * @return The received response from the server
 	 */
 	protected String waitFor(String strWaitFor) throws TimeoutException,ThreadIOException {
-		//The observer for the runnable
-		BasicObserver taskObserver=new BasicObserver();
-		//Add a timeout thread which encapsulated the runnable worker
-		Thread timeoutThread= new TimeoutThread(
-			new ReadInputObservableRunnable(inStream,strWaitFor),
-			taskObserver,
-			getTimeout());
-		//start the runnable and the timeoutthread
-		timeoutThread.start();	
-		
-		while(!taskObserver.hasResponse()){
-			//System.out.println("DEBUG:Waiting no response");
-			try {
-				Thread.sleep(DEFAULT_POLL_TIME_MS);
-			} catch (InterruptedException e1) {
-				e1.printStackTrace();
-			}
+		return waitForAny(new String[]{strWaitFor});
+	}
+	
+	/**
+	 * Wait for any of the given responses from the server. 
+	 * A TimeoutException is thrown if none of the responses is retrieved
+	 * within the set timeout
+	 * 
+	 * Use String.endsWith on the returned value to find which of the responses occured
+	 * 
+	 * @param strWaitFor The responses to wait for
+	 * @return The received response from the server
+	 */
+	protected String waitForAny(String[] strWaitFor) throws TimeoutException,ThreadIOException {
+		return waitForAny(strWaitFor,null);
+	}
+	
+	/**
+	 * Wait for any of the given responses from the server, streaming the response
+	 * to the given sink as it arrives. 
+	 * A TimeoutException is thrown if none of the responses is retrieved
+	 * within the set timeout
+	 * 
+	 * @param strWaitFor The responses to wait for
+	 * @param sink The sink receiving the response without the response waited for, 
+	 * or null to return the response
+	 * @return The response waited for which occured if a sink is given, otherwise
+	 * the received response from the server
+	 */
+	protected String waitForAny(String[] strWaitFor,OutputSink sink) throws TimeoutException,ThreadIOException {
+		return waitForAny(strWaitFor,sink,getTimeout());
+	}
+	
+	/**
+	 * Wait for any of the given responses from the server using the given timeout
+	 * instead of the command timeout of the client.
+	 * 
+	 * @param strWaitFor The responses to wait for
+	 * @param sink The sink receiving the response without the response waited for, 
+	 * or null to return the response
+	 * @param msTimeout The timeout in milliseconds
+	 * @return The response waited for which occured if a sink is given, otherwise
+	 * the received response from the server
+	 */
+	protected String waitForAny(String[] strWaitFor,OutputSink sink,final long msTimeout) throws TimeoutException,ThreadIOException {
+		//The completion of the response
+		final Completion response=new Completion();
+		reader.expect(strWaitFor,sink,response);
+		if(!response.isDone()){
+			//arm the timeout, which is cancelled as soon as the response arrives
+			WheelTimeout timeout=timerWheel.schedule(new TimeoutTask(){
+				public void timeoutExpired(WheelTimeout timeout) {
+					response.complete(new TimeoutException("Timeout occured after "+msTimeout));
+				}
+			},msTimeout);
+			response.awaitUninterruptibly();
+			timeout.cancel();
 		}
-		Object observableResponse = taskObserver.getResponse();
+		Object observableResponse = response.getResult();
 		
 		if(observableResponse==null){
 			return null;
@@ -120,6 +267,70 @@ public class TelnetClient{
 		}
 
 	}
+	/**
+	 * Send a command to the server without waiting for the response. 
+	 * 
+	 * The expectation is registered with the reader before the command is sent, and 
+	 * both are done while holding the output stream, so the responses of concurrent 
+	 * calls are matched with their commands in the order the commands were written.
+	 * The future completes with the response, or with a TimeoutException or 
+	 * ThreadIOException. Cancelling it or a timeout does not stop the command on the 
+	 * server, its response is discarded when it arrives.
+	 * 
+	 * @param command The command, or null to only wait for the response
+	 * @param strWaitFor The responses to wait for
+	 * @param sink The sink receiving the response without the response waited for, 
+	 * or null to complete with the response
+	 * @param msTimeout The timeout in milliseconds
+	 * @param listener Listener called by the thread completing the response, before the 
+	 * listeners of the future. May be null
+	 * @return The future of the response waited for which occured if a sink is given, 
+	 * otherwise of the received response from the server
+	 */
+	protected CompletionFuture<String> sendAsync(String command,String[] strWaitFor,OutputSink sink,final long msTimeout,CompletionListener listener){
+		final Completion response=new Completion();
+		final WheelTimeout timeout=timerWheel.schedule(new TimeoutTask(){
+			public void timeoutExpired(WheelTimeout timeout) {
+				response.complete(new TimeoutException("Timeout occured after "+msTimeout));
+			}
+		},msTimeout);
+		if(listener!=null){
+			response.addListener(listener);
+		}
+		response.addListener(new CompletionListener(){
+			public void completed(Completion completion) {
+				timeout.cancel();
+			}
+		});
+		synchronized (outStream) {
+			reader.expect(strWaitFor,sink,response);
+			if(command!=null){
+				send(command);
+			}
+		}
+		return new CompletionFuture<String>(response,executor);
+	}
+	
+	/**
+	 * Set the charset of the session. Commands are encoded and responses are decoded 
+	 * with it. The default is ISO-8859-1.
+	 * 
+	 * @param charset The charset
+	 */
+	public void setCharset(Charset charset){
+		this.charset=charset;
+		reader.setCharset(charset);
+	}
+	
+	/**
+	 * Set the executor the listeners of asynchronous commands are called on
+	 * 
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor){
+		this.executor=executor;
+	}
+	
 	/**
 	 * Get the command timeout
 	 * 
@@ -137,11 +348,54 @@ public class TelnetClient{
 		this.msTimeout=msTimeout;
 	}
 	
+	/**
+	 * Hide a secret, e.g. a password, in the recording of the session if it is recorded
+	 * 
+	 * @param secret The secret
+	 */
+	protected void hideInRecording(String secret){
+		if(recorder!=null){
+			recorder.hide(secret.getBytes(charset));
+		}
+	}
+	
+	/**
+	 * Record the sessions connected from now on to files in the directory, one file pr 
+	 * session. Sessions already connected are not affected.
+	 * 
+	 * @param directory The directory, which is created if missing, or null to stop recording
+	 */
+	public static void setRecordDirectory(File directory){
+		recordDirectory=directory;
+	}
+	
+	/**
+	 * Get the metrics of the session
+	 * 
+	 * @return
+	 */
+	public TelnetMetrics getMetrics(){
+		return metrics;
+	}
+	
+	/**
+	 * Return if the connection to the telnet session has been closed, 
+	 * either by close() or by the server
+	 * 
+	 * @return
+	 */
+	public boolean isClosed(){
+		return telnetSocket.isClosed() || !readerThread.isAlive() || outStream.checkError();
+	}
+	
 	/**
 	 * Close the connection to the telnet session
 	 * This is done quitely (IOExceptions are suppressed)
 	 */
 	public void close(){
+		if (recorder!=null){
+			recorder.close();
+		}
 		if (outStream!=null){
 			outStream.close();	
 		}
@@ -0,0 +1,445 @@
+package com.bouvet.telnet;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.bouvet.thread.Completion;
+
+/**
+ * Connects the sockets of the telnet sessions: resolves the host through a cache, connects
+ * with a timeout instead of waiting for the SYN timeout of the OS, and sets TCP_NODELAY and
+ * the buffer sizes before connecting.
+ *
+ * If the host resolves to several addresses, they are raced as in RFC 8305 (happy eyeballs):
+ * the first address is tried, and if it has not connected within the attempt delay the next
+ * one is tried as well, alternating between IPv6 and IPv4. The first connection wins and the
+ * others are closed. An attempt which fails starts the next one at once.
+ *
+ * <p>The time to resolve and the time to connect are recorded separately in the metrics of
+ * the session.
+ *
+ * <p>resolveAsync() resolves a host on a few resolver threads instead of the calling thread,
+ * so a slow lookup does not block an event loop. Sessions resolving the same host at the
+ * same time share one lookup.
+ *
+ * <p>The connector is thread safe. The sessions of the scripts use the shared instance, which
+ * the options file configures.
+ */
+public class TelnetConnector {
+	public final static long DEFAULT_DNS_CACHE_TTL_MS=30000;
+	public final static long DEFAULT_ATTEMPT_DELAY_MS=250;
+	public final static int RESOLVER_THREADS=4;
+
+	private static TelnetConnector sharedInstance=null;
+
+	/*the connect timeout, or 0 to use the timeout given by the session*/
+	private volatile long connectTimeout=0;
+	private volatile long attemptDelay=DEFAULT_ATTEMPT_DELAY_MS;
+	private volatile long dnsCacheTtl=DEFAULT_DNS_CACHE_TTL_MS;
+	private volatile boolean tcpNoDelay=true;
+	/*the socket buffer sizes, or 0 for the defaults of the OS*/
+	private volatile int receiveBufferSize=0;
+	private volatile int sendBufferSize=0;
+	private final ConcurrentMap<String,ResolvedHost> resolved=new ConcurrentHashMap<String,ResolvedHost>();
+	/*the lookups of resolveAsync which have not completed, by host*/
+	private final ConcurrentMap<String,Completion> lookups=new ConcurrentHashMap<String,Completion>();
+	/*runs the lookups of resolveAsync, created when first used*/
+	private ThreadPoolExecutor resolver=null;
+
+	/**
+	 * Get the connector shared by all sessions in this JVM
+	 *
+	 * @return The shared connector
+	 */
+	public static synchronized TelnetConnector getSharedInstance(){
+		if(sharedInstance==null){
+			sharedInstance=new TelnetConnector();
+		}
+		return sharedInstance;
+	}
+
+	/**
+	 * Set the connect timeout
+	 *
+	 * @param ms The timeout in milliseconds, or 0 to use the timeout given by the session
+	 */
+	public void setConnectTimeout(long ms){
+		connectTimeout=Math.max(0,ms);
+	}
+
+	/**
+	 * Get the connect timeout of a session
+	 *
+	 * @param sessionTimeout The timeout of the session
+	 * @return The connect timeout if one is set, otherwise the timeout of the session
+	 */
+	public long getConnectTimeout(long sessionTimeout){
+		return connectTimeout>0?connectTimeout:sessionTimeout;
+	}
+
+	/**
+	 * Set how long an attempt to connect to one address may take before the next address is tried as well
+	 *
+	 * @param ms The delay in milliseconds
+	 */
+	public void setAttemptDelay(long ms){
+		attemptDelay=Math.max(0,ms);
+	}
+
+	/**
+	 * Set how long the addresses of a host are cached
+	 *
+	 * @param ms The time to live in milliseconds, or 0 to resolve the host on each connect
+	 */
+	public void setDnsCacheTtl(long ms){
+		dnsCacheTtl=Math.max(0,ms);
+		resolved.clear();
+	}
+
+	public void setTcpNoDelay(boolean tcpNoDelay){
+		this.tcpNoDelay=tcpNoDelay;
+	}
+
+	public boolean isTcpNoDelay(){
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Set the size of the receive buffer of the sockets
+	 *
+	 * @param bytes The size, or 0 for the default of the OS
+	 */
+	public void setReceiveBufferSize(int bytes){
+		receiveBufferSize=Math.max(0,bytes);
+	}
+
+	/**
+	 * Set the size of the send buffer of the sockets
+	 *
+	 * @param bytes The size, or 0 for the default of the OS
+	 */
+	public void setSendBufferSize(int bytes){
+		sendBufferSize=Math.max(0,bytes);
+	}
+
+	/**
+	 * Resolve a host, using the cached addresses while they are fresh. Failures are not cached.
+	 *
+	 * @param host The host name or address
+	 * @param metrics The metrics recording the time to resolve, or null
+	 * @return The addresses, alternating between IPv6 and IPv4 starting with the family of the first address
+	 * @throws java.net.UnknownHostException If the host cannot be resolved
+	 */
+	public InetAddress[] resolve(String host,TelnetMetrics metrics) throws IOException{
+		long start=System.nanoTime();
+		InetAddress[] addresses=getCached(host);
+		if(addresses==null){
+			addresses=interleave(InetAddress.getAllByName(host));
+			if(dnsCacheTtl>0){
+				resolved.put(host,new ResolvedHost(addresses,System.currentTimeMillis()+dnsCacheTtl));
+			}
+		}
+		if(metrics!=null){
+			metrics.resolved(System.nanoTime()-start);
+		}
+		return addresses;
+	}
+
+	/**
+	 * Get the cached addresses of a host, without resolving it
+	 *
+	 * @param host The host name or address
+	 * @return The addresses, or null if the host is not cached or the cached addresses have expired
+	 */
+	public InetAddress[] getCached(String host){
+		ResolvedHost cached=resolved.get(host);
+		if(cached!=null && System.currentTimeMillis()<cached.expires){
+			return cached.addresses;
+		}
+		return null;
+	}
+
+	/**
+	 * Resolve a host on the resolver threads, without blocking the calling thread.
+	 * The completion is completed at once if the cached addresses are fresh.
+	 *
+	 * @param host The host name or address
+	 * @return The completion of the lookup, completed with the addresses as returned by 
+	 * resolve(), or with the IOException if the host cannot be resolved
+	 */
+	public Completion resolveAsync(final String host){
+		Completion lookup=new Completion();
+		InetAddress[] cached=getCached(host);
+		if(cached!=null){
+			lookup.complete(cached);
+			return lookup;
+		}
+		Completion running=lookups.putIfAbsent(host,lookup);
+		if(running!=null){
+			return running;
+		}
+		final Completion newLookup=lookup;
+		getResolver().execute(new Runnable(){
+			public void run() {
+				try {
+					newLookup.complete(resolve(host,null));
+				}catch (IOException e){
+					newLookup.complete(e);
+				}catch (RuntimeException e){
+					newLookup.complete(e);
+				}finally {
+					lookups.remove(host,newLookup);
+				}
+			}
+		});
+		return newLookup;
+	}
+
+	private synchronized ThreadPoolExecutor getResolver(){
+		if(resolver==null){
+			//the threads end when idle, so the connector does not keep threads alive
+			resolver=new ThreadPoolExecutor(RESOLVER_THREADS,RESOLVER_THREADS,10,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),new ThreadFactory(){
+				private int id=0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread=new Thread(r,"TelnetConnector:resolver"+(id++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			resolver.allowCoreThreadTimeOut(true);
+		}
+		return resolver;
+	}
+
+	/**
+	 * Connect a socket to a host
+	 *
+	 * @param host The host name or address
+	 * @param port The port
+	 * @param sessionTimeout The timeout of the session, used if no connect timeout is set
+	 * @param metrics The metrics recording the time to resolve and to connect, or null
+	 * @return The connected socket
+	 * @throws java.net.UnknownHostException If the host cannot be resolved
+	 * @throws ConnectException If no address can be connected to within the timeout
+	 * @throws IOException If the socket cannot be created
+	 */
+	public Socket connect(String host,int port,long sessionTimeout,TelnetMetrics metrics) throws IOException{
+		InetAddress[] addresses=resolve(host,metrics);
+		long timeout=getConnectTimeout(sessionTimeout);
+		long start=System.nanoTime();
+		Socket socket;
+		if(addresses.length==1){
+			socket=connect(new InetSocketAddress(addresses[0],port),timeout);
+		}else {
+			socket=new Race(host,addresses,port).run(timeout);
+		}
+		if(metrics!=null){
+			metrics.connected(System.nanoTime()-start);
+		}
+		return socket;
+	}
+
+	/**
+	 * Create a socket with the options of the connector, before it is connected
+	 *
+	 * @return
+	 */
+	protected Socket createSocket() throws SocketException{
+		Socket socket=new Socket();
+		configure(socket);
+		return socket;
+	}
+
+	/**
+	 * Set TCP_NODELAY and the buffer sizes of a socket. The receive buffer must be set before
+	 * connecting to be used for the TCP window.
+	 *
+	 * @param socket The socket
+	 * @throws SocketException If an option cannot be set
+	 */
+	public void configure(Socket socket) throws SocketException{
+		socket.setTcpNoDelay(tcpNoDelay);
+		if(receiveBufferSize>0){
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		if(sendBufferSize>0){
+			socket.setSendBufferSize(sendBufferSize);
+		}
+	}
+
+	/**
+	 * Connect a socket to one address in the calling thread
+	 */
+	private Socket connect(InetSocketAddress address,long timeout) throws IOException{
+		Socket socket=createSocket();
+		try {
+			socket.connect(address,(int)Math.min(Integer.MAX_VALUE,Math.max(1,timeout)));
+			return socket;
+		}catch (SocketTimeoutException e){
+			closeQuietly(socket);
+			throw new ConnectException("Connect to "+address+" timed out after "+timeout+" ms");
+		}catch (IOException e){
+			closeQuietly(socket);
+			throw e;
+		}
+	}
+
+	/**
+	 * Order the addresses so the families alternate, starting with the family of the first
+	 */
+	static InetAddress[] interleave(InetAddress[] addresses){
+		if(addresses.length<2){
+			return addresses;
+		}
+		List<InetAddress> first=new ArrayList<InetAddress>();
+		List<InetAddress> other=new ArrayList<InetAddress>();
+		boolean firstIsV6=addresses[0] instanceof Inet6Address;
+		for (int i = 0; i < addresses.length; i++) {
+			if((addresses[i] instanceof Inet6Address)==firstIsV6){
+				first.add(addresses[i]);
+			}else {
+				other.add(addresses[i]);
+			}
+		}
+		InetAddress[] ordered=new InetAddress[addresses.length];
+		int next=0;
+		for (int i = 0; i < Math.max(first.size(),other.size()); i++) {
+			if(i<first.size()){
+				ordered[next++]=first.get(i);
+			}
+			if(i<other.size()){
+				ordered[next++]=other.get(i);
+			}
+		}
+		return ordered;
+	}
+
+	private static void closeQuietly(Socket socket){
+		try {
+			socket.close();
+		}catch (IOException e){
+			//e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The cached addresses of a host
+	 */
+	private static class ResolvedHost {
+		final InetAddress[] addresses;
+		final long expires;
+
+		ResolvedHost(InetAddress[] addresses,long expires){
+			this.addresses=addresses;
+			this.expires=expires;
+		}
+	}
+
+	/**
+	 * Races the attempts to connect to the addresses of a host. Each attempt connects a
+	 * blocking socket in its own thread, as connecting is rare compared to the commands.
+	 */
+	private class Race {
+		private final String host;
+		private final InetAddress[] addresses;
+		private final int port;
+		/*the sockets of the attempts, closed when the race is over unless they won*/
+		private final List<Socket> sockets=new ArrayList<Socket>();
+		private Socket winner=null;
+		private int failed=0;
+		private IOException failure=null;
+		private boolean over=false;
+
+		Race(String host,InetAddress[] addresses,int port){
+			this.host=host;
+			this.addresses=addresses;
+			this.port=port;
+		}
+
+		synchronized Socket run(long timeout) throws IOException{
+			long deadline=System.currentTimeMillis()+timeout;
+			int started=0;
+			long nextAttempt=0;
+			try {
+				while(winner==null){
+					long now=System.currentTimeMillis();
+					if(now>=deadline || failed==addresses.length){
+						break;
+					}
+					if(started<addresses.length && (now>=nextAttempt || failed==started)){
+						start(addresses[started++],deadline-now);
+						nextAttempt=now+attemptDelay;
+						continue;
+					}
+					long until=started<addresses.length?Math.min(nextAttempt,deadline):deadline;
+					wait(Math.max(1,until-now));
+				}
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new ConnectException("Interrupted while connecting to "+host+":"+port);
+			}finally {
+				over=true;
+				for (int i = 0; i < sockets.size(); i++) {
+					if(sockets.get(i)!=winner){
+						closeQuietly(sockets.get(i));
+					}
+				}
+			}
+			if(winner!=null){
+				return winner;
+			}
+			if(failed==addresses.length && failure!=null){
+				throw failure;
+			}
+			throw new ConnectException("Connect to "+host+":"+port+" timed out after "+timeout+" ms");
+		}
+
+		private void start(final InetAddress address,final long timeout) throws IOException{
+			final Socket socket=createSocket();
+			sockets.add(socket);
+			Thread attempt=new Thread(new Runnable(){
+				public void run() {
+					try {
+						socket.connect(new InetSocketAddress(address,port),(int)Math.min(Integer.MAX_VALUE,Math.max(1,timeout)));
+						connected(socket);
+					}catch (IOException e){
+						attemptFailed(e);
+					}
+				}
+			},"TelnetConnector:"+address.getHostAddress()+":"+port);
+			attempt.setDaemon(true);
+			attempt.start();
+		}
+
+		private synchronized void connected(Socket socket){
+			if(winner==null && !over){
+				winner=socket;
+				notifyAll();
+			}else {
+				closeQuietly(socket);
+			}
+		}
+
+		private synchronized void attemptFailed(IOException e){
+			failed++;
+			if(!over){
+				failure=e instanceof SocketTimeoutException?new ConnectException(e.getMessage()):e;
+			}
+			notifyAll();
+		}
+	}
+}
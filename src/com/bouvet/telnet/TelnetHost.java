@@ -0,0 +1,63 @@
+package com.bouvet.telnet;
+
+/**
+ * A host and port pair of a SAP J2EE telnet interface.
+ *
+ * Instances are immutable and can be used as keys in maps.
+ */
+public class TelnetHost {
+	private String host;
+	private int port;
+
+	/**
+	 * Create a new TelnetHost
+	 *
+	 * @param host The host name or address
+	 * @param port The telnet port (usually 50008)
+	 */
+	public TelnetHost(String host, int port){
+		this.host=host;
+		this.port=port;
+	}
+
+	/**
+	 * Parse a host on the form host[:port]
+	 *
+	 * @param value The host, optionally followed by a colon and the port
+	 * @param defaultPort The port to use if no port is given
+	 * @return The parsed host
+	 * @throws NumberFormatException If the port is not an integer
+	 */
+	public static TelnetHost parse(String value,int defaultPort){
+		value=value.trim();
+		int colon=value.lastIndexOf(':');
+		if(colon==-1){
+			return new TelnetHost(value,defaultPort);
+		}
+		return new TelnetHost(value.substring(0,colon).trim(),Integer.parseInt(value.substring(colon+1).trim()));
+	}
+
+	public String getHost(){
+		return host;
+	}
+
+	public int getPort(){
+		return port;
+	}
+
+	public boolean equals(Object o){
+		if(!(o instanceof TelnetHost)){
+			return false;
+		}
+		TelnetHost other=(TelnetHost)o;
+		return port==other.port && host.equals(other.host);
+	}
+
+	public int hashCode(){
+		return host.hashCode()*31+port;
+	}
+
+	public String toString(){
+		return host+":"+port;
+	}
+}
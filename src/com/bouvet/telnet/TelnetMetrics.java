@@ -0,0 +1,131 @@
+package com.bouvet.telnet;
+
+import com.bouvet.metrics.Counter;
+import com.bouvet.metrics.LatencyHistogram;
+import com.bouvet.metrics.MetricsRegistry;
+
+/**
+ * Records the metrics of one telnet session: resolve, connect and login time, the latency of each
+ * command by verb, bytes read and timeouts. All metrics are labelled with the host of the
+ * session, so the metrics of many sessions can share a registry.
+ *
+ * The metrics of the session are looked up once, so recording is only a few atomic
+ * operations.
+ */
+public class TelnetMetrics {
+	public final static String RESOLVE_SECONDS="sap_telnet_resolve_seconds";
+	public final static String CONNECT_SECONDS="sap_telnet_connect_seconds";
+	public final static String LOGIN_SECONDS="sap_telnet_login_seconds";
+	public final static String COMMAND_SECONDS="sap_telnet_command_seconds";
+	public final static String READ_BYTES="sap_telnet_read_bytes_total";
+	public final static String TIMEOUTS="sap_telnet_timeouts_total";
+	public final static String CACHE_REQUESTS="sap_telnet_cache_requests_total";
+	/*the operations which are not commands, used as verb of a timeout*/
+	public final static String CONNECT_OPERATION="CONNECT";
+	public final static String LOGIN_OPERATION="LOGIN";
+
+	private final static String[] HOST_LABEL={"host"};
+	private final static String[] HOST_VERB_LABELS={"host","verb"};
+	private final static String[] HOST_VERB_RESULT_LABELS={"host","verb","result"};
+
+	private final MetricsRegistry registry;
+	private final String host;
+	private final LatencyHistogram resolveTime;
+	private final LatencyHistogram connectTime;
+	private final LatencyHistogram loginTime;
+	private final Counter readBytes;
+
+	/**
+	 * Create the metrics of a session in the shared registry
+	 *
+	 * @param host The host of the session, e.g. sap1:50008
+	 */
+	public TelnetMetrics(String host){
+		this(MetricsRegistry.getSharedInstance(),host);
+	}
+
+	/**
+	 * Create the metrics of a session
+	 *
+	 * @param registry The registry to record in
+	 * @param host The host of the session, e.g. sap1:50008
+	 */
+	public TelnetMetrics(MetricsRegistry registry,String host){
+		this.registry=registry;
+		this.host=host;
+		registry.describe(RESOLVE_SECONDS,"Time to resolve the host, from the cache if fresh");
+		registry.describe(CONNECT_SECONDS,"Time to connect to the telnet port once the host is resolved");
+		registry.describe(LOGIN_SECONDS,"Time from connected until logged in");
+		registry.describe(COMMAND_SECONDS,"Time from sending a command until its prompt");
+		registry.describe(READ_BYTES,"Bytes read from the telnet sessions");
+		registry.describe(TIMEOUTS,"Operations which timed out");
+		registry.describe(CACHE_REQUESTS,"Cacheable commands by result: hit, miss or coalesced with a command being sent");
+		String[] hostValue={host};
+		resolveTime=registry.getHistogram(RESOLVE_SECONDS,HOST_LABEL,hostValue);
+		connectTime=registry.getHistogram(CONNECT_SECONDS,HOST_LABEL,hostValue);
+		loginTime=registry.getHistogram(LOGIN_SECONDS,HOST_LABEL,hostValue);
+		readBytes=registry.getCounter(READ_BYTES,HOST_LABEL,hostValue);
+	}
+
+	/**
+	 * Get the verb of a command, which is its first word in upper case
+	 *
+	 * @param command
+	 * @return
+	 */
+	public static String getVerb(String command){
+		String trimmed=command.trim();
+		int space=trimmed.indexOf(' ');
+		return (space==-1?trimmed:trimmed.substring(0,space)).toUpperCase();
+	}
+
+	public void resolved(long ns){
+		resolveTime.record(ns);
+	}
+
+	public void connected(long ns){
+		connectTime.record(ns);
+	}
+
+	public void loggedIn(long ns){
+		loginTime.record(ns);
+	}
+
+	/**
+	 * Record the latency of a command
+	 *
+	 * @param command The command, its verb is used as label
+	 * @param ns The time from the command was sent until its prompt was received
+	 */
+	public void commandCompleted(String command,long ns){
+		registry.getHistogram(COMMAND_SECONDS,HOST_VERB_LABELS,new String[]{host,getVerb(command)}).record(ns);
+	}
+
+	/**
+	 * Count a timeout
+	 *
+	 * @param operation The command which timed out, or CONNECT_OPERATION or LOGIN_OPERATION
+	 */
+	public void timedOut(String operation){
+		registry.getCounter(TIMEOUTS,HOST_VERB_LABELS,new String[]{host,getVerb(operation)}).increment();
+	}
+
+	/**
+	 * Count a request to the command cache
+	 *
+	 * @param command The command, its verb is used as label
+	 * @param result hit, miss or coalesced
+	 */
+	public void cacheRequest(String command,String result){
+		registry.getCounter(CACHE_REQUESTS,HOST_VERB_RESULT_LABELS,new String[]{host,getVerb(command),result}).increment();
+	}
+
+	/**
+	 * Get the counter of bytes read, which the reader of the session adds to
+	 *
+	 * @return
+	 */
+	public Counter getReadBytes(){
+		return readBytes;
+	}
+}
@@ -0,0 +1,199 @@
+package com.bouvet.telnet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.bouvet.metrics.LatencyHistogram;
+
+/**
+ * Decides the timeout of each command from its verb.
+ *
+ * A verb may be given an explicit timeout, e.g. a long one for DEPLOY. Otherwise, if the
+ * policy is adaptive, the timeout is the p99 latency of the verb times a factor, once enough
+ * latencies of the verb have been recorded. The adaptive timeout is never below the minimum
+ * timeout of the policy and never above the timeout of the session, which is also used for
+ * the verbs without enough history.
+ *
+ * A timeout is recorded as a latency of the timeout, so the adaptive timeout of a verb which
+ * has become slower grows instead of timing out again and again. The history can be saved
+ * and loaded, so the timeouts are learned across runs. Login is the verb LOGIN.
+ */
+public class TimeoutPolicy {
+	public final static double DEFAULT_FACTOR=3;
+	public final static long DEFAULT_MIN_TIMEOUT_MS=1000;
+	/*latencies of a verb needed before its timeout is adapted*/
+	public final static int MIN_SAMPLES=20;
+	/*the history of a verb is scaled down to this number of latencies when saved, so old latencies fade*/
+	public final static long MAX_SAVED_SAMPLES=10000;
+
+	/*explicit timeouts by verb, set up before the policy is used*/
+	private Map<String,Long> verbTimeouts=new HashMap<String,Long>();
+	private boolean adaptive=false;
+	private double factor=DEFAULT_FACTOR;
+	private long minTimeout=DEFAULT_MIN_TIMEOUT_MS;
+	/*latency history by verb*/
+	private ConcurrentHashMap<String,LatencyHistogram> history=new ConcurrentHashMap<String,LatencyHistogram>();
+
+	/**
+	 * Set an explicit timeout for a verb
+	 *
+	 * @param verb The verb, e.g. DEPLOY
+	 * @param msTimeout Timeout in milliseconds
+	 */
+	public void setTimeout(String verb,long msTimeout){
+		verbTimeouts.put(verb.trim().toUpperCase(),Long.valueOf(msTimeout));
+	}
+
+	/**
+	 * Derive the timeouts of the verbs without an explicit timeout from their latency history
+	 *
+	 * @param factor The p99 latency of a verb is multiplied with this factor
+	 * @param minTimeout The minimum adaptive timeout in milliseconds
+	 */
+	public void setAdaptive(double factor,long minTimeout){
+		this.adaptive=true;
+		this.factor=factor;
+		this.minTimeout=minTimeout;
+	}
+
+	/**
+	 * Return if the timeouts are derived from the latency history
+	 *
+	 * @return
+	 */
+	public boolean isAdaptive(){
+		return adaptive;
+	}
+
+	/**
+	 * Get the timeout of a command
+	 *
+	 * @param command The command, or TelnetMetrics.LOGIN_OPERATION
+	 * @param msTimeout The timeout of the session in milliseconds
+	 * @return The timeout of the command in milliseconds
+	 */
+	public long getTimeout(String command,long msTimeout){
+		String verb=TelnetMetrics.getVerb(command);
+		Long verbTimeout=verbTimeouts.get(verb);
+		if(verbTimeout!=null){
+			return verbTimeout.longValue();
+		}
+		if(!adaptive){
+			return msTimeout;
+		}
+		LatencyHistogram histogram=history.get(verb);
+		if(histogram==null || histogram.getCount()<MIN_SAMPLES){
+			return msTimeout;
+		}
+		long adaptiveTimeout=(long)(histogram.getPercentile(0.99)*factor/1000000);
+		return Math.min(msTimeout,Math.max(minTimeout,adaptiveTimeout));
+	}
+
+	/**
+	 * Record the latency of a completed command
+	 *
+	 * @param command The command, or TelnetMetrics.LOGIN_OPERATION
+	 * @param ns The latency in nanoseconds
+	 */
+	public void record(String command,long ns){
+		getHistory(TelnetMetrics.getVerb(command)).record(ns);
+	}
+
+	/**
+	 * Record a command which timed out
+	 *
+	 * @param command The command, or TelnetMetrics.LOGIN_OPERATION
+	 * @param msTimeout The timeout which expired in milliseconds
+	 */
+	public void timedOut(String command,long msTimeout){
+		record(command,msTimeout*1000000);
+	}
+
+	private LatencyHistogram getHistory(String verb){
+		LatencyHistogram histogram=history.get(verb);
+		if(histogram==null){
+			LatencyHistogram newHistogram=new LatencyHistogram();
+			histogram=history.putIfAbsent(verb,newHistogram);
+			if(histogram==null){
+				histogram=newHistogram;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Load a latency history saved with save(). The latencies are added to the history
+	 * recorded so far. A missing file is an empty history.
+	 *
+	 * @param historyFile The file
+	 * @throws IOException If the file cannot be read or is not a latency history
+	 */
+	public void load(File historyFile) throws IOException{
+		if(!historyFile.exists()){
+			return;
+		}
+		BufferedReader in=new BufferedReader(new InputStreamReader(new FileInputStream(historyFile),"UTF-8"));
+		try {
+			String line;
+			while((line=in.readLine())!=null){
+				line=line.trim();
+				if(line.length()==0 || line.startsWith("#")){
+					continue;
+				}
+				String[] tokens=line.split("\\s+");
+				try {
+					if(tokens.length!=3){
+						throw new NumberFormatException();
+					}
+					getHistory(tokens[0].toUpperCase()).record(Long.parseLong(tokens[1])*1000,Long.parseLong(tokens[2]));
+				}catch (NumberFormatException e){
+					throw new IOException("Invalid line in latency history "+historyFile+": "+line);
+				}
+			}
+		}finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save the latency history, one line pr verb and latency with the latency in
+	 * microseconds and the number of commands
+	 *
+	 * @param historyFile The file
+	 * @throws IOException If the file cannot be written
+	 */
+	public void save(File historyFile) throws IOException{
+		Writer out=new OutputStreamWriter(new FileOutputStream(historyFile),"UTF-8");
+		try {
+			out.write("# verb latency_us count\n");
+			SortedMap<String,LatencyHistogram> verbs=new TreeMap<String,LatencyHistogram>(history);
+			for (Iterator<Map.Entry<String,LatencyHistogram>> it = verbs.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String,LatencyHistogram> verb = it.next();
+				long count=verb.getValue().getCount();
+				double scale=count>MAX_SAVED_SAMPLES?(double)MAX_SAVED_SAMPLES/count:1;
+				SortedMap<Long,Long> buckets=verb.getValue().getBucketCounts();
+				for (Iterator<Map.Entry<Long,Long>> bucketIt = buckets.entrySet().iterator(); bucketIt.hasNext();) {
+					Map.Entry<Long,Long> bucket = bucketIt.next();
+					long bucketCount=Math.round(bucket.getValue().longValue()*scale);
+					if(bucketCount>0){
+						out.write(verb.getKey()+" "+bucket.getKey().longValue()/1000+" "+bucketCount+"\n");
+					}
+				}
+			}
+		}finally {
+			out.close();
+		}
+	}
+}
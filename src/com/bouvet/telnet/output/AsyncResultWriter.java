@@ -0,0 +1,242 @@
+package com.bouvet.telnet.output;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the results of commands to one file pr host on a writer thread, so the threads
+ * running the sessions only hand the results over instead of waiting for a slow disk or
+ * terminal.
+ *
+ * The results are queued, and the writer thread takes all queued results at once, writes
+ * them to the files of their hosts and then flushes each file once. The queue is bounded by
+ * the size of the queued output, so memory use stays bounded if the disk cannot keep up;
+ * submit() then waits for room in the queue.
+ *
+ * The files are named after the host, e.g. sap1_50008.jsonl, and are appended to. If the
+ * files are compressed, each run appends a gzip member to the file, which gunzip reads as one.
+ *
+ * A failure to write, including a RuntimeException of the format, is reported to System.err
+ * once. Later results are discarded at once by submit(), and close() throws the failure.
+ */
+public class AsyncResultWriter {
+	public final static int DEFAULT_QUEUE_BYTES=64*1024*1024;
+	/*size of the buffer of each file*/
+	private final static int FILE_BUFFER_SIZE=64*1024;
+	/*results are not smaller than this in the queue bound, so empty results are bounded too*/
+	private final static int MIN_RESULT_BYTES=256;
+	/*marker which ends the writer thread*/
+	private final static CommandResult END=new CommandResult(null,null,new byte[0],null,0,0,0);
+
+	private final File directory;
+	private final ResultFormat format;
+	private final boolean compress;
+	private final int queueBytes;
+	private final LinkedBlockingQueue<CommandResult> queue=new LinkedBlockingQueue<CommandResult>();
+	/*permits for the bytes which may be queued*/
+	private final Semaphore queueRoom;
+	/*the open files by host, only used by the writer thread*/
+	private final Map<String,OutputStream> files=new HashMap<String,OutputStream>();
+	private final Thread writerThread;
+	private volatile IOException failure=null;
+	private boolean closed=false;
+
+	/**
+	 * Create a writer and start its thread
+	 *
+	 * @param directory The directory of the files, which is created if missing
+	 * @param format The format of the files
+	 * @param compress If the files should be compressed with gzip
+	 * @param queueBytes The maximum size of the queued output
+	 * @throws IOException If the directory cannot be created
+	 */
+	public AsyncResultWriter(File directory,ResultFormat format,boolean compress,int queueBytes) throws IOException{
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Could not create the output directory "+directory);
+		}
+		this.directory=directory;
+		this.format=format;
+		this.compress=compress;
+		this.queueBytes=Math.max(MIN_RESULT_BYTES,queueBytes);
+		queueRoom=new Semaphore(this.queueBytes);
+		writerThread=new Thread(new Runnable(){
+			public void run() {
+				writeResults();
+			}
+		},"AsyncResultWriter:"+directory.getName());
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Get the format of a name
+	 *
+	 * @param format raw or jsonl
+	 * @return The format
+	 * @throws IllegalArgumentException If the format is unknown
+	 */
+	public static ResultFormat getFormat(String format){
+		if("raw".equalsIgnoreCase(format.trim())){
+			return new RawResultFormat();
+		}else if("jsonl".equalsIgnoreCase(format.trim())){
+			return new JsonlResultFormat();
+		}
+		throw new IllegalArgumentException("Unknown output format "+format+", use raw or jsonl");
+	}
+
+	/**
+	 * Queue a result to be written. Returns at once unless the queue is full, it then waits
+	 * until the writer thread has made room. If a result could not be written, the result is
+	 * discarded at once, as it would not be written either.
+	 *
+	 * @param result The result
+	 * @throws IllegalStateException If the writer has been closed
+	 */
+	public void submit(CommandResult result){
+		synchronized (this) {
+			if(closed){
+				throw new IllegalStateException("The result writer is closed");
+			}
+		}
+		if(failure!=null){
+			return;
+		}
+		queueRoom.acquireUninterruptibly(getQueuedBytes(result));
+		queue.add(result);
+	}
+
+	/**
+	 * Write the queued results, close the files and stop the writer thread
+	 *
+	 * @throws IOException If a result could not be written
+	 */
+	public void close() throws IOException{
+		synchronized (this) {
+			if(closed){
+				return;
+			}
+			closed=true;
+		}
+		queue.add(END);
+		boolean interrupted=false;
+		while(writerThread.isAlive()){
+			try {
+				writerThread.join();
+			}catch (InterruptedException e){
+				interrupted=true;
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+		if(failure!=null){
+			throw failure;
+		}
+	}
+
+	/**
+	 * Get the file the results of a host are written to
+	 *
+	 * @param host The host, e.g. sap1:50008
+	 * @return
+	 */
+	public File getFile(String host){
+		String name=host.replaceAll("[^A-Za-z0-9._-]","_")+"."+format.getFileExtension()+(compress?".gz":"");
+		return new File(directory,name);
+	}
+
+	private int getQueuedBytes(CommandResult result){
+		return Math.min(queueBytes,Math.max(MIN_RESULT_BYTES,result.getOutput().length));
+	}
+
+	/**
+	 * The loop of the writer thread
+	 */
+	private void writeResults(){
+		List<CommandResult> batch=new ArrayList<CommandResult>();
+		Set<OutputStream> written=new HashSet<OutputStream>();
+		boolean end=false;
+		while(!end){
+			batch.clear();
+			try {
+				batch.add(queue.take());
+			}catch (InterruptedException e){
+				continue;
+			}
+			queue.drainTo(batch);
+			written.clear();
+			for (Iterator<CommandResult> it = batch.iterator(); it.hasNext();) {
+				CommandResult result = it.next();
+				if(result==END){
+					end=true;
+					continue;
+				}
+				queueRoom.release(getQueuedBytes(result));
+				if(failure!=null){
+					continue;
+				}
+				try {
+					OutputStream out=getStream(result.getHost());
+					format.write(result,out);
+					written.add(out);
+				}catch (IOException e){
+					failed(e);
+				}catch (RuntimeException e){
+					//the writer thread must keep taking the results, or submit() would wait forever
+					failed(new IOException("Could not format the result of "+result.getCommand()+" on "+result.getHost()+": "+e,e));
+				}
+			}
+			//flush once pr batch, so a burst of results costs one write pr file
+			for (Iterator<OutputStream> it = written.iterator(); it.hasNext();) {
+				try {
+					it.next().flush();
+				}catch (IOException e){
+					failed(e);
+				}
+			}
+		}
+		for (Iterator<OutputStream> it = files.values().iterator(); it.hasNext();) {
+			try {
+				it.next().close();
+			}catch (IOException e){
+				failed(e);
+			}
+		}
+		files.clear();
+	}
+
+	private OutputStream getStream(String host) throws IOException{
+		OutputStream out=files.get(host);
+		if(out==null){
+			OutputStream file=new FileOutputStream(getFile(host),true);
+			if(compress){
+				//syncFlush is not available, so the buffer in front gives the batching
+				out=new BufferedOutputStream(new GZIPOutputStream(file,FILE_BUFFER_SIZE),FILE_BUFFER_SIZE);
+			}else {
+				out=new BufferedOutputStream(file,FILE_BUFFER_SIZE);
+			}
+			files.put(host,out);
+		}
+		return out;
+	}
+
+	private void failed(IOException e){
+		if(failure==null){
+			failure=e;
+			System.err.println("Could not write the results to "+directory+", later results are discarded: "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.bouvet.telnet.output;
+
+import java.nio.charset.Charset;
+
+/**
+ * The result of a command on a telnet session, as written by an AsyncResultWriter.
+ *
+ * The output is kept as the bytes received from the session, so it is written unchanged
+ * by the raw format and decoded with the charset of the session by the other formats.
+ */
+public class CommandResult {
+	/*the status of a command which completed, otherwise the exit code of the session*/
+	public final static int STATUS_OK=0;
+
+	private final String host;
+	private final String command;
+	private final byte[] output;
+	private final Charset charset;
+	private final long startTime;
+	private final long durationNs;
+	private final int status;
+
+	/**
+	 * Create a new result
+	 *
+	 * @param host The host of the session, e.g. sap1:50008
+	 * @param command The command, or login for the login dialogue
+	 * @param output The output of the command, which is not copied
+	 * @param charset The charset of the output
+	 * @param startTime When the command was sent, in milliseconds since the epoch
+	 * @param durationNs The time from the command was sent until its output was complete
+	 * @param status STATUS_OK, or the exit code of a session which failed on the command
+	 */
+	public CommandResult(String host,String command,byte[] output,Charset charset,long startTime,long durationNs,int status){
+		this.host=host;
+		this.command=command;
+		this.output=output;
+		this.charset=charset;
+		this.startTime=startTime;
+		this.durationNs=durationNs;
+		this.status=status;
+	}
+
+	public String getHost(){
+		return host;
+	}
+
+	public String getCommand(){
+		return command;
+	}
+
+	public byte[] getOutput(){
+		return output;
+	}
+
+	public Charset getCharset(){
+		return charset;
+	}
+
+	public long getStartTime(){
+		return startTime;
+	}
+
+	public long getDurationNs(){
+		return durationNs;
+	}
+
+	public int getStatus(){
+		return status;
+	}
+
+	/**
+	 * Get the output decoded with the charset of the session
+	 *
+	 * @return
+	 */
+	public String getOutputText(){
+		return new String(output,charset);
+	}
+}
@@ -0,0 +1,45 @@
+package com.bouvet.telnet.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import com.bouvet.metrics.JsonFormat;
+
+/**
+ * Writes one JSON object pr line and command, with the start time, host, command,
+ * duration in milliseconds, status and the decoded output:
+ * <pre>
+ * {"time":"2009-03-01T12:00:00.000Z","host":"sap1:50008","command":"ll","duration_ms":12.5,"status":0,"output":"..."}
+ * </pre>
+ * The lines are encoded as UTF-8.
+ */
+public class JsonlResultFormat implements ResultFormat {
+	private final static Charset UTF_8=Charset.forName("UTF-8");
+
+	/*only used by the writer thread*/
+	private final SimpleDateFormat timeFormat=new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+	public JsonlResultFormat(){
+		timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	public String getFileExtension() {
+		return "jsonl";
+	}
+
+	public void write(CommandResult result, OutputStream out) throws IOException {
+		StringBuilder line=new StringBuilder(result.getOutput().length+200);
+		line.append("{\"time\":").append(JsonFormat.quote(timeFormat.format(new Date(result.getStartTime()))));
+		line.append(",\"host\":").append(JsonFormat.quote(result.getHost()));
+		line.append(",\"command\":").append(JsonFormat.quote(result.getCommand()));
+		line.append(",\"duration_ms\":").append(result.getDurationNs()/1000/1000.0);
+		line.append(",\"status\":").append(result.getStatus());
+		line.append(",\"output\":").append(JsonFormat.quote(result.getOutputText()));
+		line.append("}\n");
+		out.write(line.toString().getBytes(UTF_8));
+	}
+}
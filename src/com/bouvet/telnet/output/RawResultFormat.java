@@ -0,0 +1,19 @@
+package com.bouvet.telnet.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the output of each command unchanged, so a file contains the output of the
+ * session as SAPTelnetScript prints it. The output of a failed command is its error message.
+ */
+public class RawResultFormat implements ResultFormat {
+
+	public String getFileExtension() {
+		return "log";
+	}
+
+	public void write(CommandResult result, OutputStream out) throws IOException {
+		out.write(result.getOutput());
+	}
+}
@@ -0,0 +1,26 @@
+package com.bouvet.telnet.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A format the results of commands can be written in
+ */
+public interface ResultFormat {
+
+	/**
+	 * Get the extension of the files of the format, e.g. jsonl
+	 *
+	 * @return
+	 */
+	public String getFileExtension();
+
+	/**
+	 * Write a result
+	 *
+	 * @param result The result
+	 * @param out The stream to write to, which is not flushed or closed
+	 * @throws IOException
+	 */
+	public void write(CommandResult result,OutputStream out) throws IOException;
+}
@@ -0,0 +1,239 @@
+package com.bouvet.telnet.parse;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates the records parsed from the output of many nodes as they arrive: the total
+ * threads and memory and the distribution of the heap use of the nodes from INFO, and
+ * the HTTP sessions pr application and pr node from HTTP_SESSIONS. The report is written
+ * with write(out) when all nodes have finished.
+ *
+ * Only the latest INFO of each node is counted, while every session listed is counted,
+ * so HTTP_SESSIONS should be run once pr node. The records themselves are not kept.
+ *
+ * <p>The aggregator is thread safe without locking, as the records arrive on the event loop threads.
+ */
+public class FleetAggregator implements RecordListener {
+	public final static int DEFAULT_TOP=10;
+	/*the heap use is counted in buckets of 10 percent*/
+	private final static int HEAP_USE_BUCKETS=10;
+
+	private final int top;
+	/*the latest INFO of each node*/
+	private final ConcurrentMap<String,NodeInfo> nodeInfos=new ConcurrentHashMap<String,NodeInfo>();
+	private final AtomicLong threads=new AtomicLong();
+	private final AtomicLong usedMemoryKB=new AtomicLong();
+	private final AtomicLong totalMemoryKB=new AtomicLong();
+	private final AtomicLongArray heapUse=new AtomicLongArray(HEAP_USE_BUCKETS);
+	private final AtomicLong sessions=new AtomicLong();
+	private final ConcurrentMap<String,AtomicLong> applicationSessions=new ConcurrentHashMap<String,AtomicLong>();
+	private final ConcurrentMap<String,AtomicLong> nodeSessions=new ConcurrentHashMap<String,AtomicLong>();
+
+	/**
+	 * Create an aggregator
+	 *
+	 * @param top The number of nodes listed in the top lists of the report
+	 */
+	public FleetAggregator(int top){
+		this.top=top;
+	}
+
+	public void nodeInfo(NodeInfo info) {
+		NodeInfo previous=nodeInfos.put(info.getSource(),info);
+		if(previous!=null){
+			add(previous,-1);
+		}
+		add(info,1);
+	}
+
+	public void httpSession(HttpSession session) {
+		sessions.incrementAndGet();
+		increment(applicationSessions,session.getApplication()!=null?session.getApplication():"unknown");
+		increment(nodeSessions,session.getSource());
+	}
+
+	/**
+	 * Add the numbers of an INFO to the totals, or subtract them when it is replaced
+	 */
+	private void add(NodeInfo info,int sign){
+		if(info.getThreads()>=0){
+			threads.addAndGet(sign*info.getThreads());
+		}
+		if(info.getUsedMemoryKB()>=0 && info.getTotalMemoryKB()>0){
+			usedMemoryKB.addAndGet(sign*info.getUsedMemoryKB());
+			totalMemoryKB.addAndGet(sign*info.getTotalMemoryKB());
+			heapUse.addAndGet(getHeapUseBucket(info),sign);
+		}
+	}
+
+	private static int getHeapUseBucket(NodeInfo info){
+		int bucket=(int)(info.getUsedMemoryKB()*HEAP_USE_BUCKETS/info.getTotalMemoryKB());
+		return Math.max(0,Math.min(HEAP_USE_BUCKETS-1,bucket));
+	}
+
+	private static void increment(ConcurrentMap<String,AtomicLong> counters,String key){
+		AtomicLong counter=counters.get(key);
+		if(counter==null){
+			AtomicLong created=new AtomicLong();
+			counter=counters.putIfAbsent(key,created);
+			if(counter==null){
+				counter=created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * Get the number of nodes which have given their INFO
+	 *
+	 * @return
+	 */
+	public int getNodes(){
+		return nodeInfos.size();
+	}
+
+	/**
+	 * Get the number of HTTP sessions listed
+	 *
+	 * @return
+	 */
+	public long getSessions(){
+		return sessions.get();
+	}
+
+	/**
+	 * Get the number of HTTP sessions pr application
+	 *
+	 * @return A copy of the counts, ordered by the most sessions first
+	 */
+	public Map<String,Long> getApplicationSessions(){
+		return sorted(applicationSessions);
+	}
+
+	/**
+	 * Get the number of HTTP sessions pr node
+	 *
+	 * @return A copy of the counts, ordered by the most sessions first
+	 */
+	public Map<String,Long> getNodeSessions(){
+		return sorted(nodeSessions);
+	}
+
+	/**
+	 * Write the report of the records aggregated so far
+	 *
+	 * @param out Where the report is written
+	 */
+	public void write(PrintStream out){
+		StringBuilder report=new StringBuilder();
+		report.append("\n=== aggregate\n");
+		if(!nodeInfos.isEmpty()){
+			report.append("Nodes: ").append(nodeInfos.size()).append('\n');
+			report.append("Threads: ").append(threads.get()).append('\n');
+			report.append("Used memory: ").append(usedMemoryKB.get()).append(" KB of ").append(totalMemoryKB.get()).append(" KB")
+				.append(percent(usedMemoryKB.get(),totalMemoryKB.get())).append('\n');
+			report.append("Heap use:");
+			String separator=" ";
+			for (int i = 0; i < HEAP_USE_BUCKETS; i++) {
+				if(heapUse.get(i)>0){
+					report.append(separator).append(i*100/HEAP_USE_BUCKETS).append('-').append((i+1)*100/HEAP_USE_BUCKETS-1).append("%: ").append(heapUse.get(i));
+					separator=", ";
+				}
+			}
+			report.append('\n');
+			List<NodeInfo> infos=new ArrayList<NodeInfo>(nodeInfos.values());
+			Collections.sort(infos,new Comparator<NodeInfo>(){
+				public int compare(NodeInfo o1, NodeInfo o2) {
+					return o1.getUsedMemoryKB()<o2.getUsedMemoryKB()?1:o1.getUsedMemoryKB()==o2.getUsedMemoryKB()?0:-1;
+				}
+			});
+			report.append("Top nodes by used memory:\n");
+			for (int i = 0; i < infos.size() && i < top; i++) {
+				NodeInfo info=infos.get(i);
+				report.append("  ").append(info.getSource()).append(' ').append(info.getUsedMemoryKB()).append(" KB")
+					.append(percent(info.getUsedMemoryKB(),info.getTotalMemoryKB())).append('\n');
+			}
+		}
+		if(sessions.get()>0){
+			Map<String,Long> perNode=getNodeSessions();
+			report.append("HTTP sessions: ").append(sessions.get()).append(" on ").append(perNode.size()).append(" nodes\n");
+			report.append("Sessions pr application:\n");
+			appendCounts(report,getApplicationSessions(),Integer.MAX_VALUE);
+			report.append("Top nodes by sessions:\n");
+			appendCounts(report,perNode,top);
+			//the number of nodes with 1-9, 10-99, ... sessions
+			List<Long> decades=new ArrayList<Long>();
+			for (Iterator<Long> it = perNode.values().iterator(); it.hasNext();) {
+				int decade=Long.toString(it.next().longValue()).length()-1;
+				while(decades.size()<=decade){
+					decades.add(Long.valueOf(0));
+				}
+				decades.set(decade,Long.valueOf(decades.get(decade).longValue()+1));
+			}
+			report.append("Sessions pr node:");
+			String separator=" ";
+			long from=1;
+			for (int i = 0; i < decades.size(); i++) {
+				if(decades.get(i).longValue()>0){
+					report.append(separator).append(from).append('-').append(from*10-1).append(": ").append(decades.get(i));
+					separator=", ";
+				}
+				from*=10;
+			}
+			report.append('\n');
+		}
+		if(nodeInfos.isEmpty() && sessions.get()==0){
+			report.append("No INFO or HTTP_SESSIONS output was parsed\n");
+		}
+		out.print(report);
+		out.flush();
+	}
+
+	private static String percent(long part,long whole){
+		return whole>0?" ("+(part*100/whole)+"%)":"";
+	}
+
+	private static void appendCounts(StringBuilder report,Map<String,Long> counts,int limit){
+		int i=0;
+		for (Iterator<Map.Entry<String,Long>> it = counts.entrySet().iterator(); it.hasNext() && i<limit; i++) {
+			Map.Entry<String,Long> count=it.next();
+			report.append("  ").append(count.getKey()).append(' ').append(count.getValue()).append('\n');
+		}
+	}
+
+	/**
+	 * Copy the counters, ordered by the highest count first
+	 */
+	private static Map<String,Long> sorted(ConcurrentMap<String,AtomicLong> counters){
+		final Map<String,Long> counts=new HashMap<String,Long>();
+		for (Iterator<Map.Entry<String,AtomicLong>> it = counters.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String,AtomicLong> entry=it.next();
+			counts.put(entry.getKey(),Long.valueOf(entry.getValue().get()));
+		}
+		List<String> keys=new ArrayList<String>(counts.keySet());
+		Collections.sort(keys,new Comparator<String>(){
+			public int compare(String o1, String o2) {
+				int order=counts.get(o2).compareTo(counts.get(o1));
+				return order!=0?order:o1.compareTo(o2);
+			}
+		});
+		Map<String,Long> result=new LinkedHashMap<String,Long>();
+		for (Iterator<String> it = keys.iterator(); it.hasNext();) {
+			String key=it.next();
+			result.put(key,counts.get(key));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,50 @@
+package com.bouvet.telnet.parse;
+
+/**
+ * One HTTP session listed by the HTTP_SESSIONS command. Fields missing from
+ * the line are null.
+ */
+public class HttpSession {
+	private final String source;
+	private final String sessionId;
+	private final String application;
+	private final String user;
+	private final String lastAccessed;
+
+	public HttpSession(String source,String sessionId,String application,String user,String lastAccessed){
+		this.source=source;
+		this.sessionId=sessionId;
+		this.application=application;
+		this.user=user;
+		this.lastAccessed=lastAccessed;
+	}
+
+	/**
+	 * Get where the output came from
+	 *
+	 * @return The host, e.g. sap1:50008, or the host and the node, e.g. sap1:50008/3
+	 */
+	public String getSource(){
+		return source;
+	}
+
+	public String getSessionId(){
+		return sessionId;
+	}
+
+	public String getApplication(){
+		return application;
+	}
+
+	public String getUser(){
+		return user;
+	}
+
+	public String getLastAccessed(){
+		return lastAccessed;
+	}
+
+	public String toString(){
+		return source+" "+sessionId+" "+application+" "+user;
+	}
+}
@@ -0,0 +1,52 @@
+package com.bouvet.telnet.parse;
+
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the output of the HTTP_SESSIONS command, giving an HttpSession to the listener
+ * for each session line as soon as it is parsed. A session line has Name: value fields
+ * separated by two or more spaces or a tab, e.g.
+ * <pre>
+ * Session ID: 1A2B  Application: irj  User: jdoe  Last accessed: 12:00:00
+ * </pre>
+ * Lines without a Session ID field, like headers and the prompt, are ignored.
+ */
+public class HttpSessionsParser extends LineParser {
+	private final static Pattern FIELD_SEPARATOR=Pattern.compile("\\s{2,}|\\t");
+
+	public HttpSessionsParser(String source,Charset charset,RecordListener listener){
+		super(source,charset,listener);
+	}
+
+	protected void parseLine(String line) {
+		if(line.indexOf("Session ID")<0){
+			return;
+		}
+		String sessionId=null;
+		String application=null;
+		String user=null;
+		String lastAccessed=null;
+		String[] fields=FIELD_SEPARATOR.split(line.trim());
+		for (int i = 0; i < fields.length; i++) {
+			int colon=fields[i].indexOf(':');
+			if(colon<0){
+				continue;
+			}
+			String name=fields[i].substring(0,colon).trim();
+			String value=fields[i].substring(colon+1).trim();
+			if("Session ID".equalsIgnoreCase(name)){
+				sessionId=value;
+			}else if("Application".equalsIgnoreCase(name)){
+				application=value;
+			}else if("User".equalsIgnoreCase(name)){
+				user=value;
+			}else if("Last accessed".equalsIgnoreCase(name)){
+				lastAccessed=value;
+			}
+		}
+		if(sessionId!=null){
+			listener.httpSession(new HttpSession(source,sessionId,application,user,lastAccessed));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.bouvet.telnet.parse;
+
+import java.nio.charset.Charset;
+
+/**
+ * Parses the output of the INFO command into a NodeInfo, which is given to the listener
+ * when the output is complete. The output has one Name: value pair pr line, e.g.
+ * <pre>
+ * Cluster ID: 3
+ * Element name: server1
+ * Threads: 112
+ * Used memory: 512000 KB
+ * </pre>
+ * Unknown lines are ignored. Memory is converted to KB from KB, MB or GB, and read as KB
+ * without a unit. No record is given if the output has none of the known names.
+ */
+public class InfoParser extends LineParser {
+	private String clusterId=null;
+	private String elementName=null;
+	private String version=null;
+	private int threads=-1;
+	private long usedMemoryKB=-1;
+	private long totalMemoryKB=-1;
+	private boolean parsed=false;
+
+	public InfoParser(String source,Charset charset,RecordListener listener){
+		super(source,charset,listener);
+	}
+
+	protected void parseLine(String line) {
+		int colon=line.indexOf(':');
+		if(colon<0){
+			return;
+		}
+		String name=line.substring(0,colon).trim();
+		String value=line.substring(colon+1).trim();
+		if("Cluster ID".equalsIgnoreCase(name)){
+			clusterId=value;
+		}else if("Element name".equalsIgnoreCase(name)){
+			elementName=value;
+		}else if("Version".equalsIgnoreCase(name)){
+			version=value;
+		}else if("Threads".equalsIgnoreCase(name)){
+			threads=(int)parseNumber(value);
+		}else if("Used memory".equalsIgnoreCase(name)){
+			usedMemoryKB=parseKB(value);
+		}else if("Total memory".equalsIgnoreCase(name)){
+			totalMemoryKB=parseKB(value);
+		}else {
+			return;
+		}
+		parsed=true;
+	}
+
+	protected void finished() {
+		if(parsed){
+			listener.nodeInfo(new NodeInfo(source,clusterId,elementName,version,threads,usedMemoryKB,totalMemoryKB));
+		}
+	}
+
+	/**
+	 * Parse a number followed by an optional unit
+	 *
+	 * @return The number, or -1 if the value does not start with one
+	 */
+	private static long parseNumber(String value){
+		int end=digits(value);
+		if(end==0 || end>18){
+			return -1;
+		}
+		return Long.parseLong(value.substring(0,end));
+	}
+
+	private static long parseKB(String value){
+		long number=parseNumber(value);
+		if(number<0){
+			return -1;
+		}
+		String unit=value.substring(digits(value)).trim().toUpperCase();
+		if(unit.startsWith("GB")){
+			return number*1024*1024;
+		}else if(unit.startsWith("MB")){
+			return number*1024;
+		}
+		return number;
+	}
+
+	/**
+	 * Get the number of digits at the start of the value
+	 */
+	private static int digits(String value){
+		int end=0;
+		while(end<value.length() && Character.isDigit(value.charAt(end))){
+			end++;
+		}
+		return end;
+	}
+}
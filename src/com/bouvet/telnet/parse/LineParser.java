@@ -0,0 +1,111 @@
+package com.bouvet.telnet.parse;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import com.bouvet.telnet.OutputDecoder;
+import com.bouvet.telnet.OutputSink;
+
+/**
+ * OutputSink which decodes the output of a command and passes it to the parser a line
+ * at a time, so the output is parsed as it arrives without being held as a whole.
+ *
+ * Only the current line is kept. Its chars beyond MAX_LINE_LENGTH are dropped, so a
+ * garbled output cannot make the parser grow without bounds. Line ends are \n or \r\n.
+ * Call finish() when the output of the command is complete.
+ *
+ * <p>A parser is not thread safe, and parses the output of one command.
+ */
+public abstract class LineParser implements OutputSink {
+	public final static int MAX_LINE_LENGTH=16*1024;
+
+	protected final String source;
+	protected final RecordListener listener;
+	private final OutputDecoder decoder;
+	/*the chars of the current line*/
+	private final StringBuilder line=new StringBuilder();
+	/*receives the decoded chars*/
+	private final Writer splitter=new Writer(){
+		public void write(char[] cbuf, int off, int len) {
+			for (int i = off; i < off+len; i++) {
+				nextChar(cbuf[i]);
+			}
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	};
+
+	/**
+	 * Create a new parser
+	 *
+	 * @param source Where the output comes from, which is given to the records
+	 * @param charset The charset of the output
+	 * @param listener The listener receiving the records
+	 */
+	protected LineParser(String source,Charset charset,RecordListener listener){
+		this.source=source;
+		this.listener=listener;
+		decoder=new OutputDecoder(charset);
+	}
+
+	public void output(byte[] buffer, int offset, int length) throws IOException {
+		decoder.decode(buffer,offset,length,splitter);
+	}
+
+	/**
+	 * Parse output which has already been decoded, e.g. the String returned by
+	 * SAPTelnetClient.sendCommand(command)
+	 *
+	 * @param output The output
+	 */
+	public void parse(String output){
+		for (int i = 0; i < output.length(); i++) {
+			nextChar(output.charAt(i));
+		}
+	}
+
+	/**
+	 * End the output of the command, parsing the last line
+	 *
+	 * @throws IOException If the output cannot be decoded
+	 */
+	public void finish() throws IOException{
+		decoder.finish(splitter);
+		if(line.length()>0){
+			endLine();
+		}
+		finished();
+	}
+
+	private void nextChar(char c){
+		if(c=='\n'){
+			endLine();
+		}else if(c!='\r' && line.length()<MAX_LINE_LENGTH){
+			line.append(c);
+		}
+	}
+
+	private void endLine(){
+		parseLine(line.toString());
+		line.setLength(0);
+	}
+
+	/**
+	 * Parse a line of the output
+	 *
+	 * @param line The line, without the line end
+	 */
+	protected abstract void parseLine(String line);
+
+	/**
+	 * Called when the output has been parsed, e.g. to emit a record made from all lines.
+	 * Default behaviour is to do nothing
+	 */
+	protected void finished(){
+	}
+}
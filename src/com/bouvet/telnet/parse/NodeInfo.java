@@ -0,0 +1,62 @@
+package com.bouvet.telnet.parse;
+
+/**
+ * The information about a node given by the INFO command. Fields missing from
+ * the output are null, or -1 for the numbers.
+ */
+public class NodeInfo {
+	private final String source;
+	private final String clusterId;
+	private final String elementName;
+	private final String version;
+	private final int threads;
+	private final long usedMemoryKB;
+	private final long totalMemoryKB;
+
+	public NodeInfo(String source,String clusterId,String elementName,String version,int threads,long usedMemoryKB,long totalMemoryKB){
+		this.source=source;
+		this.clusterId=clusterId;
+		this.elementName=elementName;
+		this.version=version;
+		this.threads=threads;
+		this.usedMemoryKB=usedMemoryKB;
+		this.totalMemoryKB=totalMemoryKB;
+	}
+
+	/**
+	 * Get where the output came from
+	 *
+	 * @return The host, e.g. sap1:50008, or the host and the node, e.g. sap1:50008/3
+	 */
+	public String getSource(){
+		return source;
+	}
+
+	public String getClusterId(){
+		return clusterId;
+	}
+
+	public String getElementName(){
+		return elementName;
+	}
+
+	public String getVersion(){
+		return version;
+	}
+
+	public int getThreads(){
+		return threads;
+	}
+
+	public long getUsedMemoryKB(){
+		return usedMemoryKB;
+	}
+
+	public long getTotalMemoryKB(){
+		return totalMemoryKB;
+	}
+
+	public String toString(){
+		return source+" "+elementName+" threads="+threads+" used="+usedMemoryKB+"KB total="+totalMemoryKB+"KB";
+	}
+}
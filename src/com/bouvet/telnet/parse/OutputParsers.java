@@ -0,0 +1,35 @@
+package com.bouvet.telnet.parse;
+
+import java.nio.charset.Charset;
+
+import com.bouvet.telnet.TelnetMetrics;
+
+/**
+ * Chooses the parser of the output of a command by its verb.
+ */
+public class OutputParsers {
+	public final static String INFO_VERB="INFO";
+	public final static String HTTP_SESSIONS_VERB="HTTP_SESSIONS";
+
+	private OutputParsers(){
+	}
+
+	/**
+	 * Create the parser of the output of a command
+	 *
+	 * @param command The command
+	 * @param source Where the output comes from, which is given to the records
+	 * @param charset The charset of the output
+	 * @param listener The listener receiving the records
+	 * @return The parser, or null if the output of the command is not parsed
+	 */
+	public static LineParser create(String command,String source,Charset charset,RecordListener listener){
+		String verb=TelnetMetrics.getVerb(command);
+		if(INFO_VERB.equals(verb)){
+			return new InfoParser(source,charset,listener);
+		}else if(HTTP_SESSIONS_VERB.equals(verb)){
+			return new HttpSessionsParser(source,charset,listener);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,24 @@
+package com.bouvet.telnet.parse;
+
+/**
+ * Receives the records parsed from the output of the commands.
+ *
+ * The parsers of the fleet and cluster scripts run on the event loop threads, so a
+ * listener shared by the sessions must be thread safe, and should not block.
+ */
+public interface RecordListener {
+
+	/**
+	 * Receive the information about a node parsed from the output of INFO
+	 *
+	 * @param info The information
+	 */
+	public void nodeInfo(NodeInfo info);
+
+	/**
+	 * Receive a session parsed from the output of HTTP_SESSIONS
+	 *
+	 * @param session The session
+	 */
+	public void httpSession(HttpSession session);
+}
@@ -0,0 +1,234 @@
+package com.bouvet.telnet.record;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records a telnet session to a file: every chunk sent and every chunk received, with the
+ * time since the previous chunk in nanoseconds. A recording can be read with
+ * SessionRecording and served back by the ReplayTelnetServer, to reproduce slow commands
+ * and tune timeouts offline against real output.
+ *
+ * The file starts with the MAGIC bytes, the host as UTF and the start time in milliseconds
+ * since the epoch. Each event is a type byte, the nanoseconds since the previous event as a
+ * variable length long, and for SENT and RECEIVED the length as a variable length long followed
+ * by the bytes. CLOSED ends a recording closed by the server. The file is only appended to,
+ * and is flushed when a chunk is sent, so a recording ending in a crash is readable up to
+ * the last command. Secrets such as the password are replaced by HIDDEN in the sent chunks.
+ *
+ * A failure to write is reported to System.err once, and the recording is stopped. The
+ * session is not affected.
+ *
+ * <p>The recorder is thread safe, as the chunks are sent and received by different threads.
+ */
+public class SessionRecorder {
+	public final static byte[] MAGIC={'S','A','P','T','R','E','C','1'};
+	public final static int SENT=1;
+	public final static int RECEIVED=2;
+	public final static int CLOSED=3;
+	public final static byte HIDDEN='*';
+	private final static int FILE_BUFFER_SIZE=64*1024;
+	/*tells apart the files of sessions started in the same millisecond*/
+	private final static AtomicInteger sequence=new AtomicInteger();
+
+	private final File file;
+	private DataOutputStream out;
+	private long lastEvent;
+	/*copy of a received direct buffer*/
+	private byte[] copyBuffer=new byte[0];
+	/*bytes which are hidden in the sent chunks*/
+	private List<byte[]> secrets=new ArrayList<byte[]>();
+
+	/**
+	 * Start recording a session to a new file in the directory, named after the host and
+	 * the start time, e.g. sap1_50008_20100301-121500-123_0.rec
+	 *
+	 * @param directory The directory, which is created if missing
+	 * @param host The host of the session, e.g. sap1:50008
+	 * @return The recorder
+	 * @throws IOException If the file cannot be created
+	 */
+	public static SessionRecorder create(File directory,String host) throws IOException{
+		if(!directory.isDirectory() && !directory.mkdirs()){
+			throw new IOException("Could not create the directory "+directory);
+		}
+		Date start=new Date();
+		String name=host.replaceAll("[^A-Za-z0-9._-]","_")+"_"+new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(start)
+			+"_"+sequence.getAndIncrement()+".rec";
+		return new SessionRecorder(new File(directory,name),host,start.getTime());
+	}
+
+	/**
+	 * Start recording a session
+	 *
+	 * @param file The file, which is appended to
+	 * @param host The host of the session
+	 * @param startTime When the session started, in milliseconds since the epoch
+	 * @throws IOException If the file cannot be opened
+	 */
+	public SessionRecorder(File file,String host,long startTime) throws IOException{
+		this.file=file;
+		out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file,true),FILE_BUFFER_SIZE));
+		lastEvent=System.nanoTime();
+		out.write(MAGIC);
+		out.writeUTF(host);
+		out.writeLong(startTime);
+	}
+
+	public File getFile(){
+		return file;
+	}
+
+	/**
+	 * Hide a secret, e.g. a password, in the chunks sent from now on
+	 *
+	 * @param secret The secret, encoded as it is sent
+	 */
+	public synchronized void hide(byte[] secret){
+		if(secret.length>0){
+			secrets.add(secret);
+		}
+	}
+
+	/**
+	 * Record bytes sent to the server
+	 *
+	 * @param bytes The bytes
+	 * @param offset The offset of the first byte
+	 * @param length The number of bytes
+	 */
+	public synchronized void sent(byte[] bytes,int offset,int length){
+		if(out==null){
+			return;
+		}
+		try {
+			writeEvent(SENT);
+			writeVarLong(length);
+			if(secrets.isEmpty()){
+				out.write(bytes,offset,length);
+			}else {
+				out.write(hideSecrets(bytes,offset,length));
+			}
+			out.flush();
+		}catch (IOException e){
+			failed(e);
+		}
+	}
+
+	/**
+	 * Record bytes received from the server
+	 *
+	 * @param buffer The buffer, whose remaining bytes were received. Its position is not changed
+	 */
+	public synchronized void received(ByteBuffer buffer){
+		if(out==null){
+			return;
+		}
+		try {
+			int length=buffer.remaining();
+			writeEvent(RECEIVED);
+			writeVarLong(length);
+			if(buffer.hasArray()){
+				out.write(buffer.array(),buffer.arrayOffset()+buffer.position(),length);
+			}else {
+				if(copyBuffer.length<length){
+					copyBuffer=new byte[length];
+				}
+				buffer.duplicate().get(copyBuffer,0,length);
+				out.write(copyBuffer,0,length);
+			}
+		}catch (IOException e){
+			failed(e);
+		}
+	}
+
+	/**
+	 * Record that the server closed the session, and close the file
+	 */
+	public synchronized void closed(){
+		if(out==null){
+			return;
+		}
+		try {
+			writeEvent(CLOSED);
+		}catch (IOException e){
+			failed(e);
+		}
+		close();
+	}
+
+	/**
+	 * Stop recording and close the file. Later events are ignored.
+	 */
+	public synchronized void close(){
+		if(out==null){
+			return;
+		}
+		try {
+			out.close();
+		}catch (IOException e){
+			System.err.println("Could not write the recording "+file+": "+e.getMessage());
+		}
+		out=null;
+	}
+
+	/**
+	 * Copy the bytes with the secrets replaced by HIDDEN
+	 */
+	private byte[] hideSecrets(byte[] bytes,int offset,int length){
+		byte[] copy=new byte[length];
+		System.arraycopy(bytes,offset,copy,0,length);
+		for (int i = 0; i < secrets.size(); i++) {
+			byte[] secret=secrets.get(i);
+			for (int start = 0; start+secret.length <= length; start++) {
+				int matched=0;
+				while(matched<secret.length && bytes[offset+start+matched]==secret[matched]){
+					matched++;
+				}
+				if(matched==secret.length){
+					for (int j = 0; j < secret.length; j++) {
+						copy[start+j]=HIDDEN;
+					}
+				}
+			}
+		}
+		return copy;
+	}
+
+	private void writeEvent(int type) throws IOException{
+		long now=System.nanoTime();
+		out.writeByte(type);
+		writeVarLong(now-lastEvent);
+		lastEvent=now;
+	}
+
+	/**
+	 * Write a non-negative long in 7 bit groups, least significant first
+	 */
+	private void writeVarLong(long value) throws IOException{
+		while((value & ~0x7FL)!=0){
+			out.writeByte((int)(value & 0x7F) | 0x80);
+			value>>>=7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private void failed(IOException e){
+		System.err.println("Could not write the recording "+file+": "+e.getMessage()+". Therefore the recording is stopped");
+		try {
+			out.close();
+		}catch (IOException e1){
+			//already reported
+		}
+		out=null;
+	}
+}
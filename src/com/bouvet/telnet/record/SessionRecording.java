@@ -0,0 +1,172 @@
+package com.bouvet.telnet.record;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads a recording written by SessionRecorder, one event at a time.
+ *
+ * A recording which ends in the middle of an event, e.g. because the JVM recording it
+ * was killed, ends with the last complete event.
+ */
+public class SessionRecording {
+	private final File file;
+	private final DataInputStream in;
+	private final String host;
+	private final long startTime;
+	/*the nanoseconds from the start of the recording to the last event read*/
+	private long time=0;
+	private boolean ended=false;
+
+	/**
+	 * Open a recording
+	 *
+	 * @param file The file
+	 * @throws IOException If the file cannot be read or is not a recording
+	 */
+	public SessionRecording(File file) throws IOException{
+		this.file=file;
+		in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			byte[] magic=new byte[SessionRecorder.MAGIC.length];
+			in.readFully(magic);
+			if(!Arrays.equals(magic,SessionRecorder.MAGIC)){
+				throw new IOException(file+" is not a session recording");
+			}
+			host=in.readUTF();
+			startTime=in.readLong();
+		}catch (IOException e){
+			in.close();
+			throw e;
+		}
+	}
+
+	public File getFile(){
+		return file;
+	}
+
+	/**
+	 * Get the host of the recorded session, e.g. sap1:50008
+	 *
+	 * @return
+	 */
+	public String getHost(){
+		return host;
+	}
+
+	/**
+	 * Get when the session started
+	 *
+	 * @return The time in milliseconds since the epoch
+	 */
+	public long getStartTime(){
+		return startTime;
+	}
+
+	/**
+	 * Read the next event
+	 *
+	 * @return The event, or null at the end of the recording
+	 * @throws IOException If the file cannot be read or is corrupt
+	 */
+	public Event next() throws IOException{
+		if(ended){
+			return null;
+		}
+		try {
+			int type=in.read();
+			if(type==-1){
+				ended=true;
+				return null;
+			}
+			long eventTime=time+readVarLong();
+			byte[] data=null;
+			if(type==SessionRecorder.SENT || type==SessionRecorder.RECEIVED){
+				long length=readVarLong();
+				if(length>Integer.MAX_VALUE){
+					throw new IOException("Invalid length of an event in "+file+": "+length);
+				}
+				data=new byte[(int)length];
+				in.readFully(data);
+			}else if(type!=SessionRecorder.CLOSED){
+				throw new IOException("Invalid type of an event in "+file+": "+type);
+			}
+			time=eventTime;
+			return new Event(type,eventTime,data);
+		}catch (EOFException e){
+			//the recording was cut off in the middle of an event
+			ended=true;
+			return null;
+		}
+	}
+
+	/**
+	 * Close the file
+	 */
+	public void close(){
+		try {
+			in.close();
+		}catch (IOException e){
+			//e.printStackTrace();
+		}
+	}
+
+	private long readVarLong() throws IOException{
+		long value=0;
+		for (int shift = 0; shift < 64; shift+=7) {
+			int b=in.readUnsignedByte();
+			value|=(long)(b & 0x7F)<<shift;
+			if((b & 0x80)==0){
+				return value;
+			}
+		}
+		throw new IOException("Invalid variable length number in "+file);
+	}
+
+	/**
+	 * A chunk sent or received, or the close of the session by the server
+	 */
+	public static class Event {
+		private final int type;
+		private final long time;
+		private final byte[] data;
+
+		Event(int type,long time,byte[] data){
+			this.type=type;
+			this.time=time;
+			this.data=data;
+		}
+
+		/**
+		 * Get the type of the event
+		 *
+		 * @return SessionRecorder.SENT, RECEIVED or CLOSED
+		 */
+		public int getType(){
+			return type;
+		}
+
+		/**
+		 * Get the time of the event
+		 *
+		 * @return The nanoseconds since the start of the recording
+		 */
+		public long getTime(){
+			return time;
+		}
+
+		/**
+		 * Get the bytes sent or received
+		 *
+		 * @return The bytes, or null for CLOSED
+		 */
+		public byte[] getData(){
+			return data;
+		}
+	}
+}
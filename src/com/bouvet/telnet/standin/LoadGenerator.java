@@ -0,0 +1,310 @@
+package com.bouvet.telnet.standin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bouvet.telnet.OutputSink;
+import com.bouvet.telnet.SAPTelnetClientPool;
+import com.bouvet.telnet.SAPTelnetScript;
+import com.bouvet.telnet.TelnetException;
+
+/**
+ * Load generator which runs many SAPTelnetScript sessions concurrently against a host,
+ * typically the stand-in server, and reports throughput and latency percentiles.
+ *
+ * Each of the concurrent sessions runs the command file again and again until the
+ * given number of runs have completed. The output of the scripts is discarded.
+ *
+ * <p>The options file is the one of SAPTelnetScript, with the following additional properties:
+ * <ul>
+ * <li>LoadStandIn(optional): If true, a stand-in server is started in this process with the
+ * same options, see StandInTelnetServer (default false)
+ * <li>LoadPooled(optional): If true, the sessions are leased from a SAPTelnetClientPool instead
+ * of logging in for each run (default false)
+ * </ul>
+ *
+ * Usage: java com.bouvet.telnet.standin.LoadGenerator optionsFile commandFile [sessions] [runs]
+ */
+public class LoadGenerator {
+	public final static int DEFAULT_SESSIONS=10;
+	public final static int DEFAULT_RUNS_PR_SESSION=10;
+
+	protected final static String LOAD_STAND_IN_PROPERTY="LoadStandIn";
+	protected final static String LOAD_POOLED_PROPERTY="LoadPooled";
+
+	private String optionsFile;
+	private String commandFile;
+	private int sessions;
+	private int runs;
+	private SAPTelnetClientPool clientPool=null;
+
+	private AtomicInteger remainingRuns=new AtomicInteger();
+	private LatencyRecorder loginLatency=new LatencyRecorder();
+	private LatencyRecorder commandLatency=new LatencyRecorder();
+	private LatencyRecorder runLatency=new LatencyRecorder();
+	/*number of failed runs pr exit code*/
+	private Map<Integer,Integer> failures=new TreeMap<Integer,Integer>();
+
+	public static void main(String[] args) {
+		if(args.length<2 || args.length>4){
+			System.err.println("Usage: java com.bouvet.telnet.standin.LoadGenerator optionsFile commandFile [sessions] [runs]");
+			System.exit(-1);
+		}
+		int sessions=args.length>2?Integer.parseInt(args[2]):DEFAULT_SESSIONS;
+		int runs=args.length>3?Integer.parseInt(args[3]):sessions*DEFAULT_RUNS_PR_SESSION;
+		Properties properties=new Properties();
+		try {
+			InputStream in=new FileInputStream(new File(args[0]));
+			try {
+				properties.load(in);
+			}finally {
+				in.close();
+			}
+		}catch (IOException e){
+			System.err.println("Problems reading options from "+args[0]);
+			System.exit(-1);
+		}
+
+		StandInTelnetServer server=null;
+		try {
+			if(Boolean.valueOf(properties.getProperty(LOAD_STAND_IN_PROPERTY,"false").trim()).booleanValue()){
+				server=new StandInTelnetServer(properties);
+				server.start();
+				System.out.println("Started stand-in on port "+server.getPort());
+			}
+			LoadGenerator generator=new LoadGenerator(args[0],args[1],sessions,runs);
+			if(Boolean.valueOf(properties.getProperty(LOAD_POOLED_PROPERTY,"false").trim()).booleanValue()){
+				SAPTelnetClientPool pool=new SAPTelnetClientPool();
+				pool.setMaxPerHost(sessions);
+				generator.setClientPool(pool);
+			}
+			generator.run(System.out);
+			if(generator.getFailedRuns()>0){
+				System.exit(1);
+			}
+		}catch (IOException e){
+			System.err.println("Could not start the stand-in: "+e.getMessage());
+			System.exit(-1);
+		}catch (InterruptedException e){
+			System.exit(-1);
+		}finally {
+			if(server!=null){
+				server.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Create a new load generator
+	 *
+	 * @param optionsFile The options file of the scripts
+	 * @param commandFile The command file of the scripts
+	 * @param sessions The number of concurrent sessions
+	 * @param runs The total number of script runs
+	 */
+	public LoadGenerator(String optionsFile,String commandFile,int sessions,int runs){
+		this.optionsFile=optionsFile;
+		this.commandFile=commandFile;
+		this.sessions=sessions;
+		this.runs=runs;
+	}
+
+	/**
+	 * Lease the sessions of the scripts from a pool instead of logging in for each run
+	 *
+	 * @param clientPool The pool, or null
+	 */
+	public void setClientPool(SAPTelnetClientPool clientPool){
+		this.clientPool=clientPool;
+	}
+
+	/**
+	 * Run the scripts and print the report. System.out is discarded while the scripts run.
+	 *
+	 * @param report The stream the report is printed to
+	 * @throws InterruptedException
+	 */
+	public void run(PrintStream report) throws InterruptedException{
+		remainingRuns.set(runs);
+		Thread[] threads=new Thread[sessions];
+		PrintStream out=System.out;
+		System.setOut(new PrintStream(new DiscardingOutputStream()));
+		long start=System.nanoTime();
+		try {
+			for (int i = 0; i < threads.length; i++) {
+				threads[i]=new Thread(new Runnable(){
+					public void run() {
+						while(remainingRuns.getAndDecrement()>0){
+							runScript();
+						}
+					}
+				},"LoadGenerator:"+i);
+				threads[i].start();
+			}
+			for (int i = 0; i < threads.length; i++) {
+				threads[i].join();
+			}
+		}finally {
+			System.setOut(out);
+		}
+		printReport(report,System.nanoTime()-start);
+		if(clientPool!=null){
+			clientPool.close();
+		}
+	}
+
+	/**
+	 * Get the number of runs which failed
+	 *
+	 * @return
+	 */
+	public synchronized int getFailedRuns(){
+		int failed=0;
+		for (Iterator<Integer> it = failures.values().iterator(); it.hasNext();) {
+			failed+=it.next().intValue();
+		}
+		return failed;
+	}
+
+	private void runScript(){
+		LoadScript script=new LoadScript(optionsFile,commandFile);
+		script.setClientPool(clientPool);
+		long start=System.nanoTime();
+		try {
+			script.init();
+			script.lastCompleted=System.nanoTime();
+			script.run();
+			runLatency.record(System.nanoTime()-start);
+		}catch (TelnetException e){
+			failed(e.getExitCode());
+		}
+	}
+
+	private synchronized void failed(int exitCode){
+		Integer key=Integer.valueOf(exitCode);
+		Integer count=failures.get(key);
+		failures.put(key,Integer.valueOf(count==null?1:count.intValue()+1));
+	}
+
+	private void printReport(PrintStream report,long elapsedNs){
+		double seconds=elapsedNs/1e9;
+		report.println("Runs: "+runs+" (failed: "+getFailedRuns()+") with "+sessions+" concurrent sessions in "+format(seconds)+" s");
+		report.println("Throughput: "+format(runLatency.getCount()/seconds)+" runs/s, "+format(commandLatency.getCount()/seconds)+" commands/s");
+		report.println("latency(ms)\tcount\tp50\tp90\tp99\tmax");
+		printLatency(report,"login",loginLatency);
+		printLatency(report,"command",commandLatency);
+		printLatency(report,"run",runLatency);
+		synchronized (this) {
+			for (Iterator<Map.Entry<Integer,Integer>> it = failures.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Integer,Integer> failure = it.next();
+				report.println("Exit code "+failure.getKey()+": "+failure.getValue()+" runs");
+			}
+		}
+	}
+
+	private void printLatency(PrintStream report,String name,LatencyRecorder recorder){
+		long[] values=recorder.getSorted();
+		if(values.length==0){
+			report.println(name+"\t\t0");
+			return;
+		}
+		report.println(name+(name.length()<8?"\t\t":"\t")+values.length+"\t"+ms(percentile(values,50))+"\t"+ms(percentile(values,90))
+				+"\t"+ms(percentile(values,99))+"\t"+ms(values[values.length-1]));
+	}
+
+	private static long percentile(long[] sorted,int percentile){
+		int index=(int)Math.ceil(percentile/100.0*sorted.length)-1;
+		return sorted[Math.max(0,index)];
+	}
+
+	private static String ms(long ns){
+		return format(ns/1e6);
+	}
+
+	private static String format(double value){
+		return String.valueOf(Math.round(value*100)/100.0);
+	}
+
+	/**
+	 * A script which records the latency of its login and commands instead of printing the output
+	 */
+	private class LoadScript extends SAPTelnetScript {
+		/*when the previous command or the init completed*/
+		private long lastCompleted;
+
+		LoadScript(String optionsFile,String commandFile){
+			super(optionsFile,commandFile);
+		}
+
+		protected void postProcessResult(String command, String output) {
+			completed(command);
+		}
+
+		protected OutputSink createOutputSink(String command) {
+			return new OutputSink(){
+				public void output(byte[] buffer, int offset, int length) {
+					//discard
+				}
+			};
+		}
+
+		protected void postProcessStreamedResult(String command, OutputSink sink) {
+			completed(command);
+		}
+
+		private void completed(String command){
+			long now=System.nanoTime();
+			if("login".equals(command)){
+				loginLatency.record(now-lastCompleted);
+			}else {
+				commandLatency.record(now-lastCompleted);
+			}
+			lastCompleted=now;
+		}
+	}
+
+	/**
+	 * Collects latencies, so percentiles can be computed when the load has completed
+	 */
+	private static class LatencyRecorder {
+		private long[] values=new long[1024];
+		private int count=0;
+
+		synchronized void record(long ns){
+			if(count==values.length){
+				values=Arrays.copyOf(values,values.length*2);
+			}
+			values[count++]=ns;
+		}
+
+		synchronized int getCount(){
+			return count;
+		}
+
+		synchronized long[] getSorted(){
+			long[] sorted=Arrays.copyOf(values,count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	private static class DiscardingOutputStream extends OutputStream {
+		public void write(int b) {
+			//discard
+		}
+
+		public void write(byte[] b, int off, int len) {
+			//discard
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package com.bouvet.telnet.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.bouvet.telnet.record.SessionRecorder;
+import com.bouvet.telnet.record.SessionRecording;
+
+/**
+ * Serves a session recorded by SessionRecorder back to each client connecting, with the
+ * timing of the recording, so slow commands can be reproduced against the real output.
+ *
+ * The server sends what the recorded server sent, and waits for the client to send as many
+ * lines as the recorded client before it goes on. The chunks received after a command are
+ * sent with the delays they were received with, measured from when the client sent the
+ * command, divided by the speed. A speed of 2 replays twice as fast, and 0 sends each chunk
+ * as soon as its command has been received. Lines which differ from the recording are reported
+ * to System.err, but do not stop the replay. The session is closed after the last chunk if
+ * the recorded server closed it, otherwise when the client closes it.
+ *
+ * <p>Each session is replayed by its own thread, as a replay serves a few sessions at a time.
+ *
+ * Usage: java com.bouvet.telnet.standin.ReplayTelnetServer recordingFile [port] [speed]
+ */
+public class ReplayTelnetServer implements Runnable {
+	public final static double DEFAULT_SPEED=1;
+
+	private final File recording;
+	private final int port;
+	private final double speed;
+	private ServerSocket serverSocket;
+	private Thread thread;
+	private volatile boolean running=false;
+	private AtomicInteger sessionId=new AtomicInteger();
+
+	public static void main(String[] args) {
+		if(args.length<1 || args.length>3){
+			System.err.println("Usage: java com.bouvet.telnet.standin.ReplayTelnetServer recordingFile [port] [speed]");
+			System.exit(-1);
+		}
+		int port=args.length>1?Integer.parseInt(args[1]):StandInTelnetServer.DEFAULT_PORT;
+		double speed=args.length>2?Double.parseDouble(args[2]):DEFAULT_SPEED;
+		try {
+			ReplayTelnetServer server=new ReplayTelnetServer(new File(args[0]),port,speed);
+			server.start();
+			System.out.println("Replaying "+args[0]+" on "+StandInTelnetServer.DEFAULT_BIND_ADDRESS+":"+server.getPort()+" at speed "+speed);
+			server.thread.join();
+		}catch (IOException e){
+			System.err.println("Could not start the replay: "+e.getMessage());
+			System.exit(-1);
+		}catch (InterruptedException e){
+			//exit
+		}
+	}
+
+	/**
+	 * Create a replay server. The server is started with start()
+	 *
+	 * @param recording The recording to replay
+	 * @param port The port to listen on, 0 for any free port
+	 * @param speed How many times faster than recorded the chunks are sent, 0 for no delays
+	 */
+	public ReplayTelnetServer(File recording,int port,double speed){
+		this.recording=recording;
+		this.port=port;
+		this.speed=speed;
+	}
+
+	/**
+	 * Check the recording, bind the server socket and start accepting sessions
+	 *
+	 * @throws IOException If the recording cannot be read or the port cannot be bound
+	 */
+	public synchronized void start() throws IOException{
+		if(running){
+			return;
+		}
+		new SessionRecording(recording).close();
+		serverSocket=new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName(StandInTelnetServer.DEFAULT_BIND_ADDRESS),port));
+		running=true;
+		thread=new Thread(this,"ReplayTelnetServer:"+getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop accepting sessions. Sessions being replayed run to their end.
+	 */
+	public void shutdown(){
+		running=false;
+		try {
+			serverSocket.close();
+		}catch (IOException e){
+			//e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Get the port the server listens on
+	 *
+	 * @return
+	 */
+	public int getPort(){
+		return serverSocket!=null?serverSocket.getLocalPort():port;
+	}
+
+	public void run() {
+		while(running){
+			try {
+				Socket socket=serverSocket.accept();
+				Thread replay=new Thread(new Replay(socket),"ReplayTelnetServer:session"+sessionId.getAndIncrement());
+				replay.setDaemon(true);
+				replay.start();
+			}catch (IOException e){
+				if(running){
+					e.printStackTrace();
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Wait until the delay has passed since the anchor, divided by the speed
+	 *
+	 * @param anchor The System.nanoTime() the delay is measured from
+	 * @param delay The recorded delay in nanoseconds
+	 */
+	private void waitUntil(long anchor,long delay){
+		if(speed<=0){
+			return;
+		}
+		long due=anchor+(long)(delay/speed);
+		long remaining;
+		while((remaining=due-System.nanoTime())>0){
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	/**
+	 * Read as many lines from the client as the recorded chunk has
+	 *
+	 * @param in The input of the client
+	 * @param expected The recorded chunk
+	 * @return The bytes read
+	 * @throws EOFException If the client closes the session first
+	 */
+	private static byte[] readLines(InputStream in,byte[] expected) throws IOException{
+		int lines=0;
+		for (int i = 0; i < expected.length; i++) {
+			if(expected[i]=='\n'){
+				lines++;
+			}
+		}
+		ByteArrayOutputStream read=new ByteArrayOutputStream(expected.length);
+		while(lines>0){
+			int b=in.read();
+			if(b==-1){
+				throw new EOFException();
+			}
+			read.write(b);
+			if(b=='\n'){
+				lines--;
+			}
+		}
+		return read.toByteArray();
+	}
+
+	/**
+	 * Return if the bytes read are the recorded ones, where the hidden bytes match any byte
+	 */
+	private static boolean matches(byte[] expected,byte[] actual){
+		if(expected.length!=actual.length){
+			return false;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			if(expected[i]!=actual[i] && expected[i]!=SessionRecorder.HIDDEN){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isHidden(byte[] expected){
+		for (int i = 0; i < expected.length; i++) {
+			if(expected[i]==SessionRecorder.HIDDEN){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The replay of the recording to one client
+	 */
+	private class Replay implements Runnable {
+		private final Socket socket;
+
+		Replay(Socket socket){
+			this.socket=socket;
+		}
+
+		public void run() {
+			SessionRecording session=null;
+			try {
+				socket.setTcpNoDelay(true);
+				InputStream in=socket.getInputStream();
+				OutputStream out=socket.getOutputStream();
+				session=new SessionRecording(recording);
+				//the delays are measured from the connect, and then from the last command
+				long anchor=System.nanoTime();
+				long anchorTime=0;
+				SessionRecording.Event event;
+				while((event=session.next())!=null){
+					if(event.getType()==SessionRecorder.SENT){
+						byte[] read=readLines(in,event.getData());
+						if(!matches(event.getData(),read)){
+							if(isHidden(event.getData())){
+								System.err.println("A line with a hidden secret differs from the recording");
+							}else {
+								System.err.println("Expected "+new String(event.getData(),"ISO-8859-1").trim()+" but received "+new String(read,"ISO-8859-1").trim());
+							}
+						}
+						anchor=System.nanoTime();
+						anchorTime=event.getTime();
+					}else {
+						waitUntil(anchor,event.getTime()-anchorTime);
+						if(event.getType()==SessionRecorder.CLOSED){
+							return;
+						}
+						out.write(event.getData());
+						out.flush();
+					}
+				}
+				//the client closed the recorded session
+				while(in.read()!=-1){
+					//discard
+				}
+			}catch (EOFException e){
+				//the client closed the session before the end of the recording
+			}catch (IOException e){
+				System.err.println("The replay failed: "+e.getMessage());
+			}finally {
+				if(session!=null){
+					session.close();
+				}
+				try {
+					socket.close();
+				}catch (IOException e){
+					//e.printStackTrace();
+				}
+			}
+		}
+	}
+}
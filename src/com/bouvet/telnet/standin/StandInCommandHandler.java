@@ -0,0 +1,224 @@
+package com.bouvet.telnet.standin;
+
+import java.util.Properties;
+import java.util.Random;
+
+import com.bouvet.telnet.SAPTelnetClient;
+
+/**
+ * Answers the commands sent to the stand-in server, and decides how long each
+ * command takes.
+ *
+ * The stand-in has one dispatcher node, which the sessions log in to, and a configurable
+ * number of server nodes. The following commands are answered:
+ * <ul>
+ * <li>JUMP n: Jump to a node, given by its cluster id or 0 for the first server node
+ * <li>ADD group: Add a command group
+ * <li>INFO: Information about the node
+ * <li>LL, LSC: List the nodes of the cluster
+ * <li>HTTP_SESSIONS: List the HTTP sessions of the node
+ * <li>GC, CLEAR_HTTP_CACHE, DEPLOY, STOP_APP, START_APP, STOPSERVICE, STARTSERVICE: A one line confirmation
+ * </ul>
+ * Other commands are answered with an error line, like the engine does.
+ *
+ * <p>Properties of the handler:
+ * <ul>
+ * <li>ServerNodes(optional): The number of server nodes (default 2)
+ * <li>LatencyMS(optional): How long each command takes (default 0)
+ * <li>LatencyJitterMS(optional): A random time up to this value is added to the latency (default 0)
+ * <li>LatencyMS.&lt;VERB&gt;(optional): The latency of a single command, e.g. LatencyMS.HTTP_SESSIONS.
+ * The verb LOGIN gives the latency of the login
+ * <li>OutputBytes.&lt;VERB&gt;(optional): The output of the command is padded with lines
+ * until it is at least this long, e.g. OutputBytes.HTTP_SESSIONS=1048576
+ * </ul>
+ */
+public class StandInCommandHandler {
+	public final static int DEFAULT_SERVER_NODES=2;
+	public final static int DISPATCHER_CLUSTER_ID=9999300;
+	public final static int FIRST_SERVER_CLUSTER_ID=9999350;
+	protected final static String LINE_END="\r\n";
+	protected final static String[] CONFIRMED_COMMANDS={"GC","CLEAR_HTTP_CACHE","DEPLOY","STOP_APP","START_APP","STOPSERVICE","STARTSERVICE"};
+
+	protected final String SERVER_NODES_PROPERTY="ServerNodes";
+	protected final String LATENCY_PROPERTY="LatencyMS";
+	protected final String LATENCY_JITTER_PROPERTY="LatencyJitterMS";
+	protected final String OUTPUT_BYTES_PROPERTY="OutputBytes";
+
+	protected Properties properties;
+	protected int serverNodes=DEFAULT_SERVER_NODES;
+	protected long latency=0;
+	protected long latencyJitter=0;
+	protected Random random=new Random();
+
+	/**
+	 * Create a new handler
+	 *
+	 * @param properties The properties of the handler, see the class description
+	 */
+	public StandInCommandHandler(Properties properties){
+		this.properties=properties;
+		serverNodes=getInt(SERVER_NODES_PROPERTY,DEFAULT_SERVER_NODES);
+		latency=getLong(LATENCY_PROPERTY,0);
+		latencyJitter=getLong(LATENCY_JITTER_PROPERTY,0);
+	}
+
+	/**
+	 * Get the verb of a command, which is the first word in upper case
+	 *
+	 * @param command
+	 * @return
+	 */
+	public static String getVerb(String command){
+		String trimmed=command.trim();
+		int space=trimmed.indexOf(' ');
+		return (space==-1?trimmed:trimmed.substring(0,space)).toUpperCase();
+	}
+
+	/**
+	 * Get how long the given verb takes to execute
+	 *
+	 * @param verb The verb of the command, or LOGIN
+	 * @return The latency in milliseconds
+	 */
+	public long getLatency(String verb){
+		long verbLatency=getLong(LATENCY_PROPERTY+"."+verb,latency);
+		if(latencyJitter>0){
+			verbLatency+=(long)(random.nextDouble()*latencyJitter);
+		}
+		return verbLatency;
+	}
+
+	/**
+	 * Execute a command and return its output, without the prompt
+	 *
+	 * @param session The session the command is sent on
+	 * @param command The command
+	 * @return The output of the command
+	 */
+	public String execute(StandInSession session,String command){
+		String verb=getVerb(command);
+		String[] tokens=command.trim().split("\\s+");
+		StringBuffer output=new StringBuffer(LINE_END);
+		if(verb.length()==0){
+			//an empty line just gives a new prompt
+			return "";
+		}else if("JUMP".equals(verb)){
+			jump(session,tokens,output);
+		}else if("ADD".equals(verb)){
+			if(tokens.length<2){
+				output.append("Usage: ADD <group>").append(LINE_END);
+			}else {
+				output.append("Group ").append(tokens[1].toUpperCase()).append(" added").append(LINE_END);
+			}
+		}else if("INFO".equals(verb)){
+			info(session,output);
+		}else if("LL".equals(verb) || "LSC".equals(verb)){
+			listClusterElements(output);
+		}else if("HTTP_SESSIONS".equals(verb)){
+			httpSessions(session,output);
+		}else if(isConfirmed(verb)){
+			output.append(command.trim()).append(" executed on ").append(session.getClusterId()).append(LINE_END);
+		}else {
+			output.append("ERROR: Command ").append(tokens[0]).append(" not found").append(LINE_END);
+		}
+		pad(verb,output);
+		return output.toString();
+	}
+
+	protected void jump(StandInSession session,String[] tokens,StringBuffer output){
+		int clusterId=-1;
+		try {
+			clusterId=tokens.length>1?Integer.parseInt(tokens[1]):-1;
+		}catch (NumberFormatException e){
+			//not a cluster id
+		}
+		if(clusterId==0){
+			clusterId=FIRST_SERVER_CLUSTER_ID;
+		}
+		if(clusterId!=DISPATCHER_CLUSTER_ID && (clusterId<FIRST_SERVER_CLUSTER_ID || clusterId>=FIRST_SERVER_CLUSTER_ID+serverNodes)){
+			output.append("ERROR: Cluster element ").append(tokens.length>1?tokens[1]:"").append(" not found").append(LINE_END);
+			return;
+		}
+		session.setClusterId(clusterId);
+		output.append("You jumped on node ").append(clusterId).append(LINE_END);
+	}
+
+	protected void info(StandInSession session,StringBuffer output){
+		Runtime runtime=Runtime.getRuntime();
+		output.append("Cluster ID: ").append(session.getClusterId()).append(LINE_END);
+		output.append("Element name: ").append(getElementName(session.getClusterId())).append(LINE_END);
+		output.append("Version: 6.40 PatchLevel 110000 (stand-in)").append(LINE_END);
+		output.append("Threads: ").append(Thread.activeCount()).append(LINE_END);
+		output.append("Used memory: ").append((runtime.totalMemory()-runtime.freeMemory())/1024).append(" KB").append(LINE_END);
+		output.append("Total memory: ").append(runtime.totalMemory()/1024).append(" KB").append(LINE_END);
+	}
+
+	protected void listClusterElements(StringBuffer output){
+		output.append("Cluster ID  Host Address  Port   Element Name  Type        State").append(LINE_END);
+		output.append(DISPATCHER_CLUSTER_ID).append("     127.0.0.1     50010  ").append(getElementName(DISPATCHER_CLUSTER_ID)).append("    dispatcher  Running").append(LINE_END);
+		for (int i = 0; i < serverNodes; i++) {
+			output.append(FIRST_SERVER_CLUSTER_ID+i).append("     127.0.0.1     ").append(50020+i*5).append("  ").append(getElementName(FIRST_SERVER_CLUSTER_ID+i)).append("       server      Running").append(LINE_END);
+		}
+	}
+
+	protected void httpSessions(StandInSession session,StringBuffer output){
+		for (int i = 0; i < 3; i++) {
+			output.append(sessionLine(session,i));
+		}
+	}
+
+	/**
+	 * Pad the output with lines until it has the configured size of the verb
+	 */
+	protected void pad(String verb,StringBuffer output){
+		int size=getInt(OUTPUT_BYTES_PROPERTY+"."+verb,0);
+		int line=0;
+		while(output.length()<size){
+			output.append("Session ID: ").append(Integer.toHexString(0x10000000+line++).toUpperCase())
+				.append("  Application: irj  User: telnetbatch  Last accessed: 12:00:00").append(LINE_END);
+		}
+	}
+
+	protected String sessionLine(StandInSession session,int i){
+		return "Session ID: "+Integer.toHexString(session.getClusterId()*16+i).toUpperCase()+"  Application: irj  User: "+session.getUsername()+"  Last accessed: 12:00:00"+LINE_END;
+	}
+
+	protected String getElementName(int clusterId){
+		return clusterId==DISPATCHER_CLUSTER_ID?"dispatcher":"server"+(clusterId-FIRST_SERVER_CLUSTER_ID);
+	}
+
+	private boolean isConfirmed(String verb){
+		for (int i = 0; i < CONFIRMED_COMMANDS.length; i++) {
+			if(CONFIRMED_COMMANDS[i].equals(verb)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int getInt(String name,int defaultValue){
+		return (int)getLong(name,defaultValue);
+	}
+
+	private long getLong(String name,long defaultValue){
+		String value=properties.getProperty(name);
+		if(value==null){
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		}catch (NumberFormatException e){
+			System.err.println(name+" is not a valid long value. Therefore using default value which is "+defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * The prompt which ends the output of each command
+	 *
+	 * @return
+	 */
+	public String getPrompt(){
+		return SAPTelnetClient.PROMPT;
+	}
+}
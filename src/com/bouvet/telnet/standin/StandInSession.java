@@ -0,0 +1,70 @@
+package com.bouvet.telnet.standin;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * The state of one session of the stand-in server.
+ *
+ * A session is only touched by the selector thread of the server, except for the
+ * delayed response which is handed over by the timer wheel.
+ */
+public class StandInSession {
+	final static int WAIT_USERNAME=0;
+	final static int WAIT_PASSWORD=1;
+	final static int WAIT_COMMAND=2;
+	final static int CLOSED=3;
+
+	final SocketChannel channel;
+	SelectionKey key;
+	int state=WAIT_USERNAME;
+	/*received chars which are not yet a complete line*/
+	final StringBuffer input=new StringBuffer();
+	/*buffers waiting to be written, in order*/
+	final LinkedList<ByteBuffer> output=new LinkedList<ByteBuffer>();
+	/*true while the response of a command is delayed, later commands wait for it*/
+	boolean busy=false;
+	/*the delayed response, set by the timer wheel*/
+	volatile byte[] delayedResponse=null;
+	boolean closeAfterWrite=false;
+
+	private String username="";
+	private int clusterId=StandInCommandHandler.DISPATCHER_CLUSTER_ID;
+
+	StandInSession(SocketChannel channel){
+		this.channel=channel;
+	}
+
+	/**
+	 * Get the user logged in with
+	 *
+	 * @return
+	 */
+	public String getUsername(){
+		return username;
+	}
+
+	void setUsername(String username){
+		this.username=username;
+	}
+
+	/**
+	 * Get the cluster id of the node the session is on
+	 *
+	 * @return
+	 */
+	public int getClusterId(){
+		return clusterId;
+	}
+
+	/**
+	 * Move the session to another node
+	 *
+	 * @param clusterId
+	 */
+	public void setClusterId(int clusterId){
+		this.clusterId=clusterId;
+	}
+}
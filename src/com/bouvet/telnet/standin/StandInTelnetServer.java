@@ -0,0 +1,390 @@
+package com.bouvet.telnet.standin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bouvet.telnet.SAPTelnetClient;
+import com.bouvet.thread.HashedTimerWheel;
+import com.bouvet.thread.TimeoutTask;
+import com.bouvet.thread.WheelTimeout;
+
+/**
+ * Local stand-in for the telnet interface of a SAP J2EE engine, so that scripts can be
+ * tested and load tested without a J2EE.
+ *
+ * The server speaks the dialogue SAPTelnetClient expects: "Login: ", "Password: ",
+ * "Login failed" and the CR LF &gt; prompt after each command. The quit command closes
+ * the session. The commands are answered by a StandInCommandHandler, see there for the
+ * commands, their latency and output sizes.
+ *
+ * <p>All sessions are served by one selector thread, so the server handles thousands
+ * of concurrent sessions. The latency of a command is simulated with the timer wheel
+ * instead of sleeping, and each session answers its commands in order, like the engine.
+ *
+ * <p>The server reads the same properties file as SAPTelnetScript, in addition to those of
+ * StandInCommandHandler:
+ * <ul>
+ * <li>TelnetPort(optional): The port to listen on (default 50008, 0 for any free port)
+ * <li>BindAddress(optional): The address to listen on (default 127.0.0.1)
+ * <li>Username(optional), Password(optional): The only login accepted. If not given, any login is accepted
+ * </ul>
+ *
+ * Usage: java com.bouvet.telnet.standin.StandInTelnetServer [optionsFile]
+ */
+public class StandInTelnetServer implements Runnable {
+	public final static int DEFAULT_PORT=50008;
+	public final static String DEFAULT_BIND_ADDRESS="127.0.0.1";
+	protected final static int READ_BUFFER_SIZE=16*1024;
+	protected final static String CHARSET="ISO-8859-1";
+	protected final static String WELCOME="\r\nSAP J2EE Engine (stand-in)\r\n\r\n";
+
+	protected final String TELNET_PORT_PROPERTY="TelnetPort";
+	protected final String BIND_ADDRESS_PROPERTY="BindAddress";
+	protected final String USERNAME_PROPERTY="Username";
+	protected final String PASSWORD_PROPERTY="Password";
+
+	private StandInCommandHandler commandHandler;
+	private String bindAddress;
+	private int port;
+	private String username;
+	private String password;
+
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running=false;
+	/*sessions with a delayed response which is due, handed over by the timer wheel*/
+	private Queue<StandInSession> dueSessions=new ConcurrentLinkedQueue<StandInSession>();
+	private HashedTimerWheel timerWheel=HashedTimerWheel.getSharedInstance();
+	private ByteBuffer readBuffer=ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private volatile int sessionCount=0;
+	private AtomicLong commandCount=new AtomicLong();
+
+	/**
+	 * Start a stand-in server and run until killed
+	 *
+	 * @param args An optional options file
+	 */
+	public static void main(String[] args) {
+		Properties properties=new Properties();
+		if(args.length>0){
+			try {
+				InputStream in=new FileInputStream(new File(args[0]));
+				try {
+					properties.load(in);
+				}finally {
+					in.close();
+				}
+			}catch (IOException e){
+				System.err.println("Problems reading options from "+args[0]);
+				System.exit(-1);
+			}
+		}
+		try {
+			StandInTelnetServer server=new StandInTelnetServer(properties);
+			server.start();
+			System.out.println("SAP J2EE telnet stand-in listening on "+server.bindAddress+":"+server.getPort());
+			server.thread.join();
+		}catch (IOException e){
+			System.err.println("Could not start the stand-in: "+e.getMessage());
+			System.exit(-1);
+		}catch (InterruptedException e){
+			//exit
+		}
+	}
+
+	/**
+	 * Create a new stand-in server. The server is started with start()
+	 *
+	 * @param properties The properties of the server, see the class description
+	 */
+	public StandInTelnetServer(Properties properties){
+		this(properties,new StandInCommandHandler(properties));
+	}
+
+	/**
+	 * Create a new stand-in server with a custom command handler
+	 *
+	 * @param properties The properties of the server, see the class description
+	 * @param commandHandler The handler answering the commands
+	 */
+	public StandInTelnetServer(Properties properties,StandInCommandHandler commandHandler){
+		this.commandHandler=commandHandler;
+		bindAddress=properties.getProperty(BIND_ADDRESS_PROPERTY,DEFAULT_BIND_ADDRESS).trim();
+		port=Integer.parseInt(properties.getProperty(TELNET_PORT_PROPERTY,String.valueOf(DEFAULT_PORT)).trim());
+		username=properties.getProperty(USERNAME_PROPERTY);
+		password=properties.getProperty(PASSWORD_PROPERTY);
+	}
+
+	/**
+	 * Bind the server socket and start the selector thread
+	 *
+	 * @throws IOException If the port cannot be bound
+	 */
+	public synchronized void start() throws IOException{
+		if(running){
+			return;
+		}
+		selector=Selector.open();
+		serverChannel=ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(bindAddress,port),1024);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector,SelectionKey.OP_ACCEPT);
+		running=true;
+		thread=new Thread(this,"StandInTelnetServer:"+getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the server and close all sessions
+	 */
+	public void shutdown(){
+		running=false;
+		if(selector!=null){
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Get the port the server listens on
+	 *
+	 * @return
+	 */
+	public int getPort(){
+		return serverChannel!=null?serverChannel.socket().getLocalPort():port;
+	}
+
+	/**
+	 * Get the number of open sessions
+	 *
+	 * @return
+	 */
+	public int getSessionCount(){
+		return sessionCount;
+	}
+
+	/**
+	 * Get the number of commands answered since the server was started
+	 *
+	 * @return
+	 */
+	public long getCommandCount(){
+		return commandCount.get();
+	}
+
+	public void run() {
+		while(running){
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			StandInSession session;
+			while((session=dueSessions.poll())!=null){
+				deliverDelayedResponse(session);
+			}
+			Iterator<SelectionKey> keys=selector.selectedKeys().iterator();
+			while(keys.hasNext()){
+				SelectionKey key=keys.next();
+				keys.remove();
+				try {
+					if(key.isValid() && key.isAcceptable()){
+						accept();
+						continue;
+					}
+					session=(StandInSession)key.attachment();
+					if(key.isValid() && key.isWritable()){
+						flush(session);
+					}
+					if(key.isValid() && key.isReadable()){
+						read(session);
+					}
+				}catch (IOException e){
+					//the client has disconnected
+					if(key.attachment()!=null){
+						close((StandInSession)key.attachment());
+					}
+				}
+			}
+		}
+		for (Iterator<SelectionKey> it = selector.keys().iterator(); it.hasNext();) {
+			SelectionKey key = it.next();
+			if(key.attachment()!=null){
+				close((StandInSession)key.attachment());
+			}
+		}
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+	}
+
+	private void accept() throws IOException{
+		SocketChannel channel;
+		while((channel=serverChannel.accept())!=null){
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			StandInSession session=new StandInSession(channel);
+			session.key=channel.register(selector,SelectionKey.OP_READ,session);
+			sessionCount++;
+			write(session,WELCOME+SAPTelnetClient.LOGIN_PROMPT);
+		}
+	}
+
+	private void read(StandInSession session) throws IOException{
+		readBuffer.clear();
+		int read=session.channel.read(readBuffer);
+		if(read==-1){
+			close(session);
+			return;
+		}
+		byte[] bytes=readBuffer.array();
+		for (int i = 0; i < read; i++) {
+			session.input.append((char)(bytes[i] & 0xff));
+		}
+		processInput(session);
+	}
+
+	/**
+	 * Handle the complete lines received, until a command is delayed
+	 */
+	private void processInput(StandInSession session) throws IOException{
+		int newLine;
+		while(!session.busy && session.state!=StandInSession.CLOSED && (newLine=session.input.indexOf("\n"))!=-1){
+			String line=session.input.substring(0,newLine);
+			session.input.delete(0,newLine+1);
+			if(line.endsWith("\r")){
+				line=line.substring(0,line.length()-1);
+			}
+			switch (session.state){
+				case StandInSession.WAIT_USERNAME:
+					session.setUsername(line.trim());
+					session.state=StandInSession.WAIT_PASSWORD;
+					write(session,SAPTelnetClient.PASSWORD_PROMPT);
+					break;
+				case StandInSession.WAIT_PASSWORD:
+					if(isValidLogin(session.getUsername(),line.trim())){
+						session.state=StandInSession.WAIT_COMMAND;
+						respond(session,"LOGIN","\r\nUser "+session.getUsername()+" logged in"+commandHandler.getPrompt());
+					}else {
+						session.closeAfterWrite=true;
+						respond(session,"LOGIN","\r\n"+SAPTelnetClient.LOGIN_FAILED_RESPONSE+"\r\n");
+					}
+					break;
+				default:
+					if(SAPTelnetClient.LOGOUT_COMMAND.equalsIgnoreCase(line.trim())){
+						close(session);
+						return;
+					}
+					commandCount.incrementAndGet();
+					String verb=StandInCommandHandler.getVerb(line);
+					respond(session,verb,commandHandler.execute(session,line)+commandHandler.getPrompt());
+			}
+		}
+	}
+
+	/**
+	 * Write the response now, or when the latency of the verb has passed
+	 */
+	private void respond(final StandInSession session,String verb,String response) throws IOException{
+		long latency=commandHandler.getLatency(verb);
+		if(latency<=0){
+			write(session,response);
+			return;
+		}
+		session.busy=true;
+		session.delayedResponse=response.getBytes(CHARSET);
+		timerWheel.schedule(new TimeoutTask(){
+			public void timeoutExpired(WheelTimeout timeout) {
+				dueSessions.add(session);
+				selector.wakeup();
+			}
+		},latency);
+	}
+
+	private void deliverDelayedResponse(StandInSession session){
+		if(session.state==StandInSession.CLOSED){
+			return;
+		}
+		byte[] response=session.delayedResponse;
+		session.delayedResponse=null;
+		session.busy=false;
+		try {
+			write(session,ByteBuffer.wrap(response));
+			processInput(session);
+		}catch (IOException e){
+			close(session);
+		}
+	}
+
+	private void write(StandInSession session,String text) throws IOException{
+		try {
+			write(session,ByteBuffer.wrap(text.getBytes(CHARSET)));
+		}catch (UnsupportedEncodingException e){
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private void write(StandInSession session,ByteBuffer buffer) throws IOException{
+		session.output.add(buffer);
+		flush(session);
+	}
+
+	/**
+	 * Write as much of the pending output as the socket takes, and wait for the socket
+	 * to become writable if there is more
+	 */
+	private void flush(StandInSession session) throws IOException{
+		while(!session.output.isEmpty()){
+			ByteBuffer buffer=session.output.getFirst();
+			session.channel.write(buffer);
+			if(buffer.hasRemaining()){
+				session.key.interestOps(SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+				return;
+			}
+			session.output.removeFirst();
+		}
+		if(session.closeAfterWrite && !session.busy){
+			close(session);
+			return;
+		}
+		session.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void close(StandInSession session){
+		if(session.state==StandInSession.CLOSED){
+			return;
+		}
+		session.state=StandInSession.CLOSED;
+		sessionCount--;
+		session.key.cancel();
+		try {
+			session.channel.close();
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+	}
+
+	private boolean isValidLogin(String user,String pw){
+		return (username==null || username.equals(user)) && (password==null || password.equals(pw));
+	}
+}
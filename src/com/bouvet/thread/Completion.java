@@ -0,0 +1,205 @@
+package com.bouvet.thread;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free, single assignment result which threads can wait for.
+ *
+ * The first call to complete() sets the result and wakes up all waiting threads,
+ * later calls have no effect. This makes it safe to let several parties race to
+ * complete it, e.g. the reader of a session with a response and the timer wheel
+ * with a TimeoutException.
+ *
+ * Waiting threads are parked, so they wake up as soon as the result is set
+ * instead of polling for it. Listeners can be added instead of waiting, they are
+ * called by the thread setting the result.
+ */
+public class Completion {
+	/*Marker for a null result, as null means not completed*/
+	private final static Object NULL_RESULT=new Object();
+	/*Marker for the listeners of a completed Completion*/
+	private final static ListenerNode LISTENERS_DONE=new ListenerNode(null);
+
+	private final AtomicReference<Object> result=new AtomicReference<Object>();
+	/*Stack of parked threads*/
+	private final AtomicReference<WaitNode> waiters=new AtomicReference<WaitNode>();
+	/*Stack of listeners, LISTENERS_DONE when they have been called*/
+	private final AtomicReference<ListenerNode> listeners=new AtomicReference<ListenerNode>();
+
+	/**
+	 * Complete with the given result, unless already completed
+	 *
+	 * @param value The result, which may be an exception
+	 * @return true if this call set the result
+	 */
+	public boolean complete(Object value){
+		if(!result.compareAndSet(null,value==null?NULL_RESULT:value)){
+			return false;
+		}
+		//the result is set before the waiters are released, so a thread pushed after this
+		//point sees the result before parking
+		WaitNode node=waiters.getAndSet(null);
+		while(node!=null){
+			LockSupport.unpark(node.thread);
+			node=node.next;
+		}
+		//call the listeners in the order they were added
+		ListenerNode listener=listeners.getAndSet(LISTENERS_DONE);
+		ListenerNode ordered=null;
+		while(listener!=null){
+			ListenerNode next=listener.next;
+			listener.next=ordered;
+			ordered=listener;
+			listener=next;
+		}
+		for (; ordered!=null; ordered=ordered.next) {
+			notifyListener(ordered.listener);
+		}
+		return true;
+	}
+	
+	/**
+	 * Add a listener which is called when the result is set. If the result is already 
+	 * set, the listener is called at once by this thread.
+	 * 
+	 * @param listener The listener
+	 */
+	public void addListener(CompletionListener listener){
+		ListenerNode node=new ListenerNode(listener);
+		ListenerNode head;
+		do {
+			head=listeners.get();
+			if(head==LISTENERS_DONE){
+				notifyListener(listener);
+				return;
+			}
+			node.next=head;
+		} while(!listeners.compareAndSet(head,node));
+	}
+	
+	private void notifyListener(CompletionListener listener){
+		try {
+			listener.completed(this);
+		}catch (RuntimeException e){
+			//a failing listener must not keep the others from being called
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Return if a result has been set
+	 *
+	 * @return
+	 */
+	public boolean isDone(){
+		return result.get()!=null;
+	}
+
+	/**
+	 * Return the result or null if no result has been set
+	 *
+	 * @return
+	 */
+	public Object getResult(){
+		Object value=result.get();
+		return value==NULL_RESULT?null:value;
+	}
+
+	/**
+	 * Wait until a result has been set
+	 *
+	 * @return The result
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public Object await() throws InterruptedException{
+		if(!isDone()){
+			WaitNode node=push();
+			while(!isDone()){
+				LockSupport.park(this);
+				if(Thread.interrupted()){
+					node.thread=null;
+					throw new InterruptedException();
+				}
+			}
+		}
+		return getResult();
+	}
+
+	/**
+	 * Wait until a result has been set or the timeout has passed
+	 * 
+	 * @param timeout The maximum time to wait
+	 * @param unit The unit of the timeout
+	 * @return true if a result has been set
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public boolean await(long timeout,TimeUnit unit) throws InterruptedException{
+		if(!isDone()){
+			long deadline=System.nanoTime()+unit.toNanos(timeout);
+			WaitNode node=push();
+			long remaining;
+			while(!isDone() && (remaining=deadline-System.nanoTime())>0){
+				LockSupport.parkNanos(this,remaining);
+				if(Thread.interrupted()){
+					node.thread=null;
+					throw new InterruptedException();
+				}
+			}
+			node.thread=null;
+		}
+		return isDone();
+	}
+	
+	/**
+	 * Wait until a result has been set, ignoring interrupts. The interrupt status
+	 * of the thread is restored before returning.
+	 *
+	 * @return The result
+	 */
+	public Object awaitUninterruptibly(){
+		boolean interrupted=false;
+		if(!isDone()){
+			push();
+			while(!isDone()){
+				LockSupport.park(this);
+				if(Thread.interrupted()){
+					interrupted=true;
+				}
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+		return getResult();
+	}
+
+	private WaitNode push(){
+		WaitNode node=new WaitNode(Thread.currentThread());
+		WaitNode head;
+		do {
+			head=waiters.get();
+			node.next=head;
+		} while(!waiters.compareAndSet(head,node));
+		return node;
+	}
+
+	private static class ListenerNode {
+		final CompletionListener listener;
+		ListenerNode next;
+
+		ListenerNode(CompletionListener listener){
+			this.listener=listener;
+		}
+	}
+
+	private static class WaitNode {
+		volatile Thread thread;
+		WaitNode next;
+
+		WaitNode(Thread thread){
+			this.thread=thread;
+		}
+	}
+}
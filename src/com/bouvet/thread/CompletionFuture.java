@@ -0,0 +1,150 @@
+package com.bouvet.thread;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Future backed by a Completion, so that the result of an asynchronous operation can
+ * be waited for or received by listeners without a thread pr operation.
+ *
+ * The operation completes the Completion with its result, or with an exception if it
+ * failed. Exceptions are thrown from get() wrapped in an ExecutionException. Cancelling
+ * the future completes it with a CancellationException.
+ *
+ * Listeners are called on the executor of the future, so slow listeners do not hold up
+ * the thread completing the operation. Unless another executor is given, a shared pool
+ * of daemon threads is used.
+ *
+ * @param <V> The type of the result
+ */
+public class CompletionFuture<V> implements Future<V> {
+	private static Executor sharedExecutor=null;
+
+	private final Completion completion;
+	private final Executor executor;
+
+	/**
+	 * Create a new future using the shared executor for the listeners
+	 *
+	 * @param completion The completion of the operation
+	 */
+	public CompletionFuture(Completion completion){
+		this(completion,getSharedExecutor());
+	}
+
+	/**
+	 * Create a new future
+	 *
+	 * @param completion The completion of the operation
+	 * @param executor The executor the listeners are called on
+	 */
+	public CompletionFuture(Completion completion,Executor executor){
+		this.completion=completion;
+		this.executor=executor;
+	}
+
+	/**
+	 * Create a future which has already completed with the given result
+	 *
+	 * @param result The result or an exception
+	 * @return
+	 */
+	public static <V> CompletionFuture<V> completed(Object result){
+		Completion completion=new Completion();
+		completion.complete(result);
+		return new CompletionFuture<V>(completion);
+	}
+
+	/**
+	 * Get the executor shared by the futures which are not given an executor. It is a
+	 * cached pool of daemon threads, so it does not keep the program running.
+	 *
+	 * @return
+	 */
+	public static synchronized Executor getSharedExecutor(){
+		if(sharedExecutor==null){
+			final AtomicInteger threadNumber=new AtomicInteger();
+			sharedExecutor=Executors.newCachedThreadPool(new ThreadFactory(){
+				public Thread newThread(Runnable runnable) {
+					Thread thread=new Thread(runnable,"CompletionFuture:"+threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedExecutor;
+	}
+
+	/**
+	 * Cancel the operation by completing the future with a CancellationException.
+	 * Listeners of the Completion, e.g. a timeout, are notified and may clean up.
+	 *
+	 * @param mayInterruptIfRunning Not used, no thread runs the operation
+	 * @return true if the future was cancelled, false if it was already done
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return completion.complete(new CancellationException("The operation was cancelled"));
+	}
+
+	public boolean isCancelled() {
+		return completion.getResult() instanceof CancellationException;
+	}
+
+	public boolean isDone() {
+		return completion.isDone();
+	}
+
+	public V get() throws InterruptedException, ExecutionException {
+		return getValue(completion.await());
+	}
+
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, java.util.concurrent.TimeoutException {
+		if(!completion.await(timeout,unit)){
+			throw new java.util.concurrent.TimeoutException("The operation did not complete within "+unit.toMillis(timeout)+" ms");
+		}
+		return getValue(completion.getResult());
+	}
+
+	/**
+	 * Add a listener which is called on the executor of the future when it is done. If
+	 * the future is already done, the listener is scheduled at once.
+	 *
+	 * @param listener The listener
+	 */
+	public void addListener(final FutureListener<V> listener){
+		completion.addListener(new CompletionListener(){
+			public void completed(Completion completion) {
+				executor.execute(new Runnable(){
+					public void run() {
+						listener.completed(CompletionFuture.this);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Get the Completion of the future
+	 *
+	 * @return
+	 */
+	public Completion getCompletion(){
+		return completion;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V getValue(Object result) throws ExecutionException{
+		if(result instanceof CancellationException){
+			throw (CancellationException)result;
+		}else if(result instanceof Throwable){
+			throw new ExecutionException((Throwable)result);
+		}
+		return (V)result;
+	}
+}
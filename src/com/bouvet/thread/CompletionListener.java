@@ -0,0 +1,15 @@
+package com.bouvet.thread;
+
+/**
+ * Listener which is called when the result of a Completion has been set
+ */
+public interface CompletionListener {
+
+	/**
+	 * Called once by the thread which set the result. The listener should return
+	 * quickly, as that thread is usually the reader of a session.
+	 *
+	 * @param completion The completed Completion
+	 */
+	public void completed(Completion completion);
+}
@@ -0,0 +1,17 @@
+package com.bouvet.thread;
+
+/**
+ * Listener which is called when a CompletionFuture is done
+ *
+ * @param <V> The type of the result of the future
+ */
+public interface FutureListener<V> {
+
+	/**
+	 * Called once on the executor of the future when it is done. The result is
+	 * available through get() without blocking.
+	 *
+	 * @param future The future which is done
+	 */
+	public void completed(CompletionFuture<V> future);
+}
@@ -0,0 +1,163 @@
+package com.bouvet.thread;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel for scheduling many short lived timeouts using a single thread.
+ *
+ * The wheel consists of a number of buckets, each covering one tick. A timeout is placed
+ * in the bucket of its deadline, and the timer thread expires the timeouts of one bucket
+ * per tick. Scheduling and cancelling are constant time operations and can be done from
+ * any thread, so a timeout costs an object instead of a thread.
+ *
+ * <p>The precision of the timeouts is one tick. The tasks of expired timeouts are run on
+ * the timer thread, so they must return quickly.
+ *
+ * <p>The timer thread is a daemon thread which is started when the first timeout is scheduled.
+ */
+public class HashedTimerWheel {
+	public final static long DEFAULT_TICK_MS=10;
+	public final static int DEFAULT_WHEEL_SIZE=512;
+
+	private static HashedTimerWheel sharedInstance=null;
+	private static int id=0;
+
+	private final long tickMs;
+	private final WheelBucket[] wheel;
+	private final int mask;
+	private final Queue<WheelTimeout> newTimeouts=new ConcurrentLinkedQueue<WheelTimeout>();
+	private final Queue<WheelTimeout> cancelledTimeouts=new ConcurrentLinkedQueue<WheelTimeout>();
+	private final Thread workerThread;
+	private volatile boolean running=true;
+	private boolean started=false;
+	private long startTime;
+	/*the current tick, only accessed by the timer thread*/
+	private long tick=0;
+
+	/**
+	 * Get the timer wheel shared by all clients in this JVM
+	 *
+	 * @return The shared timer wheel
+	 */
+	public static synchronized HashedTimerWheel getSharedInstance(){
+		if(sharedInstance==null){
+			sharedInstance=new HashedTimerWheel(DEFAULT_TICK_MS,DEFAULT_WHEEL_SIZE);
+		}
+		return sharedInstance;
+	}
+
+	/**
+	 * Create a new HashedTimerWheel
+	 *
+	 * @param tickMs The duration of one tick in milliseconds
+	 * @param wheelSize The number of buckets. Rounded up to a power of two
+	 */
+	public HashedTimerWheel(long tickMs,int wheelSize){
+		if(tickMs<=0){
+			throw new IllegalArgumentException("tickMs must be positive, but is "+tickMs);
+		}
+		int size=1;
+		while(size<wheelSize){
+			size<<=1;
+		}
+		this.tickMs=tickMs;
+		this.mask=size-1;
+		wheel=new WheelBucket[size];
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i]=new WheelBucket();
+		}
+		workerThread=new Thread(new Worker(),"HashedTimerWheel:"+nextId());
+		//daemon thread indicating that JVM will exit if only timer threads remain
+		workerThread.setDaemon(true);
+	}
+
+	private static synchronized int nextId(){
+		return id++;
+	}
+
+	/**
+	 * Schedule a timeout
+	 *
+	 * @param task The task to run when the timeout expires
+	 * @param msDelay The delay in milliseconds
+	 * @return A handle which can be used to cancel the timeout
+	 */
+	public WheelTimeout schedule(TimeoutTask task,long msDelay){
+		start();
+		long deadline=System.nanoTime()/1000000L-startTime+Math.max(0,msDelay);
+		WheelTimeout timeout=new WheelTimeout(this,task,deadline,msDelay);
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the timer thread. Pending timeouts will never expire.
+	 */
+	public void stop(){
+		running=false;
+		workerThread.interrupt();
+	}
+
+	private synchronized void start(){
+		if(!started){
+			startTime=System.nanoTime()/1000000L;
+			started=true;
+			workerThread.start();
+		}
+	}
+
+	void cancelled(WheelTimeout timeout){
+		cancelledTimeouts.add(timeout);
+	}
+
+	/**
+	 * Place the newly scheduled timeouts in their buckets
+	 */
+	private void transferTimeouts(){
+		WheelTimeout timeout;
+		while((timeout=newTimeouts.poll())!=null){
+			if(timeout.isCancelled()){
+				continue;
+			}
+			long ticks=timeout.deadline/tickMs;
+			timeout.remainingRounds=(ticks-tick)/wheel.length;
+			//timeouts already due are placed in the current bucket
+			long bucketTick=Math.max(ticks,tick);
+			wheel[(int)(bucketTick & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelledTimeouts(){
+		WheelTimeout timeout;
+		while((timeout=cancelledTimeouts.poll())!=null){
+			if(timeout.bucket!=null){
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * The timer thread, which sleeps until the end of each tick and then expires
+	 * the timeouts of the bucket of that tick.
+	 */
+	private class Worker implements Runnable {
+		public void run() {
+			while(running){
+				long tickEnd=tickMs*(tick+1);
+				long sleepMs=tickEnd-(System.nanoTime()/1000000L-startTime);
+				if(sleepMs>0){
+					try {
+						Thread.sleep(sleepMs);
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+				removeCancelledTimeouts();
+				transferTimeouts();
+				wheel[(int)(tick & mask)].expireTimeouts();
+				tick++;
+			}
+		}
+	}
+}
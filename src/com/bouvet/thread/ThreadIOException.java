@@ -4,7 +4,7 @@ import java.io.IOException;
 
 
 /**
- * IOException which can be thrown in an ObservableRunnable. 
+ * IOException which is passed from a reader thread to the waiting thread. 
  * Keeps track of the current buffer when the exception was thrown.
  * 
  * @author Dagfinn Parnas,bouvet
@@ -0,0 +1,17 @@
+package com.bouvet.thread;
+
+/**
+ * A task which is run by the HashedTimerWheel when a timeout expires.
+ *
+ * The task is run on the thread of the timer wheel, so it should return quickly
+ * and never block.
+ */
+public interface TimeoutTask {
+
+	/**
+	 * Called when the timeout has expired without being cancelled
+	 *
+	 * @param timeout The expired timeout
+	 */
+	public void timeoutExpired(WheelTimeout timeout);
+}
@@ -0,0 +1,80 @@
+package com.bouvet.thread;
+
+/**
+ * A token bucket limiting the rate of an operation to a number of permits pr period,
+ * with bursts of up to the number of permits.
+ *
+ * The bucket refills continuously, one token each period/permits. A caller reserves a
+ * token and is told how long to wait before it may use it, so the token can be awaited
+ * without holding a thread, e.g. by an event loop. Tokens may be reserved ahead, so the
+ * callers are admitted in the order they reserved.
+ *
+ * <p>The bucket is thread safe.
+ */
+public class TokenBucket {
+	private final int permits;
+	private final double nsPrToken;
+	/*tokens in the bucket, negative when tokens are reserved ahead*/
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Create a new full bucket
+	 *
+	 * @param permits The number of operations pr period
+	 * @param msPeriod The period in milliseconds
+	 */
+	public TokenBucket(int permits,long msPeriod){
+		if(permits<=0 || msPeriod<=0){
+			throw new IllegalArgumentException("permits and msPeriod must be positive, but are "+permits+" and "+msPeriod);
+		}
+		this.permits=permits;
+		this.nsPrToken=msPeriod*1000000.0/permits;
+		this.tokens=permits;
+		this.lastRefill=System.nanoTime();
+	}
+
+	/**
+	 * Reserve a token
+	 *
+	 * @param msMaxWait The longest wait the caller accepts
+	 * @return How long to wait before the token may be used in milliseconds, 0 if it can be used
+	 * at once, or -1 if the wait would be longer than msMaxWait. Then no token is reserved
+	 */
+	public synchronized long reserve(long msMaxWait){
+		long now=System.nanoTime();
+		tokens=Math.min(permits,tokens+(now-lastRefill)/nsPrToken);
+		lastRefill=now;
+		if(tokens>=1){
+			tokens-=1;
+			return 0;
+		}
+		//round up, so the token is there when the caller wakes up
+		long msWait=(long)Math.ceil((1-tokens)*nsPrToken/1000000);
+		if(msWait>msMaxWait){
+			return -1;
+		}
+		tokens-=1;
+		return msWait;
+	}
+
+	/**
+	 * Take a token, waiting until there is one
+	 *
+	 * @param msMaxWait The longest time to wait in milliseconds
+	 * @throws TimeoutException If no token is available within msMaxWait, or the thread is interrupted
+	 */
+	public void acquire(long msMaxWait) throws TimeoutException{
+		long msWait=reserve(msMaxWait);
+		if(msWait<0){
+			throw new TimeoutException("The rate limit of "+permits+" pr "+Math.round(nsPrToken*permits/1000000)+" ms allows no operation within "+msMaxWait+" ms");
+		}
+		if(msWait>0){
+			try {
+				Thread.sleep(msWait);
+			}catch (InterruptedException e){
+				throw new TimeoutException("Interrupted while waiting for the rate limit");
+			}
+		}
+	}
+}
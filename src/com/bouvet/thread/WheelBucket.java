@@ -0,0 +1,61 @@
+package com.bouvet.thread;
+
+/**
+ * A bucket of a HashedTimerWheel. A doubly linked list of timeouts, so that
+ * cancelled timeouts can be removed in constant time.
+ *
+ * Only accessed by the timer thread.
+ */
+class WheelBucket {
+	private WheelTimeout head;
+	private WheelTimeout tail;
+
+	void add(WheelTimeout timeout){
+		timeout.bucket=this;
+		if(head==null){
+			head=tail=timeout;
+		}else {
+			tail.next=timeout;
+			timeout.prev=tail;
+			tail=timeout;
+		}
+	}
+
+	void remove(WheelTimeout timeout){
+		WheelTimeout next=timeout.next;
+		if(timeout.prev!=null){
+			timeout.prev.next=next;
+		}
+		if(next!=null){
+			next.prev=timeout.prev;
+		}
+		if(timeout==head){
+			head=next;
+		}
+		if(timeout==tail){
+			tail=timeout.prev;
+		}
+		timeout.prev=null;
+		timeout.next=null;
+		timeout.bucket=null;
+	}
+
+	/**
+	 * Expire all timeouts in the bucket which are due in the current round
+	 */
+	void expireTimeouts(){
+		WheelTimeout timeout=head;
+		while(timeout!=null){
+			WheelTimeout next=timeout.next;
+			if(timeout.remainingRounds<=0){
+				remove(timeout);
+				timeout.expire();
+			}else if(timeout.isCancelled()){
+				remove(timeout);
+			}else {
+				timeout.remainingRounds--;
+			}
+			timeout=next;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.bouvet.thread;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A handle to a timeout scheduled in a HashedTimerWheel.
+ *
+ * A timeout is either expired or cancelled, never both. Cancelling is cheap and
+ * can be done from any thread, the timeout is then removed from the wheel on the
+ * next tick.
+ */
+public class WheelTimeout {
+	private final static int STATE_INIT=0;
+	private final static int STATE_CANCELLED=1;
+	private final static int STATE_EXPIRED=2;
+
+	private final HashedTimerWheel timer;
+	private final TimeoutTask task;
+	/*deadline in milliseconds relative to the start of the timer*/
+	final long deadline;
+	private final long msDelay;
+	private final AtomicInteger state=new AtomicInteger(STATE_INIT);
+
+	/*the remaining rounds of the wheel before expiry, only accessed by the timer thread*/
+	long remainingRounds;
+	/*the bucket this timeout is in, only accessed by the timer thread*/
+	WheelBucket bucket;
+	WheelTimeout next;
+	WheelTimeout prev;
+
+	WheelTimeout(HashedTimerWheel timer,TimeoutTask task,long deadline,long msDelay){
+		this.timer=timer;
+		this.task=task;
+		this.deadline=deadline;
+		this.msDelay=msDelay;
+	}
+
+	/**
+	 * Cancel the timeout
+	 *
+	 * @return true if the timeout was cancelled, false if it had already expired or was cancelled
+	 */
+	public boolean cancel(){
+		if(!state.compareAndSet(STATE_INIT,STATE_CANCELLED)){
+			return false;
+		}
+		timer.cancelled(this);
+		return true;
+	}
+
+	/**
+	 * Return if the timeout has been cancelled
+	 *
+	 * @return
+	 */
+	public boolean isCancelled(){
+		return state.get()==STATE_CANCELLED;
+	}
+
+	/**
+	 * Return if the timeout has expired
+	 *
+	 * @return
+	 */
+	public boolean isExpired(){
+		return state.get()==STATE_EXPIRED;
+	}
+
+	/**
+	 * Get the delay the timeout was scheduled with
+	 *
+	 * @return Delay in milliseconds
+	 */
+	public long getDelay(){
+		return msDelay;
+	}
+
+	/**
+	 * Get the task of the timeout
+	 *
+	 * @return
+	 */
+	public TimeoutTask getTask(){
+		return task;
+	}
+
+	/**
+	 * Expire the timeout and run its task. Called by the timer thread.
+	 */
+	void expire(){
+		if(!state.compareAndSet(STATE_INIT,STATE_EXPIRED)){
+			return;
+		}
+		try {
+			task.timeoutExpired(this);
+		}catch (RuntimeException e){
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.bouvet.telnet;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bouvet.telnet.standin.StandInTelnetServer;
+
+public class CommandCacheTest {
+	private StandInTelnetServer server;
+	private CommandCache cache;
+	private SAPTelnetClient client;
+
+	@Before
+	public void startServer() throws Exception{
+		Properties properties=new Properties();
+		properties.setProperty("TelnetPort","0");
+		server=new StandInTelnetServer(properties);
+		server.start();
+		cache=new CommandCache();
+		cache.setTtl("INFO",60000);
+		client=connect();
+	}
+
+	@After
+	public void stopServer(){
+		client.close();
+		server.shutdown();
+	}
+
+	private SAPTelnetClient connect() throws Exception{
+		SAPTelnetClient session=new SAPTelnetClient("127.0.0.1",server.getPort(),5000);
+		session.login("test","test");
+		session.setCommandCache(cache);
+		return session;
+	}
+
+	@Test
+	public void sendsACachedVerbOnce() throws Exception{
+		long before=server.getCommandCount();
+		String first=client.sendCommand("INFO");
+		String second=client.sendCommand(" INFO ");
+		assertEquals(first,second);
+		assertEquals(1,server.getCommandCount()-before);
+		assertEquals(1,cache.size());
+	}
+
+	@Test
+	public void sendsAVerbWithoutTtlEachTime() throws Exception{
+		long before=server.getCommandCount();
+		client.sendCommand("LL");
+		client.sendCommand("LL");
+		assertEquals(2,server.getCommandCount()-before);
+		assertEquals(0,cache.size());
+	}
+
+	@Test
+	public void sharesTheOutputBetweenSessions() throws Exception{
+		SAPTelnetClient other=connect();
+		try {
+			long before=server.getCommandCount();
+			client.sendCommand("INFO");
+			other.sendCommand("INFO");
+			assertEquals(1,server.getCommandCount()-before);
+		}finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void dropsTheOutputWhenAnotherCommandMayChangeTheNode() throws Exception{
+		long before=server.getCommandCount();
+		client.sendCommand("INFO");
+		client.sendCommand("GC");
+		client.sendCommand("INFO");
+		assertEquals(3,server.getCommandCount()-before);
+	}
+
+	@Test
+	public void cachesEachNodeOnItsOwn() throws Exception{
+		long before=server.getCommandCount();
+		client.sendCommand("INFO");
+		client.sendCommand("JUMP 0");
+		client.sendCommand("INFO");
+		client.sendCommand("INFO");
+		assertEquals(3,server.getCommandCount()-before);
+		assertEquals(2,cache.size());
+	}
+
+	@Test
+	public void dropsTheOutputAfterItsTtl() throws Exception{
+		cache.setTtl("INFO",1);
+		long before=server.getCommandCount();
+		client.sendCommand("INFO");
+		Thread.sleep(20);
+		client.sendCommand("INFO");
+		assertEquals(2,server.getCommandCount()-before);
+	}
+
+	@Test
+	public void clearDropsAllOutputs() throws Exception{
+		client.sendCommand("INFO");
+		cache.clear();
+		assertEquals(0,cache.size());
+	}
+}
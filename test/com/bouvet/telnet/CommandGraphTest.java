@@ -0,0 +1,121 @@
+package com.bouvet.telnet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CommandGraphTest {
+	private ExecutorService executor=Executors.newFixedThreadPool(4);
+
+	@After
+	public void stopExecutor(){
+		executor.shutdownNow();
+	}
+
+	private static CommandGraph parse(String... lines) throws InitFailedException{
+		return CommandGraph.parse(Arrays.asList(lines));
+	}
+
+	@Test
+	public void findsTheBlocksOfACommandFile(){
+		assertTrue(CommandGraph.hasBlocks(Arrays.asList("[a]","INFO")));
+		assertFalse(CommandGraph.hasBlocks(Arrays.asList("JUMP 0","INFO")));
+	}
+
+	@Test
+	public void parsesTheBlocksInOrder() throws InitFailedException{
+		CommandGraph graph=parse("[a]","JUMP 0","INFO","[b]","LL","[c] after: a, b","GC");
+		List<CommandGraph.Block> blocks=graph.getBlocks();
+		assertEquals(3,blocks.size());
+		assertEquals("a",blocks.get(0).getName());
+		assertEquals(Arrays.asList("JUMP 0","INFO"),blocks.get(0).getCommands());
+		assertEquals(Arrays.asList("a","b"),blocks.get(2).getAfter());
+		assertEquals(Collections.singletonList("GC"),blocks.get(2).getCommands());
+	}
+
+	@Test
+	public void rejectsACommandOutsideABlock(){
+		assertInvalid("INFO","[a]","LL");
+	}
+
+	@Test
+	public void rejectsABlockGivenTwice(){
+		assertInvalid("[a]","INFO","[a]","LL");
+	}
+
+	@Test
+	public void rejectsAnUnknownBlock(){
+		assertInvalid("[a] after: b","INFO");
+	}
+
+	@Test
+	public void rejectsBlocksWaitingForEachOther(){
+		assertInvalid("[a] after: c","INFO","[b] after: a","LL","[c] after: b","GC");
+	}
+
+	private static void assertInvalid(String... lines){
+		try {
+			parse(lines);
+			fail("The command file should be rejected");
+		}catch (InitFailedException e){
+			//expected
+		}
+	}
+
+	@Test
+	public void runsABlockAfterTheBlocksItWaitsFor() throws Exception{
+		CommandGraph graph=parse("[check] after: restart, clear","INFO","[restart]","GC","[clear]","CLEAR_HTTP_CACHE");
+		final List<String> order=Collections.synchronizedList(new ArrayList<String>());
+		graph.run(executor,new CommandGraph.BlockRunner(){
+			public void runBlock(CommandGraph.Block block) {
+				order.add(block.getName());
+			}
+		});
+		assertEquals(3,order.size());
+		assertEquals("check",order.get(2));
+		for (Iterator<CommandGraph.Block> it = graph.getBlocks().iterator(); it.hasNext();) {
+			assertEquals(CommandGraph.OK,it.next().getStatus());
+		}
+	}
+
+	@Test
+	public void skipsTheBlocksAfterAFailedBlock() throws Exception{
+		CommandGraph graph=parse("[a]","GC","[b] after: a","INFO","[c] after: b","LL","[d]","LL");
+		graph.run(executor,new CommandGraph.BlockRunner(){
+			public void runBlock(CommandGraph.Block block) throws TelnetException {
+				if("a".equals(block.getName())){
+					throw new TelnetException("failure expected by the test",-9);
+				}
+			}
+		});
+		List<CommandGraph.Block> blocks=graph.getBlocks();
+		assertEquals(CommandGraph.FAILED,blocks.get(0).getStatus());
+		assertEquals(-9,blocks.get(0).getFailure().getExitCode());
+		assertEquals(CommandGraph.SKIPPED,blocks.get(1).getStatus());
+		assertEquals(CommandGraph.SKIPPED,blocks.get(2).getStatus());
+		assertEquals(CommandGraph.OK,blocks.get(3).getStatus());
+	}
+
+	@Test
+	public void reportsARuntimeExceptionAsAFailure() throws Exception{
+		CommandGraph graph=parse("[a]","GC");
+		graph.run(executor,new CommandGraph.BlockRunner(){
+			public void runBlock(CommandGraph.Block block) {
+				throw new IllegalStateException("failure expected by the test");
+			}
+		});
+		assertEquals(CommandGraph.FAILED,graph.getBlocks().get(0).getStatus());
+	}
+}
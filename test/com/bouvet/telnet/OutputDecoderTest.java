@@ -0,0 +1,69 @@
+package com.bouvet.telnet;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class OutputDecoderTest {
+	private final static Charset UTF_8=Charset.forName("UTF-8");
+
+	@Test
+	public void decodesAWholeResponse() throws IOException{
+		byte[] output="Element name: s\u00e9rveur \u20ac".getBytes(UTF_8);
+		assertEquals("Element name: s\u00e9rveur \u20ac",new OutputDecoder(UTF_8).decode(output,0,output.length));
+	}
+
+	@Test
+	public void decodesIso88591OneCharPrByte(){
+		byte[] output={'a',(byte)0xe9,(byte)0xff};
+		assertEquals("a\u00e9\u00ff",new OutputDecoder(OutputDecoder.ISO_8859_1).decode(output,0,output.length));
+	}
+
+	@Test
+	public void keepsASequenceSplitAcrossChunks() throws IOException{
+		byte[] output="\u20ac1".getBytes(UTF_8);
+		OutputDecoder decoder=new OutputDecoder(UTF_8);
+		StringWriter out=new StringWriter();
+		//the euro sign is three bytes
+		decoder.decode(output,0,1,out);
+		decoder.decode(output,1,1,out);
+		assertEquals("",out.toString());
+		decoder.decode(output,2,2,out);
+		decoder.finish(out);
+		assertEquals("\u20ac1",out.toString());
+	}
+
+	@Test
+	public void replacesAnIncompleteSequenceAtTheEnd() throws IOException{
+		byte[] output="a\u20ac".getBytes(UTF_8);
+		OutputDecoder decoder=new OutputDecoder(UTF_8);
+		StringWriter out=new StringWriter();
+		decoder.decode(output,0,2,out);
+		decoder.finish(out);
+		assertEquals("a\ufffd",out.toString());
+	}
+
+	@Test
+	public void canBeReusedAfterFinish() throws IOException{
+		OutputDecoder decoder=new OutputDecoder(UTF_8);
+		byte[] first="\u00e9".getBytes(UTF_8);
+		StringWriter out=new StringWriter();
+		decoder.decode(first,0,1,out);
+		decoder.finish(out);
+		out=new StringWriter();
+		byte[] second="ok".getBytes(UTF_8);
+		decoder.decode(second,0,second.length,out);
+		decoder.finish(out);
+		assertEquals("ok",out.toString());
+	}
+
+	@Test
+	public void replacesMalformedInput(){
+		byte[] output={'a',(byte)0xff,'b'};
+		assertEquals("a\ufffdb",new OutputDecoder(UTF_8).decode(output,0,output.length));
+	}
+}
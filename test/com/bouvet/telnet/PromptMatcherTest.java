@@ -0,0 +1,73 @@
+package com.bouvet.telnet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class PromptMatcherTest {
+
+	private static byte[] bytes(String text){
+		return text.getBytes(OutputDecoder.ISO_8859_1);
+	}
+
+	@Test
+	public void findsTheDelimiterAndReturnsTheOffsetAfterIt(){
+		PromptMatcher matcher=new PromptMatcher(new String[]{">"});
+		byte[] output=bytes("Threads: 4\r\n>");
+		assertEquals(output.length,matcher.feed(output,0,output.length));
+		assertEquals(0,matcher.getMatchedIndex());
+		assertEquals(">",matcher.getMatchedDelimiter());
+	}
+
+	@Test
+	public void consumesAllBytesWithoutADelimiter(){
+		PromptMatcher matcher=new PromptMatcher(new String[]{">"});
+		byte[] output=bytes("Threads: 4\r\n");
+		assertEquals(-1,matcher.feed(output,0,output.length));
+		assertEquals(-1,matcher.getMatchedIndex());
+		assertNull(matcher.getMatchedDelimiter());
+	}
+
+	@Test
+	public void matchesADelimiterSplitAcrossReads(){
+		PromptMatcher matcher=new PromptMatcher(new String[]{"Password: "});
+		byte[] first=bytes("Login: Pass");
+		byte[] second=bytes("word: ");
+		assertEquals(-1,matcher.feed(first,0,first.length));
+		assertEquals(4,matcher.getPartialMatchLength());
+		assertEquals(second.length,matcher.feed(second,0,second.length));
+		assertEquals("Password: ",matcher.getMatchedDelimiter());
+	}
+
+	@Test
+	public void reportsWhichOfSeveralDelimitersWasFound(){
+		PromptMatcher matcher=new PromptMatcher(new String[]{">","Login failed","Password: "});
+		byte[] output=bytes("User u\r\nLogin failed");
+		assertEquals(output.length,matcher.feed(output,0,output.length));
+		assertEquals(1,matcher.getMatchedIndex());
+	}
+
+	@Test
+	public void findsADelimiterAfterAFalseStart(){
+		PromptMatcher matcher=new PromptMatcher(new String[]{"abc"});
+		byte[] output=bytes("xababcx");
+		assertEquals(6,matcher.feed(output,0,output.length));
+	}
+
+	@Test
+	public void feedsSingleBytes(){
+		PromptMatcher matcher=new PromptMatcher(new String[]{"ok"});
+		assertEquals(-1,matcher.feed('o'));
+		assertEquals(0,matcher.feed('k'));
+	}
+
+	@Test
+	public void resetForgetsThePartialMatch(){
+		PromptMatcher matcher=new PromptMatcher(new String[]{"ok"});
+		matcher.feed('o');
+		matcher.reset();
+		assertEquals(0,matcher.getPartialMatchLength());
+		assertEquals(-1,matcher.feed('k'));
+	}
+}
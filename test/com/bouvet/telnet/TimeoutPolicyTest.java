@@ -0,0 +1,108 @@
+package com.bouvet.telnet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.junit.Test;
+
+public class TimeoutPolicyTest {
+	private final static long SESSION_TIMEOUT=30000;
+	private final static long MS=1000000;
+
+	private static void record(TimeoutPolicy policy,String command,long ms,int count){
+		for (int i = 0; i < count; i++) {
+			policy.record(command,ms*MS);
+		}
+	}
+
+	@Test
+	public void usesTheTimeoutOfTheSessionByDefault(){
+		TimeoutPolicy policy=new TimeoutPolicy();
+		record(policy,"INFO",10,TimeoutPolicy.MIN_SAMPLES);
+		assertEquals(SESSION_TIMEOUT,policy.getTimeout("INFO",SESSION_TIMEOUT));
+	}
+
+	@Test
+	public void usesTheTimeoutOfTheVerb(){
+		TimeoutPolicy policy=new TimeoutPolicy();
+		policy.setTimeout("deploy",600000);
+		assertEquals(600000,policy.getTimeout("DEPLOY /tmp/app.ear",SESSION_TIMEOUT));
+		assertEquals(SESSION_TIMEOUT,policy.getTimeout("INFO",SESSION_TIMEOUT));
+	}
+
+	@Test
+	public void adaptsOnceEnoughLatenciesAreRecorded(){
+		TimeoutPolicy policy=new TimeoutPolicy();
+		policy.setAdaptive(3,100);
+		record(policy,"INFO",1000,TimeoutPolicy.MIN_SAMPLES-1);
+		assertEquals(SESSION_TIMEOUT,policy.getTimeout("INFO",SESSION_TIMEOUT));
+		record(policy,"INFO",1000,1);
+		long timeout=policy.getTimeout("INFO",SESSION_TIMEOUT);
+		//p99 of 1000 ms times 3, within the precision of the histogram
+		assertTrue("timeout "+timeout,timeout>=2700 && timeout<=3300);
+	}
+
+	@Test
+	public void keepsTheAdaptiveTimeoutBetweenTheMinimumAndTheSessionTimeout(){
+		TimeoutPolicy policy=new TimeoutPolicy();
+		policy.setAdaptive(3,500);
+		record(policy,"INFO",1,TimeoutPolicy.MIN_SAMPLES);
+		record(policy,"HTTP_SESSIONS",60000,TimeoutPolicy.MIN_SAMPLES);
+		assertEquals(500,policy.getTimeout("INFO",SESSION_TIMEOUT));
+		assertEquals(SESSION_TIMEOUT,policy.getTimeout("HTTP_SESSIONS",SESSION_TIMEOUT));
+	}
+
+	@Test
+	public void growsTheTimeoutOfAVerbWhichTimedOut(){
+		TimeoutPolicy policy=new TimeoutPolicy();
+		policy.setAdaptive(1,100);
+		for (int i = 0; i < TimeoutPolicy.MIN_SAMPLES; i++) {
+			policy.timedOut("GC",2000);
+		}
+		assertTrue(policy.getTimeout("GC",SESSION_TIMEOUT)>=1800);
+	}
+
+	@Test
+	public void savesAndLoadsTheHistory() throws IOException{
+		TimeoutPolicy policy=new TimeoutPolicy();
+		record(policy,"INFO",1000,TimeoutPolicy.MIN_SAMPLES);
+		File historyFile=File.createTempFile("timeoutpolicy",".txt");
+		try {
+			policy.save(historyFile);
+			TimeoutPolicy loaded=new TimeoutPolicy();
+			loaded.setAdaptive(3,100);
+			loaded.load(historyFile);
+			long timeout=loaded.getTimeout("INFO",SESSION_TIMEOUT);
+			assertTrue("timeout "+timeout,timeout>=2700 && timeout<=3300);
+		}finally {
+			historyFile.delete();
+		}
+	}
+
+	@Test
+	public void loadsAMissingFileAsAnEmptyHistory() throws IOException{
+		TimeoutPolicy policy=new TimeoutPolicy();
+		policy.load(new File("no-such-latency-history.txt"));
+	}
+
+	@Test(expected=IOException.class)
+	public void rejectsAnInvalidHistory() throws IOException{
+		File historyFile=File.createTempFile("timeoutpolicy",".txt");
+		try {
+			Writer out=new FileWriter(historyFile);
+			try {
+				out.write("INFO many\n");
+			}finally {
+				out.close();
+			}
+			new TimeoutPolicy().load(historyFile);
+		}finally {
+			historyFile.delete();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.bouvet.telnet.parse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.bouvet.telnet.OutputDecoder;
+
+public class HttpSessionsParserTest {
+	private final List<HttpSession> records=new ArrayList<HttpSession>();
+	private final RecordListener listener=new RecordListener(){
+		public void nodeInfo(NodeInfo info) {
+			throw new IllegalStateException("HTTP_SESSIONS has no node info");
+		}
+
+		public void httpSession(HttpSession session) {
+			records.add(session);
+		}
+	};
+
+	@Test
+	public void parsesEachSessionLine() throws IOException{
+		LineParser parser=new HttpSessionsParser("sap1:50008",OutputDecoder.ISO_8859_1,listener);
+		parser.parse("\r\nHTTP sessions of server1\r\n");
+		parser.parse("Session ID: 1A2B  Application: irj  User: jdoe  Last accessed: 12:00:00\r\n");
+		assertEquals(1,records.size());
+		parser.parse("Session ID: 3C4D\tApplication: webdynpro\tUser: Guest\r\n>");
+		parser.finish();
+		assertEquals(2,records.size());
+		HttpSession session=records.get(0);
+		assertEquals("sap1:50008",session.getSource());
+		assertEquals("1A2B",session.getSessionId());
+		assertEquals("irj",session.getApplication());
+		assertEquals("jdoe",session.getUser());
+		assertEquals("12:00:00",session.getLastAccessed());
+		assertEquals("webdynpro",records.get(1).getApplication());
+		assertEquals(null,records.get(1).getLastAccessed());
+	}
+
+	@Test
+	public void dropsTheEndOfAnOverlongLine() throws IOException{
+		LineParser parser=new HttpSessionsParser("sap1:50008",OutputDecoder.ISO_8859_1,listener);
+		StringBuilder line=new StringBuilder("Session ID: 1A2B  User: ");
+		while(line.length()<LineParser.MAX_LINE_LENGTH+100){
+			line.append('x');
+		}
+		parser.parse(line.append("\n").toString());
+		parser.finish();
+		assertEquals(1,records.size());
+		assertEquals(LineParser.MAX_LINE_LENGTH-"Session ID: 1A2B  User: ".length(),records.get(0).getUser().length());
+	}
+}
@@ -0,0 +1,70 @@
+package com.bouvet.telnet.parse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.bouvet.telnet.OutputDecoder;
+
+public class InfoParserTest {
+	private final List<NodeInfo> records=new ArrayList<NodeInfo>();
+	private final RecordListener listener=new RecordListener(){
+		public void nodeInfo(NodeInfo info) {
+			records.add(info);
+		}
+
+		public void httpSession(HttpSession session) {
+			throw new IllegalStateException("INFO has no HTTP sessions");
+		}
+	};
+
+	@Test
+	public void parsesTheNodeWhenTheOutputIsComplete() throws IOException{
+		LineParser parser=new InfoParser("sap1:50008",OutputDecoder.ISO_8859_1,listener);
+		parser.parse("\r\nCluster ID: 3\r\nElement name: server1\r\nVersion: 6.40\r\nThreads: 112\r\n");
+		assertTrue(records.isEmpty());
+		parser.parse("Used memory: 500 MB\r\nTotal memory: 2 GB");
+		parser.finish();
+		assertEquals(1,records.size());
+		NodeInfo info=records.get(0);
+		assertEquals("sap1:50008",info.getSource());
+		assertEquals("3",info.getClusterId());
+		assertEquals("server1",info.getElementName());
+		assertEquals("6.40",info.getVersion());
+		assertEquals(112,info.getThreads());
+		assertEquals(500*1024,info.getUsedMemoryKB());
+		assertEquals(2*1024*1024,info.getTotalMemoryKB());
+	}
+
+	@Test
+	public void parsesStreamedChunksSplitInsideALine() throws IOException{
+		LineParser parser=new InfoParser("sap1:50008",OutputDecoder.ISO_8859_1,listener);
+		byte[] output="Threads: 4\nUsed memory: 5657 KB\n".getBytes("ISO-8859-1");
+		parser.output(output,0,5);
+		parser.output(output,5,output.length-5);
+		parser.finish();
+		assertEquals(4,records.get(0).getThreads());
+		assertEquals(5657,records.get(0).getUsedMemoryKB());
+		assertEquals(-1,records.get(0).getTotalMemoryKB());
+	}
+
+	@Test
+	public void givesNoRecordWithoutKnownNames() throws IOException{
+		LineParser parser=new InfoParser("sap1:50008",OutputDecoder.ISO_8859_1,listener);
+		parser.parse("ERROR: Command INFO not found\r\n");
+		parser.finish();
+		assertTrue(records.isEmpty());
+	}
+
+	@Test
+	public void createsTheParserOfTheVerb(){
+		assertTrue(OutputParsers.create("info",null,OutputDecoder.ISO_8859_1,listener) instanceof InfoParser);
+		assertTrue(OutputParsers.create("HTTP_SESSIONS",null,OutputDecoder.ISO_8859_1,listener) instanceof HttpSessionsParser);
+		assertEquals(null,OutputParsers.create("GC",null,OutputDecoder.ISO_8859_1,listener));
+	}
+}
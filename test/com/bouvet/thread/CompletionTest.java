@@ -0,0 +1,114 @@
+package com.bouvet.thread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CompletionTest {
+
+	@Test
+	public void keepsTheFirstResult(){
+		Completion completion=new Completion();
+		assertFalse(completion.isDone());
+		assertTrue(completion.complete("first"));
+		assertFalse(completion.complete("second"));
+		assertTrue(completion.isDone());
+		assertEquals("first",completion.getResult());
+	}
+
+	@Test
+	public void completesWithNull(){
+		Completion completion=new Completion();
+		assertTrue(completion.complete(null));
+		assertTrue(completion.isDone());
+		assertNull(completion.getResult());
+		assertFalse(completion.complete("later"));
+	}
+
+	@Test
+	public void wakesUpAWaitingThread() throws InterruptedException{
+		final Completion completion=new Completion();
+		Thread completer=new Thread(new Runnable(){
+			public void run() {
+				try {
+					Thread.sleep(50);
+				}catch (InterruptedException e){
+					//complete at once
+				}
+				completion.complete("done");
+			}
+		});
+		completer.start();
+		assertEquals("done",completion.await());
+		completer.join();
+	}
+
+	@Test
+	public void awaitTimesOutWithoutAResult() throws InterruptedException{
+		Completion completion=new Completion();
+		long start=System.nanoTime();
+		assertFalse(completion.await(50,TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test
+	public void callsTheListenersInOrder(){
+		final Completion completion=new Completion();
+		final List<String> called=new ArrayList<String>();
+		completion.addListener(new CompletionListener(){
+			public void completed(Completion c) {
+				called.add("first");
+			}
+		});
+		completion.addListener(new CompletionListener(){
+			public void completed(Completion c) {
+				called.add("second");
+			}
+		});
+		assertTrue(called.isEmpty());
+		completion.complete("done");
+		assertEquals(2,called.size());
+		assertEquals("first",called.get(0));
+		assertEquals("second",called.get(1));
+	}
+
+	@Test
+	public void callsALateListenerAtOnce(){
+		Completion completion=new Completion();
+		completion.complete("done");
+		final List<Completion> called=new ArrayList<Completion>();
+		completion.addListener(new CompletionListener(){
+			public void completed(Completion c) {
+				called.add(c);
+			}
+		});
+		assertEquals(1,called.size());
+		assertSame(completion,called.get(0));
+	}
+
+	@Test
+	public void aFailingListenerDoesNotStopTheOthers(){
+		Completion completion=new Completion();
+		final List<String> called=new ArrayList<String>();
+		completion.addListener(new CompletionListener(){
+			public void completed(Completion c) {
+				throw new IllegalStateException("listener failure expected by the test");
+			}
+		});
+		completion.addListener(new CompletionListener(){
+			public void completed(Completion c) {
+				called.add("second");
+			}
+		});
+		completion.complete("done");
+		assertEquals(1,called.size());
+	}
+}
@@ -0,0 +1,74 @@
+package com.bouvet.thread;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HashedTimerWheelTest {
+	private HashedTimerWheel wheel=new HashedTimerWheel(10,8);
+
+	@After
+	public void stopWheel(){
+		wheel.stop();
+	}
+
+	@Test
+	public void expiresATimeoutAfterItsDelay() throws InterruptedException{
+		final CountDownLatch expired=new CountDownLatch(1);
+		long start=System.nanoTime();
+		WheelTimeout timeout=wheel.schedule(new TimeoutTask(){
+			public void timeoutExpired(WheelTimeout timeout) {
+				expired.countDown();
+			}
+		},50);
+		assertTrue(expired.await(5,TimeUnit.SECONDS));
+		assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(40));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.isCancelled());
+	}
+
+	@Test
+	public void expiresATimeoutLongerThanOneRoundOfTheWheel() throws InterruptedException{
+		final CountDownLatch expired=new CountDownLatch(1);
+		long start=System.nanoTime();
+		//8 buckets of 10 ms is a round of 80 ms
+		wheel.schedule(new TimeoutTask(){
+			public void timeoutExpired(WheelTimeout timeout) {
+				expired.countDown();
+			}
+		},200);
+		assertTrue(expired.await(5,TimeUnit.SECONDS));
+		assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(190));
+	}
+
+	@Test
+	public void doesNotExpireACancelledTimeout() throws InterruptedException{
+		final CountDownLatch expired=new CountDownLatch(1);
+		WheelTimeout timeout=wheel.schedule(new TimeoutTask(){
+			public void timeoutExpired(WheelTimeout timeout) {
+				expired.countDown();
+			}
+		},50);
+		assertTrue(timeout.cancel());
+		assertFalse(expired.await(200,TimeUnit.MILLISECONDS));
+		assertTrue(timeout.isCancelled());
+		assertFalse(timeout.isExpired());
+	}
+
+	@Test
+	public void cannotCancelAnExpiredTimeout() throws InterruptedException{
+		final CountDownLatch expired=new CountDownLatch(1);
+		WheelTimeout timeout=wheel.schedule(new TimeoutTask(){
+			public void timeoutExpired(WheelTimeout timeout) {
+				expired.countDown();
+			}
+		},0);
+		assertTrue(expired.await(5,TimeUnit.SECONDS));
+		assertFalse(timeout.cancel());
+	}
+}